@@ -0,0 +1,33 @@
+package com.occamlab.te.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the engine benchmarks and writes the results as JSON. It accepts the
+ * usual JMH command line options; unless they say otherwise, every benchmark
+ * in this package is run and the results go to te-benchmarks.json in the
+ * current directory, or to the file named by the te.benchmark.result system
+ * property.
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(cmd);
+        if (cmd.getIncludes().isEmpty()) {
+            builder.include(BenchmarkMain.class.getPackage().getName() + ".");
+        }
+        if (!cmd.getResultFormat().hasValue()) {
+            builder.resultFormat(ResultFormatType.JSON);
+        }
+        if (!cmd.getResult().hasValue()) {
+            builder.result(System.getProperty("te.benchmark.result",
+                    "te-benchmarks.json"));
+        }
+        new Runner(builder.build()).run();
+    }
+}
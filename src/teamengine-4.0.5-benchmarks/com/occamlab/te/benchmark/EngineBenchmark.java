@@ -0,0 +1,60 @@
+package com.occamlab.te.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import net.sf.saxon.s9api.XsltExecutable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.occamlab.te.Engine;
+import com.occamlab.te.Generator;
+import com.occamlab.te.SetupOptions;
+import com.occamlab.te.TEClassLoader;
+import com.occamlab.te.index.Index;
+import com.occamlab.te.index.TestEntry;
+
+/**
+ * Loads the executable for a test of the sample suite, either compiling it
+ * (cold) or taking it from the executable cache (warm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EngineBenchmark {
+
+    private Engine engine;
+    private String sourcesName;
+    private TestEntry test;
+
+    @Setup
+    public void setUp() throws Exception {
+        SetupOptions opts = SampleSuite.newSetupOptions();
+        Index index = Generator.generateXsl(opts);
+        sourcesName = opts.getSourcesName();
+        engine = new Engine(index, sourcesName, new TEClassLoader(null));
+        test = index.getTest(SampleSuite.MAIN_TEST);
+    }
+
+    @Benchmark
+    public XsltExecutable loadExecutableCold() throws Exception {
+        engine.getExecutableCache().clear();
+        return engine.loadExecutable(test, sourcesName);
+    }
+
+    @Benchmark
+    public XsltExecutable loadExecutableWarm() throws Exception {
+        return engine.loadExecutable(test, sourcesName);
+    }
+}
@@ -0,0 +1,76 @@
+package com.occamlab.te.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A connection that returns a canned HTTP response, for benchmarking parsers
+ * without a server.
+ */
+public class FixtureConnection extends URLConnection {
+
+    private final String statusLine;
+    private final List<String[]> headers = new ArrayList<String[]>();
+    private final byte[] body;
+
+    /**
+     * Creates a connection.
+     *
+     * @param statusLine
+     *            The HTTP status line, e.g. "HTTP/1.1 200 OK".
+     * @param contentType
+     *            The value of the Content-Type header.
+     * @param body
+     *            The response entity.
+     */
+    public FixtureConnection(String statusLine, String contentType, byte[] body)
+            throws MalformedURLException {
+        super(new URL("http://fixture.invalid/"));
+        this.statusLine = statusLine;
+        this.body = body;
+        headers.add(new String[] { "Content-Type", contentType });
+        headers.add(new String[] { "Content-Length",
+                Integer.toString(body.length) });
+    }
+
+    @Override
+    public void connect() {
+        connected = true;
+    }
+
+    @Override
+    public String getHeaderFieldKey(int n) {
+        if (n == 0 || n > headers.size()) {
+            return null;
+        }
+        return headers.get(n - 1)[0];
+    }
+
+    @Override
+    public String getHeaderField(int n) {
+        if (n == 0) {
+            return statusLine;
+        }
+        return (n > headers.size()) ? null : headers.get(n - 1)[1];
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        for (String[] header : headers) {
+            if (header[0].equalsIgnoreCase(name)) {
+                return header[1];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(body);
+    }
+}
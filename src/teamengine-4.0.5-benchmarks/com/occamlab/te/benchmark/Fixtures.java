@@ -0,0 +1,455 @@
+package com.occamlab.te.benchmark;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import com.occamlab.te.SetupOptions;
+import com.occamlab.te.util.Misc;
+
+/**
+ * Creates the files used by the benchmarks. Everything is generated or copied
+ * into a scratch directory, so no benchmark touches the network or the user's
+ * TE_BASE.
+ *
+ * <p>
+ * The schemas come from the ETS source trees; their location is given by the
+ * te.benchmark.etsDir system property and defaults to ../test-suites, which
+ * is where they are when the benchmarks are run from this module's directory.
+ * </p>
+ */
+public class Fixtures {
+
+    public static final String PARSERS_NS = "http://www.occamlab.com/te/parsers";
+    static final String WFS_PACKAGE = "ets-wfs20-18/org/opengis/cite/iso19142";
+    static final String GML_PACKAGE = "ets-gml32-18/org/opengis/cite/iso19136";
+    static final String WFS11_SCHEMATRON = "ets-wfs11-21/resources/sch/wfs/1.1.0/Capabilities.sch";
+
+    private static final File scratchDir;
+
+    static {
+        try {
+            scratchDir = File.createTempFile("te-benchmark", "");
+            scratchDir.delete();
+            scratchDir.mkdirs();
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        // Must be set before SetupOptions is loaded
+        if (System.getProperty(SetupOptions.TE_BASE) == null) {
+            System.setProperty(SetupOptions.TE_BASE, new File(scratchDir,
+                    "TE_BASE").getPath());
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                Misc.deleteDir(scratchDir);
+            }
+        });
+    }
+
+    /**
+     * Returns a new directory in the scratch area; it is deleted when the JVM
+     * exits.
+     *
+     * @param name
+     *            The name of the directory.
+     * @return An empty directory.
+     */
+    public static File newDir(String name) {
+        File dir = new File(scratchDir, name);
+        Misc.deleteDir(dir);
+        dir.mkdirs();
+        return dir;
+    }
+
+    /**
+     * Returns the directory containing the ETS source trees.
+     *
+     * @return The ETS directory.
+     */
+    public static File getEtsDir() {
+        File dir = new File(System.getProperty("te.benchmark.etsDir",
+                "../test-suites"));
+        if (!new File(dir, WFS_PACKAGE).isDirectory()) {
+            throw new IllegalStateException("ETS sources not found in "
+                    + dir.getAbsolutePath() + "; set te.benchmark.etsDir");
+        }
+        return dir;
+    }
+
+    /**
+     * Copies a classpath resource to a file.
+     *
+     * @param resource
+     *            The resource name.
+     * @param dest
+     *            The destination file.
+     * @return The destination file.
+     */
+    public static File copyResource(String resource, File dest)
+            throws IOException {
+        InputStream in = Fixtures.class.getClassLoader().getResourceAsStream(
+                resource);
+        if (in == null) {
+            throw new IOException("Missing resource " + resource);
+        }
+        try {
+            copy(in, dest);
+        } finally {
+            in.close();
+        }
+        return dest;
+    }
+
+    private static void copy(InputStream in, File dest) throws IOException {
+        dest.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(dest);
+        try {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String read(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                baos.write(buf, 0, n);
+            }
+            return baos.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    public static void write(File f, String content) throws IOException {
+        f.getParentFile().mkdirs();
+        Writer out = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    public static DocumentBuilder newDocumentBuilder() throws Exception {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        dbf.setFeature(
+                "http://apache.org/xml/features/nonvalidating/load-external-dtd",
+                false);
+        return dbf.newDocumentBuilder();
+    }
+
+    /**
+     * Makes a local copy of the schemas of an ETS. The absolute schema
+     * locations in the copy are rewritten to the files the ETS catalog maps
+     * them to, so that the schemas can be compiled offline.
+     *
+     * @param etsPackage
+     *            The path of the ETS package containing schema-catalog.xml,
+     *            relative to the ETS directory.
+     * @return The root of the copy; schemas keep their path relative to the
+     *         catalog.
+     */
+    public static File localizeSchemas(String etsPackage) throws Exception {
+        File packageDir = new File(getEtsDir(), etsPackage);
+        File copyDir = newDir("schemas/"
+                + etsPackage.substring(0, etsPackage.indexOf('/')));
+        Document catalog = newDocumentBuilder().parse(
+                new File(packageDir, "schema-catalog.xml"));
+        Map<String, String> locations = new LinkedHashMap<String, String>();
+        NodeList systems = catalog.getElementsByTagNameNS("*", "system");
+        for (int i = 0; i < systems.getLength(); i++) {
+            Element system = (Element) systems.item(i);
+            File target = new File(copyDir, system.getAttribute("uri"));
+            locations.put(system.getAttribute("systemId"), target
+                    .getCanonicalFile().toURI().toString());
+        }
+        copySchemas(new File(packageDir, "xsd"), new File(copyDir, "xsd"),
+                locations);
+        return copyDir;
+    }
+
+    private static void copySchemas(File src, File dest,
+            Map<String, String> locations) throws IOException {
+        for (File f : src.listFiles()) {
+            File target = new File(dest, f.getName());
+            if (f.isDirectory()) {
+                copySchemas(f, target, locations);
+            } else if (f.getName().endsWith(".xsd")) {
+                String schema = read(f);
+                for (Map.Entry<String, String> entry : locations.entrySet()) {
+                    schema = schema.replace("\"" + entry.getKey() + "\"",
+                            "\"" + entry.getValue() + "\"");
+                }
+                write(target, schema);
+            }
+        }
+    }
+
+    /**
+     * Creates a parser instruction element naming a list of schemas.
+     *
+     * @param parser
+     *            The local name of the parser element.
+     * @param schemas
+     *            The schema files.
+     * @return The instruction.
+     */
+    public static Element schemaInstruction(String parser, File... schemas)
+            throws Exception {
+        Document doc = newDocumentBuilder().newDocument();
+        Element instruction = doc.createElementNS(PARSERS_NS, "p:" + parser);
+        Element list = doc.createElementNS(PARSERS_NS, "p:schemas");
+        for (File schema : schemas) {
+            Element e = doc.createElementNS(PARSERS_NS, "p:schema");
+            e.setAttribute("type", "file");
+            e.setTextContent(schema.getPath());
+            list.appendChild(e);
+        }
+        instruction.appendChild(list);
+        doc.appendChild(instruction);
+        return instruction;
+    }
+
+    /**
+     * Writes a WFS 2.0 GetFeature request with the given number of queries,
+     * each with a bounding box filter.
+     */
+    public static File writeGetFeature(File f, int queries) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<wfs:GetFeature service=\"WFS\" version=\"2.0.0\" count=\"10\"");
+        sb.append(" xmlns:wfs=\"http://www.opengis.net/wfs/2.0\"");
+        sb.append(" xmlns:fes=\"http://www.opengis.net/fes/2.0\"");
+        sb.append(" xmlns:gml=\"http://www.opengis.net/gml/3.2\"");
+        sb.append(" xmlns:tns=\"http://example.org/ns\">\n");
+        for (int i = 0; i < queries; i++) {
+            sb.append("  <wfs:Query typeNames=\"tns:Feature").append(i % 10)
+                    .append("\">\n");
+            sb.append("    <fes:Filter><fes:BBOX>");
+            sb.append("<fes:ValueReference>tns:geometry</fes:ValueReference>");
+            sb.append("<gml:Envelope srsName=\"urn:ogc:def:crs:EPSG::4326\">");
+            sb.append("<gml:lowerCorner>").append(i % 90).append(" 0")
+                    .append("</gml:lowerCorner>");
+            sb.append("<gml:upperCorner>").append(i % 90 + 1).append(" 1")
+                    .append("</gml:upperCorner>");
+            sb.append("</gml:Envelope></fes:BBOX></fes:Filter>\n");
+            sb.append("  </wfs:Query>\n");
+        }
+        sb.append("</wfs:GetFeature>\n");
+        write(f, sb.toString());
+        return f;
+    }
+
+    /**
+     * Writes a GML 3.2 multi-curve with the given number of line strings of
+     * 32 positions each.
+     */
+    public static File writeMultiCurve(File f, int curves) throws IOException {
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<gml:MultiCurve gml:id=\"mc\" srsName=\"urn:ogc:def:crs:EPSG::4326\"");
+        sb.append(" xmlns:gml=\"http://www.opengis.net/gml/3.2\">\n");
+        for (int i = 0; i < curves; i++) {
+            sb.append("  <gml:curveMember><gml:LineString gml:id=\"c")
+                    .append(i).append("\"><gml:posList>");
+            for (int j = 0; j < 32; j++) {
+                if (j > 0) {
+                    sb.append(' ');
+                }
+                sb.append(random.nextInt(90)).append(' ')
+                        .append(random.nextInt(180));
+            }
+            sb.append("</gml:posList></gml:LineString></gml:curveMember>\n");
+        }
+        sb.append("</gml:MultiCurve>\n");
+        write(f, sb.toString());
+        return f;
+    }
+
+    /**
+     * Writes a WFS 1.1 capabilities document with the given number of feature
+     * types.
+     */
+    public static File writeCapabilities(File f, int featureTypes)
+            throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<wfs:WFS_Capabilities version=\"1.1.0\"");
+        sb.append(" xmlns:wfs=\"http://www.opengis.net/wfs\"");
+        sb.append(" xmlns:ows=\"http://www.opengis.net/ows\"");
+        sb.append(" xmlns:ogc=\"http://www.opengis.net/ogc\"");
+        sb.append(" xmlns:xlink=\"http://www.w3.org/1999/xlink\"");
+        sb.append(" xmlns:tns=\"http://example.org/ns\">\n");
+        sb.append("  <ows:ServiceIdentification><ows:Title>Fixture</ows:Title>");
+        sb.append("<ows:ServiceType>WFS</ows:ServiceType>");
+        sb.append("<ows:ServiceTypeVersion>1.1.0</ows:ServiceTypeVersion>");
+        sb.append("</ows:ServiceIdentification>\n");
+        sb.append("  <ows:ServiceProvider><ows:ProviderName>OGC</ows:ProviderName>");
+        sb.append("</ows:ServiceProvider>\n");
+        sb.append("  <ows:OperationsMetadata>\n");
+        String[] operations = { "GetCapabilities", "DescribeFeatureType",
+                "GetFeature", "Transaction" };
+        for (String op : operations) {
+            sb.append("    <ows:Operation name=\"").append(op)
+                    .append("\"><ows:DCP><ows:HTTP>");
+            sb.append("<ows:Get xlink:href=\"http://example.org/wfs?\"/>");
+            sb.append("<ows:Post xlink:href=\"http://example.org/wfs\"/>");
+            sb.append("</ows:HTTP></ows:DCP></ows:Operation>\n");
+        }
+        sb.append("  </ows:OperationsMetadata>\n");
+        sb.append("  <wfs:FeatureTypeList>\n");
+        for (int i = 0; i < featureTypes; i++) {
+            sb.append("    <wfs:FeatureType><wfs:Name>tns:Feature").append(i)
+                    .append("</wfs:Name>");
+            sb.append("<wfs:Title>Feature ").append(i).append("</wfs:Title>");
+            sb.append("<wfs:DefaultSRS>urn:ogc:def:crs:EPSG::4326</wfs:DefaultSRS>");
+            sb.append("<ows:WGS84BoundingBox><ows:LowerCorner>-180 -90</ows:LowerCorner>");
+            sb.append("<ows:UpperCorner>180 90</ows:UpperCorner></ows:WGS84BoundingBox>");
+            sb.append("</wfs:FeatureType>\n");
+        }
+        sb.append("  </wfs:FeatureTypeList>\n");
+        sb.append("  <ogc:Filter_Capabilities><ogc:Spatial_Capabilities>");
+        sb.append("<ogc:GeometryOperands><ogc:GeometryOperand>gml:Envelope</ogc:GeometryOperand>");
+        sb.append("</ogc:GeometryOperands><ogc:SpatialOperators>");
+        sb.append("<ogc:SpatialOperator name=\"BBOX\"/></ogc:SpatialOperators>");
+        sb.append("</ogc:Spatial_Capabilities><ogc:Scalar_Capabilities>");
+        sb.append("<ogc:LogicalOperators/><ogc:ComparisonOperators>");
+        String[] comparisons = { "LessThan", "GreaterThan",
+                "LessThanEqualTo", "GreaterThanEqualTo", "EqualTo",
+                "NotEqualTo", "Like", "Between", "NullCheck" };
+        for (String op : comparisons) {
+            sb.append("<ogc:ComparisonOperator>").append(op)
+                    .append("</ogc:ComparisonOperator>");
+        }
+        sb.append("</ogc:ComparisonOperators></ogc:Scalar_Capabilities>");
+        sb.append("<ogc:Id_Capabilities><ogc:EID/><ogc:FID/></ogc:Id_Capabilities>");
+        sb.append("</ogc:Filter_Capabilities>\n");
+        sb.append("</wfs:WFS_Capabilities>\n");
+        write(f, sb.toString());
+        return f;
+    }
+
+    /**
+     * Writes a square RGB image of blocks of random colors from a small
+     * palette, so that sample counts have a realistic number of distinct
+     * values.
+     *
+     * @param f
+     *            The destination file.
+     * @param format
+     *            An ImageIO format name, e.g. "png" or "jpeg".
+     * @param size
+     *            The width and height in pixels.
+     * @return The destination file.
+     */
+    public static File writeImage(File f, String format, int size)
+            throws IOException {
+        BufferedImage image = new BufferedImage(size, size,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        Random random = new Random(42);
+        Color[] palette = new Color[16];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = new Color(random.nextInt(0x1000000));
+        }
+        palette[0] = Color.WHITE;
+        palette[1] = Color.BLACK;
+        int block = 16;
+        for (int y = 0; y < size; y += block) {
+            for (int x = 0; x < size; x += block) {
+                g.setColor(palette[random.nextInt(palette.length)]);
+                g.fillRect(x, y, block, block);
+            }
+        }
+        g.dispose();
+        f.getParentFile().mkdirs();
+        if (!ImageIO.write(image, format, f)) {
+            throw new IOException("No ImageIO writer for " + format);
+        }
+        return f;
+    }
+
+    /**
+     * Writes the logs of a completed session with a main test that calls
+     * <code>width</code> subtests, each of which calls <code>width</code>
+     * subtests of its own. Every tenth leaf test fails.
+     *
+     * @param userDir
+     *            The user's log directory.
+     * @param session
+     *            The session id.
+     * @param width
+     *            The number of calls made by each non-leaf test.
+     * @return The number of tests in the session.
+     */
+    public static int writeSession(File userDir, String session, int width)
+            throws IOException {
+        int count = 1;
+        StringBuilder calls = new StringBuilder();
+        for (int i = 0; i < width; i++) {
+            String path = session + "/d1e" + i + "_1";
+            StringBuilder subcalls = new StringBuilder();
+            for (int j = 0; j < width; j++) {
+                String subpath = path + "/d2e" + j + "_1";
+                writeLog(userDir, subpath, "leaf", "", (j % 10 == 9) ? 6 : 1);
+                subcalls.append("<testcall path=\"").append(subpath)
+                        .append("\"/>\n");
+                count++;
+            }
+            writeLog(userDir, path, "group", subcalls.toString(), 1);
+            calls.append("<testcall path=\"").append(path).append("\"/>\n");
+            count++;
+        }
+        writeLog(userDir, session, "main", calls.toString(), 1);
+        return count;
+    }
+
+    private static void writeLog(File userDir, String path, String name,
+            String calls, int result) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<log>\n");
+        sb.append("<starttest local-name=\"").append(name);
+        sb.append("\" prefix=\"t\" namespace-uri=\"urn:t\" type=\"Mandatory\"");
+        sb.append(" defaultResult=\"1\" path=\"").append(path).append("\">\n");
+        sb.append("<assertion>").append(name).append("</assertion>\n");
+        sb.append("<params/>\n</starttest>\n");
+        sb.append(calls);
+        sb.append("<message id=\"m1\"><![CDATA[").append(path)
+                .append("]]></message>\n");
+        sb.append("<endtest result=\"").append(result).append("\"/>\n");
+        sb.append("</log>\n");
+        write(new File(new File(userDir, path), "log.xml"), sb.toString());
+    }
+}
@@ -0,0 +1,62 @@
+package com.occamlab.te.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.occamlab.te.Generator;
+import com.occamlab.te.SetupOptions;
+import com.occamlab.te.index.Index;
+import com.occamlab.te.util.Misc;
+
+/**
+ * Generates the executable suite for the sample CTL suite, from scratch and
+ * when the generated files are up to date.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeneratorBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Sources {
+        SetupOptions opts;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            opts = SampleSuite.newSetupOptions();
+            Generator.generateXsl(opts);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class CleanSources extends Sources {
+
+        @Setup(Level.Invocation)
+        public void clean() {
+            Misc.deleteDirContents(opts.getWorkDir());
+        }
+    }
+
+    @Benchmark
+    public Index generateXsl(CleanSources sources) throws Exception {
+        return Generator.generateXsl(sources.opts);
+    }
+
+    @Benchmark
+    public Index generateXslUpToDate(Sources sources) throws Exception {
+        return Generator.generateXsl(sources.opts);
+    }
+}
@@ -0,0 +1,92 @@
+package com.occamlab.te.benchmark;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.occamlab.te.Engine;
+import com.occamlab.te.RuntimeOptions;
+import com.occamlab.te.TECore;
+import com.occamlab.te.index.Index;
+import com.occamlab.te.parsers.HTTPParser;
+
+/**
+ * Parses a multipart response with alternating XML and text parts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HTTPParserBenchmark {
+
+    static final String BOUNDARY = "te-benchmark-boundary";
+
+    /** The number of parts. */
+    @Param({ "4" })
+    public int parts;
+
+    /** The approximate size of each part in bytes. */
+    @Param({ "1024", "65536" })
+    public int partSize;
+
+    private byte[] body;
+    private Element instruction;
+    private TECore core;
+
+    @Setup
+    public void setUp() throws Throwable {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < parts; i++) {
+            sb.append("--").append(BOUNDARY).append("\r\n");
+            if (i % 2 == 0) {
+                sb.append("Content-Type: text/xml\r\n\r\n");
+                sb.append("<items>");
+                for (int n = 0; sb.length() < (i + 1) * partSize; n++) {
+                    sb.append("<item n=\"").append(n).append("\">value ")
+                            .append(n).append("</item>");
+                }
+                sb.append("</items>\r\n");
+            } else {
+                sb.append("Content-Type: text/plain\r\n\r\n");
+                for (int n = 0; sb.length() < (i + 1) * partSize; n++) {
+                    sb.append("line ").append(n).append("\r\n");
+                }
+            }
+        }
+        sb.append("--").append(BOUNDARY).append("--\r\n");
+        body = sb.toString().getBytes("UTF-8");
+        Document doc = Fixtures.newDocumentBuilder().newDocument();
+        instruction = doc
+                .createElementNS(Fixtures.PARSERS_NS, "p:HTTPParser");
+        doc.appendChild(instruction);
+        core = new TECore(new Engine(), new Index(), new RuntimeOptions());
+        Element response = parse().getDocumentElement();
+        if (response.getElementsByTagName("part").getLength() != parts) {
+            throw new IllegalStateException("Unexpected number of parts");
+        }
+    }
+
+    @Benchmark
+    public Document parse() throws Throwable {
+        FixtureConnection uc = new FixtureConnection("HTTP/1.1 200 OK",
+                "multipart/mixed; boundary=" + BOUNDARY, body);
+        return HTTPParser.parse(uc, instruction, new PrintWriter(
+                new StringWriter()), core);
+    }
+}
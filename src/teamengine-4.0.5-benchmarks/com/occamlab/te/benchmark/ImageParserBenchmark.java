@@ -0,0 +1,84 @@
+package com.occamlab.te.benchmark;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.occamlab.te.parsers.ImageParser;
+
+/**
+ * Parses PNG and JPEG images with the checks commonly used by the WMS and
+ * WMTS test suites: type and size, sample counts and a checksum.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageParserBenchmark {
+
+    /** The ImageIO format of the image. */
+    @Param({ "png", "jpeg" })
+    public String format;
+
+    /** The width and height of the image in pixels. */
+    @Param({ "256", "1024" })
+    public int size;
+
+    private File image;
+    private Element instruction;
+
+    @Setup
+    public void setUp() throws Exception {
+        image = Fixtures.writeImage(new File(Fixtures.newDir("image-" + format
+                + "-" + size), "image." + format), format, size);
+        Document doc = Fixtures.newDocumentBuilder().newDocument();
+        instruction = doc.createElementNS(Fixtures.PARSERS_NS,
+                "p:ImageParser");
+        doc.appendChild(instruction);
+        instruction.appendChild(doc.createElementNS(Fixtures.PARSERS_NS,
+                "p:type"));
+        instruction.appendChild(doc.createElementNS(Fixtures.PARSERS_NS,
+                "p:width"));
+        instruction.appendChild(doc.createElementNS(Fixtures.PARSERS_NS,
+                "p:height"));
+        Element model = doc.createElementNS(Fixtures.PARSERS_NS, "p:model");
+        model.setAttribute("value", "RGB");
+        instruction.appendChild(model);
+        Element count = doc.createElementNS(Fixtures.PARSERS_NS, "p:count");
+        count.setAttribute("bands", "R");
+        count.setAttribute("sample", "all");
+        model.appendChild(count);
+        count = doc.createElementNS(Fixtures.PARSERS_NS, "p:count");
+        count.setAttribute("bands", "RGB");
+        count.setAttribute("sample", "0xffffff");
+        model.appendChild(count);
+        model.appendChild(doc.createElementNS(Fixtures.PARSERS_NS,
+                "p:checksum"));
+        if (parse() == null) {
+            throw new IllegalStateException("Unable to parse " + image);
+        }
+    }
+
+    @Benchmark
+    public Document parse() throws Exception {
+        return ImageParser.parse(image.toURI().toURL().openConnection(),
+                instruction, new PrintWriter(new StringWriter()));
+    }
+}
@@ -0,0 +1,65 @@
+package com.occamlab.te.benchmark;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import com.occamlab.te.util.LogUtils;
+
+/**
+ * Builds the test list of a completed session of about 10,000 tests, as
+ * the web application does when a session is viewed, with and without a
+ * cached test list.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogUtilsBenchmark {
+
+    static final String SESSION = "s0001";
+
+    @State(Scope.Benchmark)
+    public static class Session {
+        File userDir;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            userDir = Fixtures.newDir("users/bench");
+            Fixtures.writeSession(userDir, SESSION, 100);
+            LogUtils.makeTestList(userDir, SESSION);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class UncachedSession extends Session {
+
+        @Setup(Level.Invocation)
+        public void removeTestList() {
+            new File(new File(userDir, SESSION), "testlist.xml").delete();
+        }
+    }
+
+    @Benchmark
+    public Document makeTestList(UncachedSession session) throws Exception {
+        return LogUtils.makeTestList(session.userDir, SESSION);
+    }
+
+    @Benchmark
+    public Document makeTestListCached(Session session) throws Exception {
+        return LogUtils.makeTestList(session.userDir, SESSION);
+    }
+}
@@ -0,0 +1,31 @@
+package com.occamlab.te.benchmark;
+
+import java.io.File;
+
+import javax.xml.namespace.QName;
+
+import com.occamlab.te.SetupOptions;
+
+/**
+ * The CTL suite in sample-suite.ctl, copied to the scratch directory.
+ */
+public class SampleSuite {
+
+    public static final String NS = "http://www.occamlab.com/te/benchmark";
+    public static final QName MAIN_TEST = new QName(NS, "main");
+
+    /**
+     * Returns setup options naming a fresh copy of the suite as the only
+     * source.
+     *
+     * @return The options; validation of the source is enabled.
+     */
+    public static SetupOptions newSetupOptions() throws Exception {
+        File source = Fixtures.copyResource(
+                "com/occamlab/te/benchmark/sample-suite.ctl", new File(
+                        Fixtures.newDir("ctl"), "sample-suite.ctl"));
+        SetupOptions opts = new SetupOptions();
+        opts.addSource(source);
+        return opts;
+    }
+}
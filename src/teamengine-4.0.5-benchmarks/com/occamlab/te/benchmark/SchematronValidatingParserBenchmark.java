@@ -0,0 +1,69 @@
+package com.occamlab.te.benchmark;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.occamlab.te.parsers.SchematronValidatingParser;
+
+/**
+ * Checks a WFS 1.1 capabilities document against the Schematron schema of
+ * the WFS 1.1 test suite.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SchematronValidatingParserBenchmark {
+
+    /** The number of feature types in the capabilities document. */
+    @Param({ "10", "1000" })
+    public int featureTypes;
+
+    private File instance;
+    private Element instruction;
+
+    @Setup
+    public void setUp() throws Exception {
+        File dir = Fixtures.newDir("schematron-" + featureTypes);
+        instance = Fixtures.writeCapabilities(new File(dir,
+                "capabilities.xml"), featureTypes);
+        instruction = Fixtures.schemaInstruction(
+                "SchematronValidatingParser", new File(Fixtures.getEtsDir(),
+                        Fixtures.WFS11_SCHEMATRON));
+        Element schema = (Element) instruction.getElementsByTagNameNS(
+                Fixtures.PARSERS_NS, "schema").item(0);
+        schema.setAttribute("phase", "RequiredBasicElementsPhase");
+        StringWriter log = new StringWriter();
+        if (parse(new PrintWriter(log)) == null) {
+            throw new IllegalStateException("Fixture is invalid:\n" + log);
+        }
+    }
+
+    private Document parse(PrintWriter logger) throws Exception {
+        return new SchematronValidatingParser().parse(instance.toURI()
+                .toURL().openConnection(), instruction, logger);
+    }
+
+    @Benchmark
+    public Document parse() throws Exception {
+        return parse(new PrintWriter(new StringWriter()));
+    }
+}
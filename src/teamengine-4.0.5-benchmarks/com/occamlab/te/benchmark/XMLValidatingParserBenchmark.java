@@ -0,0 +1,81 @@
+package com.occamlab.te.benchmark;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.occamlab.te.parsers.XMLValidatingParser;
+
+/**
+ * Validates WFS 2.0 and GML 3.2 instances against the schemas shipped with
+ * the WFS 2.0 and GML 3.2 test suites, as the parser does for a ctl:request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XMLValidatingParserBenchmark {
+
+    /** The schema language of the instance: "wfs" or "gml". */
+    @Param({ "wfs", "gml" })
+    public String schema;
+
+    /** The number of queries or curves in the instance. */
+    @Param({ "10", "1000" })
+    public int size;
+
+    private XMLValidatingParser parser;
+    private File instance;
+    private Element instruction;
+
+    @Setup
+    public void setUp() throws Exception {
+        File dir = Fixtures.newDir("xml-" + schema + "-" + size);
+        if (schema.equals("wfs")) {
+            File schemas = Fixtures.localizeSchemas(Fixtures.WFS_PACKAGE);
+            instance = Fixtures.writeGetFeature(new File(dir, "instance.xml"),
+                    size);
+            instruction = Fixtures.schemaInstruction("XMLValidatingParser",
+                    new File(schemas, "xsd/opengis/wfs/2.0/wfs-2.0.0.xsd"),
+                    new File(schemas, "xsd/opengis/gml/3.2.1/gml-3.2.1.xsd"));
+        } else {
+            File schemas = Fixtures.localizeSchemas(Fixtures.GML_PACKAGE);
+            instance = Fixtures.writeMultiCurve(new File(dir, "instance.xml"),
+                    size);
+            instruction = Fixtures.schemaInstruction("XMLValidatingParser",
+                    new File(schemas, "xsd/opengis/gml/3.2.1/gml-3.2.1.xsd"));
+        }
+        parser = new XMLValidatingParser();
+        StringWriter log = new StringWriter();
+        if (parse(new PrintWriter(log)) == null) {
+            throw new IllegalStateException("Fixture is invalid:\n" + log);
+        }
+    }
+
+    private Document parse(PrintWriter logger) throws Exception {
+        return parser.parse(instance.toURI().toURL().openConnection(),
+                instruction, logger);
+    }
+
+    @Benchmark
+    public Document parse() throws Exception {
+        return parse(new PrintWriter(new StringWriter()));
+    }
+}
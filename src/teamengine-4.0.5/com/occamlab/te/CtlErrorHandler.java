@@ -35,10 +35,13 @@ public class CtlErrorHandler implements ErrorHandler {
     int WarningCount = 0;
 
     void error(String type, SAXParseException e) {
-        System.err.println(type + " at line " + +e.getLineNumber()
-                + ", column " + e.getColumnNumber() + " of " + e.getSystemId()
-                + ":");
-        System.err.println("  " + e.getMessage());
+        // Handlers may be used by concurrent generator threads
+        synchronized (System.err) {
+            System.err.println(type + " at line " + +e.getLineNumber()
+                    + ", column " + e.getColumnNumber() + " of "
+                    + e.getSystemId() + ":");
+            System.err.println("  " + e.getMessage());
+        }
     }
 
     public int getErrorCount() {
@@ -20,27 +20,21 @@
 
 package com.occamlab.te;
 
-import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
-import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
-import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
 
 import net.sf.saxon.Configuration;
+import net.sf.saxon.functions.FunctionLibrary;
 import net.sf.saxon.functions.FunctionLibraryList;
 import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.Processor;
-import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XsltCompiler;
 import net.sf.saxon.s9api.XsltExecutable;
 
@@ -58,13 +52,16 @@ public class Engine {
     TeErrorListener errorListener = null;
     XsltExecutable formExecutable = null;
 
-    // Map of loaded executables, ordered by access order
-    public Map<String, XsltExecutable> loadedExecutables = Collections
-            .synchronizedMap(new LinkedHashMap<String, XsltExecutable>(256,
-                    0.75f, true));
+    // Compiled executables, evicted in least-recently-used order
+    ExecutableCache executableCache = null;
 
     public Map<String, TEClassLoader> classLoaders;
 
+    // Indexes whose functions are available, and the Java extension binder
+    // they are placed in front of
+    List<Index> functionIndexes = new ArrayList<Index>();
+    FunctionLibrary javaLibrary = null;
+
     public Engine(Index index, String sourcesName, TEClassLoader cl)
             throws Exception {
         this();
@@ -82,6 +79,7 @@ public class Engine {
         this.classLoaders = classLoaders;
         if (cacheSize > 0) {
             this.cacheSize = cacheSize;
+            executableCache.setMaxSize(cacheSize);
         }
         addFunctionLibrary(indexes);
     }
@@ -107,6 +105,7 @@ public class Engine {
         // Create a compiler and document builder
         compiler = processor.newXsltCompiler();
         builder = processor.newDocumentBuilder();
+        executableCache = new ExecutableCache(processor, cacheSize);
 
         // Load an executable for the TECore.form method
         ClassLoader cl = Thread.currentThread().getContextClassLoader();
@@ -114,20 +113,40 @@ public class Engine {
         formExecutable = compiler.compile(new StreamSource(is));
     }
 
-    public void addFunctionLibrary(Collection<Index> indexes) {
+    public synchronized void addFunctionLibrary(Collection<Index> indexes) {
         // Change the function library to a new library list that includes
         // our custom java function library
         Configuration config = processor.getUnderlyingConfiguration();
+        if (javaLibrary == null) {
+            javaLibrary = config.getExtensionBinder("java");
+        }
+        functionIndexes.addAll(indexes);
         FunctionLibraryList liblist = new FunctionLibraryList();
-        for (Index index : indexes) {
+        for (Index index : functionIndexes) {
             TEFunctionLibrary telib = new TEFunctionLibrary(config, index);
             liblist.addFunctionLibrary(telib);
         }
-        liblist.addFunctionLibrary(config.getExtensionBinder("java"));
+        liblist.addFunctionLibrary(javaLibrary);
         config.setExtensionBinder("java", liblist);
 
     }
 
+    /**
+     * Makes the tests and functions of a set of sources available after the
+     * engine was created.
+     * 
+     * @param sourcesName
+     *            The name of the sources.
+     * @param index
+     *            The index generated from the sources.
+     * @param cl
+     *            The class loader for the resources of the sources.
+     */
+    public void addSources(String sourcesName, Index index, TEClassLoader cl) {
+        classLoaders.put(sourcesName, cl);
+        addFunctionLibrary(Collections.singletonList(index));
+    }
+
     /**
      * Loads all of the XSL executables. This is a time consuming operation.
      * 
@@ -152,58 +171,39 @@ public class Engine {
         }
     }
 
-    boolean freeExecutable() {
-        Set<String> keys = loadedExecutables.keySet();
-        synchronized (loadedExecutables) {
-            Iterator<String> it = keys.iterator();
-            if (it.hasNext()) {
-                loadedExecutables.remove(it.next());
-                return true;
-            }
-        }
-        return false;
-    }
-
+    /**
+     * Returns the compiled stylesheet for a template, compiling it if it is not
+     * already in the cache. Safe for concurrent use; a template requested by
+     * several threads at once is only compiled once.
+     * 
+     * @param entry
+     *            The test or function to load.
+     * @param sourcesName
+     *            The name of the sources the entry belongs to.
+     * @return The compiled XsltExecutable.
+     * @throws Exception
+     *             If the stylesheet fails to compile.
+     */
     public XsltExecutable loadExecutable(TemplateEntry entry, String sourcesName)
             throws Exception {
         String key = sourcesName + "," + entry.getId();
         if (entry instanceof FunctionEntry) {
             key += "_" + Integer.toString(((FunctionEntry) entry).getMinArgs());
         }
-        XsltExecutable executable = loadedExecutables.get(key);
-        while (executable == null) {
-            // capture messages written to System.err by default message emitter
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            PrintStream console = System.err;
-            try {
-                System.setErr(new PrintStream(baos));
-                Source source = new StreamSource(entry.getTemplateFile());
-                executable = compiler.compile(source);
-                loadedExecutables.put(key, executable);
-            } catch (OutOfMemoryError e) {
-                boolean freed = freeExecutable();
-                if (!freed) {
-                    throw e;
-                }
-            } catch (SaxonApiException e) {
-                throw new Exception(baos.toString() + e.getMessage(),
-                        e.getCause());
-            } finally {
-                System.setErr(console);
-            }
-        }
-        while (loadedExecutables.size() > cacheSize) {
-            boolean freed = freeExecutable();
-            if (!freed) {
-                break;
-            }
-        }
-
-        return executable;
+        return executableCache.get(key, entry.getTemplateFile());
     }
 
+    /**
+     * Returns a snapshot of the currently cached executables.
+     * 
+     * @return A Map of executables ordered from least to most recently used.
+     */
     public Map<String, XsltExecutable> getLoadedExecutables() {
-        return loadedExecutables;
+        return executableCache.asMap();
+    }
+
+    public ExecutableCache getExecutableCache() {
+        return executableCache;
     }
 
     public TEClassLoader getClassLoader(String sourcesName) {
@@ -0,0 +1,279 @@
+package com.occamlab.te;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XsltCompiler;
+import net.sf.saxon.s9api.XsltExecutable;
+
+import com.occamlab.te.util.Metrics;
+
+/**
+ * A bounded, thread-safe cache of compiled XSLT executables. Entries are
+ * evicted in least-recently-used order once the maximum size is exceeded.
+ * Concurrent requests for the same key share a single compilation; each
+ * compilation gets its own compiler and error listener so that messages from
+ * one session are not mixed with those of another.
+ */
+public class ExecutableCache {
+
+    private static final Logger LOGR = Logger.getLogger(ExecutableCache.class
+            .getName());
+    private final Processor processor;
+    private volatile int maxSize;
+    // Compiled executables, ordered by access order (guarded by itself)
+    private final LinkedHashMap<String, XsltExecutable> executables = new LinkedHashMap<String, XsltExecutable>(
+            256, 0.75f, true);
+    // Compilations in progress
+    private final ConcurrentMap<String, FutureTask<XsltExecutable>> pending = new ConcurrentHashMap<String, FutureTask<XsltExecutable>>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong compileCount = new AtomicLong();
+    private final AtomicLong compileTime = new AtomicLong();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param processor
+     *            The Saxon processor used to create compilers.
+     * @param maxSize
+     *            The maximum number of executables to retain.
+     */
+    public ExecutableCache(Processor processor, int maxSize) {
+        this.processor = processor;
+        this.maxSize = maxSize;
+        registerMetrics();
+    }
+
+    // Reports the counters of the most recently created cache
+    private void registerMetrics() {
+        Metrics.register("xslt_cache_size", new Metrics.Gauge() {
+            public long getValue() {
+                return size();
+            }
+        });
+        Metrics.register("xslt_cache_hits_total", new Metrics.Gauge() {
+            public long getValue() {
+                return hits.get();
+            }
+        });
+        Metrics.register("xslt_cache_misses_total", new Metrics.Gauge() {
+            public long getValue() {
+                return misses.get();
+            }
+        });
+        Metrics.register("xslt_cache_evictions_total", new Metrics.Gauge() {
+            public long getValue() {
+                return evictions.get();
+            }
+        });
+    }
+
+    /**
+     * Returns the executable for the given key, compiling the template file if
+     * necessary. If another thread is already compiling the same key the
+     * caller waits for that result instead of compiling it again.
+     *
+     * @param key
+     *            A key that uniquely identifies the template.
+     * @param templateFile
+     *            The XSLT stylesheet to compile.
+     * @return A compiled XsltExecutable.
+     * @throws Exception
+     *             If the stylesheet fails to compile; the message includes
+     *             any errors reported by the compiler.
+     */
+    public XsltExecutable get(String key, final File templateFile)
+            throws Exception {
+        XsltExecutable executable;
+        synchronized (executables) {
+            executable = executables.get(key);
+        }
+        if (executable != null) {
+            hits.incrementAndGet();
+            return executable;
+        }
+        FutureTask<XsltExecutable> task = pending.get(key);
+        if (task == null) {
+            FutureTask<XsltExecutable> newTask = new FutureTask<XsltExecutable>(
+                    new Callable<XsltExecutable>() {
+                        public XsltExecutable call() throws Exception {
+                            return compile(templateFile);
+                        }
+                    });
+            task = pending.putIfAbsent(key, newTask);
+            if (task == null) {
+                task = newTask;
+                try {
+                    // Another thread may have finished while we were racing
+                    synchronized (executables) {
+                        executable = executables.get(key);
+                    }
+                    if (executable != null) {
+                        hits.incrementAndGet();
+                        return executable;
+                    }
+                    misses.incrementAndGet();
+                    task.run();
+                    executable = waitFor(task);
+                    put(key, executable);
+                    return executable;
+                } finally {
+                    pending.remove(key, task);
+                }
+            }
+        }
+        hits.incrementAndGet();
+        return waitFor(task);
+    }
+
+    XsltExecutable compile(File templateFile) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        XsltCompiler compiler = processor.newXsltCompiler();
+        compiler.setErrorListener(new TeErrorListener(new PrintStream(baos,
+                true)));
+        long start = System.nanoTime();
+        try {
+            return compiler.compile(new StreamSource(templateFile));
+        } catch (SaxonApiException e) {
+            throw new Exception(baos.toString() + e.getMessage(), e.getCause());
+        } finally {
+            compileCount.incrementAndGet();
+            long elapsed = System.nanoTime() - start;
+            compileTime.addAndGet(elapsed);
+            Metrics.timer("xslt_compile").record(elapsed);
+        }
+    }
+
+    static XsltExecutable waitFor(FutureTask<XsltExecutable> task)
+            throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    void put(String key, XsltExecutable executable) {
+        synchronized (executables) {
+            executables.put(key, executable);
+            trim();
+        }
+    }
+
+    // Caller must hold the lock on executables
+    private void trim() {
+        Iterator<String> it = executables.keySet().iterator();
+        while (executables.size() > maxSize && it.hasNext()) {
+            String eldest = it.next();
+            it.remove();
+            evictions.incrementAndGet();
+            if (LOGR.isLoggable(Level.FINER)) {
+                LOGR.finer("Evicted executable " + eldest);
+            }
+        }
+    }
+
+    /**
+     * Removes all executables from the cache. Compilations in progress are not
+     * affected.
+     */
+    public void clear() {
+        synchronized (executables) {
+            executables.clear();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the cached executables, from least to most
+     * recently used.
+     *
+     * @return An unmodifiable copy of the cache contents.
+     */
+    public Map<String, XsltExecutable> asMap() {
+        synchronized (executables) {
+            return Collections
+                    .unmodifiableMap(new LinkedHashMap<String, XsltExecutable>(
+                            executables));
+        }
+    }
+
+    public int size() {
+        synchronized (executables) {
+            return executables.size();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        synchronized (executables) {
+            trim();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getCompileCount() {
+        return compileCount.get();
+    }
+
+    /**
+     * Returns the total time spent compiling stylesheets.
+     *
+     * @return The cumulative compilation time in milliseconds.
+     */
+    public long getTotalCompileTime() {
+        return compileTime.get() / 1000000L;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("ExecutableCache {");
+        sb.append("size=").append(size()).append(", ");
+        sb.append("maxSize=").append(maxSize).append(", ");
+        sb.append("hits=").append(hits.get()).append(", ");
+        sb.append("misses=").append(misses.get()).append(", ");
+        sb.append("evictions=").append(evictions.get()).append(", ");
+        sb.append("compileTime=").append(getTotalCompileTime()).append("ms}");
+        return sb.toString();
+    }
+}
@@ -23,14 +23,31 @@ import com.occamlab.te.index.Index;
 import com.occamlab.te.util.Misc;
 import com.occamlab.te.util.XMLParserUtils;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.XMLConstants;
 import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.Source;
 import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamSource;
@@ -38,7 +55,11 @@ import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
 import javax.xml.validation.Validator;
 
+import org.apache.commons.codec.binary.Hex;
+import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
 import net.sf.saxon.FeatureKeys;
 import net.sf.saxon.s9api.Processor;
@@ -59,20 +80,36 @@ public class Generator {
     private static final Logger LOGR = Logger.getLogger(Generator.class
             .getName());
 
-    private static String suiteDefaultResult = "Pass";
+    static final String XINCLUDE_NS = "http://www.w3.org/2001/XInclude";
+    static final String DIGEST_ALGORITHM = "SHA-1";
+    /** Records the digest of the sources an index was generated from. */
+    static final String DIGEST_FILE = "index.digest";
+
+    // Set by ctl:suite while generating and read by the tests that follow it
+    private static final ThreadLocal<String> suiteDefaultResult = new ThreadLocal<String>() {
+        @Override
+        protected String initialValue() {
+            return "Pass";
+        }
+    };
 
     public static void setSuiteDefaultResult(String resultName) {
-        suiteDefaultResult = resultName.equals("BestPractice") ? "BestPractice"
-                : "Pass";
+        suiteDefaultResult
+                .set(resultName.equals("BestPractice") ? "BestPractice"
+                        : "Pass");
     }
 
     public static String getSuiteDefaultResult() {
-        return suiteDefaultResult;
+        return suiteDefaultResult.get();
     }
 
     /**
      * Generates the XSLT stylesheets that constitute an executable test suite
-     * (ETS).
+     * (ETS). Source files are processed in parallel if more than one generator
+     * thread is configured (see {@link SetupOptions#getGeneratorThreads()}).
+     * A source file is only regenerated if the digest of its content (and
+     * that of any included files) differs from the one recorded when it was
+     * last generated.
      * 
      * @param opts
      *            Static configuration settings.
@@ -82,25 +119,21 @@ public class Generator {
     public static Index generateXsl(SetupOptions opts) throws Exception {
         Index masterIndex = new Index();
 
-        // Create CTL validator
+        // Create CTL schema (thread-safe; each worker creates its own
+        // validator)
         SchemaFactory sf = SchemaFactory
                 .newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
         Schema ctl_schema = sf.newSchema(Misc
                 .getResourceAsFile("com/occamlab/te/schemas/ctl.xsd"));
-        Validator ctl_validator = ctl_schema.newValidator();
-        CtlErrorHandler validation_eh = new CtlErrorHandler();
-        ctl_validator.setErrorHandler(validation_eh);
 
-        // Create a transformer to generate executable scripts from CTL sources
+        // Compile the stylesheet that generates executable scripts from CTL
+        // sources (thread-safe; each worker loads its own transformer)
         Processor processor = new Processor(false);
         processor.setConfigurationProperty(FeatureKeys.LINE_NUMBERING,
                 Boolean.TRUE);
         XsltCompiler generatorCompiler = processor.newXsltCompiler();
-        File generatorStylesheet = Misc
-                .getResourceAsFile("com/occamlab/te/generate_xsl.xsl");
         XsltExecutable generatorXsltExecutable = generatorCompiler
-                .compile(new StreamSource(generatorStylesheet));
-        XsltTransformer generatorTransformer = generatorXsltExecutable.load();
+                .compile(new StreamSource(getGeneratorStylesheet()));
 
         // Create a list of CTL sources (may be files or dirs)
         ArrayList<File> sources = new ArrayList<File>();
@@ -148,26 +181,243 @@ public class Generator {
             }
         }
 
-        // resolve xinclude elements but omit xml:base attributes
-        SAXParser parser = XMLParserUtils.createXIncludeAwareSAXParser(false);
+        // Process each CTL source file; indexes are added to the master index
+        // in source order regardless of the order in which they complete
+        List<Worker> workers = Collections
+                .synchronizedList(new ArrayList<Worker>());
+        int threads = Math.min(opts.getGeneratorThreads(), sourceFiles.size());
+        if (threads > 1) {
+            LOGR.log(Level.CONFIG,
+                    "Generating {0} CTL source files using {1} threads",
+                    new Object[] { sourceFiles.size(), threads });
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                ThreadLocal<Worker> localWorker = new ThreadLocal<Worker>();
+                List<ForkJoinTask<Index>> tasks = new ArrayList<ForkJoinTask<Index>>();
+                for (int i = 0; i < sourceFiles.size(); i++) {
+                    tasks.add(pool.submit(new GenerateTask(sourceFiles.get(i),
+                            workDirs.get(i), localWorker, workers,
+                            generatorXsltExecutable, ctl_schema, opts
+                                    .isValidate())));
+                }
+                for (ForkJoinTask<Index> task : tasks) {
+                    try {
+                        masterIndex.add(task.get());
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof Exception) {
+                            throw (Exception) cause;
+                        }
+                        throw e;
+                    }
+                }
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            Worker worker = new Worker(generatorXsltExecutable, ctl_schema);
+            workers.add(worker);
+            for (int i = 0; i < sourceFiles.size(); i++) {
+                masterIndex.add(worker.generate(sourceFiles.get(i),
+                        workDirs.get(i), opts.isValidate()));
+            }
+        }
 
-        // Process each CTL source file
-        for (int i = 0; i < sourceFiles.size(); i++) {
-            File sourceFile = sourceFiles.get(i);
-            File workingDir = workDirs.get(i);
+        // If there were any validation errors, display them and throw an
+        // exception
+        int error_count = 0;
+        int warning_count = 0;
+        for (Worker worker : workers) {
+            error_count += worker.validation_eh.getErrorCount();
+            warning_count += worker.validation_eh.getWarningCount();
+        }
+        if (error_count > 0) {
+            String msg = error_count + " validation error"
+                    + (error_count == 1 ? "" : "s");
+            if (warning_count > 0) {
+                msg += " and " + warning_count + " warning"
+                        + (warning_count == 1 ? "" : "s");
+            }
+            msg += " detected.";
+            // appLogger.severe(msg);
+            throw new Exception(msg);
+        }
 
-            // Read previous index for this file (if any), and determine whether
-            // the index and xsl need to be regenerated
+        return masterIndex;
+    }
+
+    /**
+     * Returns the stylesheet that generates executable scripts from CTL
+     * sources.
+     */
+    public static File getGeneratorStylesheet() {
+        return Misc.getResourceAsFile("com/occamlab/te/generate_xsl.xsl");
+    }
+
+    /**
+     * Returns the files an index was generated from: the CTL files it depends
+     * on (the source file first) and any files they include by means of
+     * xi:include elements.
+     * 
+     * @param index
+     *            An index.
+     * @return The files, in the order they are digested.
+     * @throws Exception
+     *             If a file cannot be read.
+     */
+    public static Set<File> getSourceFiles(Index index) throws Exception {
+        Set<File> files = new LinkedHashSet<File>();
+        for (File dependency : index.getDependencies()) {
+            files.add(dependency.getAbsoluteFile());
+        }
+        for (File file : new ArrayList<File>(files)) {
+            findXIncludes(file, files);
+        }
+        return files;
+    }
+
+    /**
+     * Computes a digest over the content of the generator stylesheet and the
+     * files an index was generated from. File modification times are not
+     * considered.
+     * 
+     * @param files
+     *            The files returned by {@link #getSourceFiles(Index)}.
+     * @return A hexadecimal string representation of the digest.
+     * @throws Exception
+     *             If a file cannot be read.
+     */
+    public static String computeDigest(Collection<File> files)
+            throws Exception {
+        MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        md.update(digest(Collections.singletonList(getGeneratorStylesheet())));
+        md.update(digest(files));
+        return Hex.encodeHexString(md.digest());
+    }
+
+    /**
+     * Computes a digest over the content of the given files, in order.
+     * Missing files contribute a fixed marker.
+     */
+    static byte[] digest(Collection<File> files) throws Exception {
+        MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        byte[] buf = new byte[8192];
+        for (File file : files) {
+            if (!file.isFile()) {
+                md.update((byte) 0);
+                continue;
+            }
+            InputStream in = new FileInputStream(file);
+            try {
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    md.update(buf, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+            md.update((byte) 1);
+        }
+        return md.digest();
+    }
+
+    /**
+     * Adds to the given set the local files referenced (directly or
+     * indirectly) by xi:include elements in the given XML file.
+     */
+    static void findXIncludes(File file, final Set<File> files)
+            throws Exception {
+        if (!file.isFile()) {
+            return;
+        }
+        final List<File> found = new ArrayList<File>();
+        final URI base = file.toURI();
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        try {
+            factory.newSAXParser().parse(file, new DefaultHandler() {
+                @Override
+                public void startElement(String uri, String localName,
+                        String qName, Attributes attributes) {
+                    if (XINCLUDE_NS.equals(uri)
+                            && localName.equals("include")) {
+                        String href = attributes.getValue("href");
+                        if (href != null && href.length() > 0) {
+                            URI target = base.resolve(href);
+                            if ("file".equals(target.getScheme())) {
+                                found.add(new File(target));
+                            }
+                        }
+                    }
+                }
+            });
+        } catch (SAXException e) {
+            // Not well-formed; the generator will report it
+            return;
+        }
+        for (File include : found) {
+            if (files.add(include)) {
+                findXIncludes(include, files);
+            }
+        }
+    }
+
+    static String readDigest(File workingDir) {
+        File digestFile = new File(workingDir, DIGEST_FILE);
+        if (!digestFile.isFile()) {
+            return null;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(digestFile));
+            try {
+                return in.readLine();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static void writeDigest(File workingDir, String digest) throws IOException {
+        PrintWriter out = new PrintWriter(new File(workingDir, DIGEST_FILE));
+        out.println(digest);
+        out.close();
+    }
+
+    /**
+     * Holds the objects needed to generate the scripts for a CTL source file.
+     * None of these is thread-safe, so each generator thread gets its own.
+     */
+    static class Worker {
+        XsltTransformer generatorTransformer;
+        Validator ctl_validator;
+        CtlErrorHandler validation_eh = new CtlErrorHandler();
+        SAXParser parser;
+
+        Worker(XsltExecutable generatorXsltExecutable, Schema ctl_schema) {
+            generatorTransformer = generatorXsltExecutable.load();
+            ctl_validator = ctl_schema.newValidator();
+            ctl_validator.setErrorHandler(validation_eh);
+            // resolve xinclude elements but omit xml:base attributes
+            parser = XMLParserUtils.createXIncludeAwareSAXParser(false);
+        }
+
+        Index generate(File sourceFile, File workingDir, boolean validate)
+                throws Exception {
+            // A suite's default result only applies to the source file that
+            // declares it
+            suiteDefaultResult.set("Pass");
+            // Read previous index for this file (if any), and determine
+            // whether the index and xsl need to be regenerated
             File indexFile = new File(workingDir, "index.xml");
             Index index = null;
             boolean regenerate = true;
             if (indexFile.isFile()) {
                 try {
-                    if (indexFile.lastModified() > generatorStylesheet
-                            .lastModified()) {
-                        index = new Index(indexFile);
-                        regenerate = index.outOfDate();
-                    }
+                    index = Index.load(indexFile);
+                    regenerate = !index.getDigest().equals(
+                            readDigest(workingDir));
                 } catch (Exception e) {
                     // If there was an exception reading the index file, it is
                     // likely corrupt. Regenerate it.
@@ -178,7 +428,7 @@ public class Generator {
             if (regenerate) {
                 // Validate the source CTL file
                 boolean validationErrors = false;
-                if (opts.isValidate()) {
+                if (validate) {
                     int old_count = validation_eh.getErrorCount();
                     LOGR.log(Level.CONFIG, "Validating " + sourceFile);
                     ctl_validator.validate(new StreamSource(sourceFile));
@@ -206,31 +456,51 @@ public class Generator {
                     generatorTransformer.setParameter(new QName("outdir"), av);
                     generatorTransformer.transform();
 
-                    // Read the generated index
-                    index = new Index(indexFile);
+                    // Read the generated index and record what it was
+                    // generated from
+                    index = Index.load(indexFile);
+                    writeDigest(workingDir, index.getDigest());
                 }
             }
-            // Add new index entries to the master index
-            masterIndex.add(index);
+            return index;
         }
+    }
 
-        // If there were any validation errors, display them and throw an
-        // exception
-        int error_count = validation_eh.getErrorCount();
-        if (error_count > 0) {
-            String msg = error_count + " validation error"
-                    + (error_count == 1 ? "" : "s");
-            int warning_count = validation_eh.getWarningCount();
-            if (warning_count > 0) {
-                msg += " and " + warning_count + " warning"
-                        + (warning_count == 1 ? "" : "s");
-            }
-            msg += " detected.";
-            // appLogger.severe(msg);
-            throw new Exception(msg);
+    /**
+     * Generates the scripts for a single CTL source file using the worker
+     * belonging to the current thread.
+     */
+    static class GenerateTask implements Callable<Index> {
+        private final File sourceFile;
+        private final File workingDir;
+        private final ThreadLocal<Worker> localWorker;
+        private final List<Worker> workers;
+        private final XsltExecutable generatorXsltExecutable;
+        private final Schema ctl_schema;
+        private final boolean validate;
+
+        GenerateTask(File sourceFile, File workingDir,
+                ThreadLocal<Worker> localWorker, List<Worker> workers,
+                XsltExecutable generatorXsltExecutable, Schema ctl_schema,
+                boolean validate) {
+            this.sourceFile = sourceFile;
+            this.workingDir = workingDir;
+            this.localWorker = localWorker;
+            this.workers = workers;
+            this.generatorXsltExecutable = generatorXsltExecutable;
+            this.ctl_schema = ctl_schema;
+            this.validate = validate;
         }
 
-        return masterIndex;
+        public Index call() throws Exception {
+            Worker worker = localWorker.get();
+            if (worker == null) {
+                worker = new Worker(generatorXsltExecutable, ctl_schema);
+                localWorker.set(worker);
+                workers.add(worker);
+            }
+            return worker.generate(sourceFile, workingDir, validate);
+        }
     }
 
     /**
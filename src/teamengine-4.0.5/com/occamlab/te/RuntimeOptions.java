@@ -27,6 +27,8 @@ import java.util.logging.Logger;
 
 import net.sf.saxon.s9api.XdmNode;
 
+import com.occamlab.te.util.HttpTransport;
+
 /**
  * Provides runtime configuration settings.
  */
@@ -42,6 +44,12 @@ public class RuntimeOptions {
     ArrayList<String> profiles = new ArrayList<String>();
     ArrayList<String> testPaths = new ArrayList<String>();
     ArrayList<String> params = new ArrayList<String>();
+    int testThreads = Integer.getInteger("te.testThreads", 1);
+    int profileThreads = Integer.getInteger("te.profileThreads", 1);
+    String httpMode = System.getProperty("te.httpMode",
+            HttpTransport.PASSTHROUGH_MODE);
+    File httpArchive = (System.getProperty("te.httpArchive") == null) ? null
+            : new File(System.getProperty("te.httpArchive"));
 
     /**
      * Default constructor sets the location of the test log directory to
@@ -156,6 +164,70 @@ public class RuntimeOptions {
         this.testName = testName;
     }
 
+    /**
+     * Returns the number of threads used to run sibling subtests that are
+     * invoked by &lt;ctl:call-test independent="true"&gt; instructions. The
+     * default value is 1 (serial execution); it may be changed by setting the
+     * "te.testThreads" system property. Subtests are run concurrently only in
+     * test and retest modes.
+     * 
+     * @return The maximum number of subtests run in parallel.
+     */
+    public int getTestThreads() {
+        return testThreads;
+    }
+
+    public void setTestThreads(int testThreads) {
+        this.testThreads = testThreads;
+    }
+
+    /**
+     * Returns the number of profiles that may be executed concurrently once
+     * the base suite is complete. The default value is 1 (one profile at a
+     * time); it may be changed by setting the "te.profileThreads" system
+     * property.
+     * 
+     * @return The maximum number of profiles run in parallel.
+     */
+    public int getProfileThreads() {
+        return profileThreads;
+    }
+
+    public void setProfileThreads(int profileThreads) {
+        this.profileThreads = profileThreads;
+    }
+
+    /**
+     * Returns the mode used to submit HTTP requests: "passthrough" (the
+     * default), "record" or "replay". It may be changed by setting the
+     * "te.httpMode" system property.
+     * 
+     * @return The HTTP transport mode.
+     * @see HttpTransport
+     */
+    public String getHttpMode() {
+        return httpMode;
+    }
+
+    public void setHttpMode(String httpMode) {
+        this.httpMode = httpMode;
+    }
+
+    /**
+     * Returns the archive that HTTP exchanges are recorded to or replayed
+     * from. If not set (by means of the "te.httpArchive" system property), the
+     * file http.archive in the session directory is used.
+     * 
+     * @return The archive file, or {@code null} if not set.
+     */
+    public File getHttpArchive() {
+        return httpArchive;
+    }
+
+    public void setHttpArchive(File httpArchive) {
+        this.httpArchive = httpArchive;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder("RuntimeOptions {\n");
@@ -169,7 +241,11 @@ public class RuntimeOptions {
         sb.append("baseURI=").append(baseURI).append(",\n");
         sb.append("profiles=").append(profiles).append(",\n");
         sb.append("testPaths=").append(testPaths).append(",\n");
-        sb.append("params=").append(params).append("\n}");
+        sb.append("params=").append(params).append(",\n");
+        sb.append("testThreads=").append(testThreads).append(",\n");
+        sb.append("profileThreads=").append(profileThreads).append(",\n");
+        sb.append("httpMode=").append(httpMode).append(",\n");
+        sb.append("httpArchive=").append(httpArchive).append("\n}");
         return sb.toString();
     }
 
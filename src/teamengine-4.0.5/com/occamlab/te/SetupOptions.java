@@ -54,6 +54,7 @@ public class SetupOptions {
     private static File teBaseDir = getBaseConfigDirectory();
     boolean validate = true;
     boolean preload = false;
+    int generatorThreads = Integer.getInteger("te.generatorThreads", 1);
     File workDir = null;
     String sourcesName = "default";
     ArrayList<File> sources = new ArrayList<File>();
@@ -165,4 +166,19 @@ public class SetupOptions {
     public void setPreload(boolean preload) {
         this.preload = preload;
     }
+
+    /**
+     * Returns the number of threads used to generate executable scripts from
+     * CTL source files. The default value (1) processes files one at a time;
+     * it may be changed by setting the "te.generatorThreads" system property.
+     * 
+     * @return The maximum number of source files generated concurrently.
+     */
+    public int getGeneratorThreads() {
+        return generatorThreads;
+    }
+
+    public void setGeneratorThreads(int generatorThreads) {
+        this.generatorThreads = generatorThreads;
+    }
 }
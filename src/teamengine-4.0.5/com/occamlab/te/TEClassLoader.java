@@ -30,16 +30,44 @@ import java.net.URL;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.occamlab.te.util.Metrics;
+
+/**
+ * Loads the classes and resources of a test suite. Resources are looked up in
+ * the suite's resources directory first and then through the context class
+ * loader; the location found for each name is remembered. The engine's parser
+ * classes are defined by this loader so that they see the suite's resources,
+ * and all other classes are delegated to the context class loader.
+ *
+ * <p>
+ * The loader is parallel capable. The number and duration of class loads are
+ * reported by the class_load timer, labeled by where the class came from.
+ * </p>
+ */
 public class TEClassLoader extends ClassLoader {
     File resourcesDir;
     ClassLoader cl;
     HashSet<String> registeredClasses;
+    // Resolved resource locations; NOT_FOUND marks names found nowhere
+    private final ConcurrentMap<String, URL> resourceCache = new ConcurrentHashMap<String, URL>();
+    private static final URL NOT_FOUND;
     private static Logger logger = Logger
             .getLogger("com.occamlab.te.TEClassLoader");
 
+    static {
+        registerAsParallelCapable();
+        try {
+            NOT_FOUND = new URL("file:/");
+        } catch (MalformedURLException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     public TEClassLoader(File resourcesDir) {
         this.resourcesDir = resourcesDir;
         cl = Thread.currentThread().getContextClassLoader();
@@ -53,34 +81,50 @@ public class TEClassLoader extends ClassLoader {
     }
 
     public URL getResource(String name) {
-        if (resourcesDir != null) {
-            File f = new File(resourcesDir, name);
-            try {
-                return f.toURI().toURL();
-            } catch (MalformedURLException e) {
-                logger.log(Level.SEVERE, "getResource", e);
+        URL u = resourceCache.get(name);
+        if (u == null) {
+            u = findSuiteResource(name);
+            if (u == null) {
+                u = cl.getResource(name);
             }
+            resourceCache.putIfAbsent(name, (u == null) ? NOT_FOUND : u);
         }
-        return cl.getResource(name);
+        return (u == NOT_FOUND) ? null : u;
     }
 
-    public InputStream getResourceAsStream(String name) {
+    /**
+     * Returns the URL of a file in the resources directory, or null if there
+     * is no such file.
+     */
+    private URL findSuiteResource(String name) {
         if (resourcesDir != null) {
-            URL u = getResource(name);
-            if (u != null) {
+            File f = new File(resourcesDir, name);
+            if (f.isFile()) {
                 try {
-                    return u.openStream();
-                } catch (IOException e) {
+                    return f.toURI().toURL();
+                } catch (MalformedURLException e) {
+                    logger.log(Level.SEVERE, "getResource", e);
                 }
             }
         }
-        return cl.getResourceAsStream(name);
+        return null;
+    }
+
+    public InputStream getResourceAsStream(String name) {
+        URL u = getResource(name);
+        if (u != null) {
+            try {
+                return u.openStream();
+            } catch (IOException e) {
+            }
+        }
+        return null;
     }
 
     public Enumeration<URL> getResources(String name) throws IOException {
         Enumeration<URL> resources = cl.getResources(name);
-        URL u = getResource(name);
-        if (resourcesDir != null && u != null) {
+        URL u = findSuiteResource(name);
+        if (u != null) {
             Vector<URL> v = new Vector<URL>();
             v.add(u);
             while (resources.hasMoreElements()) {
@@ -99,46 +143,64 @@ public class TEClassLoader extends ClassLoader {
 
     private Class<?> readClass(String name) {
         String filename = name.replace('.', '/') + ".class";
+        InputStream in = getResourceAsStream(filename);
+        if (in == null) {
+            return null;
+        }
         try {
-            InputStream in = getResourceAsStream(filename);
-            ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
-            int i = in.read();
-            while (i >= 0) {
-                baos.write(i);
-                i = in.read();
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(8192);
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) >= 0) {
+                    baos.write(buf, 0, n);
+                }
+                return defineClass(name, baos.toByteArray(), 0, baos.size());
+            } finally {
+                in.close();
             }
-            in.close();
-            return defineClass(name, baos.toByteArray(), 0, baos.size());
         } catch (Exception e) {
             logger.log(Level.SEVERE, "readClass", e);
             return null;
         }
     }
 
+    private boolean isRegistered(String name) {
+        for (String registeredClass : registeredClasses) {
+            if (name.startsWith(registeredClass)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public Class<?> loadClass(String name, boolean resolve)
             throws ClassNotFoundException {
-        Class<?> c = findLoadedClass(name);
-        if (c == null) {
-            for (String registeredClass : registeredClasses) {
-                if (name.startsWith(registeredClass)) {
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> c = findLoadedClass(name);
+            if (c == null) {
+                long start = System.nanoTime();
+                String source = "parent";
+                if (isRegistered(name)) {
                     c = readClass(name);
-                    break;
+                    if (c != null) {
+                        source = "resources";
+                    }
                 }
+                if (c == null) {
+                    c = cl.loadClass(name);
+                }
+                Metrics.timer("class_load", "source", source).recordSince(
+                        start);
             }
-        }
-        if (c == null) {
-            c = cl.loadClass(name);
-        }
-        if (c == null) {
-            c = readClass(name);
-        }
-        if (c == null) {
-            throw new ClassNotFoundException(name);
-        } else {
-            if (resolve) {
-                resolveClass(c);
+            if (c == null) {
+                throw new ClassNotFoundException(name);
+            } else {
+                if (resolve) {
+                    resolveClass(c);
+                }
+                return c;
             }
-            return c;
         }
     }
 }
@@ -41,6 +41,18 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.CRC32;
@@ -54,11 +66,13 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
+import net.sf.saxon.dom.DocumentWrapper;
 import net.sf.saxon.dom.NodeOverNodeInfo;
 import net.sf.saxon.expr.XPathContext;
 import net.sf.saxon.expr.XPathContextMajor;
 import net.sf.saxon.instruct.Executable;
 import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.pattern.NameTest;
 import net.sf.saxon.s9api.Axis;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.S9APIUtils;
@@ -73,6 +87,7 @@ import net.sf.saxon.s9api.XdmSequenceIterator;
 import net.sf.saxon.s9api.XsltExecutable;
 import net.sf.saxon.s9api.XsltTransformer;
 import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.type.Type;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -88,17 +103,23 @@ import com.occamlab.te.index.ProfileEntry;
 import com.occamlab.te.index.SuiteEntry;
 import com.occamlab.te.index.TemplateEntry;
 import com.occamlab.te.index.TestEntry;
+import com.occamlab.te.saxon.JavaFunctionBinding;
 import com.occamlab.te.saxon.ObjValue;
+import com.occamlab.te.saxon.ResponseTreeBuilder;
+import com.occamlab.te.util.ConsoleBuffer;
 import com.occamlab.te.util.DomUtils;
+import com.occamlab.te.util.HttpArchive;
+import com.occamlab.te.util.HttpTransport;
+import com.occamlab.te.util.LogIndex;
 import com.occamlab.te.util.IOUtils;
 import com.occamlab.te.util.LogUtils;
+import com.occamlab.te.util.Metrics;
+import com.occamlab.te.util.RequestBody;
 import com.occamlab.te.util.Misc;
 import com.occamlab.te.util.StringUtils;
 import com.occamlab.te.util.SoapUtils;
 import com.occamlab.te.util.URLConnectionUtils;
 
-import java.util.Date;
-import org.w3c.dom.Comment;
 
 /**
  * Provides various utility methods to support test execution and logging.
@@ -133,18 +154,39 @@ public class TECore implements Runnable {
                              // execution (resume and retest modes only)
     // Log document for suite to enable use of getLogCache by profile test
     Document suiteLog = null;
+    // Lookups by id in prevLog and suiteLog; rebuilt when they are loaded
+    LogIndex prevLogIndex = null;
+    LogIndex suiteLogIndex = null;
+    ProfileRun profileRun = null; // Set on cores that run a single profile
     PrintWriter logger = null; // Logger for current test
     volatile String formHtml; // HTML representation for an active form
     volatile Document formResults; // Holds form results until they are
                                    // retrieved
     Map<String, Element> formParsers = new HashMap<String, Element>();
-    Map<Integer, Object> functionInstances = new HashMap<Integer, Object>();
-    Map<String, Object> parserInstances = new HashMap<String, Object>();
-    Map<String, Method> parserMethods = new HashMap<String, Method>();
-    LinkedList<TestEntry> testStack = new LinkedList<TestEntry>();
+    // Instance caches are shared with the cores that run parallel subtests
+    Map<Integer, Object> functionInstances = new ConcurrentHashMap<Integer, Object>();
+    Map<String, Object> parserInstances = new ConcurrentHashMap<String, Object>();
+    // Tests being executed, innermost first
+    LinkedList<TestCall> testStack = new LinkedList<TestCall>();
     volatile boolean threadComplete = false;
     volatile boolean stop = false;
-    volatile ByteArrayOutputStream threadOutput;
+    volatile ConsoleBuffer threadOutput;
+    long outputSequence = 0; // Console output already returned by getOutput
+    final Object consoleLock = new Object(); // Guards the two fields above
+    final Object completion = new Object(); // Notified when run() completes
+    final Object formSignal = new Object(); // Notified when form results arrive
+    TECore root = this; // Session core; owns forms and the stop flag
+    // HTTP transport of the session; set on the session core
+    private HttpTransport httpTransport = null;
+    private final Object transportLock = new Object();
+    final Object formLock = new Object(); // Serializes forms from subtests
+    // Subtests running in parallel, in call order (parallel mode only)
+    LinkedList<PendingTest> pendingTests = null;
+    // Console and log destinations to restore once the pending subtests are
+    // joined
+    PrintStream joinOut = null;
+    PrintWriter joinLogger = null;
+    private static ThreadPoolExecutor testPool = null;
     public static final int CONTINUE = -1;
     public static final int BEST_PRACTICE = 0;
     public static final int PASS = 1;
@@ -181,7 +223,47 @@ public class TECore implements Runnable {
         out = System.out;
     }
 
+    /**
+     * Creates a core that runs a subtest on behalf of another core in
+     * parallel mode. The subtest gets its own test path, logger, verdict and
+     * console buffer; it shares the engine, index, options and cached parser
+     * and function instances with the calling core.
+     * 
+     * @param parent
+     *            The core executing the calling test.
+     * @param testPath
+     *            The test path of the subtest.
+     * @param out
+     *            The console destination of the subtest.
+     */
+    TECore(TECore parent, String testPath, PrintStream out) {
+        this.engine = parent.engine;
+        this.index = parent.index;
+        this.opts = parent.opts;
+        this.root = parent.root;
+        this.testServletURL = parent.testServletURL;
+        this.web = parent.web;
+        this.testPath = testPath;
+        this.fnPath = parent.fnPath;
+        this.indent = parent.indent;
+        this.contextLabel = parent.contextLabel;
+        this.suiteLog = parent.suiteLog;
+        this.suiteLogIndex = parent.suiteLogIndex;
+        this.functionInstances = parent.functionInstances;
+        this.parserInstances = parent.parserInstances;
+        // Results are kept per core; the caller's result is merged on join
+        for (TestCall call : parent.testStack) {
+            this.testStack.add(new TestCall(call));
+        }
+        this.out = out;
+    }
+
     public TestEntry getParentTest() {
+        TestCall parent = getParentCall();
+        return (parent == null) ? null : parent.test;
+    }
+
+    TestCall getParentCall() {
         if (testStack.size() < 2) {
             return testStack.peek();
         } else {
@@ -225,7 +307,7 @@ public class TECore implements Runnable {
         try {
             TestEntry grandParent = new TestEntry();
             grandParent.setType("Mandatory");
-            testStack.push(grandParent);
+            testStack.push(new TestCall(grandParent));
             String sessionId = opts.getSessionId();
             // File logDir = opts.getLogDir();
             int mode = opts.getMode();
@@ -251,25 +333,7 @@ public class TECore implements Runnable {
                     if (suiteName != null || profiles.size() == 0) {
                         execute_suite(suiteName, params);
                     }
-                    if (profiles.contains("*")) {
-                        for (String profile : index.getProfileKeys()) {
-                            try {
-                                execute_profile(profile, params, false);
-                            } catch (Exception e) {
-                                jlogger.log(Level.WARNING, e.getMessage(),
-                                        e.getCause());
-                            }
-                        }
-                    } else {
-                        for (String profile : profiles) {
-                            try {
-                                execute_profile(profile, params, true);
-                            } catch (Exception e) {
-                                jlogger.log(Level.WARNING, e.getMessage(),
-                                        e.getCause());
-                            }
-                        }
-                    }
+                    execute_profiles(params);
                 }
             } else {
                 throw new Exception("Unsupported mode");
@@ -300,25 +364,164 @@ public class TECore implements Runnable {
         if (testPath.equals(opts.getSessionId())) {
             // Profile not executed in retest mode
             suiteLog = LogUtils.readLog(opts.getLogDir(), testPath);
-            ArrayList<String> params = opts.getParams();
-            List<String> profiles = opts.getProfiles();
-            if (profiles.contains("*")) {
-                for (String profile : index.getProfileKeys()) {
-                    try {
-                        execute_profile(profile, params, false);
-                    } catch (Exception e) {
-                        jlogger.log(Level.WARNING, e.getMessage(), e.getCause());
+            suiteLogIndex = indexLog(suiteLog);
+            execute_profiles(opts.getParams());
+        }
+    }
+
+    /**
+     * Executes the profiles selected in the runtime options. If "*" was
+     * selected every profile in the index is tried, and profiles that do not
+     * apply to the session are skipped. Errors are logged and do not prevent
+     * the remaining profiles from running.
+     * 
+     * @param params
+     *            The parameters supplied to each profile.
+     */
+    void execute_profiles(List<String> params) throws Exception {
+        List<String> profiles = opts.getProfiles();
+        boolean required = !profiles.contains("*");
+        List<String> names = new ArrayList<String>(required ? profiles
+                : index.getProfileKeys());
+        int threads = opts.getProfileThreads();
+        // The base suite log does not change once it exists
+        Document log = LogUtils.readLog(opts.getLogDir(), opts.getSessionId());
+        for (int i = 0; i < names.size(); i++) {
+            // Profiles can only run concurrently once the base suite log
+            // exists; otherwise the next profile executes the base suite
+            if (threads > 1 && names.size() - i > 1 && log != null) {
+                execute_profiles(names.subList(i, names.size()), params,
+                        required, threads, log);
+                break;
+            }
+            try {
+                execute_profile(names.get(i), params, required, log);
+            } catch (Exception e) {
+                jlogger.log(Level.WARNING, e.getMessage(), e.getCause());
+            }
+            if (log == null) {
+                log = suiteLog;
+            }
+        }
+    }
+
+    /**
+     * Executes profiles concurrently once the base suite is complete. Each
+     * profile runs on its own core with a separate test stack, verdict and
+     * console buffer; the buffered output is copied to the console in
+     * profile order as the profiles finish. The verdict each profile starts
+     * with is only known once the previous profile has finished, so the
+     * summary of the base tests that depends on it is written when the
+     * output is copied.
+     */
+    void execute_profiles(List<String> names, final List<String> params,
+            final boolean required, int threads, final Document log)
+            throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(threads, names.size()),
+                newThreadFactory("TEAM Engine profile "));
+        if (log != suiteLog) {
+            // Shared by the profile cores
+            suiteLog = log;
+            suiteLogIndex = indexLog(log);
+        }
+        List<ProfileRun> runs = new ArrayList<ProfileRun>();
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+        try {
+            for (final String name : names) {
+                final ProfileRun run = new ProfileRun(this);
+                runs.add(run);
+                results.add(pool.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        try {
+                            run.core.execute_profile(name, params, required,
+                                    log);
+                        } finally {
+                            run.core.out.flush();
+                        }
+                        return null;
                     }
-                }
-            } else {
-                for (String profile : profiles) {
-                    try { // 2011-12-21 PwD
-                        execute_profile(profile, params, true);
-                    } catch (Exception e) {
-                        jlogger.log(Level.WARNING, e.getMessage(), e.getCause());
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                ProfileRun run = runs.get(i);
+                try {
+                    results.get(i).get();
+                } catch (ExecutionException ee) {
+                    Throwable cause = ee.getCause();
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
                     }
+                    jlogger.log(Level.WARNING, cause.getMessage(),
+                            cause.getCause());
+                } finally {
+                    run.writeTo(out, verdict);
+                }
+                if (run.executed) {
+                    verdict = run.core.verdict;
                 }
             }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * A profile executed on a separate core, with its buffered console
+     * output.
+     */
+    static class ProfileRun {
+        final TECore core;
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Element baseTest = null; // Summarized when the output is written
+        int summaryOffset = -1;
+        volatile boolean executed = false; // True once the profile test ran
+
+        ProfileRun(TECore parent) {
+            core = new TECore(parent, parent.testPath, new PrintStream(output));
+            core.profileRun = this;
+            core.testStack.clear();
+            TestEntry grandParent = new TestEntry();
+            grandParent.setType("Mandatory");
+            core.testStack.push(new TestCall(grandParent));
+        }
+
+        // Marks where the summary of the base tests belongs
+        void deferSummary(Element baseTest) {
+            core.out.flush();
+            this.baseTest = baseTest;
+            this.summaryOffset = output.size();
+        }
+
+        // Writes the output, summarizing the base tests with the verdict left
+        // by the previous profile
+        void writeTo(PrintStream out, int verdict) {
+            byte[] bytes = output.toByteArray();
+            if (summaryOffset < 0) {
+                out.write(bytes, 0, bytes.length);
+                return;
+            }
+            out.write(bytes, 0, summaryOffset);
+            out.print(getBaseSummary(baseTest, verdict));
+            out.write(bytes, summaryOffset, bytes.length - summaryOffset);
+        }
+    }
+
+    // Summarizes the base tests of a profile
+    static String getBaseSummary(Element baseTest, int verdict) {
+        if (!"yes".equals(baseTest.getAttribute("complete"))) {
+            return "Not complete";
+        }
+        int baseResult = Integer.parseInt(baseTest.getAttribute("result"));
+        if (baseResult == TECore.FAIL
+                || baseResult == TECore.INHERITED_FAILURE) {
+            return "Failed";
+        } else if (verdict == TECore.BEST_PRACTICE) {
+            return "Passed as Best Practice";
+        } else if (verdict == TECore.SKIPPED) {
+            return "Skipped";
+        } else {
+            return "Passed";
         }
     }
 
@@ -369,8 +572,8 @@ public class TECore implements Runnable {
         defaultResultName = suite.getDefaultResult();
         defaultResult = defaultResultName.equals("BestPractice") ? BEST_PRACTICE
                 : PASS;
-        testStack.peek().setDefaultResult(defaultResult);
-        testStack.peek().setResult(defaultResult);
+        testStack.peek().test.setDefaultResult(defaultResult);
+        testStack.peek().result = defaultResult;
 
         ArrayList<String> kvps = new ArrayList<String>();
         kvps.addAll(params);
@@ -402,6 +605,15 @@ public class TECore implements Runnable {
 
     public void execute_profile(String profileName, List<String> params,
             boolean required) throws Exception {
+        execute_profile(profileName, params, required, null);
+    }
+
+    /**
+     * Executes a profile, using a base suite log that has already been read
+     * if there is one.
+     */
+    void execute_profile(String profileName, List<String> params,
+            boolean required, Document log) throws Exception {
         ProfileEntry profile = index.getProfile(profileName);
         if (profile == null) {
             throw new Exception("Error: Profile " + profileName + " not found.");
@@ -413,12 +625,17 @@ public class TECore implements Runnable {
                     + profileName + ") not found.");
         }
         String sessionId = opts.getSessionId();
-        Document log = LogUtils.readLog(opts.getLogDir(), sessionId);
+        if (log == null) {
+            log = LogUtils.readLog(opts.getLogDir(), sessionId);
+        }
         if (log == null) {
             execute_suite(suite.getId(), params);
             log = LogUtils.readLog(opts.getLogDir(), sessionId);
         }
-        suiteLog = log;
+        if (log != suiteLog) {
+            suiteLog = log;
+            suiteLogIndex = indexLog(log);
+        }
         String testId = LogUtils.getTestIdFromLog(log);
         List<String> baseParams = LogUtils.getParamListFromLog(
                 engine.getBuilder(), log);
@@ -445,32 +662,26 @@ public class TECore implements Runnable {
             // out.println(DomUtils.serializeNode(baseLog));
             out.print(TECore.INDENT + "Base tests from suite "
                     + suite.getPrefix() + ":" + suite.getLocalName() + " ");
-            String summary = "Not complete";
-            if ("yes".equals(baseTest.getAttribute("complete"))) {
-                int baseResult = Integer.parseInt(baseTest
-                        .getAttribute("result"));
-                if (baseResult == TECore.FAIL
-                        || baseResult == TECore.INHERITED_FAILURE) {
-                    summary = "Failed";
-                } else if (verdict == TECore.BEST_PRACTICE) {
-                    summary = "Passed as Best Practice";
-                } else if (verdict == TECore.SKIPPED) {
-                    summary = "Skipped";
-                } else {
-                    summary = "Passed";
-                }
+            if (profileRun != null) {
+                profileRun.deferSummary(baseTest);
+            } else {
+                out.print(getBaseSummary(baseTest, verdict));
             }
-            out.println(summary);
+            out.println();
             setIndentLevel(1);
             String defaultResultName = profile.getDefaultResult();
             defaultResult = defaultResultName.equals("BestPractice") ? BEST_PRACTICE
                     : PASS;
             out.println("\nExecuting profile " + name
                     + " with defaultResult of " + defaultResultName + "...");
+            if (profileRun != null) {
+                profileRun.executed = true;
+            }
             int result = execute_test(profile.getStartingTest().toString(),
                     kvps, null);
             out.print("Profile " + profile.getPrefix() + ":"
                     + profile.getLocalName() + " ");
+            String summary;
             if (result == TECore.FAIL || result == TECore.INHERITED_FAILURE) {
                 summary = "Failed";
             } else if (result == TECore.BEST_PRACTICE) {
@@ -492,7 +703,7 @@ public class TECore implements Runnable {
 
     public XdmNode executeTemplate(TemplateEntry template, XdmNode params,
             XPathContext context) throws Exception {
-        if (stop) {
+        if (root.stop) {
             throw new Exception("Execution was stopped by the user.");
         }
         XsltExecutable executable = engine.loadExecutable(template,
@@ -514,7 +725,12 @@ public class TECore implements Runnable {
             LOGR.log(Level.FINE,
                     "Executing TemplateEntry {0}" + template.getQName());
         }
-        xt.transform();
+        long start = System.nanoTime();
+        try {
+            xt.transform();
+        } finally {
+            Metrics.timer("xslt_transform").recordSince(start);
+        }
         XdmNode ret = dest.getXdmNode();
         return ret;
     }
@@ -597,12 +813,14 @@ public class TECore implements Runnable {
 
     public int executeTest(TestEntry test, XdmNode params, XPathContext context)
             throws Exception {
-        testStack.push(test);
+        TestCall call = new TestCall(test);
+        testStack.push(call);
         testType = test.getType();
         defaultResult = test.getDefaultResult();
         defaultResultName = (defaultResult == BEST_PRACTICE) ? "BestPractice"
                 : "Pass";
         Document oldPrevLog = prevLog;
+        LogIndex oldPrevLogIndex = prevLogIndex;
         if (opts.getMode() == Test.RESUME_MODE) {
             prevLog = readLog();
         } else if (opts.getMode() == Test.REDO_FROM_CACHE_MODE) {
@@ -610,6 +828,7 @@ public class TECore implements Runnable {
         } else {
             prevLog = null;
         }
+        prevLogIndex = indexLog(prevLog);
         String assertion = getAssertionValue(test.getAssertion(), params);
         out.print("Testing ");
         out.print(test.getName() + " type " + test.getType());
@@ -658,25 +877,33 @@ public class TECore implements Runnable {
         try {
             // Note: Test may alter default result
             executeTemplate(test, params, context);
+            joinTemplateTests();
         } catch (SaxonApiException e) {
+            // Subtests called before the error still count; a failed subtest
+            // is reported since serial execution would have stopped there
+            try {
+                joinTemplateTests();
+            } catch (SaxonApiException se) {
+                e = se;
+            }
             jlogger.log(Level.SEVERE, e.getMessage(), e.getCause());
             out.println(e.getMessage());
             if (logger != null) {
                 logger.println("<exception><![CDATA[" + e.getMessage()
                         + "]]></exception>");
             }
-            TestEntry parentTest = getParentTest();
+            TestCall parentCall = getParentCall();
             if (verdict == CONTINUE) {
                 if ("Optional".equals(testType)) {
-                    verdict = parentTest.getResult();
+                    verdict = parentCall.result;
                 } else {
                     verdict = INHERITED_FAILURE;
-                    parentTest.setResult(verdict);
+                    parentCall.result = verdict;
                 }
             } else {
                 verdict = FAIL; // all other exceptions
-                if (null != parentTest) {
-                    parentTest.setResult(verdict);
+                if (null != parentCall) {
+                    parentCall.result = verdict;
                 }
             }
             testStack.pop();
@@ -690,10 +917,11 @@ public class TECore implements Runnable {
         }
         logger = oldLogger;
         prevLog = oldPrevLog;
+        prevLogIndex = oldPrevLogIndex;
         indent = oldIndent;
         out.println(indent + "Test " + test.getName() + " "
                 + getResultDescription(verdict));
-        test.setResult(verdict);
+        call.result = verdict;
         if (LOGR.isLoggable(Level.FINE)) {
             String msg = String.format("Executed test %s - Verdict: %s",
                     test.getLocalName(), getResultDescription(verdict));
@@ -719,9 +947,38 @@ public class TECore implements Runnable {
      * @throws Exception
      *             If an error occcurs while executing the test.
      */
-    public synchronized void callTest(XPathContext context, String localName,
+    public void callTest(XPathContext context, String localName,
             String namespaceURI, NodeInfo params, String callId)
             throws Exception {
+        callTest(context, localName, namespaceURI, params, callId, false);
+    }
+
+    /**
+     * Runs a subtest as directed by a &lt;ctl:call-test&gt; instruction. A
+     * subtest marked independent does not depend on the side effects of the
+     * tests called before it, nor they on it, so it may be run alongside them
+     * (see {@link #isParallel()}); other subtests wait for any such tests to
+     * complete and are then run in order.
+     * 
+     * @param context
+     *            The context in which the subtest is executed.
+     * @param localName
+     *            The [local name] of the subtest.
+     * @param namespaceURI
+     *            The [namespace name] of the subtest.
+     * @param params
+     *            A NodeInfo object containing test parameters.
+     * @param callId
+     *            A node identifier used to build a file path reference for the
+     *            test results.
+     * @param independent
+     *            true if the call-test instruction is marked independent.
+     * @throws Exception
+     *             If an error occcurs while executing the test.
+     */
+    public synchronized void callTest(XPathContext context, String localName,
+            String namespaceURI, NodeInfo params, String callId,
+            boolean independent) throws Exception {
         String key = "{" + namespaceURI + "}" + localName;
         TestEntry test = index.getTest(key);
 
@@ -731,9 +988,8 @@ public class TECore implements Runnable {
             logger.flush();
         }
         if (opts.getMode() == Test.RESUME_MODE) {
-            Document doc = LogUtils.readLog(opts.getLogDir(), testPath + "/"
+            int result = LogUtils.getResult(opts.getLogDir(), testPath + "/"
                     + callId);
-            int result = LogUtils.getResultFromLog(doc);
             // TODO revise the following
             if (result >= 0) {
                 out.println(indent + "Test " + test.getName() + " "
@@ -750,6 +1006,11 @@ public class TECore implements Runnable {
             }
         }
 
+        if (independent && isParallel()) {
+            forkTest(test, params, context, testPath + "/" + callId);
+            return;
+        }
+        joinTests();
         String oldTestPath = testPath;
         testPath += "/" + callId;
         executeTest(test, S9APIUtils.makeNode(params), context);
@@ -772,9 +1033,10 @@ public class TECore implements Runnable {
      *            The TestEntry for the current test.
      */
     private void updateParentTestResult(TestEntry currTest) {
-        TestEntry parentTest = getParentTest();
-        if (null == parentTest)
+        TestCall parentCall = getParentCall();
+        if (null == parentCall)
             return;
+        TestEntry parentTest = parentCall.test;
         if (LOGR.isLoggable(Level.FINE)) {
             LOGR.log(
                     Level.FINE,
@@ -784,16 +1046,16 @@ public class TECore implements Runnable {
                     Level.FINE,
                     "Parent TestEntry is {0} (result={1})",
                     new Object[] { parentTest.getQName(),
-                            parentTest.getResult() });
+                            parentCall.result });
         }
         switch (this.verdict) {
         case FAIL:
         case INHERITED_FAILURE:
-            parentTest.setResult(INHERITED_FAILURE);
+            parentCall.result = INHERITED_FAILURE;
             break;
         case SKIPPED:
             if (!parentTest.getType().equalsIgnoreCase("Optional")) {
-                parentTest.setResult(INHERITED_FAILURE);
+                parentCall.result = INHERITED_FAILURE;
             }
             break;
         default:
@@ -801,6 +1063,263 @@ public class TECore implements Runnable {
         }
     }
 
+    /**
+     * Determines whether subtests marked independent are run in parallel.
+     * Parallel execution is enabled by {@link RuntimeOptions#getTestThreads()};
+     * it is not used in resume and cache modes since these replay results from
+     * previous logs.
+     * 
+     * @return true if independent ctl:call-test subtests are run concurrently.
+     */
+    boolean isParallel() {
+        int mode = opts.getMode();
+        return opts.getTestThreads() > 1
+                && (mode == Test.TEST_MODE || mode == Test.RETEST_MODE)
+                && !root.stop;
+    }
+
+    /**
+     * Starts a subtest on a separate core and returns immediately so that the
+     * calling test can continue. Console and log output written by the caller
+     * from now on is buffered, as are verdict changes, until the subtest is
+     * joined.
+     */
+    void forkTest(TestEntry test, NodeInfo params, XPathContext context,
+            String path) throws Exception {
+        XPathContext callContext = null;
+        if (context != null && context.getContextItem() != null) {
+            // The caller's context moves on, so capture the current item
+            callContext = new XPathContextMajor(context.getContextItem(),
+                    context.getController().getExecutable());
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        TECore core = new TECore(this, path, new PrintStream(output));
+        PendingTest pending = new PendingTest(core, test,
+                S9APIUtils.makeNode(params), callContext, output);
+        if (pendingTests == null) {
+            pendingTests = new LinkedList<PendingTest>();
+            joinOut = out;
+            joinLogger = logger;
+        }
+        pendingTests.add(pending);
+        out = new PrintStream(pending.trailer);
+        if (logger != null) {
+            logger = new PrintWriter(pending.trailerLog);
+        }
+        getTestPool(opts.getTestThreads()).execute(pending.task);
+    }
+
+    /**
+     * Waits for the pending subtests in call order and applies their results
+     * as serial execution would have: their console output is copied ahead of
+     * whatever the caller printed or logged after each call, the caller's
+     * verdict is set from each subtest and then adjusted by the verdict
+     * changes the caller made after the call, and the parent test result is
+     * updated.
+     * 
+     * @throws Exception
+     *             If a subtest failed; the caller's output after the call and
+     *             the remaining subtests are discarded since serial execution
+     *             would not have reached them.
+     */
+    void joinTests() throws Exception {
+        LinkedList<PendingTest> pending = pendingTests;
+        if (pending == null) {
+            return;
+        }
+        pendingTests = null;
+        out = joinOut;
+        logger = joinLogger;
+        joinOut = null;
+        joinLogger = null;
+        Iterator<PendingTest> it = pending.iterator();
+        try {
+            while (it.hasNext()) {
+                PendingTest call = it.next();
+                // Runs the subtest here if no pool thread has started it yet
+                call.task.run();
+                Integer result;
+                try {
+                    result = call.task.get();
+                } catch (ExecutionException e) {
+                    call.output.writeTo(out);
+                    // Left on the stack by the failed call, as in serial mode
+                    testStack.push(new TestCall(call.test));
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception) {
+                        throw (Exception) cause;
+                    }
+                    throw e;
+                }
+                call.output.writeTo(out);
+                verdict = result;
+                if (call.caller.result != call.callerResult) {
+                    // The subtest changed this test's result, as it would
+                    // have when called serially
+                    testStack.peek().result = call.caller.result;
+                }
+                TestCall subtest = new TestCall(call.test);
+                subtest.result = verdict;
+                testStack.push(subtest);
+                for (int i = 0; i < call.pops; i++) {
+                    testStack.pop();
+                }
+                if (verdict == CONTINUE) {
+                    throw new IllegalStateException(
+                            "Error: 'continue' is not allowed when a test is called using 'call-test' instruction");
+                }
+                updateParentTestResult(call.test);
+                testStack.pop();
+                verdict = call.apply(verdict);
+                call.trailer.writeTo(out);
+                if (logger != null) {
+                    logger.print(call.trailerLog.toString());
+                    logger.flush();
+                }
+            }
+        } finally {
+            while (it.hasNext()) {
+                PendingTest call = it.next();
+                call.cancelled = true;
+                call.task.run();
+                try {
+                    call.task.get();
+                } catch (Exception e) {
+                    jlogger.log(Level.FINE, "Discarded subtest "
+                            + call.core.testPath, e);
+                }
+                if (opts.getLogDir() != null) {
+                    LogUtils.deleteLog(opts.getLogDir(), call.core.testPath);
+                }
+            }
+        }
+    }
+
+    // Joins the subtests still pending when the test template completes;
+    // failures are reported as if they had occurred in the template
+    private void joinTemplateTests() throws SaxonApiException {
+        try {
+            joinTests();
+        } catch (SaxonApiException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SaxonApiException(e);
+        }
+    }
+
+    /**
+     * Returns the shared pool that runs parallel subtests, growing it if more
+     * threads are requested than it currently has.
+     */
+    static synchronized ThreadPoolExecutor getTestPool(int threads) {
+        if (testPool == null) {
+            testPool = new ThreadPoolExecutor(threads, threads, 60L,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    newThreadFactory("TEAM Engine subtest "));
+            testPool.allowCoreThreadTimeOut(true);
+        } else if (threads > testPool.getMaximumPoolSize()) {
+            testPool.setMaximumPoolSize(threads);
+            testPool.setCorePoolSize(threads);
+        }
+        return testPool;
+    }
+
+    static ThreadFactory newThreadFactory(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * A test on the test stack of a core, with the result of this call of the
+     * test. The TestEntry is shared by every call of the test, so the result
+     * is not kept there.
+     */
+    static class TestCall {
+        final TestEntry test;
+        int result;
+
+        TestCall(TestEntry test) {
+            this.test = test;
+            this.result = test.getResult();
+        }
+
+        TestCall(TestCall call) {
+            this.test = call.test;
+            this.result = call.result;
+        }
+    }
+
+    /**
+     * A subtest started by {@link #forkTest}, together with the console output
+     * and verdict changes of the calling test that follow the call.
+     */
+    static class PendingTest implements Callable<Integer> {
+        final TECore core;
+        final TestEntry test;
+        final XdmNode params;
+        final XPathContext context;
+        final ByteArrayOutputStream output;
+        final ByteArrayOutputStream trailer = new ByteArrayOutputStream();
+        final StringWriter trailerLog = new StringWriter();
+        final FutureTask<Integer> task = new FutureTask<Integer>(this);
+        volatile boolean cancelled = false;
+        int pops = 0; // Entries popped from the test stack by a failed test
+        boolean reset = false; // True if the caller later set the verdict
+        int resetValue;
+        int floor = Integer.MIN_VALUE; // Lowest verdict later set by caller
+        final TestCall caller; // The subtest core's copy of the calling test
+        final int callerResult; // Its result when the subtest was started
+
+        PendingTest(TECore core, TestEntry test, XdmNode params,
+                XPathContext context, ByteArrayOutputStream output) {
+            this.core = core;
+            this.test = test;
+            this.caller = core.testStack.peek();
+            this.callerResult = caller.result;
+            this.params = params;
+            this.context = context;
+            this.output = output;
+        }
+
+        public Integer call() throws Exception {
+            if (cancelled) {
+                return null;
+            }
+            int depth = core.testStack.size();
+            try {
+                return core.executeTest(test, params, context);
+            } finally {
+                pops = depth + 1 - core.testStack.size();
+                core.out.flush();
+            }
+        }
+
+        void raise(int result) {
+            if (floor < result) {
+                floor = result;
+            }
+        }
+
+        void set(int result) {
+            reset = true;
+            resetValue = result;
+            floor = Integer.MIN_VALUE;
+        }
+
+        int apply(int result) {
+            if (reset) {
+                result = resetValue;
+            }
+            return (result < floor) ? floor : result;
+        }
+    }
+
     public void repeatTest(XPathContext context, String localName,
             String NamespaceURI, NodeInfo params, String callId, int count,
             int pause) throws Exception {
@@ -813,9 +1332,8 @@ public class TECore implements Runnable {
             logger.flush();
         }
         if (opts.getMode() == Test.RESUME_MODE) {
-            Document doc = LogUtils.readLog(opts.getLogDir(), testPath + "/"
+            int result = LogUtils.getResult(opts.getLogDir(), testPath + "/"
                     + callId);
-            int result = LogUtils.getResultFromLog(doc);
             if (result >= 0) {
                 out.println(indent + "Test " + test.getName() + " "
                         + getResultDescription(result));
@@ -827,6 +1345,7 @@ public class TECore implements Runnable {
                 return;
             }
         }
+        joinTests();
         int oldResult = verdict;
         String oldTestPath = testPath;
         testPath += "/" + callId;
@@ -916,71 +1435,20 @@ public class TECore implements Runnable {
             if (fe.isJava()) {
                 int argCount = paramElements.size();
                 if (fe.getMinArgs() >= argCount && fe.getMaxArgs() <= argCount) {
-                    TEClassLoader cl = engine.getClassLoader(opts
-                            .getSourcesName());
-                    Method method = Misc.getMethod(fe.getClassName(),
-                            fe.getMethod(), cl, argCount);
-                    Class<?>[] types = method.getParameterTypes();
-                    Object[] args = new Object[argCount];
-                    for (int i = 0; i < argCount; i++) {
-                        Element el = DomUtils.getElementByTagName(
-                                paramElements.get(i), "value");
-                        if (types[i].equals(String.class)) {
-                            Map<javax.xml.namespace.QName, String> attrs = DomUtils
-                                    .getAttributes(el);
-                            if (attrs.size() > 0) {
-                                args[i] = attrs.values().iterator().next();
-                            } else {
-                                args[i] = el.getTextContent();
-                            }
-                        } else if (types[i].toString().equals("char")) {
-                            args[i] = el.getTextContent().charAt(0);
-                        } else if (types[i].toString().equals("boolean")) {
-                            args[i] = Boolean.parseBoolean(el.getTextContent());
-                        } else if (types[i].toString().equals("byte")) {
-                            args[i] = Byte.parseByte(el.getTextContent());
-                        } else if (types[i].toString().equals("short")) {
-                            args[i] = Short.parseShort(el.getTextContent());
-                        } else if (types[i].toString().equals("int")) {
-                            args[i] = Integer.parseInt(el.getTextContent());
-                        } else if (types[i].toString().equals("long")) {
-                            args[i] = Long.parseLong(el.getTextContent());
-                        } else if (types[i].toString().equals("float")) {
-                            args[i] = Float.parseFloat(el.getTextContent());
-                        } else if (types[i].toString().equals("double")) {
-                            args[i] = Double.parseDouble(el.getTextContent());
-                        } else if (Document.class.isAssignableFrom(types[i])) {
-                            args[i] = DomUtils.createDocument(DomUtils
-                                    .getChildElement(el));
-                        } else if (NodeList.class.isAssignableFrom(types[i])) {
-                            args[i] = el.getChildNodes();
-                        } else if (Node.class.isAssignableFrom(types[i])) {
-                            args[i] = el.getFirstChild();
-                        } else {
-                            throw new Exception("Error: Function " + key
-                                    + " uses unsupported Java type "
-                                    + types[i].toString());
-                        }
-                    }
+                    JavaFunctionBinding binding = JavaFunctionBinding
+                            .getInstance(fe, engine.getClassLoader(opts
+                                    .getSourcesName()));
+                    JavaFunctionBinding.Invoker invoker = binding
+                            .getInvoker(argCount);
+                    Object[] args = invoker.convertArgs(paramElements);
                     try {
-                        Object instance = null;
-                        if (fe.isInitialized()) {
-                            // String instkey = fe.getId() + "," +
-                            // Integer.toString(fe.getMinArgs()) + "," +
-                            // Integer.toString(fe.getMaxArgs());
-                            instance = getFunctionInstance(fe.hashCode());
-                            if (instance == null) {
-                                try {
-                                    instance = Misc.makeInstance(
-                                            fe.getClassName(),
-                                            fe.getClassParams(), cl);
-                                    putFunctionInstance(fe.hashCode(), instance);
-                                } catch (Exception e) {
-                                    throw new XPathException(e);
-                                }
-                            }
+                        Object instance;
+                        try {
+                            instance = binding.getInstance(this);
+                        } catch (Exception e) {
+                            throw new XPathException(e);
                         }
-                        return method.invoke(instance, args);
+                        return invoker.getMethod().invoke(instance, args);
                     } catch (java.lang.reflect.InvocationTargetException e) {
                         Throwable cause = e.getCause();
                         String msg = "Error invoking function " + fe.getId()
@@ -1001,55 +1469,56 @@ public class TECore implements Runnable {
     }
 
     public void _continue() {
-        verdict = CONTINUE;
+        if (pendingTests != null) {
+            pendingTests.getLast().set(CONTINUE);
+        } else {
+            verdict = CONTINUE;
+        }
     }
 
     public void bestPractice() {
-        if (verdict < BEST_PRACTICE) {
-            verdict = BEST_PRACTICE;
-        }
+        raiseVerdict(BEST_PRACTICE);
     }
 
     public void notTested() {
-        if (verdict < NOT_TESTED) {
-            verdict = NOT_TESTED;
-        }
+        raiseVerdict(NOT_TESTED);
     }
 
     public void skipped() {
-        if (verdict < SKIPPED) {
-            verdict = SKIPPED;
-        }
+        raiseVerdict(SKIPPED);
     }
 
     /**
      * A test with defaultResult of BEST_PRACTICE.
      */
     public void pass() {
-        if (verdict < PASS) {
-            verdict = PASS;
-        }
+        raiseVerdict(PASS);
     }
 
     public void warning() {
-        if (verdict < WARNING) {
-            verdict = WARNING;
-        }
+        raiseVerdict(WARNING);
     }
 
     public void inheritedFailure() {
-        if (verdict < INHERITED_FAILURE) {
-            verdict = INHERITED_FAILURE;
-        }
+        raiseVerdict(INHERITED_FAILURE);
     }
 
     public void fail() {
-        if (verdict < FAIL) {
-            verdict = FAIL;
+        raiseVerdict(FAIL);
+    }
+
+    // The verdict of a pending subtest is not known yet, so the change is
+    // recorded and applied when it is joined
+    private void raiseVerdict(int result) {
+        if (pendingTests != null) {
+            pendingTests.getLast().raise(result);
+        } else if (verdict < result) {
+            verdict = result;
         }
     }
 
-    public String getResult() {
+    public String getResult() throws Exception {
+        joinTests();
         return getResultDescription(verdict);
     }
 
@@ -1067,6 +1536,9 @@ public class TECore implements Runnable {
 
     public void setFormHtml(String html) {
         this.formHtml = html;
+        if (html != null) {
+            getConsole().signal();
+        }
     }
 
     public Document getFormResults() {
@@ -1074,13 +1546,21 @@ public class TECore implements Runnable {
     }
 
     public void setFormResults(Document doc) {
-        this.formResults = doc;
+        synchronized (formSignal) {
+            this.formResults = doc;
+            formSignal.notifyAll();
+        }
     }
 
     public Map<String, Element> getFormParsers() {
         return formParsers;
     }
 
+    // Indexes a log document for lookups by id
+    static LogIndex indexLog(Document log) {
+        return (log == null) ? null : new LogIndex(log);
+    }
+
     public Document readLog() throws Exception {
         return LogUtils.readLog(opts.getLogDir(), testPath);
     }
@@ -1125,34 +1605,30 @@ public class TECore implements Runnable {
     }
 
     // BEGIN SOAP SUPPORT
-    public NodeList soap_request(Document ctlRequest, String id)
+    public NodeInfo soap_request(Document ctlRequest, String id)
             throws Throwable {
         Element request = (Element) ctlRequest.getElementsByTagNameNS(
                 Test.CTL_NS, "soap-request").item(0);
         if (opts.getMode() == Test.RESUME_MODE && prevLog != null) {
-            for (Element request_e : DomUtils.getElementsByTagName(prevLog,
-                    "soap-request")) {
-                if (request_e.getAttribute("id").equals(fnPath + id)) {
-                    logger.println(DomUtils.serializeNode(request_e));
-                    logger.flush();
-                    Element response_e = DomUtils.getElementByTagName(
-                            request_e, "response");
-                    Element content_e = DomUtils.getElementByTagName(
-                            response_e, "content");
-                    return content_e.getChildNodes();
-                    // return DomUtils.getChildElement(content_e);
-                }
+            Element request_e = prevLogIndex.getFirst("soap-request", fnPath + id);
+            if (request_e != null) {
+                logger.println(DomUtils.serializeNode(request_e));
+                logger.flush();
+                Element response_e = DomUtils.getElementByTagName(request_e,
+                        "response");
+                return getResponseContent(response_e);
             }
         }
 
-        String logTag = "<soap-request id=\"" + fnPath + id + "\">\n";
-        logTag += DomUtils.serializeNode(request) + "\n";
-        // if (logger != null) {
-        // logger.println("<request id=\"" + fnPath + id + "\">");
-        // logger.println(DomUtils.serializeNode(request));
-        // }
+        // The log entry is only serialized if there is a log to write it to
+        StringBuilder logTag = null;
+        if (logger != null) {
+            logTag = new StringBuilder();
+            logTag.append("<soap-request id=\"" + fnPath + id + "\">\n");
+            logTag.append(DomUtils.serializeNode(request) + "\n");
+        }
         Exception ex = null;
-        Element response = null;
+        NodeInfo response = null;
         Element parserInstruction = null;
         NodeList nl = request.getChildNodes();
         long elapsedTime = 0;
@@ -1164,55 +1640,35 @@ public class TECore implements Runnable {
             }
         }
         try {
-            Date before = new Date();
-            URLConnection uc = build_soap_request(request);
-            response = parse(uc, parserInstruction);
-            Date after = new Date();
-            elapsedTime = after.getTime() - before.getTime();
-
-            // Adding the exchange time in the response as comment the format is
-            // the following
-            // <!--Response received in [XXX] milliseconds-->
-            // the comment is included in the first tag of the response
-            // SOAP:Envelope in case a SOAP message is returned the specific
+            long before = System.currentTimeMillis();
+            URLConnection uc = build_soap_request(request, getHttpTransport());
+            // The exchange time is added to the response as a comment in the
+            // format <!--Response received in [XXX] milliseconds-->. The
+            // comment is included in the first tag of the response:
+            // SOAP:Envelope in case a SOAP message is returned, the specific
             // interface tag if a SOAP parser is applied
-            Element content = DomUtils.getElementByTagName(response, "content");
-            if (content != null) {
-                nl = content.getChildNodes();
-                for (int i = 0; i < nl.getLength(); i++) {
-                    Node n = nl.item(i);
-                    if (n.getNodeType() == Node.ELEMENT_NODE) {
-                        Document doc;
-                        doc = response.getOwnerDocument();
-                        Comment comm = doc
-                                .createComment("Response received in ["
-                                        + elapsedTime + "] milliseconds");
-                        n.appendChild(comm);
-                    }
-                }
-            }
+            response = parseTree(uc, parserInstruction, before);
+            elapsedTime = System.currentTimeMillis() - before;
 
-            logTag += DomUtils.serializeNode(response) + "\n";
-            jlogger.log(Level.FINE, DomUtils.serializeNode(response));
+            if (logTag != null) {
+                logTag.append(DomUtils.serializeSource(response) + "\n");
+            }
+            if (jlogger.isLoggable(Level.FINE)) {
+                jlogger.log(Level.FINE, DomUtils.serializeSource(response));
+            }
         } catch (Exception e) {
             ex = e;
         }
-        logTag += "<!-- elapsed time :" + elapsedTime + " (milliseconds) -->";
-        logTag += "</soap-request>";
         if (logger != null) {
+            logTag.append("<!-- elapsed time :" + elapsedTime
+                    + " (milliseconds) -->");
+            logTag.append("</soap-request>");
             logger.println(logTag);
             logger.flush();
         }
         if (ex == null) {
-            Element parser = DomUtils.getElementByTagName(response, "parser");
-            if (parser != null) {
-                String text = parser.getTextContent();
-                if (text.length() > 0) {
-                    out.println(parser.getTextContent());
-                }
-            }
-            Element content = DomUtils.getElementByTagName(response, "content");
-            return content.getChildNodes();
+            printParserLog(response);
+            return getResponseContent(response);
         } else {
             throw ex;
         }
@@ -1246,6 +1702,22 @@ public class TECore implements Runnable {
      *             </parsers:SOAPParser> </soap-request>
      */
     static public URLConnection build_soap_request(Node xml) throws Exception {
+        return build_soap_request(xml, HttpTransport.DIRECT);
+    }
+
+    /**
+     * Creates a SOAP request and sends it using the given transport.
+     * 
+     * @param xml
+     *            the soap-request node (from CTL)
+     * @param transport
+     *            the transport used to open the connection
+     * @return The URL Connection
+     * @throws Exception
+     *             the exception
+     */
+    static public URLConnection build_soap_request(Node xml,
+            HttpTransport transport) throws Exception {
         String sUrl = null;
         String method = "POST";
         String charset = ((Element) xml).getAttribute("charset").equals("") ? ((Element) xml)
@@ -1279,7 +1751,7 @@ public class TECore implements Runnable {
         List<Element> headerBloks = DomUtils.getElementsByTagNameNS(xml,
                 CTL_NS, HEADER_BLOCKS);
         // Open the URLConnection
-        URLConnection uc = new URL(sUrl).openConnection();
+        URLConnection uc = transport.openConnection(new URL(sUrl));
         if (uc instanceof HttpURLConnection) {
             ((HttpURLConnection) uc).setRequestMethod(method);
         }
@@ -1331,34 +1803,29 @@ public class TECore implements Runnable {
      * HttpResponse. Invoke any specified parsers on the response to validate
      * it, change its format or derive specific information from it.
      */
-    public NodeList request(Document ctlRequest, String id) throws Throwable {
+    public NodeInfo request(Document ctlRequest, String id) throws Throwable {
         Element request = (Element) ctlRequest.getElementsByTagNameNS(
                 Test.CTL_NS, "request").item(0);
         if (opts.getMode() == Test.RESUME_MODE && prevLog != null) {
-            for (Element request_e : DomUtils.getElementsByTagName(prevLog,
-                    "request")) {
-                if (request_e.getAttribute("id").equals(fnPath + id)) {
-                    logger.println(DomUtils.serializeNode(request_e));
-                    logger.flush();
-                    Element response_e = DomUtils.getElementByTagName(
-                            request_e, "response");
-                    Element content_e = DomUtils.getElementByTagName(
-                            response_e, "content");
-                    return content_e.getChildNodes();
-                    // return DomUtils.getChildElement(content_e);
-                }
+            Element request_e = prevLogIndex.getFirst("request", fnPath + id);
+            if (request_e != null) {
+                logger.println(DomUtils.serializeNode(request_e));
+                logger.flush();
+                Element response_e = DomUtils.getElementByTagName(request_e,
+                        "response");
+                return getResponseContent(response_e);
             }
         }
 
-        String logTag = "<request id=\"" + fnPath + id + "\">\n";
-        logTag += DomUtils.serializeNode(request) + "\n";
-        // if (logger != null) {
-        // logger.println("<request id=\"" + fnPath + id + "\">");
-        // logger.println(DomUtils.serializeNode(request));
-        // }
-        long elapsedTime = 0;
+        // The log entry is only serialized if there is a log to write it to
+        StringBuilder logTag = null;
+        if (logger != null) {
+            logTag = new StringBuilder();
+            logTag.append("<request id=\"" + fnPath + id + "\">\n");
+            logTag.append(DomUtils.serializeNode(request) + "\n");
+        }
         Exception ex = null;
-        Element response = null;
+        NodeInfo response = null;
         Element parserInstruction = null;
         NodeList nl = request.getChildNodes();
         for (int i = 0; i < nl.getLength(); i++) {
@@ -1370,56 +1837,27 @@ public class TECore implements Runnable {
         }
 
         try {
-            Date before = new Date();
+            long before = System.currentTimeMillis();
             URLConnection uc = build_request(request);
-            response = parse(uc, parserInstruction);
-            Date after = new Date();
-            elapsedTime = after.getTime() - before.getTime();
-
-            // Adding the exchange time in the response as comment the format is
-            // the following
-            // <!--Response received in [XXX] milliseconds-->
-            // the comment is included in the first tag of the response
-            Element content = DomUtils.getElementByTagName(response, "content");
-            if (content != null) {
-                nl = content.getChildNodes();
-                for (int i = 0; i < nl.getLength(); i++) {
-                    Node n = nl.item(i);
-                    if (n.getNodeType() == Node.ELEMENT_NODE) {
-                        Document doc;
-                        doc = response.getOwnerDocument();
-                        Comment comm = doc
-                                .createComment("Response received in ["
-                                        + elapsedTime + "] milliseconds");
-                        n.appendChild(comm);
-                    }
-                }
-            }
+            // The exchange time is added to the response as a comment in the
+            // format <!--Response received in [XXX] milliseconds-->. The
+            // comment is included in the first tag of the response
+            response = parseTree(uc, parserInstruction, before);
 
-            logTag += DomUtils.serializeNode(response) + "\n";
-            // if (logger != null) {
-            // logger.println(DomUtils.serializeNode(response));
-            // }
+            if (logTag != null) {
+                logTag.append(DomUtils.serializeSource(response) + "\n");
+            }
         } catch (Exception e) {
             ex = e;
         }
-        // logTag += "<!-- elapsed time :"+elapsedTime+" (milliseconds) -->";
-        logTag += "</request>";
         if (logger != null) {
-            // logger.println("</request>");
+            logTag.append("</request>");
             logger.println(logTag);
             logger.flush();
         }
         if (ex == null) {
-            Element parser = DomUtils.getElementByTagName(response, "parser");
-            if (parser != null) {
-                String text = parser.getTextContent();
-                if (text.length() > 0) {
-                    out.println(parser.getTextContent());
-                }
-            }
-            Element content = DomUtils.getElementByTagName(response, "content");
-            return content.getChildNodes();
+            printParserLog(response);
+            return getResponseContent(response);
         } else {
             throw ex;
         }
@@ -1440,7 +1878,7 @@ public class TECore implements Runnable {
         ArrayList<String[]> headers = new ArrayList<String[]>();
         ArrayList<Node> parts = new ArrayList<Node>();
         String sUrl = null;
-        String sParams = "";
+        StringBuilder sParams = new StringBuilder();
         String method = "GET";
         String charset = "UTF-8";
         boolean multipart = false;
@@ -1460,10 +1898,10 @@ public class TECore implements Runnable {
                             n.getTextContent() });
                 } else if (n.getLocalName().equals("param")) {
                     if (sParams.length() > 0) {
-                        sParams += "&";
+                        sParams.append('&');
                     }
-                    sParams += ((Element) n).getAttribute("name") + "="
-                            + n.getTextContent();
+                    sParams.append(((Element) n).getAttribute("name"))
+                            .append('=').append(n.getTextContent());
                     // WARNING! May break some existing test suites
                     // + URLEncoder.encode(n.getTextContent(), "UTF-8");
                 } else if (n.getLocalName().equals("dynamicParam")) {
@@ -1484,8 +1922,8 @@ public class TECore implements Runnable {
                     }
                     if (name != null && val != null) {
                         if (sParams.length() > 0)
-                            sParams += "&";
-                        sParams += name + "=" + val;
+                            sParams.append('&');
+                        sParams.append(name).append('=').append(val);
                     }
                 } else if (n.getLocalName().equals("body")) {
                     body = n;
@@ -1502,7 +1940,7 @@ public class TECore implements Runnable {
             } else if (!sUrl.endsWith("?") && !sUrl.endsWith("&")) {
                 sUrl += "&";
             }
-            sUrl += sParams;
+            sUrl += sParams.toString();
         }
 
         // System.out.println(sUrl);
@@ -1510,7 +1948,7 @@ public class TECore implements Runnable {
         Transformer t = tf.newTransformer();
 
         // Open the URLConnection
-        URLConnection uc = new URL(sUrl).openConnection();
+        URLConnection uc = getHttpTransport().openConnection(new URL(sUrl));
         if (uc instanceof HttpURLConnection) {
             ((HttpURLConnection) uc).setRequestMethod(method);
         }
@@ -1520,10 +1958,11 @@ public class TECore implements Runnable {
             uc.setDoOutput(true);
             byte[] bytes = null;
             String mime = null;
+            RequestBody content = new RequestBody();
 
             // KVP over POST
             if (body == null) {
-                bytes = sParams.getBytes();
+                bytes = sParams.toString().getBytes();
                 mime = "application/x-www-form-urlencoded";
             } // XML POST
             else {
@@ -1557,11 +1996,10 @@ public class TECore implements Runnable {
                     multipart = true;
 
                     // Set main body and related headers
-                    ByteArrayOutputStream contentBytes = new ByteArrayOutputStream();
                     String bodyPart = prefix + boundary + newline;
                     bodyPart += "Content-Type: " + mime + newline + newline;
                     bodyPart += bodyContent;
-                    writeBytes(contentBytes, bodyPart.getBytes(charset));
+                    content.add(bodyPart.getBytes(charset));
 
                     // Append all parts to the original body, seperated by the
                     // boundary sequence
@@ -1589,51 +2027,35 @@ public class TECore implements Runnable {
                         partHeaders += "Content-Type: " + contentType + newline;
                         partHeaders += "Content-ID: <" + cid + ">" + newline
                                 + newline;
-                        writeBytes(contentBytes, partHeaders.getBytes(charset));
+                        content.add(partHeaders.getBytes(charset));
 
                         // Get the fileName, if it exists
                         NodeList files = currentPart.getElementsByTagNameNS(
                                 CTL_NS, "file");
 
-                        // Get part for a specified file
+                        // Get part for a specified file; it is read when
+                        // the request is sent
                         if (files.getLength() > 0) {
-                            File contentFile = getFile(files);
-
-                            InputStream is = new FileInputStream(contentFile);
-                            long length = contentFile.length();
-                            byte[] fileBytes = new byte[(int) length];
-                            int offset = 0;
-                            int numRead = 0;
-                            while (offset < fileBytes.length
-                                    && (numRead = is.read(fileBytes, offset,
-                                            fileBytes.length - offset)) >= 0) {
-                                offset += numRead;
-                            }
-                            is.close();
-
-                            writeBytes(contentBytes, fileBytes);
+                            content.add(getFile(files));
                         } // Get part from inline data (or xi:include)
                         else {
                             // Text
                             if (currentPart.getFirstChild() instanceof Text) {
-                                writeBytes(contentBytes, currentPart
-                                        .getTextContent().getBytes(charset));
+                                content.add(currentPart.getTextContent()
+                                        .getBytes(charset));
                             } // XML
                             else {
-                                writeBytes(
-                                        contentBytes,
-                                        DomUtils.serializeNode(
-                                                currentPart.getFirstChild())
-                                                .getBytes(charset));
+                                content.add(DomUtils.serializeNode(
+                                        currentPart.getFirstChild()).getBytes(
+                                        charset));
                             }
                         }
                     }
 
                     String endingBoundary = newline + prefix + boundary
                             + prefix + newline;
-                    writeBytes(contentBytes, endingBoundary.getBytes(charset));
-
-                    bytes = contentBytes.toByteArray();
+                    content.add(endingBoundary.getBytes(charset));
+                    bytes = null;
 
                     // Global Content-Type and Length to be added after the
                     // parts have been parsed
@@ -1656,9 +2078,12 @@ public class TECore implements Runnable {
                     uc.setRequestProperty("Message-ID", "<" + mid + ">");
                 }
             }
+            if (bytes != null) {
+                content.add(bytes);
+            }
             uc.setRequestProperty("Content-Type", mime);
             uc.setRequestProperty("Content-Length",
-                    Integer.toString(bytes.length));
+                    Long.toString(content.length()));
 
             // Enter the custom headers (overwrites the defaults if present)
             for (int i = 0; i < headers.size(); i++) {
@@ -1669,17 +2094,57 @@ public class TECore implements Runnable {
                 }
             }
 
+            // Large bodies are streamed rather than buffered by the
+            // connection
+            if (content.length() > getHttpTransport().getStreamThreshold()
+                    && uc instanceof HttpURLConnection) {
+                ((HttpURLConnection) uc).setFixedLengthStreamingMode(content
+                        .length());
+            }
             OutputStream os = uc.getOutputStream();
-            os.write(bytes);
+            boolean sent = false;
+            try {
+                content.writeTo(os);
+                sent = true;
+            } finally {
+                // No response will be read, so the connection is released
+                if (!sent && uc instanceof HttpURLConnection) {
+                    ((HttpURLConnection) uc).disconnect();
+                }
+            }
         }
         return uc;
     }
 
+    /**
+     * Returns the transport used to submit HTTP requests, as determined by
+     * the runtime options. Unless an archive is specified, exchanges are
+     * recorded in the session directory. The transport is created once per
+     * session and shared by the cores running its subtests and profiles.
+     * 
+     * @return The transport for this session.
+     */
+    public HttpTransport getHttpTransport() {
+        TECore session = root;
+        synchronized (session.transportLock) {
+            if (session.httpTransport == null) {
+                File archive = opts.getHttpArchive();
+                if (archive == null && opts.getLogDir() != null) {
+                    archive = new File(new File(opts.getLogDir(),
+                            opts.getSessionId()), HttpArchive.ARCHIVE_FILE);
+                }
+                session.httpTransport = HttpTransport.getInstance(
+                        opts.getHttpMode(), archive);
+            }
+            return session.httpTransport;
+        }
+    }
+
     public static void writeBytes(ByteArrayOutputStream baos, byte[] bytes) {
         baos.write(bytes, 0, bytes.length);
     }
 
-    public Element parse(Document parse_instruction, String xsl_version)
+    public NodeInfo parse(Document parse_instruction, String xsl_version)
             throws Throwable {
         DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
         dbf.setNamespaceAware(true);
@@ -1750,7 +2215,7 @@ public class TECore implements Runnable {
             t.transform(new DOMSource((Node) content), new StreamResult(temp));
         }
         URLConnection uc = temp.toURI().toURL().openConnection();
-        Element result = parse(uc, parser_instruction);
+        NodeInfo result = parseTree(uc, parser_instruction, -1);
         temp.delete();
         return result;
     }
@@ -1812,61 +2277,9 @@ public class TECore implements Runnable {
             } else {
                 instruction_e = ((Document) instruction).getDocumentElement();
             }
-            String key = "{" + instruction_e.getNamespaceURI() + "}"
-                    + instruction_e.getLocalName();
-            ParserEntry pe = index.getParser(key);
-            Object instance = null;
-            if (pe.isInitialized()) {
-                instance = parserInstances.get(key);
-                if (instance == null) {
-                    try {
-                        TEClassLoader cl = engine.getClassLoader(opts
-                                .getSourcesName());
-                        instance = Misc.makeInstance(pe.getClassName(),
-                                pe.getClassParams(), cl);
-                    } catch (Exception e) {
-                        throw new Exception("Can't instantiate parser "
-                                + pe.getName(), e);
-                    }
-                    parserInstances.put(key, instance);
-                }
-            }
-            Method method = parserMethods.get(key);
-            if (method == null) {
-                TEClassLoader cl = engine.getClassLoader(opts.getSourcesName());
-                method = Misc.getMethod(pe.getClassName(), pe.getMethod(), cl,
-                        3, 4);
-                parserMethods.put(key, method);
-            }
             StringWriter swLogger = new StringWriter();
             PrintWriter pwLogger = new PrintWriter(swLogger);
-            int arg_count = method.getParameterTypes().length;
-            Object[] args = new Object[arg_count];
-            args[0] = uc;
-            args[1] = instruction_e;
-            args[2] = pwLogger;
-            if (arg_count > 3) {
-                args[3] = this;
-            }
-            Object return_object;
-            try {
-                if (LOGR.isLoggable(Level.FINER)) {
-                    LOGR.finer("Invoking method " + method.toGenericString()
-                            + "size args[] = " + args.length + "\n args[0]: "
-                            + args[0].toString() + "\n args[1]:\n"
-                            + DomUtils.serializeNode((Node) args[1]));
-                }
-                return_object = method.invoke(instance, args);
-            } catch (java.lang.reflect.InvocationTargetException e) {
-                Throwable cause = e.getCause();
-                String msg = "Error invoking parser " + pe.getId() + "\n"
-                        + cause.getClass().getName();
-                if (cause.getMessage() != null) {
-                    msg += ": " + cause.getMessage();
-                }
-                jlogger.log(Level.SEVERE, msg, e);
-                throw e;
-            }
+            Object return_object = invokeParser(uc, instruction_e, pwLogger);
             pwLogger.close();
             if (return_object instanceof Node) {
                 idt.transform(new DOMSource((Node) return_object),
@@ -1886,6 +2299,164 @@ public class TECore implements Runnable {
         return response_e;
     }
 
+    /**
+     * Invokes the parser named by an instruction element.
+     * 
+     * @return The object returned by the parser: usually a DOM Node, or some
+     *         other object whose string value is the content.
+     */
+    private Object invokeParser(URLConnection uc, Element instruction_e,
+            PrintWriter pwLogger) throws Exception {
+        String key = "{" + instruction_e.getNamespaceURI() + "}"
+                + instruction_e.getLocalName();
+        ParserEntry pe = index.getParser(key);
+        TEClassLoader cl = engine.getClassLoader(opts.getSourcesName());
+        Object instance = null;
+        if (pe.isInitialized()) {
+            instance = parserInstances.get(key);
+            if (instance == null) {
+                try {
+                    if (pe.isShared()) {
+                        instance = Misc.getSharedInstance(pe,
+                                pe.getClassName(), pe.getClassParams(), cl);
+                    } else {
+                        instance = Misc.makeInstance(pe.getClassName(),
+                                pe.getClassParams(), cl);
+                    }
+                } catch (Exception e) {
+                    throw new Exception("Can't instantiate parser "
+                            + pe.getName(), e);
+                }
+                parserInstances.put(key, instance);
+            }
+        }
+        Method method = Misc.getMethod(pe.getClassName(), pe.getMethod(), cl,
+                3, 4);
+        int arg_count = method.getParameterTypes().length;
+        Object[] args = new Object[arg_count];
+        args[0] = uc;
+        args[1] = instruction_e;
+        args[2] = pwLogger;
+        if (arg_count > 3) {
+            args[3] = this;
+        }
+        long start = System.nanoTime();
+        try {
+            if (LOGR.isLoggable(Level.FINER)) {
+                LOGR.finer("Invoking method " + method.toGenericString()
+                        + "size args[] = " + args.length + "\n args[0]: "
+                        + args[0].toString() + "\n args[1]:\n"
+                        + DomUtils.serializeNode((Node) args[1]));
+            }
+            return method.invoke(instance, args);
+        } catch (java.lang.reflect.InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            String msg = "Error invoking parser " + pe.getId() + "\n"
+                    + cause.getClass().getName();
+            if (cause.getMessage() != null) {
+                msg += ": " + cause.getMessage();
+            }
+            jlogger.log(Level.SEVERE, msg, e);
+            throw e;
+        } finally {
+            Metrics.timer("parser", "class", pe.getClassName()).recordSince(
+                    start);
+        }
+    }
+
+    /**
+     * Parses the content retrieved from a URLConnection into a Saxon tree with
+     * the same structure as the element returned by
+     * {@link #parse(URLConnection, Node)}. An XML response is parsed straight
+     * from the connection into the tree; a DOM is only involved when a parser
+     * returns one.
+     * 
+     * @param uc
+     *            A URLConnection object.
+     * @param instruction
+     *            A Document or Element node containing parser instructions,
+     *            or null to read the content as is.
+     * @param startTime
+     *            The time the request was submitted, or -1. If given, a
+     *            comment reporting the elapsed time is added to each element
+     *            in the content.
+     * @return The response element.
+     */
+    public NodeInfo parseTree(URLConnection uc, Node instruction,
+            long startTime) throws Exception {
+        ResponseTreeBuilder rtb = new ResponseTreeBuilder(engine
+                .getProcessor().getUnderlyingConfiguration(), startTime);
+        if (instruction == null) {
+            rtb.parser(null, null, null, null);
+            InputStream is = null;
+            uc.connect();
+            String contentType = uc.getContentType();
+            try {
+                is = URLConnectionUtils.getInputStream(uc);
+                if (contentType.contains("xml")) { // a crude check
+                    rtb.content(new StreamSource(is));
+                } else {
+                    rtb.content(IOUtils.inputStreamToString(is));
+                }
+            } finally {
+                if (null != is)
+                    is.close();
+            }
+        } else {
+            Element instruction_e;
+            if (instruction instanceof Element) {
+                instruction_e = (Element) instruction;
+            } else {
+                instruction_e = ((Document) instruction).getDocumentElement();
+            }
+            StringWriter swLogger = new StringWriter();
+            PrintWriter pwLogger = new PrintWriter(swLogger);
+            Object return_object = invokeParser(uc, instruction_e, pwLogger);
+            pwLogger.close();
+            rtb.parser(instruction_e.getPrefix(),
+                    instruction_e.getLocalName(),
+                    instruction_e.getNamespaceURI(), swLogger.toString());
+            if (return_object instanceof Node) {
+                rtb.content(new DOMSource((Node) return_object));
+            } else if (return_object != null) {
+                rtb.content(return_object.toString());
+            }
+        }
+        return rtb.finish();
+    }
+
+    // Returns the content element of a response. The caller selects its
+    // children (tec:request(...)/node()).
+    static NodeInfo getResponseContent(NodeInfo response) {
+        return (NodeInfo) response.iterateAxis(
+                net.sf.saxon.om.Axis.CHILD,
+                new NameTest(Type.ELEMENT, "", "content", response
+                        .getNamePool())).next();
+    }
+
+    // Returns the content element of a logged response
+    NodeInfo getResponseContent(Element response_e) {
+        Element content_e = DomUtils.getElementByTagName(response_e, "content");
+        DocumentWrapper doc = new DocumentWrapper(
+                content_e.getOwnerDocument(), null, engine.getProcessor()
+                        .getUnderlyingConfiguration());
+        return doc.wrap(content_e);
+    }
+
+    // Prints the messages logged by the parser in a response
+    void printParserLog(NodeInfo response) {
+        NodeInfo parser = (NodeInfo) response.iterateAxis(
+                net.sf.saxon.om.Axis.CHILD,
+                new NameTest(Type.ELEMENT, "", "parser", response
+                        .getNamePool())).next();
+        if (parser != null) {
+            String text = parser.getStringValue();
+            if (text.length() > 0) {
+                out.println(text);
+            }
+        }
+    }
+
     public Node message(String message, String id) {
         String formatted_message = indent
                 + message.trim().replaceAll("\n", "\n" + indent);
@@ -1905,21 +2476,18 @@ public class TECore implements Runnable {
     }
 
     public Element getLogCache(String id) {
+        // The last cache entry with the id wins
         Element child_e = null;
         if (prevLog != null) {
-            for (Element cache_e : DomUtils.getElementsByTagName(prevLog,
-                    "cache")) {
-                if (cache_e.getAttribute("id").equals(id)) {
-                    child_e = DomUtils.getChildElement(cache_e);
-                }
+            Element cache_e = prevLogIndex.getLast("cache", id);
+            if (cache_e != null) {
+                child_e = DomUtils.getChildElement(cache_e);
             }
         }
         if (suiteLog != null && child_e == null) {
-            for (Element cache_e : DomUtils.getElementsByTagName(suiteLog,
-                    "cache")) {
-                if (cache_e.getAttribute("id").equals(id)) {
-                    child_e = DomUtils.getChildElement(cache_e);
-                }
+            Element cache_e = suiteLogIndex.getLast("cache", id);
+            if (cache_e != null) {
+                child_e = DomUtils.getChildElement(cache_e);
             }
         }
         return (child_e == null) ? null : child_e;
@@ -1939,16 +2507,23 @@ public class TECore implements Runnable {
      */
     public Node form(Document ctlForm, String id) throws Exception {
         if (opts.getMode() == Test.RESUME_MODE && prevLog != null) {
-            for (Element e : DomUtils.getElementsByTagName(prevLog,
-                    "formresults")) {
-                if (e.getAttribute("id").equals(fnPath + id)) {
-                    logger.println(DomUtils.serializeNode(e));
-                    logger.flush();
-                    return DomUtils.getChildElement(e);
-                }
+            Element e = prevLogIndex.getFirst("formresults", fnPath + id);
+            if (e != null) {
+                logger.println(DomUtils.serializeNode(e));
+                logger.flush();
+                return DomUtils.getChildElement(e);
             }
         }
 
+        // Forms are presented by the session core, one at a time
+        TECore session = root;
+        synchronized (session.formLock) {
+            return session.presentForm(ctlForm, id, this);
+        }
+    }
+
+    Node presentForm(Document ctlForm, String id, TECore caller)
+            throws Exception {
         String name = Thread.currentThread().getName();
         Element form = (Element) ctlForm.getElementsByTagNameNS(CTL_NS, "form")
                 .item(0);
@@ -2009,7 +2584,7 @@ public class TECore implements Runnable {
                 "yes");
         formTransformer.setDestination(serializer);
         formTransformer.transform();
-        this.formHtml = sw.toString();
+        setFormHtml(sw.toString());
         if (LOGR.isLoggable(Level.FINE))
             LOGR.fine(this.formHtml);
 
@@ -2027,12 +2602,14 @@ public class TECore implements Runnable {
             SwingForm.create(name, width, height, this);
         }
 
-        while (formResults == null) {
-            if (stop) {
-                formParsers.clear();
-                throw new Exception("Execution was stopped by the user.");
+        synchronized (formSignal) {
+            while (formResults == null && !stop) {
+                formSignal.wait();
             }
-            Thread.sleep(250);
+        }
+        if (formResults == null) {
+            formParsers.clear();
+            throw new Exception("Execution was stopped by the user.");
         }
 
         Document doc = formResults;
@@ -2041,10 +2618,11 @@ public class TECore implements Runnable {
         formResults = null;
         formParsers.clear();
 
-        if (logger != null) {
-            logger.println("<formresults id=\"" + fnPath + id + "\">");
-            logger.println(DomUtils.serializeNode(doc));
-            logger.println("</formresults>");
+        if (caller.logger != null) {
+            caller.logger.println("<formresults id=\"" + caller.fnPath + id
+                    + "\">");
+            caller.logger.println(DomUtils.serializeNode(doc));
+            caller.logger.println("</formresults>");
         }
         return doc;
     }
@@ -2056,16 +2634,57 @@ public class TECore implements Runnable {
         }
     }
 
+    /**
+     * Returns the console buffer of a session run by {@link #run()}, creating
+     * it if the session has not started yet.
+     */
+    public ConsoleBuffer getConsole() {
+        synchronized (consoleLock) {
+            if (threadOutput == null) {
+                threadOutput = new ConsoleBuffer();
+            }
+            return threadOutput;
+        }
+    }
+
+    /**
+     * Returns the console output written since the previous call. Output
+     * discarded from the console buffer in between is replaced by a note.
+     */
     public String getOutput() {
-        String output = threadOutput.toString();
-        threadOutput.reset();
-        return output;
+        ConsoleBuffer.Chunk chunk;
+        synchronized (consoleLock) {
+            chunk = getConsole().read(outputSequence);
+            outputSequence = chunk.getEnd();
+        }
+        if (chunk.getDropped() > 0) {
+            return "[" + chunk.getDropped()
+                    + " bytes of output were discarded]\n" + chunk.getText();
+        }
+        return chunk.getText();
     }
 
     public void stopThread() throws Exception {
+        stopThread(true);
+    }
+
+    /**
+     * Asks the session to stop.
+     *
+     * @param wait
+     *            Whether to wait for the session thread to complete.
+     */
+    public void stopThread(boolean wait) throws InterruptedException {
         stop = true;
-        while (!threadComplete) {
-            Thread.sleep(100);
+        synchronized (formSignal) {
+            formSignal.notifyAll();
+        }
+        if (wait) {
+            synchronized (completion) {
+                while (!threadComplete) {
+                    completion.wait();
+                }
+            }
         }
     }
 
@@ -2076,17 +2695,22 @@ public class TECore implements Runnable {
     public void run() {
         threadComplete = false;
         // activeThread = Thread.currentThread();
+        ConsoleBuffer console = getConsole();
         try {
             opts.testLogDir.mkdir();
-            threadOutput = new ByteArrayOutputStream();
-            out = new PrintStream(threadOutput);
+            out = new PrintStream(console, false, "UTF-8");
             execute();
-            out.close();
+            out.flush();
         } catch (Exception e) {
             jlogger.log(Level.SEVERE, "", e);
         }
         // activeThread = null;
-        threadComplete = true;
+        synchronized (completion) {
+            threadComplete = true;
+            completion.notifyAll();
+        }
+        // Readers wake up and see the session complete
+        console.close();
     }
 
     public File getLogDir() {
@@ -25,6 +25,7 @@ import java.io.BufferedReader;
 import java.io.CharArrayReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.PrintStream;
 import java.net.URI;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -42,6 +43,7 @@ public class TeErrorListener implements ErrorListener {
     private int ErrorCount = 0;
     private int WarningCount = 0;
     private boolean active = true;
+    private PrintStream err = System.err;
     private static Logger logger = Logger
             .getLogger("com.occamlab.te.TeErrorListener");
 
@@ -52,6 +54,17 @@ public class TeErrorListener implements ErrorListener {
         scriptChars = script_chars;
     }
 
+    /**
+     * Creates an error listener that reports messages to the given stream
+     * instead of System.err.
+     * 
+     * @param err
+     *            The destination for error and warning messages.
+     */
+    public TeErrorListener(PrintStream err) {
+        this.err = err;
+    }
+
     public int getErrorCount() {
         return ErrorCount;
     }
@@ -63,7 +76,7 @@ public class TeErrorListener implements ErrorListener {
     private void error(String type, TransformerException exception) {
         if (scriptChars == null) {
             if (active) {
-                System.err.println(type + ": "
+                err.println(type + ": "
                         + exception.getMessageAndLocation());
             }
             return;
@@ -101,14 +114,14 @@ public class TeErrorListener implements ErrorListener {
                 }
                 current_line++;
             }
-            System.err.println(type + " at " + location + ":");
-            System.err.println("  " + exception.getMessage()
+            err.println(type + " at " + location + ":");
+            err.println("  " + exception.getMessage()
                     + " in intermediate stylesheet"
                     + exception.getLocationAsString());
         } catch (Exception e) {
             logger.log(Level.SEVERE, "", e);
 
-            System.err.println(type + ": " + exception.getMessageAndLocation());
+            err.println(type + ": " + exception.getMessageAndLocation());
         }
     }
 
@@ -35,6 +35,7 @@ import javax.xml.transform.stream.StreamSource;
 
 import com.occamlab.te.index.Index;
 import com.occamlab.te.util.DocumentationHelper;
+import com.occamlab.te.util.HttpTransport;
 import com.occamlab.te.util.LogUtils;
 import com.occamlab.te.util.Misc;
 
@@ -97,6 +98,8 @@ public class Test {
         System.out.println("  " + cmd
                 + " [-mode=test] [-source=ctlfile|dir]...");
         System.out.println("  [-session=session] [-base=baseURI]");
+        System.out
+                .println("    [-http=passthrough|record|replay] [-httparchive=file]");
         System.out
                 .println("    [-suite=qname|-test=qname [@param-name=value] ...] [-profile=qname|*] ...\n");
         System.out.println("    qname=[namespace_uri,|prefix:]local_name]\n");
@@ -194,6 +197,10 @@ public class Test {
             } else if (args[i].startsWith("-mode=")) {
                 System.out.println("Error: Invalid mode.");
                 return;
+            } else if (args[i].startsWith("-http=")) {
+                runOpts.setHttpMode(args[i].substring(6));
+            } else if (args[i].startsWith("-httparchive=")) {
+                runOpts.setHttpArchive(new File(args[i].substring(13)));
             } else if (args[i].equals("-validate=no")) {
                 setupOpts.setValidate(false);
             } else if (!args[i].startsWith("-")) {
@@ -227,6 +234,12 @@ public class Test {
                     .println("Error: A -logdir parameter is required for testing profiles");
             return;
         }
+        if (!runOpts.getHttpMode().equals(HttpTransport.PASSTHROUGH_MODE)
+                && logDir == null && runOpts.getHttpArchive() == null) {
+            System.out
+                    .println("Error: A -logdir or -httparchive parameter is required to record or replay HTTP requests");
+            return;
+        }
         if (mode == PRETTYLOG_MODE && logDir == null) {
             System.out
                     .println("Error: A -logdir parameter is required to create report");
@@ -289,7 +302,7 @@ public class Test {
         } else if (mode == REDO_FROM_CACHE_MODE) {
             boolean regenerate = false;
             if (indexFile.canRead()) {
-                masterIndex = new Index(indexFile);
+                masterIndex = Index.load(indexFile);
                 if (masterIndex.outOfDate()) {
                     System.out
                             .println("Warning: Scripts have changed since this session was first executed.");
@@ -312,7 +325,7 @@ public class Test {
                 System.out.println("Error: Can't read index file.");
                 return;
             }
-            masterIndex = new Index(indexFile);
+            masterIndex = Index.load(indexFile);
             if (masterIndex.outOfDate()) {
                 System.out
                         .println("Warning: Scripts have changed since this session was first executed.");
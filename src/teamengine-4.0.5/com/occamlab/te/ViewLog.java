@@ -75,7 +75,9 @@ public class ViewLog {
             doc.appendChild(sessions_e);
             String[] children = logdir.list();
             for (int i = 0; i < children.length; i++) {
-                if (new File(logdir, children[i]).isDirectory()) {
+                // Hidden directories (e.g. the result store) are not sessions
+                if (new File(logdir, children[i]).isDirectory()
+                        && !children[i].startsWith(".")) {
                     Element session_e = doc.createElement("session");
                     session_e.setAttribute("id", children[i]);
                     sessions_e.appendChild(session_e);
@@ -105,8 +107,7 @@ public class ViewLog {
             Iterator it = tests.iterator();
             while (it.hasNext()) {
                 String test = (String) it.next();
-                File f = new File(new File(logdir, test), "log.xml");
-                if (f.exists()) {
+                if (LogUtils.hasLog(logdir, test)) {
                     Document doc = LogUtils.makeTestList(logdir, test);
                     Element testElement = DomUtils.getElementByTagName(doc,
                             "test");
@@ -122,8 +123,9 @@ public class ViewLog {
                             .getElementsByTagName("endtest");
                     ret = ret && (endtestlist.getLength() > 0);
                 } else {
-                    System.out.println("Error: " + f.getAbsolutePath()
-                            + " does not exist.");
+                    System.out.println("Error: The log of " + test
+                            + " does not exist in " + logdir.getAbsolutePath()
+                            + ".");
                     ret = ret && false;
                 }
             }
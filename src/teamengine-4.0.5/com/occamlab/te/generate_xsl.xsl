@@ -697,8 +697,17 @@
 
     <xsl:call-template name="make-params-var" />
 
-    <txsl:value-of
-      select="tec:callTest($te:core, '{$qname/local-name}', '{$qname/namespace-uri}', $te:params, concat('{generate-id()}_', position()))" /> <!-- Last param is the log file directory name -->
+    <xsl:choose>
+      <!-- A test marked independent may run alongside its siblings -->
+      <xsl:when test="@independent = ('true', '1')">
+        <txsl:value-of
+          select="tec:callTest($te:core, '{$qname/local-name}', '{$qname/namespace-uri}', $te:params, concat('{generate-id()}_', position()), true())" />
+      </xsl:when>
+      <xsl:otherwise>
+        <txsl:value-of
+          select="tec:callTest($te:core, '{$qname/local-name}', '{$qname/namespace-uri}', $te:params, concat('{generate-id()}_', position()))" /> <!-- Last param is the log file directory name -->
+      </xsl:otherwise>
+    </xsl:choose>
   </xsl:template>
 
   <xsl:template match="ctl:repeat-test">
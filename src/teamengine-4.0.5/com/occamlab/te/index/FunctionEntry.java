@@ -15,6 +15,9 @@ public class FunctionEntry extends TemplateEntry {
     int minArgs;
     int maxArgs;
     List<Node> classParams = null;
+    // The binding of a java function, kept here so that it is discarded
+    // together with the index
+    private volatile Object binding = null;
 
     FunctionEntry() {
         super();
@@ -182,4 +185,12 @@ public class FunctionEntry extends TemplateEntry {
     public void setClassParams(List<Node> classParams) {
         this.classParams = classParams;
     }
+
+    public Object getBinding() {
+        return binding;
+    }
+
+    public void setBinding(Object binding) {
+        this.binding = binding;
+    }
 }
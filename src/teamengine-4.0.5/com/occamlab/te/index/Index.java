@@ -25,10 +25,11 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilder;
@@ -39,11 +40,18 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import com.occamlab.te.Generator;
 import com.occamlab.te.util.DomUtils;
 
 public class Index {
+    private static final Logger LOGR = Logger.getLogger(Index.class
+            .getName());
     File indexFile = null;
     List<File> dependencies = new ArrayList<File>();
+    // Digest of the sources (see Generator.computeDigest), computed on demand
+    String digest = null;
+    // Stamps of the source files when the digest was computed
+    Map<File, IndexSnapshot.Stamp> stamps = IndexSnapshot.newStampMap();
     Map<String, List<FunctionEntry>> functionsMap = new HashMap<String, List<FunctionEntry>>();
     Map<String, ParserEntry> parserMap = new HashMap<String, ParserEntry>();
     Map<String, SuiteEntry> suiteMap = new HashMap<String, SuiteEntry>();
@@ -51,6 +59,74 @@ public class Index {
     Map<String, TestEntry> testMap = new HashMap<String, TestEntry>();
 
     List<Element> elements = new ArrayList<Element>();
+    // Index elements read from a snapshot, already serialized; these follow
+    // the ones in elements in document order
+    List<String> serializedElements = new ArrayList<String>();
+    // Secondary lookup tables; built on demand and dropped when entries change
+    volatile Lookup lookup = null;
+
+    /**
+     * Finds entries by QName, by prefixed name ("prefix:local") or by local
+     * name. Where several entries share a name the first one in the primary
+     * map's iteration order wins.
+     */
+    static final class Names<E extends IndexEntry> {
+        final Map<QName, E> byQName = new HashMap<QName, E>();
+        final Map<String, E> byPrefixedName = new HashMap<String, E>();
+        final Map<String, E> byLocalName = new HashMap<String, E>();
+
+        Names(Map<String, E> map) {
+            for (E entry : map.values()) {
+                putFirst(byQName, entry.getQName(), entry);
+                putFirst(byPrefixedName, entry.getPrefix() + ":"
+                        + entry.getLocalName(), entry);
+                putFirst(byLocalName, entry.getLocalName(), entry);
+            }
+        }
+
+        private static <K, E> void putFirst(Map<K, E> map, K key, E entry) {
+            if (!map.containsKey(key)) {
+                map.put(key, entry);
+            }
+        }
+    }
+
+    /**
+     * The secondary lookup tables of an index. They are never modified once
+     * built, so any number of threads may read them.
+     */
+    static final class Lookup {
+        final Names<ParserEntry> parsers;
+        final Names<SuiteEntry> suites;
+        final Names<ProfileEntry> profiles;
+        final Names<TestEntry> tests;
+        // For each function name, the first overload accepting each arity
+        final Map<String, FunctionEntry[]> functionsByArity = new HashMap<String, FunctionEntry[]>();
+
+        Lookup(Index index) {
+            parsers = new Names<ParserEntry>(index.parserMap);
+            suites = new Names<SuiteEntry>(index.suiteMap);
+            profiles = new Names<ProfileEntry>(index.profileMap);
+            tests = new Names<TestEntry>(index.testMap);
+            for (Map.Entry<String, List<FunctionEntry>> entry : index.functionsMap
+                    .entrySet()) {
+                int maxArity = 0;
+                for (FunctionEntry fe : entry.getValue()) {
+                    maxArity = Math.max(maxArity, fe.getMaxArgs());
+                }
+                FunctionEntry[] overloads = new FunctionEntry[maxArity + 1];
+                for (FunctionEntry fe : entry.getValue()) {
+                    for (int n = Math.max(fe.getMinArgs(), 0); n <= fe
+                            .getMaxArgs(); n++) {
+                        if (overloads[n] == null) {
+                            overloads[n] = fe;
+                        }
+                    }
+                }
+                functionsByArity.put(entry.getKey(), overloads);
+            }
+        }
+    }
 
     public Index() {
     }
@@ -104,18 +180,111 @@ public class Index {
         }
     }
 
+    /**
+     * Reads an index file, using the accompanying binary snapshot if it is
+     * present and no older than the index file. Otherwise the index file is
+     * parsed and a new snapshot is written for subsequent use.
+     * 
+     * @param indexFile
+     *            An index file (index.xml).
+     * @return The Index.
+     * @throws Exception
+     *             If the index file cannot be read.
+     */
+    public static Index load(File indexFile) throws Exception {
+        File snapshotFile = IndexSnapshot.getSnapshotFile(indexFile);
+        Index index = IndexSnapshot.read(snapshotFile, indexFile);
+        if (index == null) {
+            index = new Index(indexFile);
+            try {
+                IndexSnapshot.write(index, indexFile, snapshotFile);
+            } catch (Exception e) {
+                LOGR.log(Level.WARNING, "Unable to write index snapshot "
+                        + snapshotFile, e);
+            }
+        } else if (LOGR.isLoggable(Level.FINE)) {
+            LOGR.fine("Read index snapshot " + snapshotFile);
+        }
+        return index;
+    }
+
+    /**
+     * Writes the index to a file, along with a binary snapshot of it (see
+     * {@link #load(File)}).
+     * 
+     * @param file
+     *            The destination index file.
+     * @throws Exception
+     *             If the index cannot be written.
+     */
     public void persist(File file) throws Exception {
         file.getParentFile().mkdirs();
         PrintWriter out = new PrintWriter(file);
         out.println("<index>");
-        for (Element el : elements) {
-            out.println(DomUtils.serializeNode(el));
+        for (String el : getSerializedElements()) {
+            out.println(el);
         }
         out.println("</index>");
         out.close();
+        IndexSnapshot.write(this, file, IndexSnapshot.getSnapshotFile(file));
+    }
+
+    List<String> getSerializedElements() {
+        List<String> list = new ArrayList<String>();
+        if (elements != null) {
+            for (Element el : elements) {
+                list.add(DomUtils.serializeNode(el));
+            }
+        }
+        list.addAll(serializedElements);
+        return list;
     }
 
-    public boolean outOfDate() {
+    /**
+     * Returns the digest of the sources this index was generated from (see
+     * {@link Generator#computeDigest}). A digest read from a snapshot is
+     * reused as long as none of the source files has changed in size or
+     * modification time.
+     * 
+     * @return A hexadecimal string representation of the digest.
+     * @throws Exception
+     *             If a source file cannot be read.
+     */
+    public synchronized String getDigest() throws Exception {
+        if (digest == null || !IndexSnapshot.unchanged(stamps)) {
+            Set<File> files = Generator.getSourceFiles(this);
+            List<File> stamped = new ArrayList<File>(files);
+            stamped.add(Generator.getGeneratorStylesheet());
+            // Stamped first, so a file changed while being read is digested
+            // again next time
+            Map<File, IndexSnapshot.Stamp> newStamps = IndexSnapshot
+                    .stamp(stamped);
+            digest = Generator.computeDigest(files);
+            stamps = newStamps;
+        }
+        return digest;
+    }
+
+    /**
+     * Determines whether any of the CTL source files this index was generated
+     * from has changed. If the index was read from a snapshot the current
+     * digest of the sources is compared with the recorded one; otherwise file
+     * modification times are compared with that of the index file.
+     * 
+     * @return true if a dependency has changed; false otherwise.
+     */
+    public synchronized boolean outOfDate() {
+        if (digest != null) {
+            if (IndexSnapshot.unchanged(stamps)) {
+                return false;
+            }
+            try {
+                return !digest.equals(Generator.computeDigest(Generator
+                        .getSourceFiles(this)));
+            } catch (Exception e) {
+                return true;
+            }
+        }
         if (indexFile != null) {
             long indexDate = indexFile.lastModified();
             for (File file : dependencies) {
@@ -128,8 +297,18 @@ public class Index {
     }
 
     public void add(Index index) {
-        elements.addAll(index.elements);
+        lookup = null;
+        if (serializedElements.isEmpty()) {
+            elements.addAll(index.elements);
+        } else {
+            for (Element el : index.elements) {
+                serializedElements.add(DomUtils.serializeNode(el));
+            }
+        }
+        serializedElements.addAll(index.serializedElements);
         dependencies.addAll(index.dependencies);
+        digest = null;
+        stamps = IndexSnapshot.newStampMap();
         functionsMap.putAll(index.functionsMap);
         suiteMap.putAll(index.suiteMap);
         profileMap.putAll(index.profileMap);
@@ -149,16 +328,34 @@ public class Index {
                 + qname.getLocalPart());
     }
 
+    /**
+     * Returns the function that accepts a given number of arguments. If
+     * several overloads accept it, the first one declared is returned.
+     * 
+     * @param name
+     *            The name of the function in Clark notation ({uri}local).
+     * @param arity
+     *            The number of arguments.
+     * @return The function, or null if there is none.
+     */
+    public FunctionEntry getFunction(String name, int arity) {
+        FunctionEntry[] overloads = getLookup().functionsByArity.get(name);
+        if (overloads == null || arity < 0 || arity >= overloads.length) {
+            return null;
+        }
+        return overloads[arity];
+    }
+
     public Set<String> getFunctionKeys() {
         return functionsMap.keySet();
     }
 
     public ParserEntry getParser(String name) {
-        return (ParserEntry) getEntry(parserMap, name);
+        return getEntry(parserMap, getLookup().parsers, name);
     }
 
     public ParserEntry getParser(QName qname) {
-        return (ParserEntry) getEntry(parserMap, qname);
+        return getLookup().parsers.byQName.get(qname);
     }
 
     public Set<String> getParserKeys() {
@@ -166,11 +363,11 @@ public class Index {
     }
 
     public SuiteEntry getSuite(String name) {
-        return (SuiteEntry) getEntry(suiteMap, name);
+        return getEntry(suiteMap, getLookup().suites, name);
     }
 
     public SuiteEntry getSuite(QName qname) {
-        return (SuiteEntry) getEntry(suiteMap, qname);
+        return getLookup().suites.byQName.get(qname);
     }
 
     public Set<String> getSuiteKeys() {
@@ -178,11 +375,11 @@ public class Index {
     }
 
     public ProfileEntry getProfile(String name) {
-        return (ProfileEntry) getEntry(profileMap, name);
+        return getEntry(profileMap, getLookup().profiles, name);
     }
 
     public ProfileEntry getProfile(QName qname) {
-        return (ProfileEntry) getEntry(profileMap, qname);
+        return getLookup().profiles.byQName.get(qname);
     }
 
     public Set<String> getProfileKeys() {
@@ -194,25 +391,28 @@ public class Index {
     }
 
     public TestEntry getTest(String name) {
-        return (TestEntry) getEntry(testMap, name);
+        return getEntry(testMap, getLookup().tests, name);
     }
 
     public TestEntry getTest(QName qname) {
-        return (TestEntry) getEntry(testMap, qname);
+        return getLookup().tests.byQName.get(qname);
     }
 
     public Set<String> getTestKeys() {
         return testMap.keySet();
     }
 
-    private IndexEntry getEntry(Map<String, ? extends IndexEntry> map,
-            QName qname) {
-        return getEntry(map,
-                "{" + qname.getNamespaceURI() + "}" + qname.getLocalPart());
+    Lookup getLookup() {
+        Lookup l = lookup;
+        if (l == null) {
+            l = new Lookup(this);
+            lookup = l;
+        }
+        return l;
     }
 
-    private IndexEntry getEntry(Map<String, ? extends IndexEntry> map,
-            String name) {
+    private static <E extends IndexEntry> E getEntry(Map<String, E> map,
+            Names<E> names, String name) {
         if (name == null) {
             return map.values().iterator().next();
         }
@@ -228,29 +428,10 @@ public class Index {
             return map.get(key);
         }
 
-        String prefix = null;
-        String localName = name;
-        i = name.indexOf(':');
-        if (i >= 0) {
-            prefix = name.substring(0, i);
-            localName = name.substring(i + 1);
-        }
-
-        Iterator<? extends IndexEntry> it = map.values().iterator();
-        while (it.hasNext()) {
-            IndexEntry entry = it.next();
-            if (entry.getLocalName().equals(localName)) {
-                if (prefix == null) {
-                    return entry;
-                } else {
-                    if (entry.getPrefix().equals(prefix)) {
-                        return entry;
-                    }
-                }
-            }
+        if (name.indexOf(':') >= 0) {
+            return names.byPrefixedName.get(name);
         }
-
-        return null;
+        return names.byLocalName.get(name);
     }
 
     public void setElements(List<Element> elements) {
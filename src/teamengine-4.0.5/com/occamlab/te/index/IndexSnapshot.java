@@ -0,0 +1,584 @@
+package com.occamlab.te.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+
+import com.occamlab.te.util.DomUtils;
+
+/**
+ * Reads and writes a compact binary representation of an {@link Index}. A
+ * snapshot is read in a single streaming pass and so avoids building a DOM
+ * tree for the index file. It also records the digest of the sources the
+ * index was generated from (see {@link Index#getDigest()}), along with the
+ * size and modification time of each source file, so that the digest need
+ * only be recomputed if one of them has changed.
+ * <p>
+ * Layout (all values in network byte order): magic number, format version,
+ * size and modification time of the index file the snapshot was derived from,
+ * source digest, source file stamps and dependencies, followed by the suite,
+ * profile, test, function and parser entries and finally the serialized index
+ * elements in document order.
+ * </p>
+ */
+public final class IndexSnapshot {
+
+    private static final Logger LOGR = Logger.getLogger(IndexSnapshot.class
+            .getName());
+    static final int MAGIC = 0x54454958; // "TEIX"
+    static final int VERSION = 3;
+    private static final int NULL_LENGTH = -1;
+    private static final byte NODE_NULL = 0;
+    private static final byte NODE_TEXT = 1;
+    private static final byte NODE_ELEMENT = 2;
+
+    private IndexSnapshot() {
+    }
+
+    /**
+     * Returns the location of the snapshot that accompanies an index file.
+     *
+     * @param indexFile
+     *            An index file (e.g. index.xml).
+     * @return A File in the same directory with the extension ".bin".
+     */
+    public static File getSnapshotFile(File indexFile) {
+        String name = indexFile.getName();
+        int i = name.lastIndexOf('.');
+        if (i > 0) {
+            name = name.substring(0, i);
+        }
+        return new File(indexFile.getParentFile(), name + ".bin");
+    }
+
+    /**
+     * Writes a snapshot of the given index, along with the digest of its
+     * sources.
+     *
+     * @param index
+     *            The index to write.
+     * @param indexFile
+     *            The index file the snapshot accompanies (may be null).
+     * @param file
+     *            The destination file; it is replaced if it exists.
+     * @throws Exception
+     *             If the snapshot cannot be written.
+     */
+    public static void write(Index index, File indexFile, File file)
+            throws Exception {
+        String digest = index.getDigest();
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(null == indexFile ? -1 : indexFile.length());
+            out.writeLong(null == indexFile ? -1 : indexFile.lastModified());
+            writeString(out, digest);
+            out.writeInt(index.stamps.size());
+            for (Map.Entry<File, Stamp> entry : index.stamps.entrySet()) {
+                writeString(out, entry.getKey().getPath());
+                out.writeLong(entry.getValue().length);
+                out.writeLong(entry.getValue().lastModified);
+            }
+            out.writeInt(index.dependencies.size());
+            for (File dependency : index.dependencies) {
+                writeString(out, dependency.getPath());
+            }
+            out.writeInt(index.suiteMap.size());
+            for (SuiteEntry se : index.suiteMap.values()) {
+                writeSuite(out, se);
+            }
+            out.writeInt(index.profileMap.size());
+            for (ProfileEntry pe : index.profileMap.values()) {
+                writeProfile(out, pe);
+            }
+            out.writeInt(index.testMap.size());
+            for (TestEntry te : index.testMap.values()) {
+                writeTest(out, te);
+            }
+            int functionCount = 0;
+            for (List<FunctionEntry> functions : index.functionsMap.values()) {
+                functionCount += functions.size();
+            }
+            out.writeInt(functionCount);
+            for (List<FunctionEntry> functions : index.functionsMap.values()) {
+                for (FunctionEntry fe : functions) {
+                    writeFunction(out, fe);
+                }
+            }
+            out.writeInt(index.parserMap.size());
+            for (ParserEntry pe : index.parserMap.values()) {
+                writeParser(out, pe);
+            }
+            List<String> elements = index.getSerializedElements();
+            out.writeInt(elements.size());
+            for (String el : elements) {
+                writeString(out, el);
+            }
+        } finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to replace " + file);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Unable to rename " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * Reads a snapshot. If the snapshot refers to an index file that has
+     * changed since it was written, it is considered stale.
+     *
+     * @param file
+     *            A snapshot file.
+     * @param indexFile
+     *            The index file the snapshot accompanies (may be null).
+     * @return The Index read from the snapshot, or {@code null} if the
+     *         snapshot does not exist, is stale, was written in a different
+     *         format version, or cannot be read.
+     */
+    public static Index read(File file, File indexFile) {
+        if (!file.isFile()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            long indexLength = in.readLong();
+            long indexModified = in.readLong();
+            if (null != indexFile
+                    && indexFile.exists()
+                    && (indexFile.length() != indexLength || indexFile
+                            .lastModified() != indexModified)) {
+                LOGR.log(Level.FINE, "Snapshot {0} is older than {1}",
+                        new Object[] { file, indexFile });
+                return null;
+            }
+            Index index = new Index();
+            index.indexFile = indexFile;
+            index.digest = readString(in);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                File source = new File(readString(in));
+                index.stamps.put(source,
+                        new Stamp(in.readLong(), in.readLong()));
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                index.dependencies.add(new File(readString(in)));
+            }
+            DocumentBuilder db = newDocumentBuilder();
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                SuiteEntry se = readSuite(in, db);
+                index.suiteMap.put(se.getId(), se);
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                ProfileEntry pe = readProfile(in, db);
+                index.profileMap.put(pe.getId(), pe);
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                TestEntry te = readTest(in);
+                index.testMap.put(te.getId(), te);
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                FunctionEntry fe = readFunction(in, db);
+                List<FunctionEntry> functions = index.functionsMap.get(fe
+                        .getId());
+                if (functions == null) {
+                    functions = new ArrayList<FunctionEntry>();
+                    index.functionsMap.put(fe.getId(), functions);
+                }
+                functions.add(fe);
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                ParserEntry pe = readParser(in, db);
+                index.parserMap.put(pe.getId(), pe);
+            }
+            count = in.readInt();
+            List<String> elements = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+                elements.add(readString(in));
+            }
+            index.serializedElements = elements;
+            return index;
+        } catch (Exception e) {
+            LOGR.log(Level.WARNING, "Unable to read index snapshot " + file,
+                    e);
+            return null;
+        } finally {
+            if (null != in) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    static void writeSuite(DataOutputStream out, SuiteEntry se)
+            throws IOException {
+        writeQName(out, se.getQName());
+        writeString(out, se.defaultResult);
+        writeQName(out, se.startingTest);
+        writeNode(out, se.form);
+        writeString(out, se.title);
+        writeString(out, se.description);
+        writeString(out, se.link);
+        writeString(out, se.dataLink);
+    }
+
+    static SuiteEntry readSuite(DataInputStream in, DocumentBuilder db)
+            throws Exception {
+        SuiteEntry se = new SuiteEntry();
+        se.setQName(readQName(in));
+        se.defaultResult = readString(in);
+        se.startingTest = readQName(in);
+        se.form = (Document) readNode(in, db, true);
+        se.title = readString(in);
+        se.description = readString(in);
+        se.link = readString(in);
+        se.dataLink = readString(in);
+        return se;
+    }
+
+    static void writeProfile(DataOutputStream out, ProfileEntry pe)
+            throws IOException {
+        writeQName(out, pe.getQName());
+        writeString(out, pe.defaultResult);
+        writeQName(out, pe.baseSuite);
+        out.writeInt(pe.excludes.size());
+        for (List<QName> exclude : pe.excludes) {
+            writeQNames(out, exclude);
+        }
+        writeQName(out, pe.startingTest);
+        writeNode(out, pe.form);
+        writeString(out, pe.title);
+        writeString(out, pe.description);
+    }
+
+    static ProfileEntry readProfile(DataInputStream in, DocumentBuilder db)
+            throws Exception {
+        ProfileEntry pe = new ProfileEntry();
+        pe.setQName(readQName(in));
+        pe.defaultResult = readString(in);
+        pe.baseSuite = readQName(in);
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            pe.excludes.add(readQNames(in));
+        }
+        pe.startingTest = readQName(in);
+        pe.form = (Document) readNode(in, db, true);
+        pe.title = readString(in);
+        pe.description = readString(in);
+        return pe;
+    }
+
+    static void writeTemplate(DataOutputStream out, TemplateEntry te)
+            throws IOException {
+        writeQName(out, te.getQName());
+        File templateFile = te.getTemplateFile();
+        writeString(out, null == templateFile ? null : templateFile.getPath());
+        out.writeBoolean(te.usesContext());
+        writeQNames(out, te.getParams());
+    }
+
+    static void readTemplate(DataInputStream in, TemplateEntry te)
+            throws IOException {
+        te.setQName(readQName(in));
+        String templateFile = readString(in);
+        if (null != templateFile) {
+            te.setTemplateFile(new File(templateFile));
+        }
+        te.setUsesContext(in.readBoolean());
+        te.setParams(readQNames(in));
+    }
+
+    static void writeTest(DataOutputStream out, TestEntry te)
+            throws IOException {
+        writeTemplate(out, te);
+        out.writeInt(te.getDefaultResult());
+        writeString(out, te.getContext());
+        writeString(out, te.getType());
+        writeString(out, te.getAssertion());
+    }
+
+    static TestEntry readTest(DataInputStream in) throws IOException {
+        TestEntry te = new TestEntry();
+        readTemplate(in, te);
+        te.setDefaultResult(in.readInt());
+        te.setContext(readString(in));
+        te.setType(readString(in));
+        te.setAssertion(readString(in));
+        te.result = te.getDefaultResult();
+        return te;
+    }
+
+    static void writeFunction(DataOutputStream out, FunctionEntry fe)
+            throws IOException {
+        writeTemplate(out, fe);
+        out.writeBoolean(fe.java);
+        out.writeBoolean(fe.initialized);
+        writeString(out, fe.className);
+        writeString(out, fe.method);
+        out.writeInt(fe.minArgs);
+        out.writeInt(fe.maxArgs);
+        writeNodes(out, fe.classParams);
+    }
+
+    static FunctionEntry readFunction(DataInputStream in, DocumentBuilder db)
+            throws Exception {
+        FunctionEntry fe = new FunctionEntry();
+        readTemplate(in, fe);
+        fe.java = in.readBoolean();
+        fe.initialized = in.readBoolean();
+        fe.className = readString(in);
+        fe.method = readString(in);
+        fe.minArgs = in.readInt();
+        fe.maxArgs = in.readInt();
+        fe.classParams = readNodes(in, db, false);
+        return fe;
+    }
+
+    static void writeParser(DataOutputStream out, ParserEntry pe)
+            throws IOException {
+        writeQName(out, pe.getQName());
+        out.writeBoolean(pe.initialized);
+        out.writeBoolean(pe.shared);
+        writeString(out, pe.className);
+        writeString(out, pe.method);
+        writeNodes(out, pe.classParams);
+    }
+
+    static ParserEntry readParser(DataInputStream in, DocumentBuilder db)
+            throws Exception {
+        ParserEntry pe = new ParserEntry();
+        pe.setQName(readQName(in));
+        pe.initialized = in.readBoolean();
+        pe.shared = in.readBoolean();
+        pe.className = readString(in);
+        pe.method = readString(in);
+        pe.classParams = readNodes(in, db, true);
+        return pe;
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, null == s ? null : s.getBytes("UTF-8"));
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return null == bytes ? null : new String(bytes, "UTF-8");
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] bytes)
+            throws IOException {
+        if (null == bytes) {
+            out.writeInt(NULL_LENGTH);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    static void writeQName(DataOutputStream out, QName qname)
+            throws IOException {
+        out.writeBoolean(null != qname);
+        if (null != qname) {
+            writeString(out, qname.getNamespaceURI());
+            writeString(out, qname.getLocalPart());
+            writeString(out, qname.getPrefix());
+        }
+    }
+
+    static QName readQName(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        return new QName(readString(in), readString(in), readString(in));
+    }
+
+    static void writeQNames(DataOutputStream out, List<QName> qnames)
+            throws IOException {
+        out.writeInt(null == qnames ? NULL_LENGTH : qnames.size());
+        if (null != qnames) {
+            for (QName qname : qnames) {
+                writeQName(out, qname);
+            }
+        }
+    }
+
+    static List<QName> readQNames(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count == NULL_LENGTH) {
+            return null;
+        }
+        List<QName> qnames = new ArrayList<QName>(count);
+        for (int i = 0; i < count; i++) {
+            qnames.add(readQName(in));
+        }
+        return qnames;
+    }
+
+    static void writeNode(DataOutputStream out, Node node) throws IOException {
+        if (null == node) {
+            out.writeByte(NODE_NULL);
+        } else if (node.getNodeType() == Node.TEXT_NODE) {
+            out.writeByte(NODE_TEXT);
+            writeString(out, node.getTextContent());
+        } else {
+            out.writeByte(NODE_ELEMENT);
+            writeString(out, DomUtils.serializeNode(node));
+        }
+    }
+
+    /**
+     * Reads a node written by {@link #writeNode}. Elements are returned either
+     * as a Document or as the document element, matching what the
+     * corresponding entry constructor produces.
+     */
+    static Node readNode(DataInputStream in, DocumentBuilder db,
+            boolean asDocument) throws Exception {
+        byte kind = in.readByte();
+        if (kind == NODE_NULL) {
+            return null;
+        }
+        String content = readString(in);
+        if (kind == NODE_TEXT) {
+            return db.newDocument().createTextNode(content);
+        }
+        Document doc = db.parse(new InputSource(new StringReader(content)));
+        return asDocument ? doc : doc.getDocumentElement();
+    }
+
+    static void writeNodes(DataOutputStream out, List<Node> nodes)
+            throws IOException {
+        out.writeInt(null == nodes ? NULL_LENGTH : nodes.size());
+        if (null != nodes) {
+            for (Node node : nodes) {
+                writeNode(out, node);
+            }
+        }
+    }
+
+    static List<Node> readNodes(DataInputStream in, DocumentBuilder db,
+            boolean asDocument) throws Exception {
+        int count = in.readInt();
+        if (count == NULL_LENGTH) {
+            return null;
+        }
+        List<Node> nodes = new ArrayList<Node>(count);
+        for (int i = 0; i < count; i++) {
+            nodes.add(readNode(in, db, asDocument));
+        }
+        return nodes;
+    }
+
+    static DocumentBuilder newDocumentBuilder() throws Exception {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        return dbf.newDocumentBuilder();
+    }
+
+    /**
+     * Creates an empty map of source file stamps.
+     */
+    static Map<File, Stamp> newStampMap() {
+        return new LinkedHashMap<File, Stamp>();
+    }
+
+    /**
+     * Stamps each of the given files with its current size and modification
+     * time.
+     */
+    static Map<File, Stamp> stamp(Collection<File> files) {
+        Map<File, Stamp> stamps = newStampMap();
+        for (File file : files) {
+            stamps.put(file, Stamp.of(file));
+        }
+        return stamps;
+    }
+
+    /**
+     * Determines whether every stamped file still has the recorded size and
+     * modification time. An empty map is never considered current.
+     */
+    static boolean unchanged(Map<File, Stamp> stamps) {
+        if (stamps.isEmpty()) {
+            return false;
+        }
+        for (Map.Entry<File, Stamp> entry : stamps.entrySet()) {
+            if (!entry.getValue().matches(entry.getKey())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records the size and modification time of a source file when the
+     * digest of an index was computed.
+     */
+    static final class Stamp {
+        final long length;
+        final long lastModified;
+
+        Stamp(long length, long lastModified) {
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        static Stamp of(File file) {
+            return new Stamp(file.length(), file.lastModified());
+        }
+
+        boolean matches(File file) {
+            return file.length() == length
+                    && file.lastModified() == lastModified;
+        }
+    }
+}
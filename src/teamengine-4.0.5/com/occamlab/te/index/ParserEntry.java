@@ -11,6 +11,7 @@ import com.occamlab.te.util.DomUtils;
 
 public class ParserEntry extends IndexEntry {
     boolean initialized;
+    boolean shared;
     String className;
     String method;
     List<Node> classParams = null;
@@ -26,6 +27,7 @@ public class ParserEntry extends IndexEntry {
             setClassName(e.getAttribute("class"));
             setMethod(e.getAttribute("method"));
             setInitialized(Boolean.parseBoolean(e.getAttribute("initialized")));
+            setShared(Boolean.parseBoolean(e.getAttribute("shared")));
             NodeList nl = e.getElementsByTagName("with-param");
             if (nl.getLength() > 0) {
                 setInitialized(true);
@@ -67,6 +69,19 @@ public class ParserEntry extends IndexEntry {
         this.initialized = initialized;
     }
 
+    /**
+     * Tells whether one instance of an initialized parser is shared by all
+     * test sessions, rather than each session creating its own. Only a
+     * thread safe parser should be declared shared.
+     */
+    public boolean isShared() {
+        return shared;
+    }
+
+    public void setShared(boolean shared) {
+        this.shared = shared;
+    }
+
     public String getMethod() {
         return method;
     }
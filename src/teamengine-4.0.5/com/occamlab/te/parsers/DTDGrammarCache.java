@@ -0,0 +1,260 @@
+package com.occamlab.te.parsers;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.xerces.parsers.SAXParser;
+import org.apache.xerces.xni.grammars.Grammar;
+import org.apache.xerces.xni.grammars.XMLGrammarDescription;
+import org.apache.xerces.xni.grammars.XMLGrammarPool;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.EntityResolver2;
+
+/**
+ * Validates documents against a configured DTD while they are parsed. The
+ * DTD takes the place of the external subset a document declares, or is
+ * supplied as its external subset if it has no document type declaration, so
+ * the document is read only once.
+ *
+ * <p>
+ * The grammar of each DTD is kept across parses, identified by the location
+ * of the DTD (with the size and modification time of a local file). A pooled
+ * grammar must not include an internal subset, and Xerces ignores the
+ * internal subset of a document that is given a pooled grammar, so the pool
+ * is only used for documents whose prolog, found within the first few
+ * kilobytes, has no document type declaration or one without "[". The
+ * counters reported as metrics are shared by the caches of all test suites.
+ * </p>
+ */
+public class DTDGrammarCache {
+
+    private static final String GRAMMAR_POOL = "http://apache.org/xml/properties/internal/grammar-pool";
+    private static final int PEEK_SIZE = 8192;
+    // What the prolog of a document declares
+    static final int NO_DOCTYPE = 0;
+    static final int EXTERNAL_SUBSET = 1;
+    static final int INTERNAL_SUBSET = 2;
+    static final int UNKNOWN = 3;
+    // Grammars by DTD
+    private final ConcurrentMap<String, Grammar> grammars = new ConcurrentHashMap<String, Grammar>();
+    // Metrics of all caches
+    private static final AtomicLong pooled = new AtomicLong();
+    private static final AtomicLong hits = new AtomicLong();
+
+    static {
+        SchemaCache.registerGauge("dtd_grammar_pool_size", pooled);
+        SchemaCache.registerGauge("dtd_grammar_pool_hits_total", hits);
+    }
+
+    /**
+     * Parses a document, validating it against a DTD.
+     *
+     * @param in
+     *            The document.
+     * @param dtd
+     *            The DTD, a File or URL.
+     * @param builder
+     *            Receives the document. Attributes defaulted by the DTD are
+     *            dropped if the document declares no document type, as a
+     *            non-validating parser would not add them.
+     * @param eh
+     *            Receives validation and parsing errors.
+     */
+    public void parse(InputStream in, Object dtd, TreeBuilder builder,
+            ErrorHandler eh) throws Exception {
+        BufferedInputStream bin = new BufferedInputStream(in, PEEK_SIZE);
+        Substitution substitution = new Substitution(dtd, builder,
+                scanProlog(bin));
+        SAXParser reader = new SAXParser();
+        reader.setFeature("http://xml.org/sax/features/validation", true);
+        reader.setProperty(GRAMMAR_POOL, substitution);
+        reader.setEntityResolver(substitution);
+        reader.setErrorHandler(eh);
+        reader.setContentHandler(builder);
+        reader.setProperty("http://xml.org/sax/properties/lexical-handler",
+                builder);
+        reader.parse(new InputSource(bin));
+    }
+
+    /**
+     * Removes all grammars.
+     */
+    public void clear() {
+        for (String key : grammars.keySet()) {
+            if (grammars.remove(key) != null) {
+                pooled.decrementAndGet();
+            }
+        }
+    }
+
+    // What the prolog near the start of a document declares; UNKNOWN if the
+    // document element is not reached or the encoding is not recognized
+    static int scanProlog(BufferedInputStream in) throws IOException {
+        byte[] b = new byte[PEEK_SIZE];
+        int n = 0;
+        in.mark(PEEK_SIZE);
+        try {
+            int count;
+            while (n < b.length && (count = in.read(b, n, b.length - n)) > 0) {
+                n += count;
+            }
+        } finally {
+            in.reset();
+        }
+        String prolog;
+        int i = 0;
+        if (n >= 2 && ((b[0] == (byte) 0xFE && b[1] == (byte) 0xFF)
+                || (b[0] == 0 && b[1] == '<'))) {
+            prolog = new String(b, 0, n, "UTF-16BE");
+        } else if (n >= 2 && ((b[0] == (byte) 0xFF && b[1] == (byte) 0xFE)
+                || (b[0] == '<' && b[1] == 0))) {
+            prolog = new String(b, 0, n, "UTF-16LE");
+        } else {
+            prolog = new String(b, 0, n, "ISO-8859-1");
+            if (prolog.startsWith("\u00EF\u00BB\u00BF")) {
+                // UTF-8 byte order mark
+                i = 3;
+            }
+        }
+        while (i < prolog.length()) {
+            char c = prolog.charAt(i);
+            if (c == '<') {
+                if (prolog.startsWith("<?", i)) {
+                    i = prolog.indexOf("?>", i);
+                    if (i < 0) {
+                        return UNKNOWN;
+                    }
+                    i += 2;
+                } else if (prolog.startsWith("<!--", i)) {
+                    i = prolog.indexOf("-->", i);
+                    if (i < 0) {
+                        return UNKNOWN;
+                    }
+                    i += 3;
+                } else if (prolog.startsWith("<!DOCTYPE", i)) {
+                    return scanDoctype(prolog, i + 9);
+                } else {
+                    return NO_DOCTYPE;
+                }
+            } else if (Character.isWhitespace(c) || c == '\uFEFF') {
+                i++;
+            } else {
+                return UNKNOWN;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    private static int scanDoctype(String prolog, int i) {
+        char quote = 0;
+        for (; i < prolog.length(); i++) {
+            char c = prolog.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '[') {
+                return INTERNAL_SUBSET;
+            } else if (c == '>') {
+                return EXTERNAL_SUBSET;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Substitutes the DTD for the external subset of one document, and pools
+     * its grammar if the document has no internal subset.
+     */
+    private class Substitution implements EntityResolver2, XMLGrammarPool {
+        private final String systemId;
+        private final String key;
+        private final TreeBuilder builder;
+        private final int prolog;
+
+        Substitution(Object dtd, TreeBuilder builder, int prolog)
+                throws Exception {
+            if (dtd instanceof File) {
+                systemId = ((File) dtd).getAbsoluteFile().toURI().toString();
+            } else {
+                systemId = ((URL) dtd).toString();
+            }
+            key = SchemaCache.createKey(Collections.singletonList(dtd));
+            this.builder = builder;
+            this.prolog = prolog;
+        }
+
+        // Whether the grammar is the DTD alone
+        private boolean poolable() {
+            return prolog == NO_DOCTYPE || prolog == EXTERNAL_SUBSET;
+        }
+
+        public InputSource getExternalSubset(String name, String baseURI) {
+            // Called both without a document type declaration and for one
+            // that has only an internal subset
+            if (prolog == NO_DOCTYPE) {
+                builder.setKeepDefaults(false);
+            }
+            return new InputSource(systemId);
+        }
+
+        public InputSource resolveEntity(String name, String publicId,
+                String baseURI, String systemId) {
+            if ("[dtd]".equals(name)) {
+                return new InputSource(this.systemId);
+            }
+            return null;
+        }
+
+        public InputSource resolveEntity(String publicId, String systemId)
+                throws SAXException, IOException {
+            return null;
+        }
+
+        public Grammar[] retrieveInitialGrammarSet(String grammarType) {
+            return new Grammar[0];
+        }
+
+        public Grammar retrieveGrammar(XMLGrammarDescription desc) {
+            if (!poolable()
+                    || !XMLGrammarDescription.XML_DTD.equals(desc
+                            .getGrammarType())) {
+                return null;
+            }
+            Grammar grammar = grammars.get(key);
+            if (grammar != null) {
+                hits.incrementAndGet();
+            }
+            return grammar;
+        }
+
+        public void cacheGrammars(String grammarType, Grammar[] grammarList) {
+            if (poolable() && XMLGrammarDescription.XML_DTD.equals(grammarType)
+                    && grammarList.length == 1) {
+                if (grammars.putIfAbsent(key, grammarList[0]) == null) {
+                    pooled.incrementAndGet();
+                }
+            }
+        }
+
+        public void lockPool() {
+        }
+
+        public void unlockPool() {
+        }
+
+        public void clear() {
+        }
+    }
+}
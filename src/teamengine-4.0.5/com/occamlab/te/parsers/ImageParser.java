@@ -49,6 +49,7 @@ import java.awt.Image;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.awt.image.ImageObserver;
+import java.awt.image.PixelInterleavedSampleModel;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
 import java.awt.Transparency; // 2011-08-24 PwD
@@ -194,13 +195,56 @@ public class ImageParser {
         return transparentNodata;
     }
 
+    /*
+     * Adds the bytes of a subimage to a checksum as they would be laid out in
+     * a compatible raster, reading them row by row from the parent image's
+     * buffer instead of copying them.
+     * 
+     * @return false if a compatible raster would be laid out differently
+     */
+    private static boolean updateChecksum(CRC32 checksum, Raster raster) {
+        if (raster.getSampleModel().getClass() != PixelInterleavedSampleModel.class
+                || !(raster.getDataBuffer() instanceof DataBufferByte)) {
+            return false;
+        }
+        PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel) raster
+                .getSampleModel();
+        DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+        int pixelStride = sm.getPixelStride();
+        int[] bandOffsets = sm.getBandOffsets();
+        if (buffer.getNumBanks() != 1 || bandOffsets.length != pixelStride) {
+            return false;
+        }
+        // Each pixel must be packed in its own bytes, with no gaps
+        boolean[] used = new boolean[pixelStride];
+        for (int offset : bandOffsets) {
+            if (offset < 0 || offset >= pixelStride || used[offset]) {
+                return false;
+            }
+            used[offset] = true;
+        }
+        byte[] data = buffer.getData();
+        int scanlineStride = sm.getScanlineStride();
+        int rowLength = raster.getWidth() * pixelStride;
+        int offset = buffer.getOffset()
+                + (raster.getMinY() - raster.getSampleModelTranslateY())
+                * scanlineStride
+                + (raster.getMinX() - raster.getSampleModelTranslateX())
+                * pixelStride;
+        for (int y = 0; y < raster.getHeight(); y++) {
+            checksum.update(data, offset, rowLength);
+            offset += scanlineStride;
+        }
+        return true;
+    }
+
     /*
      * Process buffered image obtained from Reader 2011-09-08 PwD added
      * formatName param to support getBase64Data()
      */
     private static void processBufferedImage(BufferedImage buffimage,
             String formatName, NodeList nodes) throws Exception {
-        HashMap<Object, Object> bandMap = new HashMap<Object, Object>();
+        HashMap<String, HashMap<Integer, Integer>> bandMap = new HashMap<String, HashMap<Integer, Integer>>();
 
         for (int i = 0; i < nodes.getLength(); i++) {
             Node node = nodes.item(i);
@@ -216,18 +260,22 @@ public class ImageParser {
                 } else if (node.getLocalName().equals("checksum")) {
                     CRC32 checksum = new CRC32();
                     Raster raster = buffimage.getRaster();
-                    DataBufferByte buffer;
+                    DataBufferByte buffer = null;
                     if (node.getParentNode().getLocalName().equals("subimage")) {
-                        WritableRaster outRaster = raster
-                                .createCompatibleWritableRaster();
-                        buffimage.copyData(outRaster);
-                        buffer = (DataBufferByte) outRaster.getDataBuffer();
+                        if (!updateChecksum(checksum, raster)) {
+                            WritableRaster outRaster = raster
+                                    .createCompatibleWritableRaster();
+                            buffimage.copyData(outRaster);
+                            buffer = (DataBufferByte) outRaster.getDataBuffer();
+                        }
                     } else {
                         buffer = (DataBufferByte) raster.getDataBuffer();
                     }
-                    int numbanks = buffer.getNumBanks();
-                    for (int j = 0; j < numbanks; j++) {
-                        checksum.update(buffer.getData(j));
+                    if (buffer != null) {
+                        int numbanks = buffer.getNumBanks();
+                        for (int j = 0; j < numbanks; j++) {
+                            checksum.update(buffer.getData(j));
+                        }
                     }
                     Document doc = node.getOwnerDocument();
                     node.appendChild(doc.createTextNode(Long.toString(checksum
@@ -238,11 +286,10 @@ public class ImageParser {
                     if (sample.equals("all")) {
                         bandMap.put(band, null);
                     } else {
-                        HashMap<Object, Object> sampleMap = (HashMap<Object, Object>) bandMap
-                                .get(band);
+                        HashMap<Integer, Integer> sampleMap = bandMap.get(band);
                         if (sampleMap == null) {
                             if (!bandMap.containsKey(band)) {
-                                sampleMap = new HashMap<Object, Object>();
+                                sampleMap = new HashMap<Integer, Integer>();
                                 bandMap.put(band, sampleMap);
                             }
                         }
@@ -280,46 +327,12 @@ public class ImageParser {
             }
 
             Raster raster = buffimage.getRaster();
-            java.util.HashMap sampleMap = (java.util.HashMap) bandMap
-                    .get(band_str);
-            boolean addall = (sampleMap == null);
+            HashMap<Integer, Integer> sampleMap = bandMap.get(band_str);
             if (sampleMap == null) {
-                sampleMap = new java.util.HashMap();
-                bandMap.put(band_str, sampleMap);
-            }
-
-            int minx = raster.getMinX();
-            int maxx = minx + raster.getWidth();
-            int miny = raster.getMinY();
-            int maxy = miny + raster.getHeight();
-            int bands[][] = new int[band_indexes.length][raster.getWidth()];
-
-            for (int y = miny; y < maxy; y++) {
-                for (int i = 0; i < band_indexes.length; i++) {
-                    raster.getSamples(minx, y, maxx, 1, band_indexes[i],
-                            bands[i]);
-                }
-                for (int x = minx; x < maxx; x++) {
-                    int sample = 0;
-                    for (int i = 0; i < band_indexes.length; i++) {
-                        sample |= bands[i][x] << ((band_indexes.length - i - 1) * 8);
-                    }
-
-                    Integer sampleObj = new Integer(sample);
-
-                    boolean add = addall;
-                    if (!addall) {
-                        add = sampleMap.containsKey(sampleObj);
-                    }
-                    if (add) {
-                        Integer count = (Integer) sampleMap.get(sampleObj);
-                        if (count == null) {
-                            count = new Integer(0);
-                        }
-                        count = new Integer(count.intValue() + 1);
-                        sampleMap.put(sampleObj, count);
-                    }
-                }
+                bandMap.put(band_str,
+                        SampleCounter.countAll(raster, band_indexes));
+            } else {
+                SampleCounter.count(raster, band_indexes, sampleMap);
             }
         }
 
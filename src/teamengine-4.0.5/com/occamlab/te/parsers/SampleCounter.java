@@ -0,0 +1,382 @@
+package com.occamlab.te.parsers;
+
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the samples of a raster for ImageParser. A sample is the value of one
+ * or more bands of a pixel packed into an int, 8 bits per band with the first
+ * band highest.
+ *
+ * <p>
+ * Counts are kept in int arrays: indexed by sample when samples have at most
+ * 16 bits, and otherwise in an open addressing table. Rasters of at least
+ * te.imageParallelPixels pixels (default 1048576) are split into strips of
+ * rows that are counted by up to te.imageThreads threads (default one per
+ * processor) and then merged.
+ * </p>
+ *
+ * <p>
+ * The counts of all samples are returned in a HashMap filled in the order the
+ * samples first occur in the raster, row by row, so the map iterates in the
+ * same order as one filled while reading the pixels.
+ * </p>
+ */
+public class SampleCounter {
+
+    static final int PARALLEL_PIXELS = Integer.getInteger(
+            "te.imageParallelPixels", 1 << 20);
+    static final int THREADS = Integer.getInteger("te.imageThreads", Runtime
+            .getRuntime().availableProcessors());
+    // Samples with at most this many bits are counted in a direct array
+    private static final int DIRECT_BITS = 16;
+
+    private SampleCounter() {
+    }
+
+    /**
+     * Counts every sample of a raster.
+     *
+     * @param raster
+     *            The raster.
+     * @param bands
+     *            The bands that make up a sample.
+     * @return The count of each sample, in order of first occurrence.
+     */
+    public static HashMap<Integer, Integer> countAll(Raster raster, int[] bands)
+            throws Exception {
+        Tally tally = tally(raster, bands, null);
+        HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        for (int i = 0; i < tally.orderLength; i++) {
+            int sample = tally.order[i];
+            counts.put(sample, tally.get(sample));
+        }
+        return counts;
+    }
+
+    /**
+     * Counts the samples of a raster that are keys of a map.
+     *
+     * @param raster
+     *            The raster.
+     * @param bands
+     *            The bands that make up a sample.
+     * @param counts
+     *            The samples to count; their values are replaced by the
+     *            counts.
+     */
+    public static void count(Raster raster, int[] bands,
+            Map<Integer, Integer> counts) throws Exception {
+        List<Integer> samples = new ArrayList<Integer>(counts.keySet());
+        int[] wanted = new int[samples.size()];
+        for (int i = 0; i < wanted.length; i++) {
+            wanted[i] = samples.get(i);
+        }
+        Arrays.sort(wanted);
+        Tally tally = tally(raster, bands, wanted);
+        for (Integer sample : samples) {
+            counts.put(sample, tally.get(sample));
+        }
+    }
+
+    private static Tally tally(final Raster raster, final int[] bands,
+            final int[] wanted) throws Exception {
+        final int bits = sampleBits(raster, bands);
+        int height = raster.getHeight();
+        long pixels = (long) raster.getWidth() * height;
+        int strips = Math.min(THREADS, height);
+        if (strips < 2 || pixels < PARALLEL_PIXELS) {
+            Tally tally = new Tally(bits, wanted);
+            countRows(raster, bands, tally, raster.getMinY(),
+                    raster.getMinY() + height);
+            return tally;
+        }
+        List<Future<Tally>> futures = new ArrayList<Future<Tally>>();
+        try {
+            for (int i = 1; i < strips; i++) {
+                final int y0 = raster.getMinY()
+                        + (int) ((long) height * i / strips);
+                final int y1 = raster.getMinY()
+                        + (int) ((long) height * (i + 1) / strips);
+                futures.add(Workers.POOL.submit(new Callable<Tally>() {
+                    public Tally call() {
+                        Tally strip = new Tally(bits, wanted);
+                        countRows(raster, bands, strip, y0, y1);
+                        return strip;
+                    }
+                }));
+            }
+            // The first strip is counted by the calling thread
+            Tally tally = new Tally(bits, wanted);
+            countRows(raster, bands, tally, raster.getMinY(), raster.getMinY()
+                    + height / strips);
+            for (Future<Tally> future : futures) {
+                tally.addAll(future.get());
+            }
+            return tally;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        } finally {
+            for (Future<Tally> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    // The number of bits in a sample, or 32 if samples may be negative
+    private static int sampleBits(Raster raster, int[] bands) {
+        SampleModel sm = raster.getSampleModel();
+        int dataType = sm.getDataType();
+        if (dataType != DataBuffer.TYPE_BYTE
+                && dataType != DataBuffer.TYPE_USHORT) {
+            return 32;
+        }
+        int bits = 0;
+        for (int i = 0; i < bands.length; i++) {
+            if (bands[i] < 0 || bands[i] >= sm.getNumBands()) {
+                return 32;
+            }
+            int shift = (bands.length - i - 1) * 8;
+            bits = Math.max(bits, shift + sm.getSampleSize(bands[i]));
+        }
+        return bits;
+    }
+
+    private static void countRows(Raster raster, int[] bands, Tally tally,
+            int y0, int y1) {
+        int width = raster.getWidth();
+        int minx = raster.getMinX();
+        int[][] samples = new int[bands.length][width];
+        BandReader[] readers = new BandReader[bands.length];
+        int[] shifts = new int[bands.length];
+        for (int i = 0; i < bands.length; i++) {
+            readers[i] = BandReader.forBand(raster, bands[i]);
+            shifts[i] = (bands.length - i - 1) * 8;
+        }
+        for (int y = y0; y < y1; y++) {
+            for (int i = 0; i < bands.length; i++) {
+                if (readers[i] != null) {
+                    readers[i].read(minx, y, width, samples[i]);
+                } else {
+                    raster.getSamples(minx, y, width, 1, bands[i], samples[i]);
+                }
+            }
+            for (int x = 0; x < width; x++) {
+                int sample = 0;
+                for (int i = 0; i < bands.length; i++) {
+                    sample |= samples[i][x] << shifts[i];
+                }
+                tally.add(sample);
+            }
+        }
+    }
+
+    /**
+     * Reads a band of 8 bit samples straight from the bytes of a component
+     * raster.
+     */
+    private static class BandReader {
+        private final byte[] data;
+        private final int base;
+        private final int pixelStride;
+        private final int scanlineStride;
+        private final int translateX;
+        private final int translateY;
+
+        private BandReader(Raster raster, ComponentSampleModel sm,
+                DataBufferByte buffer, int band) {
+            int bank = sm.getBankIndices()[band];
+            this.data = buffer.getData(bank);
+            this.base = buffer.getOffsets()[bank] + sm.getBandOffsets()[band];
+            this.pixelStride = sm.getPixelStride();
+            this.scanlineStride = sm.getScanlineStride();
+            this.translateX = raster.getSampleModelTranslateX();
+            this.translateY = raster.getSampleModelTranslateY();
+        }
+
+        // A reader for the band, or null if Raster.getSamples must be used
+        static BandReader forBand(Raster raster, int band) {
+            SampleModel sm = raster.getSampleModel();
+            if (!(sm instanceof ComponentSampleModel)
+                    || !(raster.getDataBuffer() instanceof DataBufferByte)
+                    || band < 0 || band >= sm.getNumBands()) {
+                return null;
+            }
+            return new BandReader(raster, (ComponentSampleModel) sm,
+                    (DataBufferByte) raster.getDataBuffer(), band);
+        }
+
+        void read(int x, int y, int width, int[] samples) {
+            int offset = base + (y - translateY) * scanlineStride
+                    + (x - translateX) * pixelStride;
+            for (int i = 0; i < width; i++) {
+                samples[i] = data[offset] & 0xff;
+                offset += pixelStride;
+            }
+        }
+    }
+
+    /**
+     * The counts of one strip of rows. Only samples in the sorted wanted
+     * array are counted if there is one, and the samples counted are
+     * recorded in order of first occurrence.
+     */
+    private static class Tally {
+        private final int[] wanted;
+        // Counts indexed by sample, if samples have few enough bits
+        private final int[] direct;
+        // Open addressing table; a count of zero marks a free slot
+        private int[] keys;
+        private int[] counts;
+        private int size = 0;
+        int[] order = new int[64];
+        int orderLength = 0;
+
+        Tally(int bits, int[] wanted) {
+            this.wanted = wanted;
+            if (bits <= DIRECT_BITS) {
+                direct = new int[1 << bits];
+            } else {
+                direct = null;
+                if (wanted != null) {
+                    counts = new int[wanted.length];
+                } else {
+                    keys = new int[256];
+                    counts = new int[256];
+                }
+            }
+        }
+
+        void add(int sample) {
+            if (direct != null) {
+                if (direct[sample]++ == 0) {
+                    appendOrder(sample);
+                }
+            } else if (wanted != null) {
+                int i = Arrays.binarySearch(wanted, sample);
+                if (i >= 0) {
+                    counts[i]++;
+                }
+            } else {
+                add(sample, 1);
+            }
+        }
+
+        int get(int sample) {
+            if (direct != null) {
+                return (sample >= 0 && sample < direct.length) ? direct[sample]
+                        : 0;
+            } else if (wanted != null) {
+                int i = Arrays.binarySearch(wanted, sample);
+                return (i >= 0) ? counts[i] : 0;
+            } else {
+                return counts[slot(sample)];
+            }
+        }
+
+        void addAll(Tally other) {
+            if (direct != null) {
+                for (int i = 0; i < other.orderLength; i++) {
+                    int sample = other.order[i];
+                    if (direct[sample] == 0) {
+                        appendOrder(sample);
+                    }
+                    direct[sample] += other.direct[sample];
+                }
+            } else if (wanted != null) {
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] += other.counts[i];
+                }
+            } else {
+                for (int i = 0; i < other.orderLength; i++) {
+                    int sample = other.order[i];
+                    add(sample, other.get(sample));
+                }
+            }
+        }
+
+        private void add(int sample, int count) {
+            int i = slot(sample);
+            if (counts[i] == 0) {
+                keys[i] = sample;
+                appendOrder(sample);
+                size++;
+            }
+            counts[i] += count;
+            if (size * 2 > keys.length) {
+                grow();
+            }
+        }
+
+        // The slot holding a sample, or the free slot where it belongs
+        private int slot(int sample) {
+            int mask = keys.length - 1;
+            int hash = sample * 0x9E3779B9;
+            int i = (hash ^ (hash >>> 16)) & mask;
+            while (counts[i] != 0 && keys[i] != sample) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            int[] oldCounts = counts;
+            keys = new int[oldKeys.length * 2];
+            counts = new int[oldCounts.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldCounts[i] != 0) {
+                    int j = slot(oldKeys[i]);
+                    keys[j] = oldKeys[i];
+                    counts[j] = oldCounts[i];
+                }
+            }
+        }
+
+        private void appendOrder(int sample) {
+            if (orderLength == order.length) {
+                order = Arrays.copyOf(order, orderLength * 2);
+            }
+            order[orderLength++] = sample;
+        }
+    }
+
+    /**
+     * The threads that count strips.
+     */
+    private static class Workers {
+        static final ExecutorService POOL = Executors.newFixedThreadPool(
+                Math.max(1, THREADS), new ThreadFactory() {
+                    private final AtomicLong count = new AtomicLong();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "te-image-"
+                                + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+}
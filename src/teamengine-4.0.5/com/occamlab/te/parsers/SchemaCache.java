@@ -0,0 +1,466 @@
+package com.occamlab.te.parsers;
+
+import java.io.CharArrayReader;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.apache.xerces.impl.XMLEntityManager;
+import org.apache.xerces.impl.xs.XMLSchemaLoader;
+import org.apache.xerces.jaxp.validation.XMLSchemaFactory;
+import org.apache.xerces.util.XMLGrammarPoolImpl;
+import org.apache.xerces.xni.XNIException;
+import org.apache.xerces.xni.grammars.Grammar;
+import org.apache.xerces.xni.grammars.XMLGrammarDescription;
+import org.apache.xerces.xni.grammars.XMLGrammarPool;
+import org.apache.xerces.xni.grammars.XMLSchemaDescription;
+import org.apache.xerces.xni.parser.XMLErrorHandler;
+import org.apache.xerces.xni.parser.XMLInputSource;
+import org.apache.xerces.xni.parser.XMLParseException;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import com.occamlab.te.util.Metrics;
+
+/**
+ * A bounded, thread-safe cache of compiled W3C XML Schemas. A schema is
+ * identified by its ordered list of sources: the normalized location of each
+ * schema file or URL, with the size and modification time of local files, or
+ * a digest of an embedded schema. Entries are evicted in least-recently-used
+ * order once the maximum size is exceeded, and concurrent requests for the
+ * same sources share a single compilation.
+ *
+ * <p>
+ * Compilations also share a pool of schema grammars, so that a schema
+ * imported by many others (GML, xlink, OWS) is compiled once per JVM. A
+ * pooled grammar is identified by its target namespace and the location it
+ * was loaded from, so different schemas for the same namespace do not clash.
+ * It is compiled on its own the first time it is imported, and pooled only if
+ * that succeeds without errors or warnings, i.e. if it does not depend on the
+ * schemas that happen to import it; otherwise it is compiled as part of each
+ * schema as before. Each compiled schema contains only the grammars its own
+ * sources load, as if it had been compiled with
+ * {@link SchemaFactory#newSchema(javax.xml.transform.Source[])}.
+ * </p>
+ *
+ * <p>
+ * Each test suite loads its own copy of the validating parser and so has its
+ * own cache; the counters reported as metrics are shared by all of them.
+ * </p>
+ */
+public class SchemaCache {
+
+    private static final Logger LOGR = Logger.getLogger(SchemaCache.class
+            .getName());
+    private static final String SCHEMA_FULL_CHECKING = "http://apache.org/xml/features/validation/schema-full-checking";
+    private final XMLSchemaFactory factory;
+    private final int maxSize;
+    // Compiled schemas, ordered by access order (guarded by itself)
+    private final LinkedHashMap<String, Schema> schemas = new LinkedHashMap<String, Schema>(
+            64, 0.75f, true);
+    // Compilations in progress
+    private final ConcurrentMap<String, FutureTask<Schema>> pending = new ConcurrentHashMap<String, FutureTask<Schema>>();
+    // Grammars by namespace and location
+    private final ConcurrentMap<String, Grammar> grammars = new ConcurrentHashMap<String, Grammar>();
+    // Grammars that cannot be compiled on their own
+    private final Set<String> unpoolable = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // Grammars being compiled on their own by the current thread
+    private final ThreadLocal<Set<String>> loading = new ThreadLocal<Set<String>>() {
+        protected Set<String> initialValue() {
+            return new HashSet<String>();
+        }
+    };
+    // Metrics of all caches
+    private static final AtomicLong entries = new AtomicLong();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+    private static final AtomicLong pooledGrammars = new AtomicLong();
+    private static final AtomicLong grammarHits = new AtomicLong();
+
+    static {
+        registerGauge("schema_cache_size", entries);
+        registerGauge("schema_cache_hits_total", hits);
+        registerGauge("schema_cache_misses_total", misses);
+        registerGauge("schema_cache_evictions_total", evictions);
+        registerGauge("schema_grammar_pool_size", pooledGrammars);
+        registerGauge("schema_grammar_pool_hits_total", grammarHits);
+    }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param factory
+     *            The Xerces schema factory whose settings the compiled schemas
+     *            get.
+     * @param maxSize
+     *            The maximum number of schemas to retain; 0 disables caching,
+     *            although the grammar pool is still used.
+     */
+    public SchemaCache(XMLSchemaFactory factory, int maxSize) {
+        this.factory = factory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Registers a gauge that reports a counter.
+     */
+    static void registerGauge(String name, final AtomicLong counter) {
+        Metrics.register(name, new Metrics.Gauge() {
+            public long getValue() {
+                return counter.get();
+            }
+        });
+    }
+
+    /**
+     * Returns the schema compiled from a list of sources, compiling it if
+     * necessary.
+     *
+     * @param sources
+     *            The schema sources, each a File, a URL or the characters of
+     *            an embedded schema (char[]).
+     * @return The compiled schema.
+     * @throws SAXException
+     *             If a schema is invalid or cannot be read.
+     */
+    public Schema get(final List<Object> sources) throws Exception {
+        if (maxSize <= 0) {
+            misses.incrementAndGet();
+            return compile(sources);
+        }
+        String key = createKey(sources);
+        Schema schema;
+        synchronized (schemas) {
+            schema = schemas.get(key);
+        }
+        if (schema != null) {
+            hits.incrementAndGet();
+            return schema;
+        }
+        FutureTask<Schema> task = pending.get(key);
+        if (task == null) {
+            FutureTask<Schema> newTask = new FutureTask<Schema>(
+                    new Callable<Schema>() {
+                        public Schema call() throws Exception {
+                            return compile(sources);
+                        }
+                    });
+            task = pending.putIfAbsent(key, newTask);
+            if (task == null) {
+                task = newTask;
+                try {
+                    synchronized (schemas) {
+                        schema = schemas.get(key);
+                    }
+                    if (schema != null) {
+                        hits.incrementAndGet();
+                        return schema;
+                    }
+                    misses.incrementAndGet();
+                    task.run();
+                    schema = waitFor(task);
+                    put(key, schema);
+                    return schema;
+                } finally {
+                    pending.remove(key, task);
+                }
+            }
+        }
+        hits.incrementAndGet();
+        return waitFor(task);
+    }
+
+    /**
+     * Discards the compiled schemas and the grammar pool, e.g. after schema
+     * files have been changed in place.
+     */
+    public void clear() {
+        synchronized (schemas) {
+            entries.addAndGet(-schemas.size());
+            schemas.clear();
+        }
+        for (String key : grammars.keySet()) {
+            if (grammars.remove(key) != null) {
+                pooledGrammars.decrementAndGet();
+            }
+        }
+        unpoolable.clear();
+    }
+
+    public int size() {
+        synchronized (schemas) {
+            return schemas.size();
+        }
+    }
+
+    Schema compile(List<Object> sources) throws Exception {
+        XMLInputSource[] inputs = new XMLInputSource[sources.size()];
+        for (int i = 0; i < inputs.length; i++) {
+            Object o = sources.get(i);
+            if (o instanceof File) {
+                inputs[i] = new XMLInputSource(null, ((File) o).toURI()
+                        .toASCIIString(), null);
+            } else if (o instanceof URL) {
+                inputs[i] = new XMLInputSource(null, o.toString(), null);
+            } else if (o instanceof char[]) {
+                inputs[i] = new XMLInputSource(null, null, null,
+                        new CharArrayReader((char[]) o), null);
+            } else {
+                throw new Exception("Illegal object in schemas list");
+            }
+        }
+        LoadPool pool = new LoadPool();
+        long start = System.nanoTime();
+        try {
+            load(inputs, pool);
+        } finally {
+            Metrics.timer("schema_compile").recordSince(start);
+        }
+        XMLGrammarPoolImpl schemaGrammars = new XMLGrammarPoolImpl();
+        for (Grammar grammar : pool.loaded.values()) {
+            schemaGrammars.putGrammar(grammar);
+        }
+        schemaGrammars.lockPool();
+        return factory.newSchema(schemaGrammars);
+    }
+
+    void load(XMLInputSource[] inputs, LoadPool pool) throws SAXException,
+            IOException {
+        XMLSchemaLoader loader = new XMLSchemaLoader();
+        loader.setFeature(SCHEMA_FULL_CHECKING, false);
+        loader.setProperty(XMLSchemaLoader.XMLGRAMMAR_POOL, pool);
+        loader.setErrorHandler(pool);
+        try {
+            loader.loadGrammar(inputs);
+        } catch (XMLParseException e) {
+            throw new SAXParseException(e.getMessage(), e.getPublicId(),
+                    e.getExpandedSystemId(), e.getLineNumber(),
+                    e.getColumnNumber(), e.getException());
+        } catch (XNIException e) {
+            Exception cause = e.getException();
+            throw (cause instanceof SAXException) ? (SAXException) cause
+                    : new SAXException(e.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Returns the pooled grammar for a schema import, compiling the imported
+     * schema on its own first if necessary.
+     *
+     * @return The grammar, or null if the import must be loaded in the
+     *         context of the importing schema.
+     */
+    Grammar getGrammar(XMLSchemaDescription desc) {
+        String location = getLocation(desc);
+        if (location == null) {
+            return null;
+        }
+        String key = desc.getTargetNamespace() + " " + location;
+        Grammar grammar = grammars.get(key);
+        if (grammar != null) {
+            grammarHits.incrementAndGet();
+            return grammar;
+        }
+        Set<String> inProgress = loading.get();
+        if (unpoolable.contains(key) || !inProgress.add(key)) {
+            return null;
+        }
+        try {
+            LoadPool pool = new LoadPool();
+            load(new XMLInputSource[] { new XMLInputSource(null, location,
+                    null) }, pool);
+            grammar = pool.loaded.get(desc.getTargetNamespace());
+            if (grammar == null || pool.warnings > 0) {
+                unpoolable.add(key);
+                return null;
+            }
+            Grammar existing = grammars.putIfAbsent(key, grammar);
+            if (existing != null) {
+                return existing;
+            }
+            pooledGrammars.incrementAndGet();
+            return grammar;
+        } catch (Exception e) {
+            if (LOGR.isLoggable(Level.FINER)) {
+                LOGR.finer("Not pooling " + key + ": " + e.getMessage());
+            }
+            unpoolable.add(key);
+            return null;
+        } finally {
+            inProgress.remove(key);
+        }
+    }
+
+    static Schema waitFor(FutureTask<Schema> task) throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    void put(String key, Schema schema) {
+        synchronized (schemas) {
+            if (schemas.put(key, schema) == null) {
+                entries.incrementAndGet();
+            }
+            Iterator<String> it = schemas.keySet().iterator();
+            while (schemas.size() > maxSize && it.hasNext()) {
+                String eldest = it.next();
+                it.remove();
+                entries.decrementAndGet();
+                evictions.incrementAndGet();
+                if (LOGR.isLoggable(Level.FINER)) {
+                    LOGR.finer("Evicted schema " + eldest);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the key of a list of schema sources. Local files include their
+     * size and modification time, so an edited root schema is recompiled;
+     * embedded schemas are represented by a digest of their content.
+     */
+    static String createKey(List<Object> sources) throws Exception {
+        StringBuilder key = new StringBuilder();
+        for (Object o : sources) {
+            if (key.length() > 0) {
+                key.append('\n');
+            }
+            File file = null;
+            if (o instanceof File) {
+                file = ((File) o).getAbsoluteFile();
+                key.append(file.toURI().normalize());
+            } else if (o instanceof URL) {
+                URI uri = ((URL) o).toURI().normalize();
+                key.append(uri);
+                if ("file".equals(uri.getScheme())) {
+                    file = new File(uri);
+                }
+            } else if (o instanceof char[]) {
+                MessageDigest md = MessageDigest.getInstance("SHA-1");
+                byte[] digest = md.digest(new String((char[]) o)
+                        .getBytes("UTF-8"));
+                key.append("embedded:");
+                for (byte b : digest) {
+                    key.append(Character.forDigit((b >> 4) & 0xF, 16));
+                    key.append(Character.forDigit(b & 0xF, 16));
+                }
+            } else {
+                throw new Exception("Illegal object in schemas list");
+            }
+            if (file != null) {
+                key.append('#').append(file.length()).append('-')
+                        .append(file.lastModified());
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns the absolute location of a schema description, or null if it
+     * has none.
+     */
+    static String getLocation(XMLGrammarDescription desc) {
+        if (desc.getLiteralSystemId() == null) {
+            return null;
+        }
+        try {
+            return XMLEntityManager.expandSystemId(desc.getLiteralSystemId(),
+                    desc.getBaseSystemId(), false);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * The grammar pool and error handler of a single compilation. Like the
+     * pool of a schema factory, it holds the grammars loaded so far by
+     * namespace; grammars it does not hold are looked up in the shared pool.
+     * Errors fail the compilation, as they do for a schema factory without an
+     * error handler; warnings are counted.
+     */
+    class LoadPool implements XMLGrammarPool, XMLErrorHandler {
+        final Map<String, Grammar> loaded = new HashMap<String, Grammar>();
+        int warnings = 0;
+
+        public Grammar[] retrieveInitialGrammarSet(String grammarType) {
+            return new Grammar[0];
+        }
+
+        public void cacheGrammars(String grammarType, Grammar[] grammarList) {
+            if (!XMLGrammarDescription.XML_SCHEMA.equals(grammarType)) {
+                return;
+            }
+            for (Grammar grammar : grammarList) {
+                loaded.put(((XMLSchemaDescription) grammar
+                        .getGrammarDescription()).getTargetNamespace(),
+                        grammar);
+            }
+        }
+
+        public Grammar retrieveGrammar(XMLGrammarDescription desc) {
+            if (!(desc instanceof XMLSchemaDescription)) {
+                return null;
+            }
+            XMLSchemaDescription schemaDesc = (XMLSchemaDescription) desc;
+            Grammar grammar = loaded.get(schemaDesc.getTargetNamespace());
+            if (grammar == null) {
+                grammar = getGrammar(schemaDesc);
+            }
+            return grammar;
+        }
+
+        public void lockPool() {
+        }
+
+        public void unlockPool() {
+        }
+
+        public void clear() {
+        }
+
+        public void warning(String domain, String key, XMLParseException e) {
+            warnings++;
+        }
+
+        public void error(String domain, String key, XMLParseException e) {
+            throw e;
+        }
+
+        public void fatalError(String domain, String key, XMLParseException e) {
+            throw e;
+        }
+    }
+}
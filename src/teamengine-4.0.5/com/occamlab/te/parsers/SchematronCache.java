@@ -0,0 +1,324 @@
+package com.occamlab.te.parsers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import com.occamlab.te.util.Metrics;
+import com.thaiopensource.util.PropertyMapBuilder;
+import com.thaiopensource.validate.IncorrectSchemaException;
+import com.thaiopensource.validate.Schema;
+import com.thaiopensource.validate.SchemaReader;
+import com.thaiopensource.validate.SchemaReaderLoader;
+import com.thaiopensource.validate.ValidateProperty;
+import com.thaiopensource.validate.prop.schematron.SchematronProperty;
+
+/**
+ * A bounded, thread-safe cache of compiled Schematron schemas. A schema is
+ * identified by its location, the phase and a digest of its content, so a
+ * schema file that is changed in place is compiled again. Entries are
+ * evicted in least-recently-used order once the maximum size is exceeded,
+ * and concurrent requests for the same schema share a single compilation.
+ * Compiled schemas are safe for concurrent use; each validation creates its
+ * own validator. A schema is compiled with an error handler of its own, and
+ * the errors in a schema that cannot be compiled are reported to each caller
+ * that asked for it. The counters reported as metrics are shared by the caches
+ * of all test suites.
+ */
+public class SchematronCache {
+
+    private static final Logger LOGR = Logger.getLogger(SchematronCache.class
+            .getName());
+    private final int maxSize;
+    // Compiled schemas, ordered by access order (guarded by itself)
+    private final LinkedHashMap<String, Schema> schemas = new LinkedHashMap<String, Schema>(
+            16, 0.75f, true);
+    // Compilations in progress
+    private final ConcurrentMap<String, FutureTask<Compiled>> pending = new ConcurrentHashMap<String, FutureTask<Compiled>>();
+    // Metrics of all caches
+    private static final AtomicLong entries = new AtomicLong();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    static {
+        SchemaCache.registerGauge("schematron_cache_size", entries);
+        SchemaCache.registerGauge("schematron_cache_hits_total", hits);
+        SchemaCache.registerGauge("schematron_cache_misses_total", misses);
+        SchemaCache.registerGauge("schematron_cache_evictions_total",
+                evictions);
+    }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxSize
+     *            The maximum number of schemas to retain; 0 disables caching.
+     */
+    public SchematronCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns a compiled Schematron schema, compiling it if necessary.
+     *
+     * @param url
+     *            The location of the schema.
+     * @param phase
+     *            The phase to execute, or null or empty for the default phase.
+     * @param eh
+     *            Receives the errors in the schema if it is not valid.
+     * @return The compiled schema, or null if it is not a valid schema or the
+     *         phase is not defined.
+     * @throws Exception
+     *             If the schema cannot be read.
+     */
+    public Schema get(final URL url, final String phase, final ErrorHandler eh)
+            throws Exception {
+        final byte[] content = read(url);
+        if (maxSize <= 0) {
+            misses.incrementAndGet();
+            return compile(url, content, phase).getSchema(eh);
+        }
+        String key = createKey(url, phase, content);
+        Schema schema;
+        synchronized (schemas) {
+            schema = schemas.get(key);
+        }
+        if (schema != null) {
+            hits.incrementAndGet();
+            return schema;
+        }
+        FutureTask<Compiled> task = pending.get(key);
+        if (task == null) {
+            FutureTask<Compiled> newTask = new FutureTask<Compiled>(
+                    new Callable<Compiled>() {
+                        public Compiled call() throws Exception {
+                            return compile(url, content, phase);
+                        }
+                    });
+            task = pending.putIfAbsent(key, newTask);
+            if (task == null) {
+                task = newTask;
+                try {
+                    misses.incrementAndGet();
+                    task.run();
+                    Compiled compiled = waitFor(task);
+                    if (compiled.schema != null) {
+                        put(key, compiled.schema);
+                    }
+                    return compiled.getSchema(eh);
+                } finally {
+                    pending.remove(key, task);
+                }
+            }
+        }
+        hits.incrementAndGet();
+        return waitFor(task).getSchema(eh);
+    }
+
+    /**
+     * Discards the compiled schemas.
+     */
+    public void clear() {
+        synchronized (schemas) {
+            entries.addAndGet(-schemas.size());
+            schemas.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (schemas) {
+            return schemas.size();
+        }
+    }
+
+    /**
+     * Compiles a schema. Errors in the schema are collected rather than
+     * reported, since the compiled schema keeps its properties for as long as
+     * it is cached.
+     */
+    Compiled compile(URL url, byte[] content, String phase)
+            throws IOException, SAXException {
+        Collector errors = new Collector();
+        PropertyMapBuilder builder = new PropertyMapBuilder();
+        SchematronProperty.DIAGNOSE.add(builder);
+        if (null != phase && !phase.isEmpty()) {
+            builder.put(SchematronProperty.PHASE, phase);
+        }
+        builder.put(ValidateProperty.ERROR_HANDLER, errors);
+        SchemaReader reader = new SchemaReaderLoader()
+                .createSchemaReader(SchematronValidatingParser.SCHEMATRON_NS_URI);
+        InputSource in = new InputSource(new ByteArrayInputStream(content));
+        in.setSystemId(url.toString());
+        long start = System.nanoTime();
+        try {
+            return new Compiled(reader.createSchema(in,
+                    builder.toPropertyMap()), null);
+        } catch (IncorrectSchemaException e) {
+            return new Compiled(null, errors);
+        } finally {
+            Metrics.timer("schematron_compile").recordSince(start);
+            if (LOGR.isLoggable(Level.FINE)) {
+                LOGR.fine("Compiled Schematron schema " + url + " (phase "
+                        + phase + ")");
+            }
+        }
+    }
+
+    void put(String key, Schema schema) {
+        synchronized (schemas) {
+            if (schemas.put(key, schema) == null) {
+                entries.incrementAndGet();
+            }
+            Iterator<String> it = schemas.keySet().iterator();
+            while (schemas.size() > maxSize && it.hasNext()) {
+                String eldest = it.next();
+                it.remove();
+                entries.decrementAndGet();
+                evictions.incrementAndGet();
+                if (LOGR.isLoggable(Level.FINER)) {
+                    LOGR.finer("Evicted Schematron schema " + eldest);
+                }
+            }
+        }
+    }
+
+    static <T> T waitFor(FutureTask<T> task) throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    static byte[] read(URL url) throws IOException {
+        InputStream in = url.openStream();
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(8192);
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                baos.write(buf, 0, n);
+            }
+            return baos.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Creates the key of a schema: its location, the phase and a digest of
+     * its content.
+     */
+    static String createKey(URL url, String phase, byte[] content)
+            throws Exception {
+        StringBuilder key = new StringBuilder();
+        key.append(url).append('\n').append(phase == null ? "" : phase)
+                .append('\n');
+        byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+        for (byte b : digest) {
+            key.append(Character.forDigit((b >> 4) & 0xF, 16));
+            key.append(Character.forDigit(b & 0xF, 16));
+        }
+        return key.toString();
+    }
+
+    /**
+     * The outcome of a compilation: the schema, or the errors that made it
+     * invalid.
+     */
+    static final class Compiled {
+        final Schema schema;
+        private final Collector errors;
+
+        Compiled(Schema schema, Collector errors) {
+            this.schema = schema;
+            this.errors = errors;
+        }
+
+        /**
+         * Returns the schema, first reporting the errors in it to the given
+         * handler if it is not valid.
+         */
+        Schema getSchema(ErrorHandler eh) throws SAXException {
+            if (schema == null && errors != null) {
+                errors.replay(eh);
+            }
+            return schema;
+        }
+    }
+
+    /**
+     * Collects the warnings and errors reported while compiling a schema.
+     */
+    static final class Collector implements ErrorHandler {
+        private static final int WARNING = 0;
+        private static final int ERROR = 1;
+        private static final int FATAL_ERROR = 2;
+        private final List<Integer> levels = new ArrayList<Integer>();
+        private final List<SAXParseException> exceptions = new ArrayList<SAXParseException>();
+
+        public synchronized void warning(SAXParseException e) {
+            add(WARNING, e);
+        }
+
+        public synchronized void error(SAXParseException e) {
+            add(ERROR, e);
+        }
+
+        public synchronized void fatalError(SAXParseException e) {
+            add(FATAL_ERROR, e);
+        }
+
+        private void add(int level, SAXParseException e) {
+            levels.add(level);
+            exceptions.add(e);
+        }
+
+        /**
+         * Reports the collected warnings and errors, in order, to a handler.
+         */
+        synchronized void replay(ErrorHandler eh) throws SAXException {
+            for (int i = 0; i < exceptions.size(); i++) {
+                switch (levels.get(i)) {
+                case WARNING:
+                    eh.warning(exceptions.get(i));
+                    break;
+                case ERROR:
+                    eh.error(exceptions.get(i));
+                    break;
+                default:
+                    eh.fatalError(exceptions.get(i));
+                }
+            }
+        }
+    }
+}
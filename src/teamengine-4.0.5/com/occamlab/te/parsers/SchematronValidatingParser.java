@@ -1,11 +1,8 @@
 package com.occamlab.te.parsers;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.io.PrintWriter;
 import java.net.URL;
 import java.net.URLConnection;
@@ -15,26 +12,27 @@ import java.util.logging.Logger;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.Transformer;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.Source;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXSource;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
+import org.xml.sax.DTDHandler;
 import org.xml.sax.ErrorHandler;
 import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
 
 import com.occamlab.te.ErrorHandlerImpl;
-import com.thaiopensource.util.PropertyMap;
 import com.thaiopensource.util.PropertyMapBuilder;
-import com.thaiopensource.validate.SchemaReader;
-import com.thaiopensource.validate.SchemaReaderLoader;
+import com.thaiopensource.validate.Schema;
 import com.thaiopensource.validate.ValidateProperty;
-import com.thaiopensource.validate.ValidationDriver;
-import com.thaiopensource.validate.prop.schematron.SchematronProperty;
+import com.thaiopensource.validate.Validator;
+import com.thaiopensource.xml.sax.CountingErrorHandler;
 
 /**
  * Validates the given XML resource against the rules specified in a Schematron
@@ -43,12 +41,22 @@ import com.thaiopensource.validate.prop.schematron.SchematronProperty;
  * 
  * Diagnostic messages will be included if any are defined.
  * 
+ * Compiled schemas are cached across instances (see {@link SchematronCache});
+ * the size of the cache is set by the te.schematronCacheSize system property.
  */
 public class SchematronValidatingParser {
 
     private static final Logger LOGR = Logger
             .getLogger(SchematronValidatingParser.class.getName());
-    private PropertyMapBuilder configPropBuilder = null;
+    private static final SchematronCache SCHEMAS = new SchematronCache(
+            Integer.getInteger("te.schematronCacheSize", 32));
+    private static final TransformerFactory TF = TransformerFactory
+            .newInstance();
+    private static final SAXParserFactory SPF = SAXParserFactory
+            .newInstance();
+    static {
+        SPF.setNamespaceAware(true);
+    }
     private String schemaLocation = null;
     private File schemaFile = null;
     private String phase = null;
@@ -91,50 +99,6 @@ public class SchematronValidatingParser {
         return localType;
     }
 
-    /**
-     * Converts an org.w3c.dom.Document element to an java.io.InputStream.
-     * 
-     * @param edoc
-     *            The org.w3c.dom.Document to be converted
-     * @return The InputStream value of the passed doument
-     */
-    public InputStream DocumentToInputStream(org.w3c.dom.Document edoc)
-            throws IOException {
-
-        final org.w3c.dom.Document doc = edoc;
-        final PipedOutputStream pos = new PipedOutputStream();
-        PipedInputStream pis = new PipedInputStream();
-        pis.connect(pos);
-
-        (new Thread(new Runnable() {
-
-            public void run() {
-                // Use the Transformer.transform() method to save the Document
-                // to a StreamResult
-                try {
-                    TransformerFactory tFactory = TransformerFactory.newInstance();
-                    Transformer transformer = tFactory.newTransformer();
-                    transformer.setOutputProperty("encoding", "ISO-8859-1");
-                    transformer.setOutputProperty("indent", "yes");
-                    transformer.transform(new DOMSource(doc), new StreamResult(
-                            pos));
-                } catch (Exception _ex) {
-                    throw new RuntimeException(
-                            "Failed to tranform org.w3c.dom.Document to PipedOutputStream",
-                            _ex);
-                } finally {
-                    try {
-                        pos.close();
-                    } catch (IOException e) {
-
-                    }
-                }
-            }
-        }, "MyClassName.convert(org.w3c.dom.Document edoc)")).start();
-
-        return pis;
-    }
-
     /**
      * Checks the given schematron phase for the XML file and returns the
      * validation status.
@@ -204,57 +168,67 @@ public class SchematronValidatingParser {
      */
     public boolean executeSchematronDriver(InputSource inputDoc,
             File schemaFile, String phase) {
+        return executeSchematronDriver(new SAXSource(inputDoc), schemaFile,
+                phase);
+    }
+
+    /**
+     * Runs the schematron file against an XML source, reporting errors to the
+     * output logger.
+     */
+    boolean executeSchematronDriver(Source source, File schemaFile,
+            String phase) {
 
         boolean isValid = false;
-        ValidationDriver driver = createSchematronDriver(phase);
-        assert null != driver : "Unable to create Schematron ValidationDriver";
-        InputSource is = null;
-        try {
-            FileInputStream fis = new FileInputStream(schemaFile);
-            is = new InputSource(fis);
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (this.outputLogger == null) {
+            this.outputLogger = new PrintWriter(System.out);
         }
+        ErrorHandler eh = new ErrorHandlerImpl("Schematron", outputLogger);
         try {
-            if (driver.loadSchema(is)) {
-                isValid = driver.validate(inputDoc);
+            Schema schema = SCHEMAS.get(schemaFile.toURI().toURL(), phase, eh);
+            if (schema != null) {
+                isValid = validate(schema, source, eh);
             } else {
                 assert false : ("Failed to load Schematron schema: "
                         + schemaFile + "\nIs the schema valid? Is the phase defined?");
             }
-        } catch (SAXException e) {
-            assert false : e.toString();
-        } catch (IOException e) {
+        } catch (Exception e) {
             assert false : e.toString();
         }
         return isValid;
     }
 
     /**
-     * Sets up the schematron reader with all the necessary parameters. Calls
-     * initSchematronReader() to do further setup of the validation driver.
+     * Validates an XML source against a compiled Schematron schema. A DOM
+     * source is passed to the validator as SAX events, without being
+     * serialized; a SAX source is parsed.
      * 
-     * @param phase
-     *            The string phase name (contained in schematron file)
-     * @return The ValidationDriver to use in validating the XML document
+     * @return Whether no errors were reported.
      */
-    ValidationDriver createSchematronDriver(String phase) {
-        SchemaReaderLoader loader = new SchemaReaderLoader();
-        SchemaReader schReader = loader.createSchemaReader(SCHEMATRON_NS_URI);
-        this.configPropBuilder = new PropertyMapBuilder();
-        SchematronProperty.DIAGNOSE.add(this.configPropBuilder);
-
-        if (this.outputLogger == null) {
-            this.outputLogger = new PrintWriter(System.out);
-        }
-        if (null != phase && !phase.isEmpty()) {
-            this.configPropBuilder.put(SchematronProperty.PHASE, phase);
+    static boolean validate(Schema schema, Source source, ErrorHandler eh)
+            throws Exception {
+        CountingErrorHandler counter = new CountingErrorHandler(eh);
+        PropertyMapBuilder builder = new PropertyMapBuilder();
+        builder.put(ValidateProperty.ERROR_HANDLER, counter);
+        Validator validator = schema.createValidator(builder.toPropertyMap());
+        if (source instanceof SAXSource) {
+            SAXSource saxSource = (SAXSource) source;
+            XMLReader reader = saxSource.getXMLReader();
+            if (reader == null) {
+                reader = SPF.newSAXParser().getXMLReader();
+            }
+            reader.setContentHandler(validator.getContentHandler());
+            DTDHandler dh = validator.getDTDHandler();
+            if (dh != null) {
+                reader.setDTDHandler(dh);
+            }
+            reader.setErrorHandler(counter);
+            reader.parse(saxSource.getInputSource());
+        } else {
+            TF.newTransformer().transform(source,
+                    new SAXResult(validator.getContentHandler()));
         }
-        ErrorHandler eh = new ErrorHandlerImpl("Schematron", outputLogger);
-        this.configPropBuilder.put(ValidateProperty.ERROR_HANDLER, eh);
-        ValidationDriver validator = new ValidationDriver(
-                this.configPropBuilder.toPropertyMap(), schReader);
-        return validator;
+        return !counter.getHadErrorOrFatalError();
     }
 
     /**
@@ -343,15 +317,8 @@ public class SchematronValidatingParser {
         }
         boolean isValid = false;
         if (doc != null) {
-            InputSource xmlInputSource = null;
-            try {
-                InputStream inputStream = DocumentToInputStream(doc);
-                xmlInputSource = new InputSource(inputStream);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            isValid = executeSchematronDriver(xmlInputSource, this.schemaFile,
-                    this.phase);
+            isValid = executeSchematronDriver(new DOMSource(doc),
+                    this.schemaFile, this.phase);
         }
         if (!isValid) {
             return null;
@@ -377,34 +344,18 @@ public class SchematronValidatingParser {
 
         if (xmlEntity == null || xmlEntity.getDocumentElement() == null)
             throw new IllegalArgumentException("No XML entity supplied (null).");
-        InputSource xmlInputSource = null;
-        try {
-            InputStream inputStream = DocumentToInputStream(xmlEntity);
-            xmlInputSource = new InputSource(inputStream);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        PropertyMapBuilder builder = new PropertyMapBuilder();
-        SchematronProperty.DIAGNOSE.add(builder);
-        if (null != phase && !phase.isEmpty()) {
-            builder.put(SchematronProperty.PHASE, phase);
-        }
         XmlErrorHandler errHandler = new XmlErrorHandler();
-        builder.put(ValidateProperty.ERROR_HANDLER, errHandler);
-        ValidationDriver driver = createDriver(builder.toPropertyMap());
-        InputStream schStream = this.getClass().getResourceAsStream(schemaRef);
+        URL schemaURL = this.getClass().getResource(schemaRef);
         try {
-            InputSource input = new InputSource(schStream);
-            try {
-                boolean loaded = driver.loadSchema(input);
-                if (!loaded) {
-                    throw new Exception("Failed to load schema at " + schemaRef
-                            + "\nIs the schema valid? Is the phase defined?");
-                }
-            } finally {
-                schStream.close();
+            if (schemaURL == null) {
+                throw new IOException("Schema not found at " + schemaRef);
+            }
+            Schema schema = SCHEMAS.get(schemaURL, phase, errHandler);
+            if (schema == null) {
+                throw new Exception("Failed to load schema at " + schemaRef
+                        + "\nIs the schema valid? Is the phase defined?");
             }
-            driver.validate(xmlInputSource);
+            validate(schema, new DOMSource(xmlEntity), errHandler);
         } catch (Exception e) {
             throw new RuntimeException("Schematron validation failed.", e);
         }
@@ -417,23 +368,4 @@ public class SchematronValidatingParser {
         return errList;
     }
 
-    /**
-     * Creates and initializes a ValidationDriver to perform Schematron
-     * validation. A schema must be loaded before an instance can be validated.
-     * 
-     * @param configProps
-     *            A PropertyMap containing properties to configure schema
-     *            construction and validation behavior; it typically includes
-     *            {@code SchematronProperty} and {@code ValidationProperty}
-     *            items.
-     * @return A ValidationDriver that is ready to load a Schematron schema.
-     */
-    ValidationDriver createDriver(PropertyMap configProps) {
-        SchemaReaderLoader loader = new SchemaReaderLoader();
-        SchemaReader schReader = loader.createSchemaReader(SCHEMATRON_NS_URI);
-        ValidationDriver validator = new ValidationDriver(configProps,
-                schReader);
-        return validator;
-    }
-
 }
@@ -0,0 +1,202 @@
+package com.occamlab.te.parsers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+
+import org.w3c.dom.CDATASection;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.Attributes2;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * Builds a DOM tree from SAX events and passes every event on to another
+ * content handler, so that a document can be validated and kept in a single
+ * pass. The tree is the one a namespace-aware, non-validating DocumentBuilder
+ * creates, apart from the document type declaration. If only the document
+ * element is wanted, its content is not kept.
+ */
+public class TreeBuilder implements ContentHandler, LexicalHandler {
+
+    private final Document doc;
+    private final ContentHandler next;
+    private final boolean rootOnly;
+    private final List<String[]> mappings = new ArrayList<String[]>();
+    private Node current;
+    private int depth = 0;
+    private boolean inDTD = false;
+    private boolean keepDefaults = true;
+    private CDATASection cdata = null;
+
+    /**
+     * @param doc
+     *            The empty document to build.
+     * @param next
+     *            The handler that receives the events.
+     * @param rootOnly
+     *            Whether to keep only the document element, without content.
+     */
+    public TreeBuilder(Document doc, ContentHandler next,
+            boolean rootOnly) {
+        this.doc = doc;
+        this.next = next;
+        this.rootOnly = rootOnly;
+        this.current = doc;
+    }
+
+    public Document getDocument() {
+        return doc;
+    }
+
+    /**
+     * Sets whether attributes defaulted by a DTD are kept (the default).
+     */
+    public void setKeepDefaults(boolean keepDefaults) {
+        this.keepDefaults = keepDefaults;
+    }
+
+    // Whether nodes at the current depth are kept
+    private boolean keep() {
+        return !rootOnly || depth == 0;
+    }
+
+    public void setDocumentLocator(Locator locator) {
+        next.setDocumentLocator(locator);
+    }
+
+    public void startDocument() throws SAXException {
+        next.startDocument();
+    }
+
+    public void endDocument() throws SAXException {
+        next.endDocument();
+    }
+
+    public void startPrefixMapping(String prefix, String uri)
+            throws SAXException {
+        mappings.add(new String[] { prefix, uri });
+        next.startPrefixMapping(prefix, uri);
+    }
+
+    public void endPrefixMapping(String prefix) throws SAXException {
+        next.endPrefixMapping(prefix);
+    }
+
+    public void startElement(String uri, String localName, String qName,
+            Attributes atts) throws SAXException {
+        if (keep()) {
+            Element e = doc.createElementNS(uri.length() == 0 ? null : uri,
+                    qName);
+            for (String[] mapping : mappings) {
+                e.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                        mapping[0].length() == 0 ? "xmlns" : "xmlns:"
+                                + mapping[0], mapping[1]);
+            }
+            for (int i = 0; i < atts.getLength(); i++) {
+                if (!keepDefaults && atts instanceof Attributes2
+                        && !((Attributes2) atts).isSpecified(i)) {
+                    continue;
+                }
+                String attUri = atts.getURI(i);
+                e.setAttributeNS(attUri.length() == 0 ? null : attUri,
+                        atts.getQName(i), atts.getValue(i));
+            }
+            current.appendChild(e);
+            current = e;
+        }
+        mappings.clear();
+        depth++;
+        next.startElement(uri, localName, qName, atts);
+    }
+
+    public void endElement(String uri, String localName, String qName)
+            throws SAXException {
+        depth--;
+        if (keep()) {
+            current = current.getParentNode();
+        }
+        next.endElement(uri, localName, qName);
+    }
+
+    public void characters(char[] ch, int start, int length)
+            throws SAXException {
+        appendText(ch, start, length);
+        next.characters(ch, start, length);
+    }
+
+    public void ignorableWhitespace(char[] ch, int start, int length)
+            throws SAXException {
+        appendText(ch, start, length);
+        next.ignorableWhitespace(ch, start, length);
+    }
+
+    // Adjacent text is kept in one node, as a DOM parser does
+    private void appendText(char[] ch, int start, int length) {
+        if (!keep() || current == doc) {
+            return;
+        }
+        String text = new String(ch, start, length);
+        if (cdata != null) {
+            cdata.appendData(text);
+            return;
+        }
+        Node last = current.getLastChild();
+        if (last != null && last.getNodeType() == Node.TEXT_NODE) {
+            ((Text) last).appendData(text);
+        } else {
+            current.appendChild(doc.createTextNode(text));
+        }
+    }
+
+    public void processingInstruction(String target, String data)
+            throws SAXException {
+        if (keep()) {
+            current.appendChild(doc.createProcessingInstruction(target, data));
+        }
+        next.processingInstruction(target, data);
+    }
+
+    public void skippedEntity(String name) throws SAXException {
+        next.skippedEntity(name);
+    }
+
+    public void startDTD(String name, String publicId, String systemId) {
+        inDTD = true;
+    }
+
+    public void endDTD() {
+        inDTD = false;
+    }
+
+    public void startEntity(String name) {
+    }
+
+    public void endEntity(String name) {
+    }
+
+    public void startCDATA() {
+        if (keep() && current != doc) {
+            cdata = doc.createCDATASection("");
+            current.appendChild(cdata);
+        }
+    }
+
+    public void endCDATA() {
+        cdata = null;
+    }
+
+    public void comment(char[] ch, int start, int length) {
+        if (!inDTD && keep()) {
+            current.appendChild(doc.createComment(new String(ch, start,
+                    length)));
+        }
+    }
+}
@@ -23,9 +23,10 @@ package com.occamlab.te.parsers;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.CharArrayReader;
 import java.io.CharArrayWriter;
 import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.net.URL;
@@ -37,21 +38,27 @@ import java.util.logging.Logger;
 import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.Source;
+import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
 import javax.xml.validation.Validator;
+import javax.xml.validation.ValidatorHandler;
 
+import org.apache.xerces.jaxp.validation.XMLSchemaFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
 import com.occamlab.te.ErrorHandlerImpl;
 import com.occamlab.te.util.DomUtils;
 import com.occamlab.te.util.URLConnectionUtils;
@@ -59,13 +66,48 @@ import com.occamlab.te.util.URLConnectionUtils;
 /**
  * Validates an XML resource using a set of W3C XML Schema documents.
  * 
+ * <p>
+ * By default a response is parsed into a DOM tree, which is then validated.
+ * In streaming mode a response that is validated against schemas only (no
+ * DTDs) is validated while it is parsed, which needs much less memory for
+ * large responses. Streaming mode is enabled for all instructions by the
+ * te.streamingValidation system property, or for one instruction by its
+ * streaming="true" attribute. The following instruction attributes are also
+ * recognized:
+ * </p>
+ * <ul>
+ * <li>ignoreErrors, ignoreWarnings: return the document even if errors were
+ * reported, or return null if warnings were reported;</li>
+ * <li>buildTree="false": return only the document element, without content,
+ * if the caller needs nothing else; in streaming mode the rest of the tree is
+ * never built;</li>
+ * <li>maxErrors: stop after that many errors, and return null (default: the
+ * te.maxValidationErrors property, or no limit).</li>
+ * </ul>
+ * <p>
+ * A response that is validated against DTDs is validated against the first
+ * one while it is parsed, whatever document type it declares, and the parsed
+ * DTDs are kept across requests.
+ * </p>
+ * <p>
+ * Responses larger than the te.maxDocumentSize property (in bytes) are
+ * rejected with a fatal parsing error.
+ * </p>
  */
 public class XMLValidatingParser {
+    static final boolean STREAMING = Boolean
+            .getBoolean("te.streamingValidation");
+    static final int MAX_ERRORS = Integer.getInteger("te.maxValidationErrors",
+            0);
+    static final long MAX_DOCUMENT_SIZE = Long.getLong("te.maxDocumentSize", 0);
     static SchemaFactory SF = null;
+    static SchemaCache schemaCache = null;
+    static DTDGrammarCache dtdCache = null;
     static TransformerFactory TF = null;
     static DocumentBuilderFactory nonValidatingDBF = null;
     static DocumentBuilderFactory schemaValidatingDBF = null;
     static DocumentBuilderFactory dtdValidatingDBF = null;
+    static SAXParserFactory nonValidatingSPF = null;
     ArrayList<Object> schemaList = new ArrayList<Object>();
     ArrayList<Object> dtdList = new ArrayList<Object>();
     private static Logger jlogger = Logger
@@ -130,6 +172,11 @@ public class XMLValidatingParser {
     }
 
     public XMLValidatingParser() {
+        initFactories();
+    }
+
+    // The factories are shared, and parsers may be created concurrently
+    private static synchronized void initFactories() {
         if (SF == null) {
             String property_name = "javax.xml.validation.SchemaFactory:"
                     + XMLConstants.W3C_XML_SCHEMA_NS_URI;
@@ -149,6 +196,8 @@ public class XMLValidatingParser {
             } else {
                 System.setProperty(property_name, oldprop);
             }
+            schemaCache = new SchemaCache((XMLSchemaFactory) SF,
+                    Integer.getInteger("te.schemaCacheSize", 64));
         }
 
         if (nonValidatingDBF == null) {
@@ -174,6 +223,16 @@ public class XMLValidatingParser {
             }
         }
 
+        if (dtdCache == null) {
+            dtdCache = new DTDGrammarCache();
+        }
+
+        if (nonValidatingSPF == null) {
+            nonValidatingSPF = SAXParserFactory.newInstance(
+                    "org.apache.xerces.jaxp.SAXParserFactoryImpl", null);
+            nonValidatingSPF.setNamespaceAware(true);
+        }
+
         if (TF == null) {
             TF = TransformerFactory.newInstance();
         }
@@ -218,40 +277,84 @@ public class XMLValidatingParser {
         Document doc = null;
 
         ErrorHandlerImpl eh = new ErrorHandlerImpl("Parsing", logger);
-
-        if (xml instanceof InputStream) {
-            DocumentBuilderFactory dbf = nonValidatingDBF;
-            // if no schemas were supplied, let the parser do the validating.
-            // I.e. use the schemaLocation attribute
-            if (schemas.size() == 0 && dtds.size() == 0) {
-                eh.setRole("ValidatingParser");
-                NodeList nl = instruction.getElementsByTagNameNS(
-                        "http://www.occamlab.com/te/parsers", "schemas");
-                if (nl != null && nl.getLength() > 0) {
-                    dbf = schemaValidatingDBF;
+        ErrorLimit limit = new ErrorLimit(eh, getInt(instruction, "maxErrors",
+                MAX_ERRORS));
+        boolean buildTree = !"false".equals(instruction
+                .getAttribute("buildTree"));
+        boolean validated = false;
+
+        try {
+            if (xml instanceof InputStream) {
+                InputStream xmlInput = (InputStream) xml;
+                if (MAX_DOCUMENT_SIZE > 0) {
+                    xmlInput = new SizeLimitInputStream(xmlInput,
+                            MAX_DOCUMENT_SIZE);
+                }
+                String streaming = instruction.getAttribute("streaming");
+                if ((streaming.length() == 0 ? STREAMING : Boolean
+                        .parseBoolean(streaming))
+                        && schemas.size() > 0
+                        && dtds.size() == 0) {
+                    doc = parseAndValidate(xmlInput, schemas, buildTree,
+                            limit);
+                    validated = true;
+                } else if (dtds.size() > 0) {
+                    // Validate against the first DTD while parsing, and
+                    // against the others afterwards
+                    doc = parseAndValidate(xmlInput, dtds.remove(0), buildTree
+                            || schemas.size() > 0 || dtds.size() > 0, limit);
                 } else {
-                    dbf = dtdValidatingDBF;
+                    DocumentBuilderFactory dbf = nonValidatingDBF;
+                    // if no schemas were supplied, let the parser do the
+                    // validating. I.e. use the schemaLocation attribute
+                    if (schemas.size() == 0 && dtds.size() == 0) {
+                        limit.setRole("ValidatingParser");
+                        NodeList nl = instruction.getElementsByTagNameNS(
+                                "http://www.occamlab.com/te/parsers",
+                                "schemas");
+                        if (nl != null && nl.getLength() > 0) {
+                            dbf = schemaValidatingDBF;
+                        } else {
+                            dbf = dtdValidatingDBF;
+                        }
+                    }
+                    DocumentBuilder db = dbf.newDocumentBuilder();
+                    db.setErrorHandler(limit);
+                    try {
+                        doc = db.parse(xmlInput);
+                    } catch (ErrorLimitException e) {
+                        throw e;
+                    } catch (SizeLimitException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        jlogger.log(Level.SEVERE, "error parsing", e);
+                    } finally {
+                        xmlInput.close();
+                    }
                 }
+            } else if (xml instanceof Document) {
+                doc = (Document) xml;
+            } else {
+                throw new Exception("Error: Invalid xml object");
             }
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            db.setErrorHandler(eh);
-            InputStream xmlInput = (InputStream) xml;
-            try {
-                doc = db.parse(xmlInput);
-            } catch (Exception e) {
-                jlogger.log(Level.SEVERE, "error parsing", e);
-            } finally {
-                xmlInput.close();
+
+            if (doc != null && !validated) {
+                limit.setRole("Validation");
+                validate(doc, schemas, dtds, limit);
             }
-        } else if (xml instanceof Document) {
-            doc = (Document) xml;
-        } else {
-            throw new Exception("Error: Invalid xml object");
+        } catch (ErrorLimitException e) {
+            int n = e.getErrorCount();
+            logger.println("Validation stopped after " + n + " error"
+                    + (n == 1 ? "" : "s") + ".");
+            doc = null;
+        } catch (SizeLimitException e) {
+            eh.setRole("Parsing");
+            eh.fatalError(new SAXParseException(e.getMessage(), null));
+            doc = null;
         }
 
-        if (doc != null) {
-            eh.setRole("Validation");
-            validate(doc, schemas, dtds, eh);
+        if (doc != null && !buildTree && !validated) {
+            doc = copyDocumentElement(doc);
         }
 
         // Print errors
@@ -290,6 +393,229 @@ public class XMLValidatingParser {
         return doc;
     }
 
+    /**
+     * Parses and validates a document in a single pass.
+     * 
+     * @return The document, or only its document element if buildTree is
+     *         false; null if it is not well-formed.
+     */
+    private Document parseAndValidate(InputStream xmlInput,
+            ArrayList<Object> schemas, boolean buildTree, ErrorLimit limit)
+            throws Exception {
+        Schema schema = schemaCache.get(schemas);
+        ValidatorHandler validator = schema.newValidatorHandler();
+        validator.setErrorHandler(limit.forRole("Validation"));
+        TreeBuilder builder = new TreeBuilder(nonValidatingDBF
+                .newDocumentBuilder().newDocument(), validator, !buildTree);
+        XMLReader reader = nonValidatingSPF.newSAXParser().getXMLReader();
+        reader.setContentHandler(builder);
+        reader.setProperty("http://xml.org/sax/properties/lexical-handler",
+                builder);
+        reader.setErrorHandler(limit.forRole("Parsing"));
+        try {
+            reader.parse(new InputSource(xmlInput));
+        } catch (ErrorLimitException e) {
+            throw e;
+        } catch (SizeLimitException e) {
+            throw e;
+        } catch (SAXParseException e) {
+            // Already reported as a fatal error
+            return null;
+        } catch (Exception e) {
+            jlogger.log(Level.SEVERE, "error parsing", e);
+            return null;
+        } finally {
+            xmlInput.close();
+        }
+        return builder.getDocument();
+    }
+
+    /**
+     * Parses a document and validates it against a DTD in a single pass.
+     * 
+     * @return The document, or only its document element if buildTree is
+     *         false; null if it is not well-formed.
+     */
+    private Document parseAndValidate(InputStream xmlInput, Object dtd,
+            boolean buildTree, ErrorLimit limit) throws Exception {
+        TreeBuilder builder = new TreeBuilder(nonValidatingDBF
+                .newDocumentBuilder().newDocument(), new DefaultHandler(),
+                !buildTree);
+        try {
+            dtdCache.parse(xmlInput, dtd, builder,
+                    limit.forRoles("Validation", "Parsing"));
+        } catch (ErrorLimitException e) {
+            throw e;
+        } catch (SizeLimitException e) {
+            throw e;
+        } catch (SAXParseException e) {
+            // Already reported as a fatal error
+            return null;
+        } catch (Exception e) {
+            jlogger.log(Level.SEVERE, "error parsing", e);
+            return null;
+        } finally {
+            xmlInput.close();
+        }
+        return builder.getDocument();
+    }
+
+    // Returns a document containing a copy of the document element only
+    private static Document copyDocumentElement(Document doc) throws Exception {
+        Document copy = nonValidatingDBF.newDocumentBuilder().newDocument();
+        Element root = doc.getDocumentElement();
+        if (root != null) {
+            copy.appendChild(copy.importNode(root, false));
+        }
+        return copy;
+    }
+
+    private static int getInt(Element instruction, String name, int def) {
+        String s = instruction.getAttribute(name);
+        return (s.length() == 0) ? def : Integer.parseInt(s);
+    }
+
+    /**
+     * Passes errors on to an error handler, with the role of the current
+     * step, and stops the parse once the maximum number of errors has been
+     * reported.
+     */
+    static class ErrorLimit implements ErrorHandler {
+        private final ErrorHandlerImpl eh;
+        private final int maxErrors;
+        private String role = "Parsing";
+        private int errors = 0;
+
+        ErrorLimit(ErrorHandlerImpl eh, int maxErrors) {
+            this.eh = eh;
+            this.maxErrors = maxErrors;
+        }
+
+        void setRole(String role) {
+            this.role = role;
+        }
+
+        // Returns a handler for a step that runs alongside another
+        ErrorHandler forRole(String role) {
+            return forRoles(role, role);
+        }
+
+        // Returns a handler that reports fatal errors with a different role
+        ErrorHandler forRoles(final String role, final String fatalRole) {
+            return new ErrorHandler() {
+                public void warning(SAXParseException e) {
+                    setRole(role);
+                    ErrorLimit.this.warning(e);
+                }
+
+                public void error(SAXParseException e) throws SAXException {
+                    setRole(role);
+                    ErrorLimit.this.error(e);
+                }
+
+                public void fatalError(SAXParseException e)
+                        throws SAXException {
+                    setRole(fatalRole);
+                    ErrorLimit.this.fatalError(e);
+                }
+            };
+        }
+
+        public void warning(SAXParseException e) {
+            eh.setRole(role);
+            eh.warning(e);
+        }
+
+        public void error(SAXParseException e) throws SAXException {
+            eh.setRole(role);
+            eh.error(e);
+            count();
+        }
+
+        public void fatalError(SAXParseException e) throws SAXException {
+            eh.setRole(role);
+            eh.fatalError(e);
+            count();
+        }
+
+        private void count() throws ErrorLimitException {
+            errors++;
+            if (maxErrors > 0 && errors >= maxErrors) {
+                throw new ErrorLimitException(errors);
+            }
+        }
+    }
+
+    /**
+     * Thrown to stop a parse once the maximum number of errors has been
+     * reported.
+     */
+    static class ErrorLimitException extends SAXException {
+        private static final long serialVersionUID = -2185733640432951178L;
+        private final int errorCount;
+
+        ErrorLimitException(int errorCount) {
+            super("Stopped after " + errorCount + " error(s)");
+            this.errorCount = errorCount;
+        }
+
+        int getErrorCount() {
+            return errorCount;
+        }
+    }
+
+    /**
+     * Fails a read once more than the maximum number of bytes has been read.
+     */
+    static class SizeLimitInputStream extends FilterInputStream {
+        private final long maxSize;
+        private long count = 0;
+
+        SizeLimitInputStream(InputStream in, long maxSize) {
+            super(in);
+            this.maxSize = maxSize;
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                check(1);
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                check(n);
+            }
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            check(skipped);
+            return skipped;
+        }
+
+        private void check(long n) throws SizeLimitException {
+            count += n;
+            if (count > maxSize) {
+                throw new SizeLimitException(
+                        "The document is larger than the maximum of "
+                                + maxSize + " bytes");
+            }
+        }
+    }
+
+    static class SizeLimitException extends IOException {
+        private static final long serialVersionUID = 5230826414337402167L;
+
+        SizeLimitException(String message) {
+            super(message);
+        }
+    }
+
     /**
      * A method to validate a pool of schemas outside of the request element.
      * 
@@ -341,46 +667,31 @@ public class XMLValidatingParser {
             ArrayList<Object> dtds, ErrorHandler eh) throws Exception {
         jlogger.finer("Validating XML resource against " + schemas.toString());
         if (schemas.size() > 0) {
-            Source[] schemaSources = new Source[schemas.size()];
-            for (int i = 0; i < schemas.size(); i++) {
-                Object o = schemas.get(i);
-                if (o instanceof File) {
-                    schemaSources[i] = new StreamSource((File) o);
-                } else if (o instanceof URL) {
-                    schemaSources[i] = new StreamSource(o.toString());
-                } else if (o instanceof char[]) {
-                    schemaSources[i] = new StreamSource(new CharArrayReader(
-                            (char[]) o));
-                } else {
-                    throw new Exception("Illegal object in schemas list");
-                }
-            }
-            Schema schema = SF.newSchema(schemaSources);
+            Schema schema = schemaCache.get(schemas);
             Validator validator = schema.newValidator();
             validator.setErrorHandler(eh);
             validator.validate(new DOMSource(doc));
         }
 
-        // Validate against each dtd
+        if (dtds.size() == 0) {
+            return;
+        }
+
+        // Validate a serialized copy of the document element against each
+        // dtd, which is supplied as its external subset
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        TF.newTransformer().transform(new DOMSource(doc.getDocumentElement()),
+                new StreamResult(baos));
+        byte[] bytes = baos.toByteArray();
         for (Object dtd : dtds) {
-            StringBuffer transform = new StringBuffer();
-            transform
-                    .append("<xsl:transform xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" version=\"2.0\">");
-            transform.append("<xsl:output doctype-system=\"");
-            transform.append(dtd.toString());
-            transform.append("\"/>");
-            transform.append("<xsl:template match=\"/\">");
-            transform.append("<xsl:copy-of select=\"*\"/>");
-            transform.append("</xsl:template>");
-            transform.append("</xsl:transform>");
-            Transformer t = TF.newTransformer(new StreamSource(
-                    new CharArrayReader(transform.toString().toCharArray())));
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            t.transform(new DOMSource(doc), new StreamResult(baos));
-            DocumentBuilder db = dtdValidatingDBF.newDocumentBuilder();
-            db.setErrorHandler(eh);
+            TreeBuilder builder = new TreeBuilder(nonValidatingDBF
+                    .newDocumentBuilder().newDocument(), new DefaultHandler(),
+                    true);
             try {
-                db.parse(new ByteArrayInputStream(baos.toByteArray()));
+                dtdCache.parse(new ByteArrayInputStream(bytes), dtd, builder,
+                        eh);
+            } catch (ErrorLimitException e) {
+                throw e;
             } catch (Exception e) {
                 jlogger.log(Level.SEVERE, "validate", e);
             }
@@ -0,0 +1,263 @@
+package com.occamlab.te.saxon;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.occamlab.te.TEClassLoader;
+import com.occamlab.te.TECore;
+import com.occamlab.te.index.FunctionEntry;
+import com.occamlab.te.util.DomUtils;
+import com.occamlab.te.util.Misc;
+
+/**
+ * The binding of a CTL function of type java to its implementation. The
+ * method for each argument count is looked up once, together with the
+ * converters for its parameter types, so that a call only has to convert its
+ * arguments and invoke the method.
+ *
+ * <p>
+ * Bindings are shared by all sessions. Each is kept by its FunctionEntry, so
+ * it is discarded, with the class loader it refers to, when the index is
+ * reloaded. Instances of initialized functions are still created once per
+ * test session and kept by the session's TECore.
+ * </p>
+ */
+public class JavaFunctionBinding {
+
+    private final FunctionEntry fe;
+    private final TEClassLoader cl;
+    // Invokers by argument count, resolved when first needed
+    private final Invoker[] invokers;
+
+    /**
+     * Converts the value of a function parameter, given as a CTL param
+     * element's value child, to a Java argument.
+     */
+    interface ArgConverter {
+        Object convert(Element value) throws Exception;
+    }
+
+    /**
+     * A method together with the converters for its parameters.
+     */
+    public static class Invoker {
+        private final Method method;
+        private final ArgConverter[] converters;
+
+        Invoker(Method method, ArgConverter[] converters) {
+            this.method = method;
+            this.converters = converters;
+        }
+
+        public Method getMethod() {
+            return method;
+        }
+
+        /**
+         * Converts the values of CTL param elements to method arguments.
+         *
+         * @param paramElements
+         *            The param elements, one for each parameter.
+         * @return The arguments.
+         */
+        public Object[] convertArgs(List<Element> paramElements)
+                throws Exception {
+            Object[] args = new Object[converters.length];
+            for (int i = 0; i < converters.length; i++) {
+                Element el = DomUtils.getElementByTagName(paramElements.get(i),
+                        "value");
+                args[i] = converters[i].convert(el);
+            }
+            return args;
+        }
+    }
+
+    private JavaFunctionBinding(FunctionEntry fe, TEClassLoader cl) {
+        this.fe = fe;
+        this.cl = cl;
+        this.invokers = new Invoker[Math.max(fe.getMaxArgs(), 0) + 1];
+    }
+
+    /**
+     * Returns the binding for a function.
+     *
+     * @param fe
+     *            A function of type java.
+     * @param cl
+     *            The class loader for the function's sources.
+     * @return The binding.
+     */
+    public static JavaFunctionBinding getInstance(FunctionEntry fe,
+            TEClassLoader cl) {
+        synchronized (fe) {
+            Object o = fe.getBinding();
+            JavaFunctionBinding binding = (o instanceof JavaFunctionBinding) ? (JavaFunctionBinding) o
+                    : null;
+            if (binding == null || binding.cl != cl) {
+                binding = new JavaFunctionBinding(fe, cl);
+                fe.setBinding(binding);
+            }
+            return binding;
+        }
+    }
+
+    public TEClassLoader getClassLoader() {
+        return cl;
+    }
+
+    /**
+     * Returns the invoker for a number of arguments.
+     *
+     * @param argCount
+     *            The number of arguments, including the context item if the
+     *            function uses it.
+     * @return The invoker.
+     * @throws Exception
+     *             If the class has no public method with that number of
+     *             parameters.
+     */
+    public Invoker getInvoker(int argCount) throws Exception {
+        if (argCount < 0 || argCount >= invokers.length) {
+            throw new Exception("Error: Function " + fe.getName()
+                    + " does not take " + argCount + " arguments");
+        }
+        // Invokers are immutable, so one that has been resolved can be read
+        // without locking
+        Invoker invoker = invokers[argCount];
+        if (invoker != null) {
+            return invoker;
+        }
+        synchronized (invokers) {
+            invoker = invokers[argCount];
+            if (invoker == null) {
+                Method method = Misc.getMethod(fe.getClassName(),
+                        fe.getMethod(), cl, argCount);
+                Class<?>[] types = method.getParameterTypes();
+                ArgConverter[] converters = new ArgConverter[types.length];
+                for (int i = 0; i < types.length; i++) {
+                    converters[i] = makeConverter(types[i]);
+                }
+                invoker = new Invoker(method, converters);
+                invokers[argCount] = invoker;
+            }
+            return invoker;
+        }
+    }
+
+    /**
+     * Returns the instance that an initialized function is invoked on.
+     *
+     * @param core
+     *            The TECore of the calling session.
+     * @return The instance for the session, or null if the function is not
+     *         initialized.
+     */
+    public Object getInstance(TECore core) throws Exception {
+        if (!fe.isInitialized()) {
+            return null;
+        }
+        Object instance = core.getFunctionInstance(fe.hashCode());
+        if (instance == null) {
+            instance = Misc.makeInstance(fe.getClassName(),
+                    fe.getClassParams(), cl);
+            core.putFunctionInstance(fe.hashCode(), instance);
+        }
+        return instance;
+    }
+
+    private ArgConverter makeConverter(final Class<?> type) {
+        if (type.equals(String.class)) {
+            return new ArgConverter() {
+                public Object convert(Element el) {
+                    Map<QName, String> attrs = DomUtils.getAttributes(el);
+                    if (attrs.size() > 0) {
+                        return attrs.values().iterator().next();
+                    }
+                    return el.getTextContent();
+                }
+            };
+        } else if (type.equals(char.class)) {
+            return new ArgConverter() {
+                public Object convert(Element el) {
+                    return el.getTextContent().charAt(0);
+                }
+            };
+        } else if (type.equals(boolean.class)) {
+            return new ArgConverter() {
+                public Object convert(Element el) {
+                    return Boolean.parseBoolean(el.getTextContent());
+                }
+            };
+        } else if (type.equals(byte.class)) {
+            return new ArgConverter() {
+                public Object convert(Element el) {
+                    return Byte.parseByte(el.getTextContent());
+                }
+            };
+        } else if (type.equals(short.class)) {
+            return new ArgConverter() {
+                public Object convert(Element el) {
+                    return Short.parseShort(el.getTextContent());
+                }
+            };
+        } else if (type.equals(int.class)) {
+            return new ArgConverter() {
+                public Object convert(Element el) {
+                    return Integer.parseInt(el.getTextContent());
+                }
+            };
+        } else if (type.equals(long.class)) {
+            return new ArgConverter() {
+                public Object convert(Element el) {
+                    return Long.parseLong(el.getTextContent());
+                }
+            };
+        } else if (type.equals(float.class)) {
+            return new ArgConverter() {
+                public Object convert(Element el) {
+                    return Float.parseFloat(el.getTextContent());
+                }
+            };
+        } else if (type.equals(double.class)) {
+            return new ArgConverter() {
+                public Object convert(Element el) {
+                    return Double.parseDouble(el.getTextContent());
+                }
+            };
+        } else if (Document.class.isAssignableFrom(type)) {
+            return new ArgConverter() {
+                public Object convert(Element el) throws Exception {
+                    return DomUtils.createDocument(DomUtils.getChildElement(el));
+                }
+            };
+        } else if (NodeList.class.isAssignableFrom(type)) {
+            return new ArgConverter() {
+                public Object convert(Element el) {
+                    return el.getChildNodes();
+                }
+            };
+        } else if (Node.class.isAssignableFrom(type)) {
+            return new ArgConverter() {
+                public Object convert(Element el) {
+                    return el.getFirstChild();
+                }
+            };
+        }
+        // Reported when the function is called, as before
+        return new ArgConverter() {
+            public Object convert(Element el) throws Exception {
+                throw new Exception("Error: Function {"
+                        + fe.getNamespaceURI() + "}" + fe.getLocalName()
+                        + " uses unsupported Java type " + type.toString());
+            }
+        };
+    }
+}
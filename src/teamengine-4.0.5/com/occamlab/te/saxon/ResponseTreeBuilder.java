@@ -0,0 +1,183 @@
+package com.occamlab.te.saxon;
+
+import javax.xml.transform.Source;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.event.PipelineConfiguration;
+import net.sf.saxon.event.ProxyReceiver;
+import net.sf.saxon.event.Sender;
+import net.sf.saxon.om.NamePool;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.StandardNames;
+import net.sf.saxon.tinytree.TinyBuilder;
+import net.sf.saxon.trans.XPathException;
+
+/**
+ * Builds the response tree returned by ctl:request, ctl:soap-request and
+ * ctl:parse as a Saxon TinyTree:
+ *
+ * <pre>
+ * &lt;response&gt;
+ *   &lt;parser local-name="..." namespace-uri="..." prefix="..."&gt;log&lt;/parser&gt;
+ *   &lt;content&gt;...&lt;/content&gt;
+ * &lt;/response&gt;
+ * </pre>
+ *
+ * XML content is copied from its source straight into the tree, so a response
+ * stream is parsed once and never held as a DOM. The methods must be called in
+ * order: {@link #parser}, one of the content methods, then {@link #finish}.
+ */
+public class ResponseTreeBuilder {
+
+    private final NamePool pool;
+    private final PipelineConfiguration pipe;
+    private final TinyBuilder builder = new TinyBuilder();
+    private final long startTime;
+
+    /**
+     * Creates a builder.
+     *
+     * @param config
+     *            The Saxon configuration that owns the tree.
+     * @param startTime
+     *            The time the request was submitted, in milliseconds. If
+     *            non-negative, a comment giving the elapsed time is appended
+     *            to each element in the content; otherwise none is added.
+     */
+    public ResponseTreeBuilder(Configuration config, long startTime)
+            throws XPathException {
+        this.pool = config.getNamePool();
+        this.pipe = config.makePipelineConfiguration();
+        this.startTime = startTime;
+        builder.setPipelineConfiguration(pipe);
+        builder.open();
+        builder.startDocument(0);
+        startElement("response");
+    }
+
+    private void startElement(String name) throws XPathException {
+        builder.startElement(pool.allocate("", "", name),
+                StandardNames.XS_UNTYPED, 0, 0);
+    }
+
+    private void attribute(String name, String value) throws XPathException {
+        builder.attribute(pool.allocate("", "", name),
+                StandardNames.XS_UNTYPED_ATOMIC, value == null ? "" : value,
+                0, 0);
+    }
+
+    private void text(String text) throws XPathException {
+        if (text != null && text.length() > 0) {
+            builder.characters(text, 0, 0);
+        }
+    }
+
+    /**
+     * Adds the parser element.
+     *
+     * @param prefix
+     *            The prefix of the parser instruction, or null if no parser
+     *            was invoked.
+     * @param localName
+     *            The local name of the parser instruction.
+     * @param namespaceURI
+     *            The namespace of the parser instruction.
+     * @param log
+     *            The messages logged by the parser.
+     */
+    public void parser(String prefix, String localName, String namespaceURI,
+            String log) throws XPathException {
+        builder.startContent();
+        startElement("parser");
+        if (localName != null) {
+            // In the order a DOM would serialize them
+            attribute("local-name", localName);
+            attribute("namespace-uri", namespaceURI);
+            attribute("prefix", prefix);
+        }
+        builder.startContent();
+        text(log);
+        builder.endElement();
+        startElement("content");
+        builder.startContent();
+    }
+
+    /**
+     * Copies XML content into the tree.
+     *
+     * @param source
+     *            A source for a document or element, such as a StreamSource
+     *            or a DOMSource for the node returned by a parser.
+     */
+    public void content(Source source) throws XPathException {
+        ContentFilter filter = new ContentFilter();
+        filter.setPipelineConfiguration(pipe);
+        filter.setUnderlyingReceiver(builder);
+        new Sender(pipe).send(source, filter);
+    }
+
+    /**
+     * Adds text content.
+     *
+     * @param text
+     *            The content.
+     */
+    public void content(String text) throws XPathException {
+        text(text);
+    }
+
+    /**
+     * Completes the tree.
+     *
+     * @return The response element.
+     */
+    public NodeInfo finish() throws XPathException {
+        builder.endElement(); // content
+        builder.endElement(); // response
+        NodeInfo response = builder.getLastCompletedElement();
+        builder.endDocument();
+        builder.close();
+        return response;
+    }
+
+    /**
+     * Passes a document into the content element, dropping the document
+     * events and appending the elapsed time comment to each top-level element.
+     */
+    private class ContentFilter extends ProxyReceiver {
+        private int depth = 0;
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void startDocument(int properties) {
+        }
+
+        @Override
+        public void endDocument() {
+        }
+
+        @Override
+        public void startElement(int nameCode, int typeCode, int locationId,
+                int properties) throws XPathException {
+            depth++;
+            super.startElement(nameCode, typeCode, locationId, properties);
+        }
+
+        @Override
+        public void endElement() throws XPathException {
+            if (--depth == 0 && startTime >= 0) {
+                long elapsedTime = System.currentTimeMillis() - startTime;
+                super.comment("Response received in [" + elapsedTime
+                        + "] milliseconds", 0, 0);
+            }
+            super.endElement();
+        }
+    }
+}
@@ -30,22 +30,17 @@ public class TEFunctionLibrary implements FunctionLibrary {
         }
 
         String key = functionName.getClarkName();
-        List<FunctionEntry> functions = index.getFunctions(key);
-        int argCount = staticArgs.length;
+        FunctionEntry fe = index.getFunction(key, staticArgs.length);
 
-        if (functions != null) {
-            for (FunctionEntry fe : functions) {
-                if (argCount >= fe.getMinArgs() && argCount <= fe.getMaxArgs()) {
-                    if (fe.isJava()) {
-                        TEJavaFunctionCall fc = new TEJavaFunctionCall(fe,
-                                functionName, staticArgs, env);
-                        return fc;
-                    } else {
-                        TEXSLFunctionCall fc = new TEXSLFunctionCall(fe,
-                                functionName, staticArgs, env);
-                        return fc;
-                    }
-                }
+        if (fe != null) {
+            if (fe.isJava()) {
+                TEJavaFunctionCall fc = new TEJavaFunctionCall(fe,
+                        functionName, staticArgs, env);
+                return fc;
+            } else {
+                TEXSLFunctionCall fc = new TEXSLFunctionCall(fe,
+                        functionName, staticArgs, env);
+                return fc;
             }
         }
 
@@ -60,18 +55,11 @@ public class TEFunctionLibrary implements FunctionLibrary {
 
     public boolean isAvailable(StructuredQName functionName, int arity) {
         String key = functionName.getClarkName();
-        List<FunctionEntry> functions = index.getFunctions(key);
-        if (functions != null) {
-            for (FunctionEntry fe : functions) {
-                if (arity == -1) {
-                    return true;
-                }
-                if (arity >= fe.getMinArgs() && arity <= fe.getMaxArgs()) {
-                    return true;
-                }
-            }
+        if (arity == -1) {
+            List<FunctionEntry> functions = index.getFunctions(key);
+            return functions != null && !functions.isEmpty();
         }
-        return false;
+        return index.getFunction(key, arity) != null;
     }
 
 }
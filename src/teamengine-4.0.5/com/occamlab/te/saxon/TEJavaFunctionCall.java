@@ -21,11 +21,10 @@ import com.occamlab.te.TEClassLoader;
 import com.occamlab.te.TECore;
 import com.occamlab.te.Test;
 import com.occamlab.te.index.FunctionEntry;
-import com.occamlab.te.util.Misc;
 
 public class TEJavaFunctionCall extends TEFunctionCall {
     FunctionEntry fe;
-    Method[] methods = null;
+    JavaFunctionBinding binding = null;
 
     public TEJavaFunctionCall(FunctionEntry fe, StructuredQName functionName,
             Expression[] staticArgs, StaticContext env) throws XPathException {
@@ -41,77 +40,17 @@ public class TEJavaFunctionCall extends TEFunctionCall {
         TEClassLoader cl = core.getEngine().getClassLoader(
                 core.getOpts().getSourcesName());
 
-        if (methods == null) {
-            methods = new Method[fe.getMaxArgs() + 1];
-            for (int i = fe.getMinArgs(); i <= fe.getMaxArgs(); i++) {
-                try {
-                    methods[i] = Misc.getMethod(fe.getClassName(),
-                            fe.getMethod(), cl, i);
-                } catch (Exception e) {
-                    throw new XPathException("Error: Unable to bind function "
-                            + fe.getName(), e);
-                }
-            }
+        JavaFunctionBinding b = binding;
+        if (b == null || b.getClassLoader() != cl) {
+            b = JavaFunctionBinding.getInstance(fe, cl);
+            binding = b;
         }
 
-        Object instance = null;
-        if (fe.isInitialized()) {
-            instance = core.getFunctionInstance(fe.hashCode());
-            if (instance == null) {
-                try {
-                    instance = Misc.makeInstance(fe.getClassName(),
-                            fe.getClassParams(), cl);
-                    core.putFunctionInstance(fe.hashCode(), instance);
-                } catch (Exception e) {
-                    throw new XPathException(e);
-                }
-                // List<Node> classParams = fe.getClassParams();
-                // Object[] classParamObjects = new Object[classParams.size()];
-                // Constructor[] constructors =
-                // method.getDeclaringClass().getConstructors();
-                // for (int i = 0; i < constructors.length; i++) {
-                // Class<?>[] types = constructors[i].getParameterTypes();
-                // if (types.length == classParams.size()) {
-                // boolean constructorCorrect = true;
-                // for (int j = 0; j < types.length; j++) {
-                // Node n = classParams.get(j);
-                // if (types[j].isAssignableFrom(Node.class)) {
-                // classParamObjects[j] = n;
-                // } else if (types[j] == String.class) {
-                // classParamObjects[j] = n.getTextContent();
-                // } else if (types[j] == Character.class) {
-                // classParamObjects[j] = n.getTextContent().charAt(0);
-                // } else if (types[j] == Boolean.class) {
-                // classParamObjects[j] =
-                // Boolean.parseBoolean(n.getTextContent());
-                // } else if (types[j] == Byte.class) {
-                // classParamObjects[j] = Byte.parseByte(n.getTextContent());
-                // } else if (types[j] == Short.class) {
-                // classParamObjects[j] = Short.parseShort(n.getTextContent());
-                // } else if (types[j] == Integer.class) {
-                // classParamObjects[j] = Integer.parseInt(n.getTextContent());
-                // } else if (types[j] == Float.class) {
-                // classParamObjects[j] = Float.parseFloat(n.getTextContent());
-                // } else if (types[j] == Double.class) {
-                // classParamObjects[j] =
-                // Double.parseDouble(n.getTextContent());
-                // } else {
-                // constructorCorrect = false;
-                // break;
-                // }
-                // }
-                // if (constructorCorrect) {
-                // try {
-                // instance = constructors[i].newInstance(classParamObjects);
-                // core.putFunctionInstance(fe.getId(), instance);
-                // } catch (Exception e) {
-                // throw new XPathException(e);
-                // }
-                // break;
-                // }
-                // }
-                // }
-            }
+        Object instance;
+        try {
+            instance = b.getInstance(core);
+        } catch (Exception e) {
+            throw new XPathException(e);
         }
         Expression[] argExpressions = getArguments();
         Object[] javaArgs = new Object[argExpressions.length];
@@ -119,13 +58,13 @@ public class TEJavaFunctionCall extends TEFunctionCall {
         Class[] types;
         int argsIndex;
         if (fe.usesContext()) {
-            m = methods[argExpressions.length + 1];
+            m = getMethod(b, argExpressions.length + 1);
             types = m.getParameterTypes();
             ValueRepresentation vr = context.getContextItem();
             javaArgs[0] = Value.asValue(vr).convertToJava(types[0], context);
             argsIndex = 1;
         } else {
-            m = methods[argExpressions.length];
+            m = getMethod(b, argExpressions.length);
             types = m.getParameterTypes();
             argsIndex = 0;
         }
@@ -168,4 +107,14 @@ public class TEJavaFunctionCall extends TEFunctionCall {
             return v.iterate();
         }
     }
+
+    Method getMethod(JavaFunctionBinding b, int argCount)
+            throws XPathException {
+        try {
+            return b.getInvoker(argCount).getMethod();
+        } catch (Exception e) {
+            throw new XPathException("Error: Unable to bind function "
+                    + fe.getName(), e);
+        }
+    }
 }
@@ -0,0 +1,180 @@
+package com.occamlab.te.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An HttpURLConnection that buffers the request and obtains the complete
+ * response from an {@link HttpTransport} when it is first needed. It behaves
+ * like the JDK implementation as far as the parsers are concerned:
+ * getInputStream throws an IOException for error responses, whose body is
+ * available from getErrorStream.
+ */
+public class BufferedHttpConnection extends HttpURLConnection {
+
+    private final HttpTransport transport;
+    private ByteArrayOutputStream body = null;
+    private HttpArchive.Response response = null;
+
+    BufferedHttpConnection(URL url, HttpTransport transport) {
+        super(url);
+        this.transport = transport;
+    }
+
+    /**
+     * Returns the request body written so far.
+     *
+     * @return The body, or {@code null} if nothing was written.
+     */
+    public byte[] getRequestBody() {
+        return (body == null) ? null : body.toByteArray();
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if (!doOutput) {
+            throw new ProtocolException(
+                    "cannot write to a URLConnection if doOutput=false - call setDoOutput(true)");
+        }
+        if (connected) {
+            throw new ProtocolException(
+                    "Cannot write output after reading input.");
+        }
+        if (method.equals("GET")) {
+            method = "POST"; // As with the JDK implementation
+        }
+        if (body == null) {
+            body = new ByteArrayOutputStream();
+        }
+        return body;
+    }
+
+    @Override
+    public synchronized void connect() throws IOException {
+        if (!connected) {
+            response = transport.exchange(this);
+            responseCode = response.getCode();
+            responseMessage = response.getMessage();
+            connected = true;
+        }
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        connect();
+        return responseCode;
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        connect();
+        return responseMessage;
+    }
+
+    @Override
+    public void disconnect() {
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return false;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        connect();
+        if (responseCode >= 400) {
+            if (responseCode == HTTP_NOT_FOUND || responseCode == HTTP_GONE) {
+                throw new FileNotFoundException(url.toString());
+            }
+            throw new IOException("Server returned HTTP response code: "
+                    + responseCode + " for URL: " + url);
+        }
+        return new ByteArrayInputStream(response.getBody());
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        if (response != null && responseCode >= 400
+                && response.getBody().length > 0) {
+            return new ByteArrayInputStream(response.getBody());
+        }
+        return null;
+    }
+
+    @Override
+    public String getHeaderFieldKey(int n) {
+        String[] header = getHeader(n);
+        return (header == null) ? null : header[0];
+    }
+
+    @Override
+    public String getHeaderField(int n) {
+        String[] header = getHeader(n);
+        return (header == null) ? null : header[1];
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        if (!ensureConnected()) {
+            return null;
+        }
+        String value = null;
+        for (String[] header : response.getHeaders()) {
+            if (header[0] == null ? name == null : header[0]
+                    .equalsIgnoreCase(name)) {
+                value = header[1];
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        Map<String, List<String>> map = new LinkedHashMap<String, List<String>>();
+        if (ensureConnected()) {
+            for (String[] header : response.getHeaders()) {
+                List<String> values = map.get(header[0]);
+                if (values == null) {
+                    values = new ArrayList<String>(1);
+                    map.put(header[0], values);
+                }
+                values.add(0, header[1]); // Most recent value first
+            }
+        }
+        for (Map.Entry<String, List<String>> entry : map.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    private String[] getHeader(int n) {
+        if (!ensureConnected() || n < 0
+                || n >= response.getHeaders().size()) {
+            return null;
+        }
+        return response.getHeaders().get(n);
+    }
+
+    // Header accessors report a failed exchange by returning null
+    private boolean ensureConnected() {
+        try {
+            connect();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
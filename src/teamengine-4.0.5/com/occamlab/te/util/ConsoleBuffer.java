@@ -0,0 +1,207 @@
+package com.occamlab.te.util;
+
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Holds the most recent console output of a test session in a fixed-size ring
+ * buffer. Every byte written gets a sequence number, starting at 0, so that
+ * any number of readers can each ask for the output after the last byte they
+ * saw. Output older than the capacity of the buffer is discarded; a reader
+ * that falls behind is told how much it missed.
+ *
+ * <p>
+ * The output is expected to be UTF-8. Readers can block until more output is
+ * written, the buffer is closed, or {@link #signal()} reports some other
+ * change in the session such as a pending form.
+ * </p>
+ */
+public class ConsoleBuffer extends OutputStream {
+
+    /** The default capacity, set by the te.consoleBufferSize property. */
+    public static final int DEFAULT_CAPACITY = Integer.getInteger(
+            "te.consoleBufferSize", 1024 * 1024);
+
+    /**
+     * A range of console output.
+     */
+    public static class Chunk {
+        private final long start;
+        private final long end;
+        private final long dropped;
+        private final String text;
+
+        Chunk(long start, long end, long dropped, String text) {
+            this.start = start;
+            this.end = end;
+            this.dropped = dropped;
+            this.text = text;
+        }
+
+        /** The sequence number of the first byte of the text. */
+        public long getStart() {
+            return start;
+        }
+
+        /** The sequence number to read from next. */
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * The number of bytes requested that had already been discarded.
+         */
+        public long getDropped() {
+            return dropped;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    private final byte[] buf;
+    private long head = 0; // Sequence number of the next byte written
+    private long signals = 0;
+    private boolean closed = false;
+
+    public ConsoleBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ConsoleBuffer(int capacity) {
+        buf = new byte[capacity];
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        buf[(int) (head % buf.length)] = (byte) b;
+        head++;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        if (len > buf.length) {
+            // Only the tail can be kept
+            head += len - buf.length;
+            off += len - buf.length;
+            len = buf.length;
+        }
+        while (len > 0) {
+            int pos = (int) (head % buf.length);
+            int n = Math.min(len, buf.length - pos);
+            System.arraycopy(b, off, buf, pos, n);
+            head += n;
+            off += n;
+            len -= n;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Marks the end of the output and wakes up waiting readers. Output
+     * already written can still be read.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Returns the sequence number of the next byte to be written, i.e. the
+     * number of bytes written so far.
+     */
+    public synchronized long getSequence() {
+        return head;
+    }
+
+    /**
+     * Wakes up waiting readers without writing any output.
+     */
+    public synchronized void signal() {
+        signals++;
+        notifyAll();
+    }
+
+    /**
+     * Waits until output after the given sequence number is available, the
+     * buffer is closed, {@link #signal()} is called or the timeout expires.
+     *
+     * @param sequence
+     *            The sequence number the reader will read from.
+     * @param timeout
+     *            The maximum time to wait in milliseconds.
+     * @return true if output after the sequence number is available.
+     */
+    public synchronized boolean await(long sequence, long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long seen = signals;
+        while (head <= sequence && !closed && signals == seen) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            wait(remaining);
+        }
+        return head > sequence;
+    }
+
+    /**
+     * Reads the output written since a sequence number. A multi-byte
+     * character split by the end of the output is left for the next read.
+     *
+     * @param sequence
+     *            The sequence number to read from.
+     * @return The output available.
+     */
+    public synchronized Chunk read(long sequence) {
+        long oldest = Math.max(0, head - buf.length);
+        long start = Math.min(Math.max(sequence, oldest), head);
+        long end = head;
+        if (sequence < oldest) {
+            // Output was discarded; skip to the next character
+            while (start < end && isContinuation(byteAt(start))) {
+                start++;
+            }
+        }
+        // Hold back an incomplete character at the end
+        for (long p = end - 1; p >= start && p >= end - 3; p--) {
+            int b = byteAt(p) & 0xFF;
+            if (!isContinuation((byte) b)) {
+                int length = (b >= 0xF0) ? 4 : (b >= 0xE0) ? 3
+                        : (b >= 0xC0) ? 2 : 1;
+                if (end - p < length) {
+                    end = p;
+                }
+                break;
+            }
+        }
+        byte[] bytes = new byte[(int) Math.max(0, end - start)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = byteAt(start + i);
+        }
+        String text;
+        try {
+            text = new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return new Chunk(start, start + bytes.length, Math.max(0, start
+                - sequence), text);
+    }
+
+    private byte byteAt(long sequence) {
+        return buf[(int) (sequence % buf.length)];
+    }
+
+    private static boolean isContinuation(byte b) {
+        return (b & 0xC0) == 0x80;
+    }
+}
@@ -0,0 +1,340 @@
+package com.occamlab.te.util;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link ResultStore} kept in an embedded Derby database in the log
+ * directory. Each closed log is recorded as a row in TESTS; the tests it
+ * called, its cache and request entries and its verdict are kept in separate
+ * tables keyed by test path, so the summaries for a whole session can be
+ * loaded with a handful of range queries.
+ *
+ * <p>
+ * An embedded database can be opened by one JVM at a time. If it is already
+ * in use the store cannot be created and the logs are read directly.
+ * </p>
+ */
+public class DerbyResultStore implements ResultStore {
+
+    private static final Logger LOGR = Logger
+            .getLogger(DerbyResultStore.class.getName());
+    /** Name of the database directory within the log directory. */
+    public static final String DATABASE_DIR = ".results";
+    static final String DRIVER = "org.apache.derby.jdbc.EmbeddedDriver";
+    // Known starttest attributes and the columns they are stored in
+    static final String[] ATTRIBUTES = { "local-name", "prefix",
+            "namespace-uri", "type", "defaultResult", "path", "file" };
+    static final String[] SCHEMA = {
+            "CREATE TABLE SESSIONS (ID VARCHAR(255) PRIMARY KEY, CREATED BIGINT NOT NULL)",
+            "CREATE TABLE TESTS (PATH VARCHAR(1024) PRIMARY KEY,"
+                    + " SESSION_ID VARCHAR(255) NOT NULL REFERENCES SESSIONS (ID),"
+                    + " LOCAL_NAME VARCHAR(255), PREFIX VARCHAR(255),"
+                    + " NAMESPACE_URI VARCHAR(1024), TEST_TYPE VARCHAR(64),"
+                    + " DEFAULT_RESULT VARCHAR(16), TEST_PATH VARCHAR(1024),"
+                    + " TEMPLATE_FILE VARCHAR(2048))",
+            "CREATE INDEX TESTS_SESSION ON TESTS (SESSION_ID)",
+            "CREATE TABLE VERDICTS (PATH VARCHAR(1024) PRIMARY KEY, RESULT INT NOT NULL)",
+            "CREATE TABLE TEST_CALLS (PARENT_PATH VARCHAR(1024) NOT NULL,"
+                    + " SEQ INT NOT NULL, PATH VARCHAR(1024) NOT NULL,"
+                    + " PRIMARY KEY (PARENT_PATH, SEQ))",
+            "CREATE TABLE REQUESTS (PATH VARCHAR(1024) NOT NULL,"
+                    + " SEQ INT NOT NULL, REQUEST_ID VARCHAR(1024),"
+                    + " PRIMARY KEY (PATH, SEQ))",
+            "CREATE TABLE CACHE_ENTRIES (PATH VARCHAR(1024) NOT NULL,"
+                    + " SEQ INT NOT NULL, CACHE_ID VARCHAR(1024),"
+                    + " PRIMARY KEY (PATH, SEQ))" };
+    // Tables holding rows that belong to a single test, and their key column
+    static final String[][] TEST_TABLES = { { "TEST_CALLS", "PARENT_PATH" },
+            { "REQUESTS", "PATH" }, { "CACHE_ENTRIES", "PATH" },
+            { "VERDICTS", "PATH" }, { "TESTS", "PATH" } };
+
+    private final File dir;
+    private Connection conn;
+
+    /**
+     * Opens the store for a log directory, creating the database if it does
+     * not exist.
+     *
+     * @param logDir
+     *            The directory containing the test session results.
+     * @throws Exception
+     *             If the database cannot be opened.
+     */
+    public DerbyResultStore(File logDir) throws Exception {
+        this.dir = new File(logDir, DATABASE_DIR).getAbsoluteFile();
+        if (System.getProperty("derby.stream.error.file") == null) {
+            System.setProperty("derby.stream.error.file", new File(logDir,
+                    "derby.log").getAbsolutePath());
+        }
+        Class.forName(DRIVER);
+        conn = DriverManager.getConnection("jdbc:derby:" + dir.getPath()
+                + ";create=true");
+        conn.setAutoCommit(false);
+        createSchema();
+    }
+
+    private void createSchema() throws SQLException {
+        DatabaseMetaData md = conn.getMetaData();
+        ResultSet rs = md.getTables(null, null, "TESTS", null);
+        boolean exists = rs.next();
+        rs.close();
+        if (!exists) {
+            Statement stmt = conn.createStatement();
+            try {
+                for (String sql : SCHEMA) {
+                    stmt.execute(sql);
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                stmt.close();
+            }
+            LOGR.config("Created result store in " + dir);
+        }
+    }
+
+    public synchronized void put(LogSummary summary) throws Exception {
+        String path = summary.getPath();
+        for (String name : summary.getAttributes().keySet()) {
+            if (indexOf(name) < 0) {
+                // Logs with other attributes are read directly
+                LOGR.fine("Not storing " + path + ": unknown attribute "
+                        + name);
+                remove(path);
+                return;
+            }
+        }
+        try {
+            delete(path, false);
+            String session = getSessionId(path);
+            PreparedStatement ps = conn
+                    .prepareStatement("SELECT ID FROM SESSIONS WHERE ID = ?");
+            ps.setString(1, session);
+            ResultSet rs = ps.executeQuery();
+            boolean exists = rs.next();
+            rs.close();
+            ps.close();
+            if (!exists) {
+                ps = conn.prepareStatement("INSERT INTO SESSIONS VALUES (?, ?)");
+                ps.setString(1, session);
+                ps.setLong(2, System.currentTimeMillis());
+                ps.executeUpdate();
+                ps.close();
+            }
+            ps = conn.prepareStatement("INSERT INTO TESTS VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            ps.setString(1, path);
+            ps.setString(2, session);
+            for (int i = 0; i < ATTRIBUTES.length; i++) {
+                ps.setString(i + 3, summary.getAttributes().get(ATTRIBUTES[i]));
+            }
+            ps.executeUpdate();
+            ps.close();
+            if (summary.isComplete()) {
+                ps = conn.prepareStatement("INSERT INTO VERDICTS VALUES (?, ?)");
+                ps.setString(1, path);
+                ps.setInt(2, summary.getResult());
+                ps.executeUpdate();
+                ps.close();
+            }
+            insert("TEST_CALLS", path, summary.getCalls());
+            insert("REQUESTS", path, summary.getRequestIds());
+            insert("CACHE_ENTRIES", path, summary.getCacheIds());
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        }
+    }
+
+    private void insert(String table, String path, List<String> values)
+            throws SQLException {
+        if (values.isEmpty()) {
+            return;
+        }
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO " + table
+                + " VALUES (?, ?, ?)");
+        try {
+            for (int i = 0; i < values.size(); i++) {
+                ps.setString(1, path);
+                ps.setInt(2, i);
+                ps.setString(3, values.get(i));
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        } finally {
+            ps.close();
+        }
+    }
+
+    public synchronized LogSummary get(String path) throws Exception {
+        Map<String, LogSummary> map = load(path, false);
+        return map.get(path);
+    }
+
+    public synchronized Map<String, LogSummary> getAll(String path)
+            throws Exception {
+        return load(path, true);
+    }
+
+    // Loads the summary of a test and optionally those of its descendants
+    private Map<String, LogSummary> load(String path, boolean descendants)
+            throws SQLException {
+        Map<String, LogSummary> map = new LinkedHashMap<String, LogSummary>();
+        try {
+            PreparedStatement ps = select("SELECT T.*, V.RESULT FROM TESTS T"
+                    + " LEFT OUTER JOIN VERDICTS V ON T.PATH = V.PATH WHERE",
+                    "T.PATH", "", path, descendants);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                LogSummary summary = new LogSummary(rs.getString("PATH"));
+                for (int i = 0; i < ATTRIBUTES.length; i++) {
+                    String value = rs.getString(i + 3);
+                    if (value != null) {
+                        summary.getAttributes().put(ATTRIBUTES[i], value);
+                    }
+                }
+                int result = rs.getInt("RESULT");
+                if (!rs.wasNull()) {
+                    summary.setResult(result);
+                }
+                map.put(summary.getPath(), summary);
+            }
+            rs.close();
+            ps.close();
+            if (!map.isEmpty()) {
+                loadList(map, "TEST_CALLS", "PARENT_PATH", path, descendants);
+                loadList(map, "REQUESTS", "PATH", path, descendants);
+                loadList(map, "CACHE_ENTRIES", "PATH", path, descendants);
+            }
+        } finally {
+            conn.commit();
+        }
+        return map;
+    }
+
+    private void loadList(Map<String, LogSummary> map, String table,
+            String key, String path, boolean descendants) throws SQLException {
+        PreparedStatement ps = select("SELECT * FROM " + table + " WHERE",
+                key, " ORDER BY " + key + ", SEQ", path, descendants);
+        ResultSet rs = ps.executeQuery();
+        while (rs.next()) {
+            LogSummary summary = map.get(rs.getString(1));
+            if (summary != null) {
+                String value = rs.getString(3);
+                if (table.equals("TEST_CALLS")) {
+                    summary.getCalls().add(value);
+                } else if (table.equals("REQUESTS")) {
+                    summary.getRequestIds().add(value);
+                } else {
+                    summary.getCacheIds().add(value);
+                }
+            }
+        }
+        rs.close();
+        ps.close();
+    }
+
+    // Prepares a statement selecting the rows for a test path. Descendants
+    // are selected by a range over the key rather than LIKE, since test
+    // paths may contain '_'.
+    private PreparedStatement select(String sql, String key, String suffix,
+            String path, boolean descendants) throws SQLException {
+        PreparedStatement ps;
+        if (descendants) {
+            ps = conn.prepareStatement(sql + " (" + key + " = ? OR (" + key
+                    + " > ? AND " + key + " < ?))" + suffix);
+            ps.setString(2, path + "/");
+            ps.setString(3, path + "0");
+        } else {
+            ps = conn.prepareStatement(sql + " " + key + " = ?" + suffix);
+        }
+        ps.setString(1, path);
+        return ps;
+    }
+
+    public synchronized void remove(String path) throws Exception {
+        try {
+            delete(path, false);
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        }
+    }
+
+    public synchronized void removeAll(String path) throws Exception {
+        try {
+            delete(path, true);
+            if (path.indexOf('/') < 0) {
+                PreparedStatement ps = conn
+                        .prepareStatement("DELETE FROM SESSIONS WHERE ID = ?");
+                ps.setString(1, path);
+                ps.executeUpdate();
+                ps.close();
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        }
+    }
+
+    private void delete(String path, boolean descendants) throws SQLException {
+        for (String[] table : TEST_TABLES) {
+            PreparedStatement ps = select("DELETE FROM " + table[0] + " WHERE",
+                    table[1], "", path, descendants);
+            ps.executeUpdate();
+            ps.close();
+        }
+    }
+
+    public synchronized void close() {
+        if (conn == null) {
+            return;
+        }
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            LOGR.log(Level.FINE, "Failed to close result store " + dir, e);
+        }
+        conn = null;
+        try {
+            DriverManager.getConnection("jdbc:derby:" + dir.getPath()
+                    + ";shutdown=true");
+        } catch (SQLException e) {
+            // Derby reports a successful shutdown with SQLState 08006
+            if (!"08006".equals(e.getSQLState())) {
+                LOGR.log(Level.WARNING, "Failed to shut down result store "
+                        + dir, e);
+            }
+        }
+    }
+
+    static int indexOf(String attribute) {
+        for (int i = 0; i < ATTRIBUTES.length; i++) {
+            if (ATTRIBUTES[i].equals(attribute)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static String getSessionId(String path) {
+        int i = path.indexOf('/');
+        return (i < 0) ? path : path.substring(0, i);
+    }
+}
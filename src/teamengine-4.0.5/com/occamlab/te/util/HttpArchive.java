@@ -0,0 +1,277 @@
+package com.occamlab.te.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * An append-only file of recorded HTTP responses, keyed by a fingerprint of
+ * the request that produced them. Response bodies are stored deflated. An
+ * index of record offsets is built by scanning the record headers when the
+ * archive is first read; a record that was only partly written is ignored and
+ * overwritten by the next append.
+ *
+ * <p>
+ * Record layout: record length (int), request fingerprint, response code
+ * (int), response message, header count (int) followed by the header names
+ * and values, uncompressed body length (int) and the deflated body. Strings
+ * are written in modified UTF-8, preceded by a flag that is false for null
+ * values.
+ * </p>
+ */
+public class HttpArchive {
+
+    private static final Logger LOGR = Logger.getLogger(HttpArchive.class
+            .getName());
+    /** Name of the archive file in a session directory. */
+    public static final String ARCHIVE_FILE = "http.archive";
+    static final byte[] MAGIC = { 'T', 'E', 'H', 'T', 'T', 'P', '0', '1' };
+
+    private final File file;
+    // Offsets of the records for each fingerprint, in order of recording
+    private final Map<String, List<Long>> records = new HashMap<String, List<Long>>();
+    private long end = 0; // Offset following the last complete record
+
+    /** A recorded HTTP response. */
+    public static class Response {
+        int code;
+        String message;
+        // Header names and values; the status line has a null name
+        List<String[]> headers = new ArrayList<String[]>();
+        byte[] body;
+
+        public int getCode() {
+            return code;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public List<String[]> getHeaders() {
+            return headers;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+
+    public HttpArchive(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Appends a response to the archive.
+     *
+     * @param fingerprint
+     *            The fingerprint of the request.
+     * @param response
+     *            The response received.
+     * @throws IOException
+     *             If the archive cannot be written.
+     */
+    public synchronized void add(String fingerprint, Response response)
+            throws IOException {
+        refresh();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(
+                response.body.length / 4 + 256);
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(0);
+        writeString(dos, fingerprint);
+        dos.writeInt(response.code);
+        writeString(dos, response.message);
+        dos.writeInt(response.headers.size());
+        for (String[] header : response.headers) {
+            writeString(dos, header[0]);
+            writeString(dos, header[1]);
+        }
+        dos.writeInt(response.body.length);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(response.body);
+        deflater.finish();
+        byte[] buf = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            dos.write(buf, 0, n);
+        }
+        deflater.end();
+        dos.flush();
+        byte[] record = baos.toByteArray();
+        int length = record.length - 4;
+        record[0] = (byte) (length >>> 24);
+        record[1] = (byte) (length >>> 16);
+        record[2] = (byte) (length >>> 8);
+        record[3] = (byte) length;
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            if (end == 0) {
+                out.setLength(0);
+                out.write(MAGIC);
+                end = MAGIC.length;
+            }
+            // Overwrites a partial record left by an interrupted write
+            out.seek(end);
+            out.write(record);
+            if (out.length() > end + record.length) {
+                out.setLength(end + record.length);
+            }
+        } finally {
+            out.close();
+        }
+        index(fingerprint, end);
+        end += record.length;
+    }
+
+    /**
+     * Returns a recorded response.
+     *
+     * @param fingerprint
+     *            The fingerprint of the request.
+     * @param n
+     *            The number of earlier requests with the same fingerprint;
+     *            if fewer responses were recorded the last one is returned.
+     * @return The response, or {@code null} if none was recorded for the
+     *         request.
+     * @throws IOException
+     *             If the archive cannot be read.
+     */
+    public synchronized Response get(String fingerprint, int n)
+            throws IOException {
+        refresh();
+        List<Long> offsets = records.get(fingerprint);
+        if (offsets == null) {
+            return null;
+        }
+        long offset = offsets.get(Math.min(n, offsets.size() - 1));
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.seek(offset);
+            byte[] record = new byte[in.readInt()];
+            in.readFully(record);
+            return readResponse(record);
+        } finally {
+            in.close();
+        }
+    }
+
+    private Response readResponse(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                record));
+        Response response = new Response();
+        readString(in); // fingerprint
+        response.code = in.readInt();
+        response.message = readString(in);
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            response.headers.add(new String[] { readString(in),
+                    readString(in) });
+        }
+        response.body = new byte[in.readInt()];
+        int offset = record.length - in.available();
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(record, offset, record.length - offset);
+            int pos = 0;
+            while (pos < response.body.length) {
+                int n = inflater.inflate(response.body, pos,
+                        response.body.length - pos);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new EOFException("Truncated response body in "
+                            + file);
+                }
+                pos += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt response body in " + file, e);
+        } finally {
+            inflater.end();
+        }
+        return response;
+    }
+
+    // Reads the headers of any records appended since the last scan
+    private void refresh() throws IOException {
+        long length = file.length();
+        if (length < end) {
+            // The archive was removed or replaced
+            records.clear();
+            end = 0;
+        }
+        if (length <= end || length < MAGIC.length) {
+            return;
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (end == 0) {
+                byte[] magic = new byte[MAGIC.length];
+                in.readFully(magic);
+                if (!Arrays.equals(magic, MAGIC)) {
+                    throw new IOException(file + " is not an HTTP archive.");
+                }
+                end = MAGIC.length;
+            }
+            while (end + 4 <= length) {
+                in.seek(end);
+                int recordLength = in.readInt();
+                if (recordLength < 0 || end + 4 + recordLength > length) {
+                    if (LOGR.isLoggable(Level.FINE)) {
+                        LOGR.fine("Ignoring incomplete record at offset "
+                                + end + " of " + file);
+                    }
+                    break;
+                }
+                String fingerprint;
+                try {
+                    fingerprint = in.readBoolean() ? in.readUTF() : null;
+                } catch (EOFException e) {
+                    break;
+                }
+                index(fingerprint, end);
+                end += 4 + recordLength;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void index(String fingerprint, long offset) {
+        List<Long> offsets = records.get(fingerprint);
+        if (offsets == null) {
+            offsets = new ArrayList<Long>(1);
+            records.put(fingerprint, offsets);
+        }
+        offsets.add(offset);
+    }
+
+    static void writeString(DataOutputStream dos, String s) throws IOException {
+        dos.writeBoolean(s != null);
+        if (s != null) {
+            dos.writeUTF(s);
+        }
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
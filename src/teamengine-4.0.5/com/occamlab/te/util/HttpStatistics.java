@@ -0,0 +1,94 @@
+package com.occamlab.te.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cumulative counters for the HTTP exchanges made by tests. Times are
+ * measured from the start of the exchange: connect time until the connection
+ * is established (or taken from the keep-alive cache), time to first byte
+ * from the end of the request until the response headers have been received.
+ */
+public class HttpStatistics {
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong connectTime = new AtomicLong();
+    private final AtomicLong firstByteTime = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    void addRequest(long connectNanos) {
+        requests.incrementAndGet();
+        connectTime.addAndGet(connectNanos);
+    }
+
+    void addFailure() {
+        failures.incrementAndGet();
+    }
+
+    void addFirstByteTime(long nanos) {
+        firstByteTime.addAndGet(nanos);
+    }
+
+    void addBytesSent(long n) {
+        bytesSent.addAndGet(n);
+    }
+
+    void addBytesReceived(long n) {
+        bytesReceived.addAndGet(n);
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Returns the total time spent establishing connections.
+     *
+     * @return The cumulative connect time in milliseconds.
+     */
+    public long getTotalConnectTime() {
+        return connectTime.get() / 1000000L;
+    }
+
+    /**
+     * Returns the total time spent waiting for response headers.
+     *
+     * @return The cumulative time to first byte in milliseconds.
+     */
+    public long getTotalFirstByteTime() {
+        return firstByteTime.get() / 1000000L;
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * Returns the number of response bytes read as received, before any content
+     * decoding.
+     *
+     * @return The number of bytes received.
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("HttpStatistics {");
+        sb.append("requests=").append(requests.get()).append(", ");
+        sb.append("failures=").append(failures.get()).append(", ");
+        sb.append("connectTime=").append(getTotalConnectTime())
+                .append("ms, ");
+        sb.append("firstByteTime=").append(getTotalFirstByteTime())
+                .append("ms, ");
+        sb.append("bytesSent=").append(bytesSent.get()).append(", ");
+        sb.append("bytesReceived=").append(bytesReceived.get()).append("}");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,387 @@
+package com.occamlab.te.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Opens the connections used to submit HTTP requests on behalf of a test
+ * (ctl:request and ctl:soap-request). In passthrough mode connections are
+ * opened as usual. In record mode every exchange is also stored in an
+ * {@link HttpArchive}; in replay mode requests are answered from the archive
+ * without using the network, which makes it possible to re-run a session
+ * offline and with repeatable timings.
+ *
+ * <p>
+ * Connections to http(s) URLs are opened with the JDK HttpURLConnection,
+ * which keeps idle connections alive for reuse, and are wrapped in a
+ * {@link MeteredHttpConnection}. The following system properties apply:
+ * </p>
+ * <ul>
+ * <li>te.http.connectTimeout, te.http.readTimeout: timeouts in milliseconds
+ * (default 0, i.e. none)</li>
+ * <li>te.http.maxConnectionsPerHost: the maximum number of requests awaiting
+ * a response from the same host (default 0, i.e. no limit). It also sets the
+ * size of the keep-alive cache per host unless http.maxConnections is set.</li>
+ * <li>te.http.compression: if true, gzip and deflate content encodings are
+ * accepted and decoded (default false)</li>
+ * <li>te.http.streamThreshold: request bodies larger than this many bytes
+ * are streamed rather than buffered (default 1048576)</li>
+ * </ul>
+ *
+ * <p>
+ * Requests are matched by a fingerprint of the method, URL, request headers
+ * and body. If the same request is submitted several times the recorded
+ * responses are replayed in the order they were received; once they are used
+ * up the last one is repeated.
+ * </p>
+ */
+public class HttpTransport {
+
+    private static final Logger LOGR = Logger.getLogger(HttpTransport.class
+            .getName());
+    public static final String PASSTHROUGH_MODE = "passthrough";
+    public static final String RECORD_MODE = "record";
+    public static final String REPLAY_MODE = "replay";
+    /** A transport that opens connections directly. */
+    public static final HttpTransport DIRECT = new HttpTransport(
+            PASSTHROUGH_MODE, null);
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final int CONNECT_TIMEOUT = Integer.getInteger(
+            "te.http.connectTimeout", 0);
+    static final int READ_TIMEOUT = Integer.getInteger("te.http.readTimeout",
+            0);
+    static final int MAX_PER_HOST = Integer.getInteger(
+            "te.http.maxConnectionsPerHost", 0);
+    static final boolean COMPRESSION = Boolean
+            .getBoolean("te.http.compression");
+    static final int STREAM_THRESHOLD = Integer.getInteger(
+            "te.http.streamThreshold", 1 << 20);
+    private static final HttpStatistics statistics = new HttpStatistics();
+    // Request limits by host and port
+    private static final Map<String, Semaphore> hostLimits = new HashMap<String, Semaphore>();
+    // Archives in use by file, so that sessions using the same file append
+    // to it in turn; an archive is dropped once no transport refers to it
+    private static final Map<File, WeakReference<HttpArchive>> archives = new HashMap<File, WeakReference<HttpArchive>>();
+
+    static {
+        if (MAX_PER_HOST > 0
+                && System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections",
+                    Integer.toString(MAX_PER_HOST));
+        }
+        Metrics.register("http_requests_total", new Metrics.Gauge() {
+            public long getValue() {
+                return statistics.getRequestCount();
+            }
+        });
+        Metrics.register("http_failures_total", new Metrics.Gauge() {
+            public long getValue() {
+                return statistics.getFailureCount();
+            }
+        });
+        Metrics.register("http_sent_bytes_total", new Metrics.Gauge() {
+            public long getValue() {
+                return statistics.getBytesSent();
+            }
+        });
+        Metrics.register("http_received_bytes_total", new Metrics.Gauge() {
+            public long getValue() {
+                return statistics.getBytesReceived();
+            }
+        });
+    }
+
+    private final String mode;
+    private final HttpArchive archive;
+    // Number of requests replayed so far for each fingerprint
+    private final Map<String, Integer> replayed = new HashMap<String, Integer>();
+
+    HttpTransport(String mode, HttpArchive archive) {
+        this.mode = mode;
+        this.archive = archive;
+    }
+
+    /**
+     * Creates a transport for a mode and archive. Each test session has its
+     * own transport, so that what one session has replayed does not affect
+     * another; sessions that use the same archive file share the archive.
+     *
+     * @param mode
+     *            One of PASSTHROUGH_MODE, RECORD_MODE or REPLAY_MODE.
+     * @param archiveFile
+     *            The archive to record to or replay from; ignored in
+     *            passthrough mode.
+     * @return A transport, or DIRECT in passthrough mode.
+     */
+    public static HttpTransport getInstance(String mode, File archiveFile) {
+        if (mode == null || mode.equals(PASSTHROUGH_MODE)) {
+            return DIRECT;
+        }
+        if (!mode.equals(RECORD_MODE) && !mode.equals(REPLAY_MODE)) {
+            throw new IllegalArgumentException("Invalid HTTP transport mode: "
+                    + mode);
+        }
+        if (archiveFile == null) {
+            throw new IllegalArgumentException(
+                    "An archive is required to " + mode + " HTTP requests");
+        }
+        return new HttpTransport(mode, getArchive(archiveFile
+                .getAbsoluteFile()));
+    }
+
+    // Returns the archive for a file, shared while it is in use
+    private static HttpArchive getArchive(File f) {
+        synchronized (archives) {
+            Iterator<WeakReference<HttpArchive>> it = archives.values()
+                    .iterator();
+            while (it.hasNext()) {
+                if (it.next().get() == null) {
+                    it.remove();
+                }
+            }
+            WeakReference<HttpArchive> ref = archives.get(f);
+            HttpArchive archive = (ref == null) ? null : ref.get();
+            if (archive == null) {
+                archive = new HttpArchive(f);
+                archives.put(f, new WeakReference<HttpArchive>(archive));
+            }
+            return archive;
+        }
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public HttpArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * Returns the counters for all HTTP exchanges made by this JVM.
+     *
+     * @return The HTTP statistics.
+     */
+    public static HttpStatistics getStatistics() {
+        return statistics;
+    }
+
+    public boolean isCompressionEnabled() {
+        return COMPRESSION;
+    }
+
+    /**
+     * Returns the size above which request bodies are streamed.
+     *
+     * @return The threshold in bytes.
+     */
+    public int getStreamThreshold() {
+        return STREAM_THRESHOLD;
+    }
+
+    // Returns the host and port of a URL
+    static String hostKey(URL url) {
+        int port = (url.getPort() < 0) ? url.getDefaultPort() : url.getPort();
+        return url.getHost().toLowerCase() + ":" + port;
+    }
+
+    // Returns the semaphore limiting requests to the host of a URL
+    Semaphore getHostLimit(URL url) {
+        if (MAX_PER_HOST <= 0) {
+            return null;
+        }
+        String key = hostKey(url);
+        synchronized (hostLimits) {
+            Semaphore semaphore = hostLimits.get(key);
+            if (semaphore == null) {
+                semaphore = new Semaphore(MAX_PER_HOST, true);
+                hostLimits.put(key, semaphore);
+            }
+            return semaphore;
+        }
+    }
+
+    /**
+     * Opens a connection to a URL. Requests to other than http(s) URLs are
+     * never recorded.
+     *
+     * @param url
+     *            The URL to connect to.
+     * @return A URLConnection that has not been connected yet.
+     * @throws IOException
+     *             If the connection cannot be opened.
+     */
+    public URLConnection openConnection(URL url) throws IOException {
+        String protocol = url.getProtocol();
+        if (!(protocol.equals("http") || protocol.equals("https"))) {
+            return url.openConnection();
+        }
+        if (archive == null) {
+            return openDirect(url);
+        }
+        return new BufferedHttpConnection(url, this);
+    }
+
+    // Opens a network connection to an http(s) URL
+    HttpURLConnection openDirect(URL url) throws IOException {
+        HttpURLConnection uc = (HttpURLConnection) url.openConnection();
+        if (CONNECT_TIMEOUT > 0) {
+            uc.setConnectTimeout(CONNECT_TIMEOUT);
+        }
+        if (READ_TIMEOUT > 0) {
+            uc.setReadTimeout(READ_TIMEOUT);
+        }
+        return new MeteredHttpConnection(uc, this);
+    }
+
+    // Obtains the response to a buffered request
+    HttpArchive.Response exchange(BufferedHttpConnection request)
+            throws IOException {
+        byte[] body = request.getRequestBody();
+        String fingerprint = fingerprint(request.getRequestMethod(), request
+                .getURL().toString(), request.getRequestProperties(), body);
+        if (mode.equals(REPLAY_MODE)) {
+            int n;
+            synchronized (replayed) {
+                Integer count = replayed.get(fingerprint);
+                n = (count == null) ? 0 : count;
+                replayed.put(fingerprint, n + 1);
+            }
+            HttpArchive.Response response = archive.get(fingerprint, n);
+            if (response == null) {
+                throw new IOException("No recorded response for "
+                        + request.getRequestMethod() + " " + request.getURL()
+                        + " in " + archive.getFile());
+            }
+            return response;
+        }
+        HttpArchive.Response response = send(request, body);
+        archive.add(fingerprint, response);
+        if (LOGR.isLoggable(Level.FINE)) {
+            LOGR.fine("Recorded " + request.getRequestMethod() + " "
+                    + request.getURL() + " (" + response.getCode() + ", "
+                    + response.getBody().length + " bytes)");
+        }
+        return response;
+    }
+
+    // Submits a buffered request and reads the complete response
+    HttpArchive.Response send(BufferedHttpConnection request, byte[] body)
+            throws IOException {
+        HttpURLConnection uc = openDirect(request.getURL());
+        uc.setRequestMethod(request.getRequestMethod());
+        uc.setInstanceFollowRedirects(request.getInstanceFollowRedirects());
+        if (request.getConnectTimeout() > 0) {
+            uc.setConnectTimeout(request.getConnectTimeout());
+        }
+        if (request.getReadTimeout() > 0) {
+            uc.setReadTimeout(request.getReadTimeout());
+        }
+        for (Map.Entry<String, List<String>> property : request
+                .getRequestProperties().entrySet()) {
+            for (String value : property.getValue()) {
+                uc.addRequestProperty(property.getKey(), value);
+            }
+        }
+        if (body != null) {
+            uc.setDoOutput(true);
+            if (body.length > STREAM_THRESHOLD) {
+                uc.setFixedLengthStreamingMode(body.length);
+            }
+            OutputStream os = uc.getOutputStream();
+            os.write(body);
+            os.close();
+        }
+        HttpArchive.Response response = new HttpArchive.Response();
+        response.code = uc.getResponseCode();
+        response.message = uc.getResponseMessage();
+        for (int i = 0;; i++) {
+            String key = uc.getHeaderFieldKey(i);
+            String value = uc.getHeaderField(i);
+            if (key == null && value == null) {
+                break;
+            }
+            response.headers.add(new String[] { key, value });
+        }
+        InputStream is = URLConnectionUtils.getInputStream(uc);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        if (is != null) {
+            try {
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = is.read(buf)) > 0) {
+                    baos.write(buf, 0, n);
+                }
+            } finally {
+                is.close();
+            }
+        }
+        response.body = baos.toByteArray();
+        return response;
+    }
+
+    /**
+     * Computes the fingerprint of a request.
+     *
+     * @param method
+     *            The request method.
+     * @param url
+     *            The request URL.
+     * @param headers
+     *            The request headers; names are compared ignoring case.
+     * @param body
+     *            The request body, or {@code null} if there is none.
+     * @return A hexadecimal SHA-1 digest.
+     */
+    public static String fingerprint(String method, String url,
+            Map<String, List<String>> headers, byte[] body) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        md.update((method + " " + url + "\n").getBytes(UTF8));
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (header.getKey() != null) {
+                for (String value : header.getValue()) {
+                    lines.add(header.getKey().toLowerCase() + ": " + value);
+                }
+            }
+        }
+        Collections.sort(lines);
+        for (String line : lines) {
+            md.update((line + "\n").getBytes(UTF8));
+        }
+        md.update((byte) '\n');
+        if (body != null) {
+            md.update(body);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
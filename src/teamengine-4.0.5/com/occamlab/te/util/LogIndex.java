@@ -0,0 +1,117 @@
+package com.occamlab.te.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Indexes the elements of a log document that are looked up by id when a
+ * session is resumed or a cached value is retrieved (request, soap-request,
+ * formresults and cache). The log is traversed once when the index is
+ * created; the index is not updated if the document changes afterwards.
+ * Instances are immutable and may be shared between threads.
+ */
+public class LogIndex {
+
+    /** The element names indexed by default. */
+    public static final String[] TAG_NAMES = { "request", "soap-request",
+            "formresults", "cache" };
+
+    private final Document log;
+    // Elements by tag name and id attribute, in document order
+    private final Map<String, Map<String, List<Element>>> elements = new HashMap<String, Map<String, List<Element>>>();
+
+    /**
+     * Creates an index of the default element names.
+     *
+     * @param log
+     *            A log document.
+     */
+    public LogIndex(Document log) {
+        this(log, TAG_NAMES);
+    }
+
+    /**
+     * Creates an index of elements with the given names. Names are compared
+     * with the qualified element name, as by
+     * {@link Document#getElementsByTagName(String)}.
+     *
+     * @param log
+     *            A log document.
+     * @param tagNames
+     *            The names of the elements to index.
+     */
+    public LogIndex(Document log, String[] tagNames) {
+        this.log = log;
+        for (String tagName : tagNames) {
+            elements.put(tagName, new HashMap<String, List<Element>>());
+        }
+        add(log);
+    }
+
+    // Adds the descendants of a node in document order
+    private void add(Node node) {
+        for (Node n = node.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n.getNodeType() == Node.ELEMENT_NODE) {
+                Element e = (Element) n;
+                Map<String, List<Element>> byId = elements.get(e.getNodeName());
+                if (byId != null) {
+                    String id = e.getAttribute("id");
+                    List<Element> list = byId.get(id);
+                    if (list == null) {
+                        list = new ArrayList<Element>(1);
+                        byId.put(id, list);
+                    }
+                    list.add(e);
+                }
+                add(e);
+            }
+        }
+    }
+
+    public Document getDocument() {
+        return log;
+    }
+
+    /**
+     * Returns the first element with the given name and id.
+     *
+     * @param tagName
+     *            The element name.
+     * @param id
+     *            The value of the id attribute.
+     * @return The element, or {@code null} if there is none.
+     */
+    public Element getFirst(String tagName, String id) {
+        List<Element> list = get(tagName, id);
+        return list.isEmpty() ? null : list.get(0);
+    }
+
+    /**
+     * Returns the last element with the given name and id.
+     *
+     * @param tagName
+     *            The element name.
+     * @param id
+     *            The value of the id attribute.
+     * @return The element, or {@code null} if there is none.
+     */
+    public Element getLast(String tagName, String id) {
+        List<Element> list = get(tagName, id);
+        return list.isEmpty() ? null : list.get(list.size() - 1);
+    }
+
+    private List<Element> get(String tagName, String id) {
+        Map<String, List<Element>> byId = elements.get(tagName);
+        if (byId == null) {
+            throw new IllegalArgumentException(tagName + " is not indexed");
+        }
+        List<Element> list = byId.get(id);
+        return (list == null) ? new ArrayList<Element>(0) : list;
+    }
+}
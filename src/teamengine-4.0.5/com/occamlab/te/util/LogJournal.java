@@ -0,0 +1,431 @@
+package com.occamlab.te.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append-only journal holding all test logs of a session in a single file.
+ * Each record is length-prefixed and carries the test path it belongs to, so a
+ * log written in several flushes is stored as a series of chunks that may be
+ * interleaved with the chunks of other logs. An in-memory index maps each test
+ * path to its chunks; it is rebuilt by scanning the record headers when a
+ * journal is first opened. A record that was only partly written (e.g. when
+ * the process was killed) is ignored and overwritten by the next append. The
+ * file is kept open for appending while any log is being written.
+ * Journals are cached per JVM; the cache holds at most "te.journalCacheSize"
+ * (default 32) indexes of journals that are not being written to.
+ *
+ * <p>
+ * Record layout: record length (int), type (byte), time stamp (long), test
+ * path (modified UTF-8), followed by the UTF-8 encoded log content.
+ * </p>
+ */
+public class LogJournal {
+
+    private static final Logger LOGR = Logger.getLogger(LogJournal.class
+            .getName());
+    /** Name of the journal file in a session directory. */
+    public static final String JOURNAL_FILE = "session.journal";
+    static final byte[] MAGIC = { 'T', 'E', 'J', 'R', 'N', 'L', '0', '1' };
+    static final byte CREATE = 1; // Starts (or restarts) a log
+    static final byte DATA = 2; // Appends content to a log
+    static final byte DELETE = 3; // Removes a log and its descendants
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final int CACHE_SIZE = Integer.getInteger("te.journalCacheSize",
+            32);
+    // Journals in access order (guarded by itself)
+    private static final LinkedHashMap<File, LogJournal> journals = new LinkedHashMap<File, LogJournal>(
+            16, 0.75f, true);
+
+    private final File file;
+    // Logs in order of creation
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private long end = 0; // Offset following the last complete record
+    private int writers = 0; // Number of open writers
+    private RandomAccessFile out = null; // Open while there are writers
+
+    /** The chunks making up one log. */
+    static class Entry {
+        long lastModified;
+        List<long[]> chunks = new ArrayList<long[]>();
+    }
+
+    LogJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the journal stored in the given session directory. Journals are
+     * shared within the JVM so that writers and readers see the same index.
+     *
+     * @param sessionDir
+     *            The session directory.
+     * @return The journal for the session (the file may not exist yet).
+     */
+    public static LogJournal getJournal(File sessionDir) {
+        File f = new File(sessionDir, JOURNAL_FILE).getAbsoluteFile();
+        synchronized (journals) {
+            LogJournal journal = journals.get(f);
+            if (journal == null) {
+                journal = new LogJournal(f);
+                journals.put(f, journal);
+                // Journals being written to stay cached so that all writers
+                // of a session append through the same instance
+                Iterator<LogJournal> it = journals.values().iterator();
+                while (journals.size() > CACHE_SIZE && it.hasNext()) {
+                    LogJournal eldest = it.next();
+                    if (eldest != journal && !eldest.isWriting()) {
+                        it.remove();
+                    }
+                }
+            }
+            return journal;
+        }
+    }
+
+    /**
+     * Determines whether a session directory contains a journal.
+     *
+     * @param sessionDir
+     *            The session directory.
+     * @return true if the journal file exists.
+     */
+    public static boolean exists(File sessionDir) {
+        return new File(sessionDir, JOURNAL_FILE).isFile();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Opens a log for writing. Any previous log with the same path is
+     * replaced. Content is appended to the journal each time the returned
+     * writer is flushed or closed.
+     *
+     * @param path
+     *            The test path.
+     * @return A Writer for the log content.
+     * @throws IOException
+     *             If the journal cannot be written.
+     */
+    public Writer createLog(String path) throws IOException {
+        synchronized (this) {
+            writers++;
+            boolean created = false;
+            try {
+                append(CREATE, path, new byte[0], 0);
+                created = true;
+            } finally {
+                if (!created) {
+                    release();
+                }
+            }
+        }
+        return new JournalWriter(path);
+    }
+
+    // Called when a writer is closed; the file is closed after the last one
+    private synchronized void release() {
+        writers--;
+        if (writers == 0) {
+            closeOutput();
+        }
+    }
+
+    private void closeOutput() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGR.log(Level.FINE, "Unable to close " + file, e);
+            }
+            out = null;
+        }
+    }
+
+    synchronized boolean isWriting() {
+        return writers > 0;
+    }
+
+    /**
+     * Removes a log, together with the logs of all tests it called.
+     *
+     * @param path
+     *            The test path.
+     * @throws IOException
+     *             If the journal cannot be written.
+     */
+    public void deleteLog(String path) throws IOException {
+        synchronized (this) {
+            refresh();
+            if (!entries.containsKey(path) && descendants(path).isEmpty()) {
+                return;
+            }
+        }
+        append(DELETE, path, new byte[0], 0);
+    }
+
+    /**
+     * Returns the content of a log.
+     *
+     * @param path
+     *            The test path.
+     * @return The UTF-8 encoded log content, or null if there is no such log.
+     * @throws IOException
+     *             If the journal cannot be read.
+     */
+    public synchronized byte[] readLog(String path) throws IOException {
+        refresh();
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            return null;
+        }
+        int size = 0;
+        for (long[] chunk : entry.chunks) {
+            size += (int) chunk[1];
+        }
+        byte[] buf = new byte[size];
+        int pos = 0;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            for (long[] chunk : entry.chunks) {
+                in.seek(chunk[0]);
+                in.readFully(buf, pos, (int) chunk[1]);
+                pos += (int) chunk[1];
+            }
+        } finally {
+            in.close();
+        }
+        return buf;
+    }
+
+    public synchronized boolean hasLog(String path) throws IOException {
+        refresh();
+        return entries.containsKey(path);
+    }
+
+    /**
+     * Returns the time a log was last written to.
+     *
+     * @param path
+     *            The test path.
+     * @return The time in milliseconds, or 0 if there is no such log.
+     * @throws IOException
+     *             If the journal cannot be read.
+     */
+    public synchronized long lastModified(String path) throws IOException {
+        refresh();
+        Entry entry = entries.get(path);
+        return (entry == null) ? 0L : entry.lastModified;
+    }
+
+    /**
+     * Returns the paths of all logs in the journal, in order of creation.
+     *
+     * @return A list of test paths.
+     * @throws IOException
+     *             If the journal cannot be read.
+     */
+    public synchronized List<String> getPaths() throws IOException {
+        refresh();
+        return new ArrayList<String>(entries.keySet());
+    }
+
+    synchronized void append(byte type, String path, byte[] data, int len)
+            throws IOException {
+        long start = System.nanoTime();
+        refresh();
+        try {
+            if (out == null) {
+                file.getParentFile().mkdirs();
+                out = new RandomAccessFile(file, "rw");
+            }
+            if (end == 0) {
+                out.setLength(0);
+                out.write(MAGIC);
+                end = MAGIC.length;
+            }
+            append(out, type, path, data, len);
+        } finally {
+            if (writers == 0) {
+                closeOutput();
+            }
+            Metrics.timer("log_write").recordSince(start);
+        }
+    }
+
+    private void append(RandomAccessFile out, byte type, String path,
+            byte[] data, int len) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(len + 64);
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(0);
+        dos.writeByte(type);
+        long time = System.currentTimeMillis();
+        dos.writeLong(time);
+        dos.writeUTF(path);
+        int header = dos.size();
+        dos.write(data, 0, len);
+        dos.flush();
+        byte[] record = baos.toByteArray();
+        int length = record.length - 4;
+        record[0] = (byte) (length >>> 24);
+        record[1] = (byte) (length >>> 16);
+        record[2] = (byte) (length >>> 8);
+        record[3] = (byte) length;
+        // Overwrites a partial record left by an interrupted write
+        out.seek(end);
+        out.write(record);
+        if (out.length() > end + record.length) {
+            out.setLength(end + record.length);
+        }
+        apply(type, path, time, end + header, len);
+        end += record.length;
+    }
+
+    // Reads any records appended since the journal was last scanned
+    private void refresh() throws IOException {
+        long length = file.length();
+        if (length < end) {
+            // The journal was removed or replaced
+            entries.clear();
+            end = 0;
+            closeOutput();
+        }
+        if (length <= end || length < MAGIC.length) {
+            return;
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (end == 0) {
+                byte[] magic = new byte[MAGIC.length];
+                in.readFully(magic);
+                if (!Arrays.equals(magic, MAGIC)) {
+                    throw new IOException(file + " is not a log journal.");
+                }
+                end = MAGIC.length;
+            }
+            while (end + 4 <= length) {
+                in.seek(end);
+                int recordLength = in.readInt();
+                if (recordLength < 0 || end + 4 + recordLength > length) {
+                    if (LOGR.isLoggable(Level.FINE)) {
+                        LOGR.fine("Ignoring incomplete record at offset "
+                                + end + " of " + file);
+                    }
+                    break;
+                }
+                byte type;
+                long time;
+                String path;
+                try {
+                    type = in.readByte();
+                    time = in.readLong();
+                    path = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                long dataOffset = in.getFilePointer();
+                long dataLength = end + 4 + recordLength - dataOffset;
+                apply(type, path, time, dataOffset, dataLength);
+                end += 4 + recordLength;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void apply(byte type, String path, long time, long offset,
+            long length) {
+        if (type == CREATE) {
+            Entry entry = new Entry();
+            entry.lastModified = time;
+            entries.remove(path);
+            entries.put(path, entry);
+        } else if (type == DATA) {
+            Entry entry = entries.get(path);
+            if (entry != null) {
+                entry.chunks.add(new long[] { offset, length });
+                entry.lastModified = time;
+            }
+        } else if (type == DELETE) {
+            entries.remove(path);
+            for (String descendant : descendants(path)) {
+                entries.remove(descendant);
+            }
+        }
+    }
+
+    private List<String> descendants(String path) {
+        List<String> list = new ArrayList<String>();
+        String prefix = path + "/";
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            String key = it.next();
+            if (key.startsWith(prefix)) {
+                list.add(key);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Buffers log content and appends it to the journal as a single record
+     * whenever it is flushed.
+     */
+    class JournalWriter extends Writer {
+        private final String path;
+        private final StringBuilder buffer = new StringBuilder();
+        private boolean closed = false;
+
+        JournalWriter(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            buffer.append(cbuf, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            buffer.append(str, off, off + len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (buffer.length() > 0) {
+                byte[] data = buffer.toString().getBytes(UTF8);
+                buffer.setLength(0);
+                LogJournal.this.append(DATA, path, data, data.length);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                synchronized (LogJournal.this) {
+                    if (!closed) {
+                        closed = true;
+                        release();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.occamlab.te.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * The parts of a test log needed to build test lists and look up results
+ * without parsing the whole log: the attributes of the starttest element, the
+ * paths of the tests it called, the identifiers of its cache and request
+ * entries and the result recorded by the endtest element.
+ */
+public class LogSummary {
+
+    private final String path;
+    private final Map<String, String> attributes = new LinkedHashMap<String, String>();
+    private final List<String> calls = new ArrayList<String>();
+    private final List<String> cacheIds = new ArrayList<String>();
+    private final List<String> requestIds = new ArrayList<String>();
+    private int result = -1;
+    private boolean complete = false; // True once an endtest has been seen
+
+    public LogSummary(String path) {
+        this.path = path;
+    }
+
+    /**
+     * Reads the summary of a log.
+     *
+     * @param path
+     *            The test path.
+     * @param log
+     *            The log document.
+     * @return The summary, or {@code null} if the source does not contain a
+     *         log element.
+     * @throws Exception
+     *             If the log cannot be parsed.
+     */
+    public static LogSummary read(String path, Source log) throws Exception {
+        Handler handler = new Handler(new LogSummary(path));
+        Transformer t = TransformerFactory.newInstance().newTransformer();
+        t.setErrorListener(new com.occamlab.te.NullErrorListener());
+        t.transform(log, new SAXResult(handler));
+        return handler.found ? handler.summary : null;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the attributes of the starttest element.
+     *
+     * @return A modifiable map of attribute values, in document order.
+     */
+    public Map<String, String> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * Returns the paths of the tests called, in the order they were called.
+     *
+     * @return A modifiable list of test paths.
+     */
+    public List<String> getCalls() {
+        return calls;
+    }
+
+    public List<String> getCacheIds() {
+        return cacheIds;
+    }
+
+    public List<String> getRequestIds() {
+        return requestIds;
+    }
+
+    /**
+     * Returns the result recorded when the test ended. Use
+     * {@link #isComplete()} to tell an incomplete log from a test that ended
+     * with a verdict of -1 (continue).
+     *
+     * @return The verdict, or -1 if the log has no endtest element.
+     */
+    public int getResult() {
+        return result;
+    }
+
+    /**
+     * Records the result of the endtest element; the log is then complete.
+     *
+     * @param result
+     *            The verdict.
+     */
+    public void setResult(int result) {
+        this.result = result;
+        this.complete = true;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    // Collects the children of the log element
+    static class Handler extends DefaultHandler {
+        final LogSummary summary;
+        boolean found = false;
+        int depth = 0;
+        int logDepth = -1;
+
+        Handler(LogSummary summary) {
+            this.summary = summary;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName,
+                Attributes atts) {
+            depth++;
+            String name = (localName == null || localName.length() == 0) ? qName
+                    : localName;
+            if (logDepth < 0) {
+                if (name.equals("log")) {
+                    logDepth = depth;
+                    found = true;
+                }
+            } else if (depth == logDepth + 1) {
+                if (name.equals("starttest")) {
+                    for (int i = 0; i < atts.getLength(); i++) {
+                        summary.attributes.put(atts.getQName(i),
+                                atts.getValue(i));
+                    }
+                } else if (name.equals("endtest")) {
+                    summary.setResult(Integer.parseInt(atts.getValue("result")));
+                } else if (name.equals("testcall")) {
+                    summary.calls.add(atts.getValue("path"));
+                } else if (name.equals("cache")) {
+                    summary.cacheIds.add(atts.getValue("id"));
+                } else if (name.equals("request")) {
+                    summary.requestIds.add(atts.getValue("id"));
+                }
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (depth == logDepth) {
+                logDepth = Integer.MAX_VALUE;
+            }
+            depth--;
+        }
+    }
+}
@@ -6,15 +6,20 @@ import java.io.CharArrayReader;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,7 +41,6 @@ import net.sf.saxon.s9api.XdmNode;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
@@ -46,9 +50,138 @@ public class LogUtils {
 
     private static final Logger LOGR = Logger.getLogger(LogUtils.class
             .getName());
+    /**
+     * True if new sessions keep their logs in a {@link LogJournal} rather
+     * than in a log.xml file per test. This is enabled by setting the
+     * "te.logFormat" system property to "journal"; existing sessions keep the
+     * format they were created with.
+     */
+    static final boolean JOURNAL = "journal".equals(System
+            .getProperty("te.logFormat"));
+
+    /**
+     * The kind of {@link ResultStore} used to index closed logs, set by the
+     * "te.resultStore" system property: "derby" for a
+     * {@link DerbyResultStore}, or the name of a class implementing
+     * ResultStore with a public constructor taking the log directory.
+     */
+    static final String RESULT_STORE = System.getProperty("te.resultStore");
+    // Result stores by log directory; null if a store could not be opened
+    private static final Map<File, ResultStore> resultStores = new HashMap<File, ResultStore>();
+
+    /**
+     * Returns the result store for a log directory, opening it on first use.
+     * 
+     * @param logDir
+     *            The directory containing the test session results.
+     * @return The result store, or {@code null} if none is configured or it
+     *         could not be opened.
+     */
+    public static ResultStore getResultStore(File logDir) {
+        if (RESULT_STORE == null || RESULT_STORE.length() == 0
+                || logDir == null) {
+            return null;
+        }
+        File dir = logDir.getAbsoluteFile();
+        synchronized (resultStores) {
+            if (resultStores.containsKey(dir)) {
+                return resultStores.get(dir);
+            }
+            ResultStore store = null;
+            try {
+                if (RESULT_STORE.equals("derby")) {
+                    store = new DerbyResultStore(dir);
+                } else {
+                    store = (ResultStore) Class.forName(RESULT_STORE)
+                            .getConstructor(File.class).newInstance(dir);
+                }
+            } catch (Throwable e) {
+                LOGR.log(Level.WARNING, "Unable to open result store for "
+                        + dir + "; logs will be read directly", e);
+            }
+            resultStores.put(dir, store);
+            return store;
+        }
+    }
+
+    /**
+     * Closes all open result stores.
+     */
+    public static void closeResultStores() {
+        synchronized (resultStores) {
+            for (ResultStore store : resultStores.values()) {
+                if (store != null) {
+                    store.close();
+                }
+            }
+            resultStores.clear();
+        }
+    }
+
+    // Adds the summary of a closed log to the result store
+    static void indexLog(ResultStore store, File logDir, String callpath) {
+        String path = getJournalPath(callpath);
+        try {
+            LogSummary summary = readSummary(logDir, path);
+            if (summary != null) {
+                store.put(summary);
+            }
+        } catch (Exception e) {
+            LOGR.log(Level.FINE, "Unable to index log " + path, e);
+        }
+    }
+
+    // Reads the summary of a log from disk
+    static LogSummary readSummary(File logDir, String path) throws Exception {
+        LogJournal journal = getJournal(logDir, path, false);
+        if (journal != null) {
+            byte[] log = journal.readLog(path);
+            return (log == null) ? null : LogSummary.read(path,
+                    new StreamSource(new ByteArrayInputStream(log)));
+        }
+        File f = new File(new File(logDir, path), "log.xml");
+        return f.exists() ? LogSummary.read(path, new StreamSource(f)) : null;
+    }
+
+    // Returns the path of a log within its session journal
+    static String getJournalPath(String callpath) {
+        String path = callpath.replace('\\', '/');
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    /**
+     * Returns the journal holding the logs of the session a test path belongs
+     * to.
+     * 
+     * @param logDir
+     *            The directory containing the test session results.
+     * @param callpath
+     *            A test path; the first segment is the session identifier.
+     * @param create
+     *            Whether a journal should be used for a session that has no
+     *            logs yet.
+     * @return The session journal, or {@code null} if the session keeps its
+     *         logs in log.xml files.
+     */
+    static LogJournal getJournal(File logDir, String callpath, boolean create) {
+        String path = getJournalPath(callpath);
+        int i = path.indexOf('/');
+        File sessionDir = new File(logDir, (i < 0) ? path : path.substring(0,
+                i));
+        if (LogJournal.exists(sessionDir)
+                || (create && JOURNAL && !new File(sessionDir, "log.xml")
+                        .exists())) {
+            return LogJournal.getJournal(sessionDir);
+        }
+        return null;
+    }
 
     /**
-     * Creates a Writer used to write test results to the log.xml file.
+     * Creates a Writer used to write test results to the log.xml file, or to
+     * the session journal if the session uses one.
      * 
      * @param logDir
      *            The directory containing the test session results.
@@ -58,59 +191,180 @@ public class LogUtils {
      *         created.
      * @throws Exception
      */
-    public static PrintWriter createLog(File logDir, String callpath)
-            throws Exception {
+    public static PrintWriter createLog(final File logDir,
+            final String callpath) throws Exception {
         if (logDir != null) {
-            File dir = new File(logDir, callpath);
-            dir.mkdir();
-            File f = new File(dir, "log.xml");
-            f.delete();
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
-                    new FileOutputStream(f), "UTF-8"));
-            return new PrintWriter(writer);
+            Writer writer;
+            LogJournal journal = getJournal(logDir, callpath, true);
+            if (journal != null) {
+                writer = journal.createLog(getJournalPath(callpath));
+            } else {
+                File dir = new File(logDir, callpath);
+                dir.mkdir();
+                File f = new File(dir, "log.xml");
+                f.delete();
+                writer = new BufferedWriter(new OutputStreamWriter(
+                        new MeteredOutputStream(new FileOutputStream(f)),
+                        "UTF-8"));
+            }
+            final ResultStore store = getResultStore(logDir);
+            if (store == null) {
+                return new PrintWriter(writer);
+            }
+            // The previous summary is stale until the new log is closed
+            store.remove(getJournalPath(callpath));
+            return new PrintWriter(writer) {
+                private boolean indexed = false;
+
+                @Override
+                public void close() {
+                    super.close();
+                    synchronized (lock) {
+                        if (indexed) {
+                            return;
+                        }
+                        indexed = true;
+                    }
+                    indexLog(store, logDir, callpath);
+                }
+            };
         }
         return null;
     }
 
+    // Times the writes of buffered log output to disk
+    static class MeteredOutputStream extends FilterOutputStream {
+        private final Metrics.Timer timer = Metrics.timer("log_write");
+
+        MeteredOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            out.write(b, off, len);
+            timer.recordSince(start);
+        }
+    }
+
     // Reads a log from disk
     public static Document readLog(File logDir, String callpath)
             throws Exception {
+        LogJournal journal = getJournal(logDir, callpath, false);
+        if (journal != null) {
+            byte[] log = journal.readLog(getJournalPath(callpath));
+            return (log == null) ? null : parseLog(null, log);
+        }
         File dir = new File(logDir, callpath);
         File f = new File(dir, "log.xml");
         if (f.exists()) {
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            dbf.setNamespaceAware(true);
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            Document doc = db.newDocument();
-            TransformerFactory tf = TransformerFactory.newInstance();
-            Transformer t = tf.newTransformer();
-            t.setErrorListener(new com.occamlab.te.NullErrorListener());
-            try {
-                t.transform(new StreamSource(f), new DOMResult(doc));
-            } catch (Exception e) {
-                // The log may not have been closed properly.
-                // Try again with a closing </log> tag
+            return parseLog(f, null);
+        } else {
+            return null;
+        }
+    }
+
+    // Parses a log from a file or, if the file is null, from its content
+    private static Document parseLog(File f, byte[] content) throws Exception {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        DocumentBuilder db = dbf.newDocumentBuilder();
+        Document doc = db.newDocument();
+        TransformerFactory tf = TransformerFactory.newInstance();
+        Transformer t = tf.newTransformer();
+        t.setErrorListener(new com.occamlab.te.NullErrorListener());
+        try {
+            t.transform((f != null) ? new StreamSource(f) : new StreamSource(
+                    new ByteArrayInputStream(content)), new DOMResult(doc));
+        } catch (Exception e) {
+            // The log may not have been closed properly.
+            // Try again with a closing </log> tag
+            if (content == null) {
                 RandomAccessFile raf = new RandomAccessFile(f, "r");
-                int l = new Long(raf.length()).intValue();
-                byte[] buf = new byte[l + 8];
-                raf.read(buf);
+                content = new byte[new Long(raf.length()).intValue()];
+                raf.readFully(content);
                 raf.close();
-                buf[l] = '\n';
-                buf[l + 1] = '<';
-                buf[l + 2] = '/';
-                buf[l + 3] = 'l';
-                buf[l + 4] = 'o';
-                buf[l + 5] = 'g';
-                buf[l + 6] = '>';
-                buf[l + 7] = '\n';
-                doc = db.newDocument();
-                tf.newTransformer().transform(
-                        new StreamSource(new ByteArrayInputStream(buf)),
-                        new DOMResult(doc));
             }
-            return doc;
+            int l = content.length;
+            byte[] buf = Arrays.copyOf(content, l + 8);
+            buf[l] = '\n';
+            buf[l + 1] = '<';
+            buf[l + 2] = '/';
+            buf[l + 3] = 'l';
+            buf[l + 4] = 'o';
+            buf[l + 5] = 'g';
+            buf[l + 6] = '>';
+            buf[l + 7] = '\n';
+            doc = db.newDocument();
+            tf.newTransformer().transform(
+                    new StreamSource(new ByteArrayInputStream(buf)),
+                    new DOMResult(doc));
+        }
+        return doc;
+    }
+
+    /**
+     * Determines whether a test log exists.
+     * 
+     * @param logDir
+     *            The directory containing the test session results.
+     * @param callpath
+     *            A test path.
+     * @return true if the log exists.
+     * @throws Exception
+     *             If the session journal cannot be read.
+     */
+    public static boolean hasLog(File logDir, String callpath)
+            throws Exception {
+        LogJournal journal = getJournal(logDir, callpath, false);
+        if (journal != null) {
+            return journal.hasLog(getJournalPath(callpath));
+        }
+        return new File(new File(logDir, callpath), "log.xml").exists();
+    }
+
+    /**
+     * Returns the time a test log was last modified.
+     * 
+     * @param logDir
+     *            The directory containing the test session results.
+     * @param callpath
+     *            A test path.
+     * @return The time in milliseconds, or 0 if the log does not exist.
+     * @throws Exception
+     *             If the session journal cannot be read.
+     */
+    public static long getLogTime(File logDir, String callpath)
+            throws Exception {
+        LogJournal journal = getJournal(logDir, callpath, false);
+        if (journal != null) {
+            return journal.lastModified(getJournalPath(callpath));
+        }
+        return new File(new File(logDir, callpath), "log.xml").lastModified();
+    }
+
+    /**
+     * Deletes a test log along with the logs of the tests it called.
+     * 
+     * @param logDir
+     *            The directory containing the test session results.
+     * @param callpath
+     *            A test path.
+     * @throws Exception
+     *             If the session journal cannot be written.
+     */
+    public static void deleteLog(File logDir, String callpath)
+            throws Exception {
+        ResultStore store = getResultStore(logDir);
+        if (store != null) {
+            store.removeAll(getJournalPath(callpath));
+        }
+        LogJournal journal = getJournal(logDir, callpath, false);
+        if (journal != null) {
+            journal.deleteLog(getJournalPath(callpath));
         } else {
-            return null;
+            Misc.deleteDir(new File(logDir, callpath));
         }
     }
 
@@ -132,6 +386,30 @@ public class LogUtils {
         return -1;
     }
 
+    /**
+     * Returns the result of a test, from the result store if the log has been
+     * indexed.
+     * 
+     * @param logDir
+     *            The directory containing the test session results.
+     * @param callpath
+     *            A test path.
+     * @return The verdict, or -1 if the test has no log or did not end.
+     * @throws Exception
+     *             If the log cannot be read.
+     */
+    public static int getResult(File logDir, String callpath)
+            throws Exception {
+        ResultStore store = getResultStore(logDir);
+        if (store != null) {
+            LogSummary summary = store.get(getJournalPath(callpath));
+            if (summary != null) {
+                return summary.getResult();
+            }
+        }
+        return getResultFromLog(readLog(logDir, callpath));
+    }
+
     // Returns the parameters to a test from its log document
     public static List<String> getParamListFromLog(
             net.sf.saxon.s9api.DocumentBuilder builder, Document log)
@@ -192,62 +470,68 @@ public class LogUtils {
         return null;
     }
 
-    private static Element makeTestListElement(DocumentBuilder db,
-            Document owner, File logdir, String path) throws Exception {
-        File log = new File(new File(logdir, path), "log.xml");
-        Document logdoc = LogUtils.readLog(log.getParentFile(), ".");
+    // Returns the summary of a log, from the store if it has one
+    private static LogSummary getLogSummary(File logdir, String path,
+            Map<String, LogSummary> summaries) throws Exception {
+        if (summaries != null) {
+            LogSummary summary = summaries.get(getJournalPath(path));
+            if (summary != null) {
+                return summary;
+            }
+        }
+        Document logdoc = LogUtils.readLog(logdir, path);
         if (logdoc == null) {
             return null;
         }
-        Element log_e = DomUtils.getElementByTagName(logdoc, "log");
-        if (log_e == null) {
+        LogSummary summary = LogSummary.read(getJournalPath(path),
+                new DOMSource(logdoc));
+        if (summary != null && summary.isComplete() && summaries != null) {
+            // Adds logs written before the store was enabled
+            ResultStore store = getResultStore(logdir);
+            if (store != null) {
+                store.put(summary);
+            }
+        }
+        return summary;
+    }
+
+    private static Element makeTestListElement(Document owner, File logdir,
+            String path, Map<String, LogSummary> summaries) throws Exception {
+        LogSummary summary = getLogSummary(logdir, path, summaries);
+        if (summary == null) {
             return null;
         }
         Element test = owner.createElement("test");
         int result = TECore.PASS;
-        String type = "Mandatory";
-        boolean complete = false;
         boolean childrenFailed = false;
-        boolean hasCache = false;
-        for (Element e : DomUtils.getChildElements(log_e)) {
-            if (e.getNodeName().equals("starttest")) {
-                NamedNodeMap atts = e.getAttributes();
-                for (int j = 0; j < atts.getLength(); j++) {
-                    String nodeName = atts.item(j).getNodeName();
-                    String nodeValue = atts.item(j).getNodeValue();
-                    if ("defaultResult".equals(nodeName)) {
-                        result = Integer.parseInt(nodeValue);
-                    } else if ("type".equals(nodeName)) { // 2011-03-07 PwD
-                        type = nodeValue;
-                    }
-                    test.setAttribute(nodeName, nodeValue);
-                }
-            } else if (e.getNodeName().equals("endtest")) {
-                complete = true;
-                int code = Integer.parseInt(e.getAttribute("result"));
-                if (childrenFailed) {
-                    result = TECore.INHERITED_FAILURE;
-                } else {
-                    result = code;
-                }
-            } else if (e.getNodeName().equals("testcall")) {
-                String newpath = e.getAttribute("path");
-                Element child = makeTestListElement(db, owner, logdir, newpath);
-                if (child != null) {
-                    child.setAttribute("path", newpath);
-                    int code = Integer.parseInt(child.getAttribute("result"));
-                    if (code == TECore.FAIL || code == TECore.INHERITED_FAILURE) {
-                        childrenFailed = true;
-                    }
-                    test.appendChild(child);
+        for (Map.Entry<String, String> att : summary.getAttributes()
+                .entrySet()) {
+            if ("defaultResult".equals(att.getKey())) {
+                result = Integer.parseInt(att.getValue());
+            }
+            test.setAttribute(att.getKey(), att.getValue());
+        }
+        for (String newpath : summary.getCalls()) {
+            Element child = makeTestListElement(owner, logdir, newpath,
+                    summaries);
+            if (child != null) {
+                child.setAttribute("path", newpath);
+                int code = Integer.parseInt(child.getAttribute("result"));
+                if (code == TECore.FAIL || code == TECore.INHERITED_FAILURE) {
+                    childrenFailed = true;
                 }
-            } else if (e.getNodeName().equals("cache")) {
-                hasCache = true;
+                test.appendChild(child);
             }
         }
+        boolean complete = summary.isComplete();
+        if (complete) {
+            result = childrenFailed ? TECore.INHERITED_FAILURE : summary
+                    .getResult();
+        }
         test.setAttribute("result", Integer.toString(result));
         test.setAttribute("complete", complete ? "yes" : "no");
-        test.setAttribute("hasCache", hasCache ? "yes" : "no");
+        test.setAttribute("hasCache", summary.getCacheIds().isEmpty() ? "no"
+                : "yes");
         return test;
     }
 
@@ -273,15 +557,26 @@ public class LogUtils {
         File testListFile = new File(logdir, path + File.separator
                 + "testlist.xml");
         long testListDate = testListFile.lastModified();
-        File rootlog = new File(logdir, path + File.separator + "log.xml");
         boolean updated;
-        if (testListFile.exists() && testListDate >= rootlog.lastModified()) {
+        ResultStore store = getResultStore(logdir);
+        if (store != null) {
+            // The store replaces the cached testlist.xml
+            doc = db.newDocument();
+            Element test = makeTestListElement(doc, logdir, path,
+                    store.getAll(getJournalPath(path)));
+            if (test != null) {
+                doc.appendChild(test);
+                doc.getDocumentElement().setAttribute("path", path);
+            }
+            updated = false;
+        } else if (testListFile.exists()
+                && testListDate >= getLogTime(logdir, path)) {
             doc = db.parse(testListFile);
             updated = (updateTestListElement(db, doc.getDocumentElement(),
                     logdir, testListDate) != null);
         } else {
             doc = db.newDocument();
-            Element test = makeTestListElement(db, doc, logdir, path);
+            Element test = makeTestListElement(doc, logdir, path, null);
             if (test != null) {
                 doc.appendChild(test);
                 doc.getDocumentElement().setAttribute("path", path);
@@ -323,12 +618,11 @@ public class LogUtils {
         String path = test.getAttribute("path");
         long logdate = 0;
         if (testListDate > 0) {
-            logdate = new File(logdir, path + File.separator + "log.xml")
-                    .lastModified();
+            logdate = getLogTime(logdir, path);
         }
         if (logdate > testListDate) {
-            Element newtest = makeTestListElement(db, test.getOwnerDocument(),
-                    logdir, path);
+            Element newtest = makeTestListElement(test.getOwnerDocument(),
+                    logdir, path, null);
             test.getParentNode().replaceChild(newtest, test);
             return newtest;
         } else {
@@ -437,6 +731,19 @@ public class LogUtils {
         execution.setAttributeNS("http://www.w3.org/2000/xmlns/", "xmlns:xi",
                 "http://www.w3.org/2001/XInclude");
         doc.appendChild(execution);
+        File sessionDir = new File(sessionLogDir);
+        if (LogJournal.exists(sessionDir)) {
+            // There are no log files to include, so the logs are copied
+            LogJournal journal = LogJournal.getJournal(sessionDir);
+            for (String path : journal.getPaths()) {
+                byte[] log = journal.readLog(path);
+                if (log != null) {
+                    Document logdoc = parseLog(null, log);
+                    execution.appendChild(doc.importNode(
+                            logdoc.getDocumentElement(), true));
+                }
+            }
+        }
         for (File file : files) {
             // all files are Sorted with CompareTO
             Element include = doc.createElementNS(
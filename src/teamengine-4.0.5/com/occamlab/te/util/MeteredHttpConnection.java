@@ -0,0 +1,501 @@
+package com.occamlab.te.util;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.security.Permission;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * An HttpURLConnection that delegates to the JDK implementation and adds the
+ * features configured in {@link HttpTransport}: a limit on the number of
+ * requests awaiting a response from the same host, optional negotiation of
+ * gzip or deflate content encoding, and the counters reported by
+ * {@link HttpStatistics}. Connections are reused by means of the JDK
+ * keep-alive cache once a response has been read completely.
+ *
+ * <p>
+ * When a compressed response is decoded, the Content-Encoding and
+ * Content-Length headers are hidden so that parsers see the response as if it
+ * had been sent uncompressed.
+ * </p>
+ */
+public class MeteredHttpConnection extends HttpURLConnection {
+
+    private final HttpURLConnection delegate;
+    private final HttpTransport transport;
+    private final HttpStatistics stats;
+    private Semaphore permit = null; // Held while awaiting the response
+    private boolean started = false;
+    private boolean responded = false;
+    private boolean decoded = false;
+    private long startTime = 0; // When the connection was started, in nanos
+    private List<String[]> headers = null;
+    private InputStream input = null;
+
+    MeteredHttpConnection(HttpURLConnection delegate, HttpTransport transport) {
+        super(delegate.getURL());
+        this.delegate = delegate;
+        this.transport = transport;
+        this.stats = HttpTransport.getStatistics();
+    }
+
+    // Connects, waiting for a permit if the host is busy
+    private synchronized void start() throws IOException {
+        if (started) {
+            return;
+        }
+        started = true;
+        if (transport.isCompressionEnabled()
+                && delegate.getRequestProperty("Accept-Encoding") == null) {
+            delegate.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        }
+        Semaphore semaphore = transport.getHostLimit(delegate.getURL());
+        if (semaphore != null) {
+            try {
+                semaphore.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for "
+                        + delegate.getURL().getHost());
+            }
+            permit = semaphore;
+        }
+        long start = System.nanoTime();
+        startTime = start;
+        try {
+            delegate.connect();
+        } catch (IOException e) {
+            finish(true);
+            throw e;
+        } catch (RuntimeException e) {
+            finish(true);
+            throw e;
+        }
+        stats.addRequest(System.nanoTime() - start);
+    }
+
+    // Waits for the response headers
+    private synchronized void await() throws IOException {
+        if (responded) {
+            return;
+        }
+        start();
+        responded = true;
+        long start = System.nanoTime();
+        try {
+            responseCode = delegate.getResponseCode();
+            responseMessage = delegate.getResponseMessage();
+        } catch (IOException e) {
+            finish(true);
+            throw e;
+        } catch (RuntimeException e) {
+            finish(true);
+            throw e;
+        }
+        stats.addFirstByteTime(System.nanoTime() - start);
+        Metrics.timer("http_request", "host",
+                HttpTransport.hostKey(delegate.getURL())).recordSince(startTime);
+        String encoding = delegate.getContentEncoding();
+        decoded = transport.isCompressionEnabled()
+                && ("gzip".equalsIgnoreCase(encoding) || "deflate"
+                        .equalsIgnoreCase(encoding));
+        finish(false);
+    }
+
+    private synchronized void finish(boolean failed) {
+        if (failed) {
+            stats.addFailure();
+        }
+        if (permit != null) {
+            permit.release();
+            permit = null;
+        }
+    }
+
+    @Override
+    public void connect() throws IOException {
+        start();
+        connected = true;
+    }
+
+    @Override
+    public void disconnect() {
+        finish(false);
+        delegate.disconnect();
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return delegate.usingProxy();
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if (responded) {
+            throw new ProtocolException(
+                    "Cannot write output after reading input.");
+        }
+        start();
+        connected = true;
+        OutputStream os;
+        try {
+            os = delegate.getOutputStream();
+        } catch (IOException e) {
+            finish(true);
+            throw e;
+        } catch (RuntimeException e) {
+            finish(true);
+            throw e;
+        }
+        // The permit is given up if the request cannot be sent, since no
+        // response will be awaited
+        return new FilterOutputStream(os) {
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    out.write(b);
+                } catch (IOException e) {
+                    finish(true);
+                    throw e;
+                }
+                stats.addBytesSent(1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    out.write(b, off, len);
+                } catch (IOException e) {
+                    finish(true);
+                    throw e;
+                }
+                stats.addBytesSent(len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    finish(true);
+                    throw e;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    finish(true);
+                    throw e;
+                }
+            }
+        };
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if (input == null) {
+            await();
+            input = decode(delegate.getInputStream());
+        }
+        return input;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        InputStream es = delegate.getErrorStream();
+        if (es == null) {
+            return null;
+        }
+        try {
+            return decode(es);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Counts the bytes received and removes any content encoding
+    private InputStream decode(InputStream is) throws IOException {
+        InputStream counted = new FilterInputStream(is) {
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b >= 0) {
+                    stats.addBytesReceived(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = in.read(b, off, len);
+                if (n > 0) {
+                    stats.addBytesReceived(n);
+                }
+                return n;
+            }
+        };
+        if (!decoded) {
+            return counted;
+        }
+        if ("gzip".equalsIgnoreCase(delegate.getContentEncoding())) {
+            return new GZIPInputStream(counted);
+        }
+        return new InflaterInputStream(counted);
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        await();
+        return responseCode;
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        await();
+        return responseMessage;
+    }
+
+    // Returns the response headers, less those that no longer apply to a
+    // decoded response
+    private synchronized List<String[]> getHeaders() {
+        try {
+            await();
+        } catch (IOException e) {
+            return Collections.emptyList();
+        }
+        if (headers == null) {
+            headers = new ArrayList<String[]>();
+            for (int i = 0;; i++) {
+                String key = delegate.getHeaderFieldKey(i);
+                String value = delegate.getHeaderField(i);
+                if (key == null && value == null) {
+                    break;
+                }
+                if (decoded
+                        && key != null
+                        && (key.equalsIgnoreCase("Content-Encoding") || key
+                                .equalsIgnoreCase("Content-Length"))) {
+                    continue;
+                }
+                headers.add(new String[] { key, value });
+            }
+        }
+        return headers;
+    }
+
+    @Override
+    public String getHeaderFieldKey(int n) {
+        List<String[]> list = getHeaders();
+        return (n < 0 || n >= list.size()) ? null : list.get(n)[0];
+    }
+
+    @Override
+    public String getHeaderField(int n) {
+        List<String[]> list = getHeaders();
+        return (n < 0 || n >= list.size()) ? null : list.get(n)[1];
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        if (!decoded) {
+            try {
+                await();
+            } catch (IOException e) {
+                return null;
+            }
+            if (!decoded) {
+                return delegate.getHeaderField(name);
+            }
+        }
+        String value = null;
+        for (String[] header : getHeaders()) {
+            if (header[0] == null ? name == null : header[0]
+                    .equalsIgnoreCase(name)) {
+                value = header[1];
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        try {
+            await();
+        } catch (IOException e) {
+            return Collections.emptyMap();
+        }
+        if (!decoded) {
+            return delegate.getHeaderFields();
+        }
+        Map<String, List<String>> map = new LinkedHashMap<String, List<String>>();
+        for (String[] header : getHeaders()) {
+            List<String> values = map.get(header[0]);
+            if (values == null) {
+                values = new ArrayList<String>(1);
+                map.put(header[0], values);
+            }
+            values.add(0, header[1]); // Most recent value first
+        }
+        for (Map.Entry<String, List<String>> entry : map.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    @Override
+    public URL getURL() {
+        return delegate.getURL();
+    }
+
+    @Override
+    public Permission getPermission() throws IOException {
+        return delegate.getPermission();
+    }
+
+    @Override
+    public void setRequestMethod(String method) throws ProtocolException {
+        delegate.setRequestMethod(method);
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return delegate.getRequestMethod();
+    }
+
+    @Override
+    public void setInstanceFollowRedirects(boolean followRedirects) {
+        delegate.setInstanceFollowRedirects(followRedirects);
+    }
+
+    @Override
+    public boolean getInstanceFollowRedirects() {
+        return delegate.getInstanceFollowRedirects();
+    }
+
+    @Override
+    public void setFixedLengthStreamingMode(int contentLength) {
+        delegate.setFixedLengthStreamingMode(contentLength);
+    }
+
+    @Override
+    public void setFixedLengthStreamingMode(long contentLength) {
+        delegate.setFixedLengthStreamingMode(contentLength);
+    }
+
+    @Override
+    public void setChunkedStreamingMode(int chunklen) {
+        delegate.setChunkedStreamingMode(chunklen);
+    }
+
+    @Override
+    public void setRequestProperty(String key, String value) {
+        delegate.setRequestProperty(key, value);
+    }
+
+    @Override
+    public void addRequestProperty(String key, String value) {
+        delegate.addRequestProperty(key, value);
+    }
+
+    @Override
+    public String getRequestProperty(String key) {
+        return delegate.getRequestProperty(key);
+    }
+
+    @Override
+    public Map<String, List<String>> getRequestProperties() {
+        return delegate.getRequestProperties();
+    }
+
+    @Override
+    public void setDoInput(boolean doinput) {
+        delegate.setDoInput(doinput);
+    }
+
+    @Override
+    public boolean getDoInput() {
+        return delegate.getDoInput();
+    }
+
+    @Override
+    public void setDoOutput(boolean dooutput) {
+        delegate.setDoOutput(dooutput);
+    }
+
+    @Override
+    public boolean getDoOutput() {
+        return delegate.getDoOutput();
+    }
+
+    @Override
+    public void setUseCaches(boolean usecaches) {
+        delegate.setUseCaches(usecaches);
+    }
+
+    @Override
+    public boolean getUseCaches() {
+        return delegate.getUseCaches();
+    }
+
+    @Override
+    public void setAllowUserInteraction(boolean allowuserinteraction) {
+        delegate.setAllowUserInteraction(allowuserinteraction);
+    }
+
+    @Override
+    public boolean getAllowUserInteraction() {
+        return delegate.getAllowUserInteraction();
+    }
+
+    @Override
+    public void setIfModifiedSince(long ifmodifiedsince) {
+        delegate.setIfModifiedSince(ifmodifiedsince);
+    }
+
+    @Override
+    public long getIfModifiedSince() {
+        return delegate.getIfModifiedSince();
+    }
+
+    @Override
+    public void setConnectTimeout(int timeout) {
+        delegate.setConnectTimeout(timeout);
+    }
+
+    @Override
+    public int getConnectTimeout() {
+        return delegate.getConnectTimeout();
+    }
+
+    @Override
+    public void setReadTimeout(int timeout) {
+        delegate.setReadTimeout(timeout);
+    }
+
+    @Override
+    public int getReadTimeout() {
+        return delegate.getReadTimeout();
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+}
@@ -0,0 +1,380 @@
+package com.occamlab.te.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Runtime metrics for the engine: timers with a latency histogram, and gauges.
+ * Each metric is registered as an MXBean in the platform MBean server under
+ * the domain {@value #DOMAIN} unless the te.metrics.jmx system property is
+ * false, and all of them can be written in the Prometheus text format by
+ * {@link #writeText(Writer)}.
+ *
+ * <p>
+ * Metric names are lower case words separated by underscores. Timers may
+ * carry one label, such as the parser class or the host of an HTTP request.
+ * Gauge names that end in "_total" are reported as counters.
+ * </p>
+ */
+public class Metrics {
+
+    private static final Logger LOGR = Logger.getLogger(Metrics.class
+            .getName());
+    public static final String DOMAIN = "com.occamlab.te";
+    static final boolean JMX = !"false".equalsIgnoreCase(System
+            .getProperty("te.metrics.jmx"));
+    // Upper bounds of the histogram buckets in seconds
+    static final double[] BUCKETS = { 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1,
+            5, 10, 60 };
+    private static final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+    private static final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    public interface TimerMXBean {
+        String getName();
+
+        String getLabel();
+
+        long getCount();
+
+        /** The total time in milliseconds. */
+        double getTotalTime();
+
+        /** The longest time in milliseconds. */
+        double getMaxTime();
+
+        /** The mean time in milliseconds. */
+        double getMeanTime();
+
+        /**
+         * The number of events in each histogram bucket, not cumulative. The
+         * last bucket counts events longer than the largest bound.
+         */
+        long[] getBuckets();
+
+        /** The upper bounds of the histogram buckets in milliseconds. */
+        double[] getBucketBounds();
+    }
+
+    public interface GaugeMXBean {
+        String getName();
+
+        long getValue();
+    }
+
+    /**
+     * Records the duration of events.
+     */
+    public static class Timer implements TimerMXBean {
+        private final String name;
+        private final String labelName;
+        private final String labelValue;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+        private final AtomicLongArray buckets = new AtomicLongArray(
+                BUCKETS.length + 1);
+
+        Timer(String name, String labelName, String labelValue) {
+            this.name = name;
+            this.labelName = labelName;
+            this.labelValue = labelValue;
+        }
+
+        /**
+         * Records an event.
+         *
+         * @param nanos
+         *            The duration of the event in nanoseconds.
+         */
+        public void record(long nanos) {
+            count.incrementAndGet();
+            total.addAndGet(nanos);
+            long m = max.get();
+            while (nanos > m && !max.compareAndSet(m, nanos)) {
+                m = max.get();
+            }
+            double seconds = nanos / 1e9;
+            int i = 0;
+            while (i < BUCKETS.length && seconds > BUCKETS[i]) {
+                i++;
+            }
+            buckets.incrementAndGet(i);
+        }
+
+        /**
+         * Records an event that started at the given time.
+         *
+         * @param startNanos
+         *            The value of System.nanoTime() when the event started.
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getLabel() {
+            return labelValue;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public double getTotalTime() {
+            return total.get() / 1e6;
+        }
+
+        public double getMaxTime() {
+            return max.get() / 1e6;
+        }
+
+        public double getMeanTime() {
+            long n = count.get();
+            return (n == 0) ? 0 : total.get() / 1e6 / n;
+        }
+
+        public long[] getBuckets() {
+            long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return counts;
+        }
+
+        public double[] getBucketBounds() {
+            double[] bounds = new double[BUCKETS.length];
+            for (int i = 0; i < bounds.length; i++) {
+                bounds[i] = BUCKETS[i] * 1000;
+            }
+            return bounds;
+        }
+    }
+
+    /**
+     * A value that can go up and down. Subclasses may override getValue() to
+     * report a value held elsewhere.
+     */
+    public static class Gauge implements GaugeMXBean {
+        private String name;
+        private final AtomicLong value = new AtomicLong();
+
+        public String getName() {
+            return name;
+        }
+
+        public long getValue() {
+            return value.get();
+        }
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void decrement() {
+            value.decrementAndGet();
+        }
+
+        public void set(long n) {
+            value.set(n);
+        }
+    }
+
+    /**
+     * Returns a timer, creating it if necessary.
+     *
+     * @param name
+     *            The name of the timer.
+     * @return The timer.
+     */
+    public static Timer timer(String name) {
+        return timer(name, null, null);
+    }
+
+    /**
+     * Returns a labeled timer, creating it if necessary.
+     *
+     * @param name
+     *            The name of the timer.
+     * @param labelName
+     *            The name of the label, e.g. "class".
+     * @param labelValue
+     *            The value of the label.
+     * @return The timer.
+     */
+    public static Timer timer(String name, String labelName, String labelValue) {
+        String key = (labelValue == null) ? name : name + "{" + labelName
+                + "=" + labelValue + "}";
+        Timer timer = timers.get(key);
+        if (timer == null) {
+            Timer newTimer = new Timer(name, labelName, labelValue);
+            timer = timers.putIfAbsent(key, newTimer);
+            if (timer == null) {
+                timer = newTimer;
+                String objectName = DOMAIN + ":type=Timer,name=" + name;
+                if (labelValue != null) {
+                    objectName += "," + labelName + "="
+                            + ObjectName.quote(labelValue);
+                }
+                registerMBean(objectName, timer);
+            }
+        }
+        return timer;
+    }
+
+    /**
+     * Returns a gauge, creating it if necessary.
+     *
+     * @param name
+     *            The name of the gauge.
+     * @return The gauge.
+     */
+    public static Gauge gauge(String name) {
+        Gauge gauge = gauges.get(name);
+        if (gauge == null) {
+            gauge = register(name, new Gauge());
+        }
+        return gauge;
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge with the same name.
+     *
+     * @param name
+     *            The name of the gauge.
+     * @param gauge
+     *            A gauge, usually one that overrides getValue().
+     * @return The gauge now registered under the name; this is an existing
+     *         gauge if one was added concurrently by {@link #gauge(String)}.
+     */
+    public static Gauge register(String name, Gauge gauge) {
+        gauge.name = name;
+        if (gauge.getClass() == Gauge.class) {
+            Gauge existing = gauges.putIfAbsent(name, gauge);
+            if (existing != null) {
+                return existing;
+            }
+        } else {
+            gauges.put(name, gauge);
+        }
+        registerMBean(DOMAIN + ":type=Gauge,name=" + name, gauge);
+        return gauge;
+    }
+
+    private static void registerMBean(String name, Object mbean) {
+        if (!JMX) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(name);
+            // An MBean may be left over from a previous deployment
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(mbean, objectName);
+        } catch (Exception e) {
+            LOGR.log(Level.FINE, "Unable to register MBean " + name, e);
+        }
+    }
+
+    /**
+     * Unregisters all the metrics of this domain from the platform MBean
+     * server. The metrics themselves are kept.
+     */
+    public static void unregisterAll() {
+        if (!JMX) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (ObjectName name : server.queryNames(new ObjectName(DOMAIN
+                    + ":type=*,*"), null)) {
+                String type = name.getKeyProperty("type");
+                if (type.equals("Timer") || type.equals("Gauge")) {
+                    server.unregisterMBean(name);
+                }
+            }
+        } catch (Exception e) {
+            LOGR.log(Level.FINE, "Unable to unregister MBeans", e);
+        }
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format. Metric
+     * names are prefixed with "te_"; timers are reported as histograms in
+     * seconds.
+     *
+     * @param out
+     *            The destination; it is flushed but not closed.
+     */
+    public static void writeText(Writer out) throws IOException {
+        // Group labeled timers under their name
+        Map<String, Map<String, Timer>> timersByName = new TreeMap<String, Map<String, Timer>>();
+        for (Timer timer : timers.values()) {
+            Map<String, Timer> group = timersByName.get(timer.name);
+            if (group == null) {
+                group = new TreeMap<String, Timer>();
+                timersByName.put(timer.name, group);
+            }
+            group.put(timer.labelValue == null ? "" : timer.labelValue, timer);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Map<String, Timer>> entry : timersByName
+                .entrySet()) {
+            String metric = "te_" + entry.getKey() + "_seconds";
+            sb.append("# TYPE ").append(metric).append(" histogram\n");
+            for (Timer timer : entry.getValue().values()) {
+                String label = "";
+                if (timer.labelValue != null) {
+                    label = timer.labelName + "=\"" + escape(timer.labelValue)
+                            + "\",";
+                }
+                long[] counts = timer.getBuckets();
+                long cumulative = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    cumulative += counts[i];
+                    String le = (i < BUCKETS.length) ? Double
+                            .toString(BUCKETS[i]) : "+Inf";
+                    sb.append(metric).append("_bucket{").append(label)
+                            .append("le=\"").append(le).append("\"} ")
+                            .append(cumulative).append('\n');
+                }
+                String labels = label.isEmpty() ? "" : "{"
+                        + label.substring(0, label.length() - 1) + "}";
+                sb.append(metric).append("_sum").append(labels).append(' ')
+                        .append(timer.total.get() / 1e9).append('\n');
+                sb.append(metric).append("_count").append(labels).append(' ')
+                        .append(cumulative).append('\n');
+            }
+        }
+        for (Gauge gauge : new TreeMap<String, Gauge>(gauges).values()) {
+            String metric = "te_" + gauge.name;
+            sb.append("# TYPE ").append(metric);
+            sb.append(metric.endsWith("_total") ? " counter\n" : " gauge\n");
+            sb.append(metric).append(' ').append(gauge.getValue())
+                    .append('\n');
+        }
+        out.write(sb.toString());
+        out.flush();
+    }
+
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"")
+                .replace("\n", "\\n");
+    }
+}
@@ -23,10 +23,18 @@ import com.occamlab.te.TEClassLoader;
 import java.io.File;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.Transformer;
@@ -38,6 +46,44 @@ import org.w3c.dom.Node;
 
 public class Misc {
 
+    /**
+     * Classes already resolved, by class loader and name. Both the loaders
+     * and the classes are weakly referenced so that the classes of a
+     * redeployed suite can be unloaded.
+     */
+    private static final Map<ClassLoader, ConcurrentMap<String, WeakReference<Class<?>>>> CLASSES = Collections
+            .synchronizedMap(new WeakHashMap<ClassLoader, ConcurrentMap<String, WeakReference<Class<?>>>>());
+
+    /**
+     * Reflection data of a class: its public constructors and methods, and
+     * the instances shared by all sessions. Attached to the class itself, so
+     * it goes away with the class.
+     */
+    private static final ClassValue<ClassInfo> CLASS_INFO = new ClassValue<ClassInfo>() {
+        protected ClassInfo computeValue(Class<?> c) {
+            return new ClassInfo(c);
+        }
+    };
+
+    static class ClassInfo {
+        final Constructor<?>[] constructors;
+        final Map<String, List<Method>> methods = new HashMap<String, List<Method>>();
+        final Map<Object, Object> sharedInstances = Collections
+                .synchronizedMap(new WeakHashMap<Object, Object>());
+
+        ClassInfo(Class<?> c) {
+            constructors = c.getConstructors();
+            for (Method m : c.getMethods()) {
+                List<Method> overloads = methods.get(m.getName());
+                if (overloads == null) {
+                    overloads = new ArrayList<Method>();
+                    methods.put(m.getName(), overloads);
+                }
+                overloads.add(m);
+            }
+        }
+    }
+
     // Deletes a directory and its contents
     public static void deleteDir(File dir) {
         if (dir.isDirectory()) {
@@ -112,17 +158,45 @@ public class Misc {
         return cl.getResource(resource).toString();
     }
 
+    /**
+     * Loads a class, or returns it from the cache if it has been loaded
+     * through the same class loader before.
+     * 
+     * @param className
+     *            The fully qualified class name.
+     * @param cl
+     *            The class loader.
+     * @return The initialized class.
+     */
+    public static Class<?> loadClass(String className, ClassLoader cl)
+            throws ClassNotFoundException {
+        ConcurrentMap<String, WeakReference<Class<?>>> classes;
+        synchronized (CLASSES) {
+            classes = CLASSES.get(cl);
+            if (classes == null) {
+                classes = new ConcurrentHashMap<String, WeakReference<Class<?>>>();
+                CLASSES.put(cl, classes);
+            }
+        }
+        WeakReference<Class<?>> ref = classes.get(className);
+        Class<?> c = (ref == null) ? null : ref.get();
+        if (c == null) {
+            c = Class.forName(className, true, cl);
+            classes.put(className, new WeakReference<Class<?>>(c));
+        }
+        return c;
+    }
+
     public static Method getMethod(String className, String methodName,
             TEClassLoader cl, int minArgs, int maxArgs) throws Exception {
-        // cl.registerClass(className);
-        Class c = Class.forName(className, true, cl);
-        Method[] methods = c.getMethods();
-        for (int i = 0; i < methods.length; i++) {
-            Method m = methods[i];
-            int count = m.getParameterTypes().length;
-            if (m.getName().equals(methodName) && count >= minArgs
-                    && count <= maxArgs) {
-                return m;
+        Class<?> c = loadClass(className, cl);
+        List<Method> overloads = CLASS_INFO.get(c).methods.get(methodName);
+        if (overloads != null) {
+            for (Method m : overloads) {
+                int count = m.getParameterTypes().length;
+                if (count >= minArgs && count <= maxArgs) {
+                    return m;
+                }
             }
         }
         String argsDesc = Integer.toString(minArgs);
@@ -141,11 +215,34 @@ public class Misc {
         return getMethod(className, methodName, cl, argCount, argCount);
     }
 
+    /**
+     * Returns the instance of a class shared by every caller that uses the
+     * same key, creating it with {@link #makeInstance} the first time. The
+     * instance must be thread safe. It is kept as long as the key is
+     * reachable.
+     * 
+     * @param key
+     *            Identifies the instance, e.g. the index entry that declares
+     *            it.
+     */
+    public static Object getSharedInstance(Object key, String className,
+            List<Node> classParams, TEClassLoader cl) throws Exception {
+        Map<Object, Object> instances = CLASS_INFO.get(loadClass(className,
+                cl)).sharedInstances;
+        synchronized (instances) {
+            Object instance = instances.get(key);
+            if (instance == null) {
+                instance = makeInstance(className, classParams, cl);
+                instances.put(key, instance);
+            }
+            return instance;
+        }
+    }
+
     public static Object makeInstance(String className, List<Node> classParams,
             TEClassLoader cl) throws Exception {
-        // cl.registerClass(className);
-        Class c = Class.forName(className, true, cl);
-        Constructor[] constructors = c.getConstructors();
+        Constructor<?>[] constructors = CLASS_INFO.get(loadClass(className,
+                cl)).constructors;
         int paramCount = 0;
         if (classParams != null) {
             paramCount = classParams.size();
@@ -0,0 +1,70 @@
+package com.occamlab.te.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The body of an HTTP request, made up of byte arrays and files. Files are
+ * not read until the body is written, so a large multipart request can be
+ * streamed without holding its parts in memory.
+ */
+public class RequestBody {
+
+    // Segments in order: byte[] or File
+    private final List<Object> segments = new ArrayList<Object>();
+    private long length = 0;
+
+    public void add(byte[] bytes) {
+        segments.add(bytes);
+        length += bytes.length;
+    }
+
+    public void add(File file) {
+        segments.add(file);
+        length += file.length();
+    }
+
+    /**
+     * Returns the length of the body.
+     *
+     * @return The total length of the segments in bytes.
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Writes the body to an output stream.
+     *
+     * @param os
+     *            The destination stream; it is not closed.
+     * @throws IOException
+     *             If a file cannot be read or the stream cannot be written.
+     */
+    public void writeTo(OutputStream os) throws IOException {
+        byte[] buf = null;
+        for (Object segment : segments) {
+            if (segment instanceof byte[]) {
+                os.write((byte[]) segment);
+            } else {
+                if (buf == null) {
+                    buf = new byte[8192];
+                }
+                InputStream is = new FileInputStream((File) segment);
+                try {
+                    int n;
+                    while ((n = is.read(buf)) > 0) {
+                        os.write(buf, 0, n);
+                    }
+                } finally {
+                    is.close();
+                }
+            }
+        }
+    }
+}
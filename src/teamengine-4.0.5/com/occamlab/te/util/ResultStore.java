@@ -0,0 +1,73 @@
+package com.occamlab.te.util;
+
+import java.util.Map;
+
+/**
+ * An index of the test logs in a log directory. A store holds a
+ * {@link LogSummary} for each log that has been closed, so that test lists
+ * and results can be obtained without reading the logs themselves. Logs that
+ * are not in the store (e.g. logs still being written) are read as before.
+ *
+ * @see LogUtils#getResultStore(java.io.File)
+ */
+public interface ResultStore {
+
+    /**
+     * Adds the summary of a log, replacing any previous summary for the same
+     * path.
+     *
+     * @param summary
+     *            The summary of the log.
+     * @throws Exception
+     *             If the store cannot be updated.
+     */
+    void put(LogSummary summary) throws Exception;
+
+    /**
+     * Returns the summary of a log.
+     *
+     * @param path
+     *            The test path.
+     * @return The summary, or {@code null} if the log is not in the store.
+     * @throws Exception
+     *             If the store cannot be read.
+     */
+    LogSummary get(String path) throws Exception;
+
+    /**
+     * Returns the summaries of a log and the logs of all tests it called.
+     *
+     * @param path
+     *            The test path (possibly a session identifier).
+     * @return A map of summaries keyed by test path.
+     * @throws Exception
+     *             If the store cannot be read.
+     */
+    Map<String, LogSummary> getAll(String path) throws Exception;
+
+    /**
+     * Removes the summary of a single log, e.g. when it is about to be
+     * rewritten.
+     *
+     * @param path
+     *            The test path.
+     * @throws Exception
+     *             If the store cannot be updated.
+     */
+    void remove(String path) throws Exception;
+
+    /**
+     * Removes the summaries of a log and the logs of all tests it called.
+     *
+     * @param path
+     *            The test path (possibly a session identifier).
+     * @throws Exception
+     *             If the store cannot be updated.
+     */
+    void removeAll(String path) throws Exception;
+
+    /**
+     * Releases the resources held by the store.
+     */
+    void close();
+}
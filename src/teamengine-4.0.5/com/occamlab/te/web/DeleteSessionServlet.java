@@ -28,7 +28,9 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.occamlab.te.util.LogUtils;
 import com.occamlab.te.util.Misc;
+import com.occamlab.te.util.ResultStore;
 
 /**
  * Processes a request to delete an existing test session.
@@ -51,6 +53,10 @@ public class DeleteSessionServlet extends HttpServlet {
             File userdir = new File(Conf.getUsersDir(), request.getRemoteUser());
             File sessiondir = new File(userdir, sessionId);
             Misc.deleteDir(sessiondir);
+            ResultStore store = LogUtils.getResultStore(userdir);
+            if (store != null) {
+                store.removeAll(sessionId);
+            }
             response.sendRedirect("sessionDeleted.jsp");
         } catch (Exception e) {
             throw new ServletException(e);
@@ -0,0 +1,85 @@
+package com.occamlab.te.web;
+
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Reports which executable test suites have been generated. The response is
+ * 200 (OK) once {@link TestServlet} has started, so the servlet can serve as
+ * a liveness check; with the "ready" query parameter it is 503 (Service
+ * Unavailable) while any suite is still pending or being generated, for use
+ * as a readiness check. Suites that failed to generate do not hold readiness
+ * back, since they are only retried when next used. It should be mapped
+ * without authentication, e.g. to /health.
+ *
+ * <pre>
+ * &lt;health status="warming" suites="2" ready="1">
+ *   &lt;suite name="wfs" state="ready" generationTime="5120"/>
+ *   &lt;suite name="wms" state="pending"/>
+ * &lt;/health>
+ * </pre>
+ *
+ * @see SuiteRegistry
+ */
+public class HealthServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 4469151378930227526L;
+
+    public void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException {
+        try {
+            SuiteRegistry suites = (SuiteRegistry) getServletContext()
+                    .getAttribute(SuiteRegistry.class.getName());
+            response.setContentType("text/xml; charset=UTF-8");
+            response.setHeader("Cache-Control", "no-cache");
+            if (suites == null) {
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                response.getWriter().println("<health status=\"starting\"/>");
+                return;
+            }
+            int ready = 0;
+            int failures = 0;
+            StringBuilder sb = new StringBuilder();
+            for (SuiteRegistry.SourcesEntry entry : suites.getEntries()) {
+                SuiteRegistry.State state = entry.getState();
+                sb.append("  <suite name=\"").append(escape(entry.getName()))
+                        .append("\" state=\"")
+                        .append(state.name().toLowerCase()).append('"');
+                if (state == SuiteRegistry.State.READY) {
+                    ready++;
+                    sb.append(" generationTime=\"")
+                            .append(entry.getGenerationTime()).append('"');
+                } else if (state == SuiteRegistry.State.FAILED) {
+                    failures++;
+                    sb.append(" error=\"")
+                            .append(escape(String.valueOf(entry.getError())))
+                            .append('"');
+                }
+                sb.append("/>\n");
+            }
+            int total = suites.getEntries().size();
+            String status = (ready == total) ? "ok" : (failures > 0) ? "failed"
+                    : "warming";
+            if (request.getParameter("ready") != null
+                    && ready + failures < total) {
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            }
+            PrintWriter out = response.getWriter();
+            out.println("<health status=\"" + status + "\" suites=\"" + total
+                    + "\" ready=\"" + ready + "\">");
+            out.print(sb);
+            out.println("</health>");
+        } catch (Exception e) {
+            throw new ServletException(e);
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;")
+                .replace("\"", "&quot;");
+    }
+}
@@ -0,0 +1,31 @@
+package com.occamlab.te.web;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.occamlab.te.util.Metrics;
+
+/**
+ * Reports the engine metrics as plain text in the Prometheus exposition
+ * format. It is meant to be mapped to /metrics and, since the report reveals
+ * the hosts under test, protected like the other servlets of the web app.
+ *
+ * @see Metrics
+ */
+public class MetricsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = -2604164316409377210L;
+
+    public void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException {
+        try {
+            response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+            response.setHeader("Cache-Control", "no-cache");
+            Metrics.writeText(response.getWriter());
+        } catch (Exception e) {
+            throw new ServletException(e);
+        }
+    }
+}
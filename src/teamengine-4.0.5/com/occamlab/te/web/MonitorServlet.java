@@ -41,6 +41,7 @@ import org.w3c.dom.Node;
 
 import com.occamlab.te.TECore;
 import com.occamlab.te.util.DomUtils;
+import com.occamlab.te.util.Metrics;
 
 /**
  * A servlet that intercepts a client request and validates it with a registered
@@ -270,6 +271,11 @@ public class MonitorServlet extends HttpServlet {
             identityTransformer = TransformerFactory.newInstance()
                     .newTransformer();
             servletName = this.getServletName();
+            Metrics.register("monitors_active", new Metrics.Gauge() {
+                public long getValue() {
+                    return monitors.size();
+                }
+            });
         } catch (Exception e) {
             throw new ServletException(e);
         }
@@ -0,0 +1,340 @@
+package com.occamlab.te.web;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.s9api.XsltTransformer;
+
+import com.occamlab.te.Engine;
+import com.occamlab.te.Generator;
+import com.occamlab.te.SetupOptions;
+import com.occamlab.te.TEClassLoader;
+import com.occamlab.te.index.Index;
+
+/**
+ * Generates the executable test suites configured for the web application
+ * and adds them to the engine. Every configured set of sources is registered
+ * at once; it is generated either by {@link #generateAll()}, the first time
+ * {@link #getIndex(String)} asks for it, or by a background warm-up thread
+ * that takes the sources used most recently first.
+ *
+ * <p>
+ * Recent use is taken from the test sessions found in the users directory and
+ * updated as sessions are started. Only one set of sources is generated at a
+ * time, since different sources may include the same CTL files.
+ * </p>
+ */
+public class SuiteRegistry {
+
+    private static final Logger LOGR = Logger.getLogger(SuiteRegistry.class
+            .getName());
+
+    public enum State {
+        PENDING, GENERATING, READY, FAILED
+    }
+
+    /**
+     * A set of sources and the state of its executable test suite.
+     */
+    public static class SourcesEntry {
+        private final String name;
+        private final List<File> sources;
+        private final File resources;
+        private volatile State state = State.PENDING;
+        private volatile Index index;
+        private volatile Exception error;
+        private volatile long lastUsed = 0;
+        private volatile long generationTime = 0;
+
+        SourcesEntry(String name, List<File> sources, File resources) {
+            this.name = name;
+            this.sources = sources;
+            this.resources = resources;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /** The error that made the generation fail, if it did. */
+        public Exception getError() {
+            return error;
+        }
+
+        /** The time the sources were last used, or 0. */
+        public long getLastUsed() {
+            return lastUsed;
+        }
+
+        /** The time taken to generate the suite in milliseconds. */
+        public long getGenerationTime() {
+            return generationTime;
+        }
+    }
+
+    private final Map<String, SourcesEntry> entries = new LinkedHashMap<String, SourcesEntry>();
+    private final Engine engine;
+    private final SetupOptions setupOpts;
+    private final File listingsDir;
+    private final XsltExecutable sourceGenerator;
+    private final ReentrantLock generationLock = new ReentrantLock(true);
+    private volatile Thread warmUpThread;
+
+    /**
+     * Registers the sources of a configuration.
+     *
+     * @param conf
+     *            The configuration.
+     * @param engine
+     *            The engine the generated suites are added to.
+     * @param setupOpts
+     *            The options used by {@link #generateAll()}; suites generated
+     *            on first use or by the warm-up thread each get new options
+     *            with the same number of generator threads.
+     * @param listingsDir
+     *            The directory for the HTML listings of the CTL scripts.
+     * @param sourceGenerator
+     *            The stylesheet that generates the listings.
+     */
+    public SuiteRegistry(Config conf, Engine engine, SetupOptions setupOpts,
+            File listingsDir, XsltExecutable sourceGenerator) {
+        this.engine = engine;
+        this.setupOpts = setupOpts;
+        this.listingsDir = listingsDir;
+        this.sourceGenerator = sourceGenerator;
+        for (Entry<String, List<File>> sourceEntry : conf.getSources()
+                .entrySet()) {
+            String name = sourceEntry.getKey();
+            entries.put(name, new SourcesEntry(name, sourceEntry.getValue(),
+                    conf.getResources().get(name)));
+        }
+    }
+
+    /**
+     * Returns the registered sources.
+     */
+    public Collection<SourcesEntry> getEntries() {
+        return entries.values();
+    }
+
+    /**
+     * Tells whether every suite has been generated.
+     */
+    public boolean isReady() {
+        for (SourcesEntry entry : entries.values()) {
+            if (entry.state != State.READY) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of a set of sources, generating the suite first if
+     * necessary, and records that the sources were used.
+     *
+     * @param sourcesName
+     *            The name of the sources.
+     * @return The index, or null if there are no such sources.
+     * @throws Exception
+     *             If the suite cannot be generated.
+     */
+    public Index getIndex(String sourcesName) throws Exception {
+        SourcesEntry entry = entries.get(sourcesName);
+        if (entry == null) {
+            return null;
+        }
+        entry.lastUsed = System.currentTimeMillis();
+        if (entry.state != State.READY) {
+            generate(entry, newSetupOptions());
+        }
+        return entry.index;
+    }
+
+    /**
+     * Generates every suite that is not ready, using the options given to the
+     * registry for all of them.
+     *
+     * @throws Exception
+     *             If a suite cannot be generated.
+     */
+    public void generateAll() throws Exception {
+        for (SourcesEntry entry : entries.values()) {
+            generate(entry, setupOpts);
+        }
+    }
+
+    SetupOptions newSetupOptions() {
+        SetupOptions opts = new SetupOptions();
+        opts.setGeneratorThreads(setupOpts.getGeneratorThreads());
+        return opts;
+    }
+
+    void generate(SourcesEntry entry, SetupOptions opts) throws Exception {
+        generationLock.lock();
+        try {
+            if (entry.state == State.READY) {
+                return;
+            }
+            entry.state = State.GENERATING;
+            long start = System.currentTimeMillis();
+            try {
+                LOGR.fine("Processing Test Suite: " + entry.name);
+                opts.setSourcesName(entry.name);
+                for (File source : entry.sources) {
+                    opts.addSource(source);
+                }
+                Index index = Generator.generateXsl(opts);
+                generateListings(index, opts.getWorkDir());
+                LOGR.config(String.format(
+                        "Adding resources directory for %s: %s", entry.name,
+                        entry.resources));
+                engine.addSources(entry.name, index, new TEClassLoader(
+                        entry.resources));
+                entry.index = index;
+                entry.error = null;
+                entry.generationTime = System.currentTimeMillis() - start;
+                entry.state = State.READY;
+                LOGR.info("Generated " + entry.name + " in "
+                        + entry.generationTime + " ms");
+            } catch (Exception e) {
+                entry.error = e;
+                entry.state = State.FAILED;
+                throw e;
+            }
+        } finally {
+            generationLock.unlock();
+        }
+    }
+
+    /**
+     * Generates simple HTML representations of the CTL scripts referenced in
+     * test reports, unless they are up to date.
+     */
+    void generateListings(Index index, File workDir) throws Exception {
+        XsltTransformer transformer = sourceGenerator.load();
+        for (File ctlFile : index.getDependencies()) {
+            String encodedName = Generator.createEncodedName(ctlFile);
+            String basename = encodedName;
+            int i = basename.lastIndexOf('.');
+            if (i > 0) {
+                basename = basename.substring(0, i);
+            }
+            File indexFile = new File(new File(workDir, encodedName),
+                    "index.xml");
+            File htmlFile = new File(listingsDir, basename + ".html");
+            boolean needsGenerating = true;
+            if (htmlFile.exists()) {
+                needsGenerating = (indexFile.lastModified() > htmlFile
+                        .lastModified());
+            }
+            if (needsGenerating) {
+                transformer.setSource(new StreamSource(ctlFile));
+                Serializer serializer = new Serializer();
+                serializer.setOutputFile(htmlFile);
+                transformer.setDestination(serializer);
+                transformer.transform();
+            }
+        }
+    }
+
+    /**
+     * Sets the last use of each set of sources from the sessions of all
+     * users.
+     *
+     * @param usersDir
+     *            The users directory.
+     */
+    public void loadUsage(File usersDir) {
+        File[] userDirs = usersDir.listFiles();
+        if (userDirs == null) {
+            return;
+        }
+        for (File userDir : userDirs) {
+            File[] sessionDirs = userDir.listFiles();
+            if (sessionDirs == null) {
+                continue;
+            }
+            for (File sessionDir : sessionDirs) {
+                if (!new File(sessionDir, "session.xml").isFile()) {
+                    continue;
+                }
+                TestSession session;
+                try {
+                    session = new TestSession();
+                    session.load(userDir, sessionDir.getName());
+                } catch (Exception e) {
+                    LOGR.log(Level.FINE, "Unreadable session " + sessionDir,
+                            e);
+                    continue;
+                }
+                SourcesEntry entry = entries.get(session.getSourcesName());
+                if (entry != null
+                        && sessionDir.lastModified() > entry.lastUsed) {
+                    entry.lastUsed = sessionDir.lastModified();
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a background thread that generates the pending suites, the most
+     * recently used first. Suites that fail are left for a later request to
+     * retry.
+     */
+    public synchronized void startWarmUp() {
+        if (warmUpThread != null) {
+            return;
+        }
+        warmUpThread = new Thread("te-warmup") {
+            public void run() {
+                SourcesEntry entry;
+                while (warmUpThread == this && (entry = nextToWarm()) != null) {
+                    try {
+                        generate(entry, newSetupOptions());
+                    } catch (Exception e) {
+                        LOGR.log(Level.WARNING, "Unable to generate "
+                                + entry.name, e);
+                    }
+                }
+                LOGR.fine("Warm-up finished");
+            }
+        };
+        warmUpThread.setDaemon(true);
+        warmUpThread.setPriority(Thread.MIN_PRIORITY);
+        warmUpThread.start();
+    }
+
+    /**
+     * Stops the warm-up thread after the suite it is generating, if any.
+     */
+    public synchronized void stopWarmUp() {
+        warmUpThread = null;
+    }
+
+    SourcesEntry nextToWarm() {
+        SourcesEntry next = null;
+        for (SourcesEntry entry : entries.values()) {
+            if (entry.state == State.PENDING
+                    && (next == null || entry.lastUsed > next.lastUsed)) {
+                next = entry;
+            }
+        }
+        return next;
+    }
+}
@@ -0,0 +1,353 @@
+package com.occamlab.te.web;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.occamlab.te.TECore;
+import com.occamlab.te.util.Metrics;
+
+/**
+ * Runs test sessions on a fixed number of worker threads. A run that cannot
+ * start at once waits in a FIFO queue. A new run is refused if the queue is
+ * full, if the user already has the maximum number of runs queued or running,
+ * or if the free heap is below the configured headroom. Queued runs are also
+ * held back while the heap is low and another run is still active; they are
+ * reconsidered whenever a run finishes or a client polls its status.
+ *
+ * <p>
+ * The free heap is estimated as the maximum heap size less the memory in use,
+ * so garbage not yet collected makes the estimate conservative.
+ * </p>
+ */
+public class TestRunExecutor {
+
+    private static final Logger LOGR = Logger.getLogger(TestRunExecutor.class
+            .getName());
+
+    public enum State {
+        QUEUED, RUNNING, COMPLETE, CANCELLED
+    }
+
+    /**
+     * A test run submitted to the executor.
+     */
+    public class Run implements Runnable {
+        private final long id;
+        private final String user;
+        private final String sessionId;
+        private final TECore core;
+        private final long submitted = System.currentTimeMillis();
+        private volatile State state = State.QUEUED;
+
+        Run(long id, String user, String sessionId, TECore core) {
+            this.id = id;
+            this.user = user;
+            this.sessionId = sessionId;
+            this.core = core;
+        }
+
+        public void run() {
+            Metrics.Gauge sessions = Metrics.gauge("sessions_active");
+            sessions.increment();
+            try {
+                core.run();
+            } finally {
+                sessions.decrement();
+                finished(this);
+            }
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        public TECore getCore() {
+            return core;
+        }
+
+        /** The time the run was submitted, in milliseconds since the epoch. */
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public boolean isDone() {
+            return state == State.COMPLETE || state == State.CANCELLED;
+        }
+    }
+
+    private final int maxRuns;
+    private final int maxQueuedRuns;
+    private final int maxRunsPerUser;
+    private final long minFreeMemory;
+    private final ExecutorService workers;
+    private final LinkedList<Run> queue = new LinkedList<Run>();
+    private final List<Run> running = new ArrayList<Run>();
+    private final AtomicLong ids = new AtomicLong();
+
+    /**
+     * Creates an executor.
+     *
+     * @param maxRuns
+     *            The number of runs executed at the same time.
+     * @param maxQueuedRuns
+     *            The number of runs that may wait for a worker.
+     * @param maxRunsPerUser
+     *            The number of runs a user may have queued or running; 0 means
+     *            no limit.
+     * @param minFreeMemory
+     *            The free heap, in bytes, needed to accept or start a run; 0
+     *            disables the check.
+     */
+    public TestRunExecutor(int maxRuns, int maxQueuedRuns, int maxRunsPerUser,
+            long minFreeMemory) {
+        if (maxRuns < 1) {
+            throw new IllegalArgumentException("maxRuns must be at least 1");
+        }
+        this.maxRuns = maxRuns;
+        this.maxQueuedRuns = maxQueuedRuns;
+        this.maxRunsPerUser = maxRunsPerUser;
+        this.minFreeMemory = minFreeMemory;
+        this.workers = Executors.newFixedThreadPool(maxRuns,
+                new ThreadFactory() {
+                    private final AtomicLong count = new AtomicLong();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "te-run-"
+                                + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        Metrics.register("runs_queued", new Metrics.Gauge() {
+            public long getValue() {
+                return getQueueDepth();
+            }
+        });
+        Metrics.register("runs_active", new Metrics.Gauge() {
+            public long getValue() {
+                return getRunningCount();
+            }
+        });
+    }
+
+    /**
+     * Checks whether a run would be accepted for a user now.
+     *
+     * @param user
+     *            The name of the user.
+     * @throws RejectedExecutionException
+     *             If the run would be refused; the message explains why.
+     */
+    public synchronized void checkAdmission(String user) {
+        if (maxRunsPerUser > 0 && countRuns(user) >= maxRunsPerUser) {
+            throw new RejectedExecutionException("You already have "
+                    + maxRunsPerUser
+                    + " test run(s) in progress. Wait for one to finish"
+                    + " or stop it.");
+        }
+        if (queue.size() >= maxQueuedRuns) {
+            throw new RejectedExecutionException(
+                    "The test queue is full. Try again later.");
+        }
+        if (isMemoryLow()) {
+            throw new RejectedExecutionException(
+                    "The server is low on memory. Try again later.");
+        }
+    }
+
+    /**
+     * Submits a test run. It starts at once if a worker is free, otherwise it
+     * is queued.
+     *
+     * @param user
+     *            The name of the user.
+     * @param sessionId
+     *            The test session identifier.
+     * @param core
+     *            The core that executes the session.
+     * @return The run.
+     * @throws RejectedExecutionException
+     *             If the run is refused; the message explains why.
+     */
+    public synchronized Run submit(String user, String sessionId, TECore core) {
+        checkAdmission(user);
+        Run run = new Run(ids.incrementAndGet(), user, sessionId, core);
+        queue.add(run);
+        LOGR.fine("Queued run " + run.id + " of " + user + " for session "
+                + sessionId);
+        dispatch();
+        return run;
+    }
+
+    /**
+     * Starts queued runs while workers are free. The oldest run is held back
+     * if the heap is low and another run is active, since that run will
+     * release memory when it finishes. Clients waiting on the console of a
+     * run that is still queued are woken up when its position changes.
+     */
+    public synchronized void dispatch() {
+        int queued = queue.size();
+        while (running.size() < maxRuns && !queue.isEmpty()) {
+            if (!running.isEmpty() && isMemoryLow()) {
+                LOGR.fine("Low memory; holding " + queue.size()
+                        + " queued run(s)");
+                break;
+            }
+            Run run = queue.removeFirst();
+            run.state = State.RUNNING;
+            running.add(run);
+            workers.execute(run);
+        }
+        if (queue.size() != queued) {
+            signalQueue();
+        }
+    }
+
+    private void signalQueue() {
+        for (Run run : queue) {
+            run.core.getConsole().signal();
+        }
+    }
+
+    synchronized void finished(Run run) {
+        running.remove(run);
+        if (run.state == State.RUNNING) {
+            run.state = State.COMPLETE;
+        }
+        dispatch();
+    }
+
+    /**
+     * Cancels a run. A queued run is removed from the queue; a running run is
+     * stopped, and this method returns once it has stopped.
+     *
+     * @param run
+     *            The run to cancel.
+     * @return false if the run had already finished.
+     */
+    public boolean cancel(Run run) throws Exception {
+        synchronized (this) {
+            if (run.isDone()) {
+                return false;
+            }
+            boolean queued = (run.state == State.QUEUED);
+            run.state = State.CANCELLED;
+            if (queued) {
+                queue.remove(run);
+                run.core.getConsole().signal();
+                signalQueue();
+                return true;
+            }
+        }
+        run.core.stopThread();
+        return true;
+    }
+
+    /**
+     * Returns the position of a run in the queue.
+     *
+     * @param run
+     *            A run.
+     * @return The position, starting at 1, or 0 if the run is not queued.
+     */
+    public synchronized int getPosition(Run run) {
+        return queue.indexOf(run) + 1;
+    }
+
+    /**
+     * Returns a queued or running run.
+     *
+     * @param id
+     *            The run identifier.
+     * @return The run, or null if there is no such run or it has finished.
+     */
+    public synchronized Run getRun(long id) {
+        for (Run run : getRuns()) {
+            if (run.id == id) {
+                return run;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the running runs followed by the queued runs in queue order.
+     *
+     * @return A snapshot of the active runs.
+     */
+    public synchronized List<Run> getRuns() {
+        List<Run> runs = new ArrayList<Run>(running);
+        runs.addAll(queue);
+        return runs;
+    }
+
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    public synchronized int getRunningCount() {
+        return running.size();
+    }
+
+    public int getMaxRuns() {
+        return maxRuns;
+    }
+
+    /**
+     * Discards the queued runs and stops accepting work. Running sessions are
+     * asked to stop but are not waited for.
+     */
+    public synchronized void shutdown() {
+        for (Run run : queue) {
+            run.state = State.CANCELLED;
+        }
+        queue.clear();
+        for (Run run : running) {
+            run.state = State.CANCELLED;
+            try {
+                run.core.stopThread(false);
+            } catch (InterruptedException e) {
+                // Does not wait
+            }
+        }
+        workers.shutdown();
+    }
+
+    private int countRuns(String user) {
+        int count = 0;
+        for (Run run : getRuns()) {
+            if (run.user == null ? user == null : run.user.equals(user)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    boolean isMemoryLow() {
+        if (minFreeMemory <= 0) {
+            return false;
+        }
+        Runtime rt = Runtime.getRuntime();
+        long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+        return free < minFreeMemory;
+    }
+}
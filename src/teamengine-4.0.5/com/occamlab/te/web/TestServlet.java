@@ -23,6 +23,7 @@ package com.occamlab.te.web;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.net.URI;
 import java.net.URL;
@@ -33,7 +34,8 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
@@ -50,10 +52,8 @@ import javax.xml.transform.stream.StreamSource;
 
 import net.sf.saxon.FeatureKeys;
 import net.sf.saxon.s9api.Processor;
-import net.sf.saxon.s9api.Serializer;
 import net.sf.saxon.s9api.XsltCompiler;
 import net.sf.saxon.s9api.XsltExecutable;
-import net.sf.saxon.s9api.XsltTransformer;
 
 import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.FileItemFactory;
@@ -62,7 +62,6 @@ import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import com.occamlab.te.Engine;
-import com.occamlab.te.Generator;
 import com.occamlab.te.RuntimeOptions;
 import com.occamlab.te.SetupOptions;
 import com.occamlab.te.TEClassLoader;
@@ -70,8 +69,11 @@ import com.occamlab.te.TECore;
 import com.occamlab.te.Test;
 import com.occamlab.te.index.Index;
 import com.occamlab.te.index.SuiteEntry;
+import com.occamlab.te.util.ConsoleBuffer;
 import com.occamlab.te.util.DomUtils;
+import com.occamlab.te.util.HttpTransport;
 import com.occamlab.te.util.LogUtils;
+import com.occamlab.te.util.Metrics;
 import com.occamlab.te.util.Misc;
 import com.occamlab.te.util.StringUtils;
 
@@ -86,30 +88,100 @@ public class TestServlet extends HttpServlet {
 
     private static Logger LOGR = Logger
             .getLogger("com.occamlab.te.web.TestServlet");
+    /** The longest time a GetOutput request waits for output, in ms. */
+    static final long MAX_OUTPUT_WAIT = 30000;
+    /** The interval between keep-alive comments in an event stream, in ms. */
+    static final long KEEP_ALIVE_INTERVAL = 15000;
 
     DocumentBuilder DB;
     Transformer identityTransformer;
     Engine engine;
-    Map<String, Index> indexes;
+    SuiteRegistry suites;
     Config conf;
     SetupOptions setupOpts;
+    int testThreads = Integer.getInteger("te.testThreads", 1);
+    int profileThreads = Integer.getInteger("te.profileThreads", 1);
+    String httpMode = System.getProperty("te.httpMode",
+            HttpTransport.PASSTHROUGH_MODE);
+    int maxRuns = Integer.getInteger("te.maxRuns", Runtime.getRuntime()
+            .availableProcessors());
+    int maxQueuedRuns = Integer.getInteger("te.maxQueuedRuns", 50);
+    int maxRunsPerUser = Integer.getInteger("te.maxRunsPerUser", 2);
+    // Free heap in MB needed to accept or start a run
+    int minFreeMemory = Integer.getInteger("te.minFreeMemory", 64);
+    String adminRole = System.getProperty("te.adminRole", "admin");
+    // Generate suites on first use instead of during init
+    boolean lazyGeneration = Boolean.getBoolean("te.lazyGeneration");
+    // Generate suites in the background in lazy mode
+    boolean warmUp = !"false".equalsIgnoreCase(System
+            .getProperty("te.warmUp"));
+    TestRunExecutor runs;
 
     /**
-     * Generates executable test suites from available CTL sources.
+     * Generates executable test suites from available CTL sources. In lazy
+     * mode (the lazyGeneration init parameter or te.lazyGeneration system
+     * property) the suites are only registered, and generated on first use or
+     * by a background warm-up thread unless warmUp is false. The registry is
+     * published as a servlet context attribute for {@link HealthServlet}.
      */
     public void init() throws ServletException {
         try {
             conf = new Config();
             this.setupOpts = new SetupOptions();
+            String threads = getServletConfig().getInitParameter(
+                    "generatorThreads");
+            if (threads != null) {
+                setupOpts.setGeneratorThreads(Integer.parseInt(threads));
+                LOGR.fine("Set generatorThreads to " + threads);
+            }
+            threads = getServletConfig().getInitParameter("testThreads");
+            if (threads != null) {
+                testThreads = Integer.parseInt(threads);
+                LOGR.fine("Set testThreads to " + threads);
+            }
+            threads = getServletConfig().getInitParameter("profileThreads");
+            if (threads != null) {
+                profileThreads = Integer.parseInt(threads);
+                LOGR.fine("Set profileThreads to " + threads);
+            }
+            String mode = getServletConfig().getInitParameter("httpMode");
+            if (mode != null) {
+                httpMode = mode;
+                LOGR.fine("Set httpMode to " + mode);
+            }
+            maxRuns = getIntParameter("maxRuns", maxRuns);
+            maxQueuedRuns = getIntParameter("maxQueuedRuns", maxQueuedRuns);
+            maxRunsPerUser = getIntParameter("maxRunsPerUser", maxRunsPerUser);
+            minFreeMemory = getIntParameter("minFreeMemory", minFreeMemory);
+            String role = getServletConfig().getInitParameter("adminRole");
+            if (role != null) {
+                adminRole = role;
+            }
+            runs = new TestRunExecutor(maxRuns, maxQueuedRuns, maxRunsPerUser,
+                    minFreeMemory * 1024L * 1024L);
+            String lazy = getServletConfig().getInitParameter("lazyGeneration");
+            if (lazy != null) {
+                lazyGeneration = Boolean.parseBoolean(lazy);
+            }
+            String warm = getServletConfig().getInitParameter("warmUp");
+            if (warm != null) {
+                warmUp = Boolean.parseBoolean(warm);
+            }
 
             DB = DocumentBuilderFactory.newInstance().newDocumentBuilder();
 
             identityTransformer = TransformerFactory.newInstance()
                     .newTransformer();
 
-            indexes = new HashMap<String, Index>();
-
-            HashMap<String, TEClassLoader> classLoaders = new HashMap<String, TEClassLoader>();
+            Map<String, TEClassLoader> classLoaders = new ConcurrentHashMap<String, TEClassLoader>();
+            int cacheSize = 0;
+            String s = getServletConfig().getInitParameter("cacheSize");
+            if (s != null) {
+                cacheSize = Integer.parseInt(s);
+                LOGR.fine("Set cacheSize to " + s);
+            }
+            engine = new Engine(new ArrayList<Index>(), classLoaders,
+                    cacheSize);
 
             Processor processor = new Processor(false);
             processor.setConfigurationProperty(FeatureKeys.XINCLUDE,
@@ -119,8 +191,6 @@ public class TestServlet extends HttpServlet {
                     .getResourceAsFile("com/occamlab/te/generate_source_html.xsl");
             XsltExecutable sourceGeneratorXsltExecutable = sourceGeneratorCompiler
                     .compile(new StreamSource(sourceGeneratorStylesheet));
-            XsltTransformer sourceGeneratorTransformer = sourceGeneratorXsltExecutable
-                    .load();
             // Generate simple HTML representation of CTL scripts referenced in
             // test report; use real location of web app context (e.g.
             // CATALINA_BASE/webapps/teamengine/)
@@ -131,55 +201,16 @@ public class TestServlet extends HttpServlet {
                 LOGR.warning("Failed to create directory at "
                         + listings.getAbsolutePath());
             }
-            for (Entry<String, List<File>> sourceEntry : conf.getSources()
-                    .entrySet()) {
-                String sourcesName = sourceEntry.getKey();
-                LOGR.fine("TestServlet - Processing Test Suite: " + sourcesName);
-                setupOpts.setSourcesName(sourcesName);
-                for (File source : sourceEntry.getValue()) {
-                    setupOpts.addSource(source);
-                }
-                Index index = Generator.generateXsl(setupOpts);
-                indexes.put(sourcesName, index);
-
-                for (File ctlFile : index.getDependencies()) {
-                    String encodedName = Generator.createEncodedName(ctlFile);
-                    String basename = encodedName;
-                    int i = basename.lastIndexOf('.');
-                    if (i > 0) {
-                        basename = basename.substring(0, i);
-                    }
-                    File indexFile = new File(new File(setupOpts.getWorkDir(),
-                            encodedName), "index.xml");
-                    File htmlFile = new File(listings, basename + ".html");
-                    boolean needsGenerating = true;
-                    if (htmlFile.exists()) {
-                        needsGenerating = (indexFile.lastModified() > htmlFile
-                                .lastModified());
-                    }
-                    if (needsGenerating) {
-                        sourceGeneratorTransformer.setSource(new StreamSource(
-                                ctlFile));
-                        Serializer sourceGeneratorSerializer = new Serializer();
-                        sourceGeneratorSerializer.setOutputFile(htmlFile);
-                        sourceGeneratorTransformer
-                                .setDestination(sourceGeneratorSerializer);
-                        sourceGeneratorTransformer.transform();
-                    }
-                }
-                File resourcesDir = conf.getResources().get(sourcesName);
-                LOGR.config(String.format(
-                        "Adding resources directory for %s: %s", sourcesName,
-                        resourcesDir));
-                classLoaders.put(sourcesName, new TEClassLoader(resourcesDir));
+            suites = new SuiteRegistry(conf, engine, setupOpts, listings,
+                    sourceGeneratorXsltExecutable);
+            getServletContext().setAttribute(SuiteRegistry.class.getName(),
+                    suites);
+            if (!lazyGeneration) {
+                suites.generateAll();
+            } else if (warmUp) {
+                suites.loadUsage(conf.getUsersDir());
+                suites.startWarmUp();
             }
-            int cacheSize = 0;
-            String s = getServletConfig().getInitParameter("cacheSize");
-            if (s != null) {
-                cacheSize = Integer.parseInt(s);
-                LOGR.fine("Set cacheSize to " + s);
-            }
-            engine = new Engine(indexes.values(), classLoaders, cacheSize);
         } catch (ServletException e) {
             throw e;
         } catch (Exception e) {
@@ -187,6 +218,32 @@ public class TestServlet extends HttpServlet {
         }
     }
 
+    private int getIntParameter(String name, int defaultValue) {
+        String value = getServletConfig().getInitParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        LOGR.fine("Set " + name + " to " + value);
+        return Integer.parseInt(value);
+    }
+
+    /**
+     * Discards queued test runs, asks running ones to stop and closes the
+     * result stores opened for the users' log directories.
+     */
+    @Override
+    public void destroy() {
+        if (runs != null) {
+            runs.shutdown();
+        }
+        if (suites != null) {
+            suites.stopWarmUp();
+        }
+        LogUtils.closeResultStores();
+        Metrics.unregisterAll();
+        super.destroy();
+    }
+
     public void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException {
         process(request, response);
@@ -229,6 +286,12 @@ public class TestServlet extends HttpServlet {
             if (operation.equals("Test")) {
                 TestSession s = new TestSession();
                 String user = request.getRemoteUser();
+                try {
+                    runs.checkAdmission(user);
+                } catch (RejectedExecutionException e) {
+                    reject(response, e);
+                    return;
+                }
                 File logdir = new File(conf.getUsersDir(), user);
                 LOGR.info("Creating test session in "
                         + logdir.getAbsolutePath());
@@ -236,6 +299,9 @@ public class TestServlet extends HttpServlet {
                 RuntimeOptions opts = new RuntimeOptions();
                 opts.setWorkDir(setupOpts.getWorkDir());
                 opts.setLogDir(logdir);
+                opts.setTestThreads(testThreads);
+                opts.setProfileThreads(profileThreads);
+                opts.setHttpMode(httpMode);
                 if (mode.equals("retest")) {
                     opts.setMode(Test.RETEST_MODE);
                     String sessionid = params.get("session");
@@ -319,7 +385,7 @@ public class TestServlet extends HttpServlet {
                         + "/");
                 LOGR.fine("Base URL is " + baseURL);
                 opts.setBaseURI(baseURL.toString());
-                TECore core = new TECore(engine, indexes.get(opts
+                final TECore core = new TECore(engine, suites.getIndex(opts
                         .getSourcesName()), opts);
                 String servletURL = request.getRequestURL().toString();
                 LOGR.fine("Request URL is " + servletURL);
@@ -330,32 +396,55 @@ public class TestServlet extends HttpServlet {
                 PrintStream ps = new PrintStream(baos);
                 core.setOut(ps);
                 core.setWeb(true);
-                Thread thread = new Thread(core);
+                TestRunExecutor.Run run;
+                try {
+                    run = runs.submit(user, s.getSessionId(), core);
+                } catch (RejectedExecutionException e) {
+                    reject(response, e);
+                    return;
+                }
                 session.setAttribute("testsession", core);
-                thread.start();
+                session.setAttribute("testrun", run);
                 response.setContentType("text/xml");
-                out.println("<thread id=\"" + thread.getId()
-                        + "\" sessionId=\"" + s.getSessionId() + "\"/>");
+                out.print("<thread id=\"" + run.getId() + "\" sessionId=\""
+                        + s.getSessionId() + "\"");
+                printQueuePosition(out, run);
+                out.println("/>");
             } else if (operation.equals("Stop")) {
                 response.setContentType("text/xml");
                 TECore core = (TECore) session.getAttribute("testsession");
+                TestRunExecutor.Run run = (TestRunExecutor.Run) session
+                        .getAttribute("testrun");
                 if (core != null) {
-                    core.stopThread();
+                    if (run != null) {
+                        runs.cancel(run);
+                    } else {
+                        core.stopThread();
+                    }
                     session.removeAttribute("testsession");
+                    session.removeAttribute("testrun");
                     out.println("<stopped/>");
                 } else {
                     out.println("<message>Could not retrieve core object</message>");
                 }
             } else if (operation.equals("GetStatus")) {
                 TECore core = (TECore) session.getAttribute("testsession");
+                TestRunExecutor.Run run = (TestRunExecutor.Run) session
+                        .getAttribute("testrun");
                 response.setContentType("text/xml");
                 out.print("<status");
                 if (core.getFormHtml() != null) {
                     out.print(" form=\"true\"");
                 }
-                if (core.isThreadComplete()) {
+                if (run != null) {
+                    // Queued runs held back for memory are retried on polls
+                    runs.dispatch();
+                    printQueuePosition(out, run);
+                }
+                if (isComplete(core, run)) {
                     out.print(" complete=\"true\"");
                     session.removeAttribute("testsession");
+                    session.removeAttribute("testrun");
                 }
                 out.println(">");
                 out.print("<![CDATA[");
@@ -364,6 +453,118 @@ public class TestServlet extends HttpServlet {
                         '+', ' '));
                 out.println("]]>");
                 out.println("</status>");
+            } else if (operation.equals("GetOutput")) {
+                TECore core = (TECore) session.getAttribute("testsession");
+                TestRunExecutor.Run run = (TestRunExecutor.Run) session
+                        .getAttribute("testrun");
+                response.setContentType("text/xml; charset=UTF-8");
+                response.setHeader("Cache-Control", "no-cache");
+                if (core == null) {
+                    out.println("<message>Could not retrieve core object</message>");
+                    return;
+                }
+                long seq;
+                long wait;
+                try {
+                    seq = parseLong(params.get("seq"), 0);
+                    wait = Math.min(parseLong(params.get("wait"), 0),
+                            MAX_OUTPUT_WAIT);
+                } catch (NumberFormatException e) {
+                    response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                            "Invalid seq or wait");
+                    return;
+                }
+                ConsoleBuffer console = core.getConsole();
+                if (run != null) {
+                    runs.dispatch();
+                }
+                if (core.getFormHtml() == null && !isComplete(core, run)) {
+                    console.await(seq, wait);
+                }
+                ConsoleBuffer.Chunk chunk = console.read(seq);
+                out.print("<output seq=\"" + chunk.getEnd() + "\"");
+                if (chunk.getDropped() > 0) {
+                    out.print(" dropped=\"" + chunk.getDropped() + "\"");
+                }
+                if (core.getFormHtml() != null) {
+                    out.print(" form=\"true\"");
+                }
+                if (run != null) {
+                    printQueuePosition(out, run);
+                }
+                if (isComplete(core, run)
+                        && chunk.getEnd() == console.getSequence()) {
+                    out.print(" complete=\"true\"");
+                    session.removeAttribute("testsession");
+                    session.removeAttribute("testrun");
+                }
+                out.print(">");
+                out.write(escapeText(chunk.getText()).getBytes("UTF-8"));
+                out.println("</output>");
+            } else if (operation.equals("StreamOutput")) {
+                TECore core = (TECore) session.getAttribute("testsession");
+                TestRunExecutor.Run run = (TestRunExecutor.Run) session
+                        .getAttribute("testrun");
+                if (core == null) {
+                    response.sendError(HttpServletResponse.SC_NOT_FOUND,
+                            "No active test session");
+                    return;
+                }
+                long seq;
+                try {
+                    seq = parseLong(request.getHeader("Last-Event-ID"),
+                            parseLong(params.get("seq"), 0));
+                } catch (NumberFormatException e) {
+                    response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                            "Invalid Last-Event-ID or seq");
+                    return;
+                }
+                if (streamOutput(response, core, run, seq)) {
+                    session.removeAttribute("testsession");
+                    session.removeAttribute("testrun");
+                }
+            } else if (operation.equals("GetRuns")) {
+                if (!request.isUserInRole(adminRole)) {
+                    response.sendError(HttpServletResponse.SC_FORBIDDEN);
+                    return;
+                }
+                response.setContentType("text/xml");
+                out.println("<runs workers=\"" + runs.getMaxRuns()
+                        + "\" running=\"" + runs.getRunningCount()
+                        + "\" queued=\"" + runs.getQueueDepth() + "\">");
+                for (TestRunExecutor.Run run : runs.getRuns()) {
+                    out.print("<run id=\"" + run.getId() + "\" user=\""
+                            + StringUtils.escapeXML(run.getUser())
+                            + "\" sessionId=\"" + run.getSessionId()
+                            + "\" state=\""
+                            + run.getState().name().toLowerCase()
+                            + "\" submitted=\"" + run.getSubmitted() + "\"");
+                    printQueuePosition(out, run);
+                    out.println("/>");
+                }
+                out.println("</runs>");
+            } else if (operation.equals("CancelRun")) {
+                if (!request.isUserInRole(adminRole)) {
+                    response.sendError(HttpServletResponse.SC_FORBIDDEN);
+                    return;
+                }
+                long id;
+                try {
+                    id = Long.parseLong(params.get("run"));
+                } catch (NumberFormatException e) {
+                    response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                            "Missing or invalid run id");
+                    return;
+                }
+                response.setContentType("text/xml");
+                TestRunExecutor.Run run = runs.getRun(id);
+                if (run != null && runs.cancel(run)) {
+                    LOGR.info("Run " + run.getId() + " of " + run.getUser()
+                            + " cancelled by " + request.getRemoteUser());
+                    out.println("<cancelled id=\"" + run.getId() + "\"/>");
+                } else {
+                    out.println("<message>No active run " + id + "</message>");
+                }
             } else if (operation.equals("GetForm")) {
                 TECore core = (TECore) session.getAttribute("testsession");
                 String html = core.getFormHtml();
@@ -440,4 +641,125 @@ public class TestServlet extends HttpServlet {
             throw new ServletException(t);
         }
     }
+
+    /**
+     * Sends the console output of a session as Server-Sent Events until the
+     * session completes or the client goes away. Each "message" event
+     * carries new output and has the sequence number to resume from as its
+     * id. A "dropped" event gives the number of bytes of output discarded
+     * before the client could read them, a "queued" event the position of a
+     * waiting run, a "form" event announces a form to fetch with GetForm, and
+     * a "complete" event ends the stream.
+     *
+     * @return true if the session completed and all output was sent.
+     */
+    boolean streamOutput(HttpServletResponse response, TECore core,
+            TestRunExecutor.Run run, long seq) throws Exception {
+        response.setContentType("text/event-stream; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        ServletOutputStream out = response.getOutputStream();
+        ConsoleBuffer console = core.getConsole();
+        int position = -1;
+        String form = null;
+        try {
+            while (true) {
+                if (run != null) {
+                    runs.dispatch();
+                    int p = runs.getPosition(run);
+                    if (p != position) {
+                        position = p;
+                        writeEvent(out, "queued", null, Integer.toString(p));
+                    }
+                }
+                boolean complete = isComplete(core, run);
+                ConsoleBuffer.Chunk chunk = console.read(seq);
+                if (chunk.getDropped() > 0) {
+                    writeEvent(out, "dropped", null,
+                            Long.toString(chunk.getDropped()));
+                }
+                if (chunk.getText().length() > 0) {
+                    writeEvent(out, null, Long.toString(chunk.getEnd()),
+                            chunk.getText());
+                }
+                seq = chunk.getEnd();
+                String html = core.getFormHtml();
+                if (html != null && html != form) {
+                    writeEvent(out, "form", null, "");
+                }
+                form = html;
+                if (complete && seq == console.getSequence()) {
+                    writeEvent(out, "complete", null, "");
+                    out.flush();
+                    return true;
+                }
+                out.flush();
+                if (!console.await(seq, KEEP_ALIVE_INTERVAL)
+                        && !console.isClosed()) {
+                    // Also detects a client that has gone away
+                    out.print(": keep-alive\n\n");
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            LOGR.fine("Event stream closed by client: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static void writeEvent(ServletOutputStream out, String event,
+            String id, String data) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        if (event != null) {
+            sb.append("event: ").append(event).append('\n');
+        }
+        if (id != null) {
+            sb.append("id: ").append(id).append('\n');
+        }
+        for (String line : data.replace("\r\n", "\n").split("[\r\n]", -1)) {
+            sb.append("data: ").append(line).append('\n');
+        }
+        sb.append('\n');
+        out.write(sb.toString().getBytes("UTF-8"));
+    }
+
+    private static boolean isComplete(TECore core, TestRunExecutor.Run run) {
+        return run != null ? run.isDone() : core.isThreadComplete();
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        if (value == null || value.length() == 0) {
+            return defaultValue;
+        }
+        return Long.parseLong(value);
+    }
+
+    private static String escapeText(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;")
+                .replace(">", "&gt;");
+    }
+
+    /**
+     * Adds the queue position of a waiting run to an element being written.
+     */
+    private void printQueuePosition(ServletOutputStream out,
+            TestRunExecutor.Run run) throws IOException {
+        int position = runs.getPosition(run);
+        if (position > 0) {
+            out.print(" queued=\"true\" position=\"" + position + "\"");
+        }
+    }
+
+    /**
+     * Refuses a test run with 503 (Service Unavailable) and the reason.
+     */
+    private void reject(HttpServletResponse response,
+            RejectedExecutionException e) throws IOException {
+        LOGR.info("Test run refused: " + e.getMessage());
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", "60");
+        response.setContentType("text/xml");
+        response.getOutputStream().println(
+                "<rejected>" + StringUtils.escapeXML(e.getMessage())
+                        + "</rejected>");
+    }
 }